@@ -2,8 +2,13 @@ package chat;
 
 import chat.network.Client;
 import chat.network.Server;
+import chat.network.ServerConfig;
+import chat.network.ServerMode;
+import chat.protocol.WireFormat;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.Scanner;
 
 /**
@@ -13,6 +18,8 @@ import java.util.Scanner;
 public class Main {
 
     private static final int MAX_LOGIN_ATTEMPTS = 3;
+    // -Dchat.client.tls=true connects over TLS, trusting what javax.net.ssl.trustStore trusts
+    private static final String CLIENT_TLS_PROPERTY = "chat.client.tls";
 
     /**
      * Prompts the user for a port number, validates it, and returns a valid port.
@@ -61,6 +68,25 @@ public class Main {
         return host;
     }
 
+    /**
+     * Prompts the user for the server engine. An empty answer keeps the configured default.
+     *
+     * @param scanner The Scanner instance for user input.
+     * @param defaultMode The mode to use when the user just presses Enter.
+     * @return The chosen server mode.
+     */
+    private static ServerMode getServerMode(Scanner scanner, ServerMode defaultMode) {
+        while (true) {
+            System.out.print("Select server engine (blocking/nio) [" + defaultMode.name().toLowerCase() + "]: ");
+            String modeInput = scanner.nextLine().trim();
+            try {
+                return ServerMode.parse(modeInput, defaultMode);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: Unknown engine. Please type 'blocking' or 'nio'.");
+            }
+        }
+    }
+
     /**
      * Main entry point of the application.
      * Manages the primary user interaction flow.
@@ -105,7 +131,9 @@ public class Main {
     private static void runServer(Scanner scanner) {
         System.out.println("\n--- Server Setup ---");
         int port = getValidPort(scanner, "Enter port to start the server on");
-        Server server = new Server(); // [3]
+        ServerConfig config = ServerConfig.load();
+        config.setMode(getServerMode(scanner, config.getMode()));
+        Server server = new Server(config); // [3]
         try {
             server.start(port); // [3] This method will block until the server is stopped.
             System.out.println("Server has been stopped."); // Reached if server.start() was blocking and completed.
@@ -126,6 +154,14 @@ public class Main {
         int port = getValidPort(scanner, "Enter server port");
 
         Client client = new Client(); // [1]
+        if (Boolean.getBoolean(CLIENT_TLS_PROPERTY)) {
+            try {
+                client.setTlsContext(SSLContext.getDefault()); // One context, so reconnects resume the session
+            } catch (NoSuchAlgorithmException e) {
+                System.err.println("Error: TLS is not available: " + e.getMessage());
+                return;
+            }
+        }
         String authenticatedUsername = null;
 
         clientActionLoop:
@@ -139,7 +175,7 @@ public class Main {
                 switch (actionChoice) {
                     case "1": // LOGIN
                         if (!client.isConnected()) { // [1]
-                            client.connect(host, port); // [1]
+                            client.connect(host, port, WireFormat.BINARY_DEFLATE); // [1] Falls back on older servers
                         }
                         System.out.println("--- Login ---");
                         for (int attempt = 1; attempt <= MAX_LOGIN_ATTEMPTS; attempt++) {
@@ -151,6 +187,7 @@ public class Main {
                             if (client.login(username, password)) { // [1]
                                 System.out.println("Login successful!");
                                 authenticatedUsername = username;
+                                enableDirectChat(client);
                                 startChatSession(scanner, client, authenticatedUsername);
                                 break clientActionLoop; // Chat ended, exit client actions to main menu
                             } else {
@@ -165,7 +202,7 @@ public class Main {
 
                     case "2": // REGISTER
                         if (!client.isConnected()) { // [1]
-                            client.connect(host, port); // [1]
+                            client.connect(host, port, WireFormat.BINARY_DEFLATE); // [1] Falls back on older servers
                         }
                         System.out.println("--- Register ---");
                         System.out.print("Choose username: ");
@@ -237,6 +274,8 @@ public class Main {
                     // The client.disconnect() will be handled by the finally block in runClient
                     // or by explicit disconnect in clientActionLoop after chat ends.
                     break; // Exit chat loop
+                } else if (message.startsWith("//dm ")) {
+                    sendDirect(client, message.substring("//dm ".length()));
                 } else if (message.equalsIgnoreCase("//help")) {
                     displayHelp();
                 } else if (message.equalsIgnoreCase("//time")) {
@@ -257,6 +296,40 @@ public class Main {
         }
     }
 
+    /**
+     * Lets other clients connect directly. Chat still works through the server if this fails.
+     *
+     * @param client The logged-in client.
+     */
+    private static void enableDirectChat(Client client) {
+        try {
+            if (client.enablePeerToPeer(0)) {
+                System.out.println("Direct messages enabled on port " + client.getPeerPort() + ".");
+            }
+        } catch (IOException e) {
+            System.err.println("Direct messages unavailable, using the server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a direct message to one or more users, e.g. {@code alice,bob hello}.
+     *
+     * @param client The logged-in client.
+     * @param arguments The comma-separated recipients and the message.
+     */
+    private static void sendDirect(Client client, String arguments) {
+        String[] parts = arguments.trim().split(" ", 2);
+        if (parts.length < 2 || parts[1].trim().isEmpty()) {
+            System.err.println("Usage: //dm <user>[,<user>...] <message>");
+            return;
+        }
+        for (String recipient : parts[0].split(",")) {
+            if (!recipient.isEmpty()) {
+                client.sendDirect(recipient, parts[1]);
+            }
+        }
+    }
+
     /**
      * Displays the help message with available chat commands.
      */
@@ -269,6 +342,15 @@ public class Main {
                 "  //online       - Request list of online users (sent to server)\n" +
                 "  //welcome      - Request server's welcome message (sent to server)\n" +
                 "  //setwelcome <msg> - (Admin) Set server welcome message (sent to server)\n" +
+                "  //join <room>  - Join a room (or switch to it); your messages go there\n" +
+                "  //leave <room> - Leave a room\n" +
+                "  //rooms        - List rooms and their member counts\n" +
+                "  //online <room> - List users in a room\n" +
+                "  //history [n]  - Show the last n messages of your active room (default 20)\n" +
+                "  //search <words> [#room] - Find the newest messages containing all the words\n" +
+                "  //msg <user> <text> - Send a private message to one user\n" +
+                "  //dm <user>[,<user>...] <text> - Message users directly, bypassing the server when possible\n" +
+                "  //peers        - List users that accept direct messages (sent to server)\n" +
                 "  //disconnect   - Disconnect from the server\n" +
                 "  //exit         - Disconnect from the server"
         );
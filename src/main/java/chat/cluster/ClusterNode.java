@@ -0,0 +1,476 @@
+package chat.cluster;
+
+import chat.protocol.FrameCodec;
+import chat.util.SeenSet;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links one chat server to the other servers of a cluster so that users on different nodes can
+ * talk to each other.
+ * <p>
+ * Nodes form a full mesh: each node dials the peers it was configured with and accepts
+ * connections from the rest. A message is relayed only by the node where it originated,
+ * straight to every other node, and receivers never forward what they receive, so messages
+ * cannot loop. Every message carries an ID made of its origin node and a sequence number;
+ * receivers drop their own messages and anything already in their {@link SeenSet}, so a
+ * message delivered over two links between the same pair of nodes is still shown once.
+ * </p>
+ * <p>
+ * Nodes also announce which users are logged in on them. That directory answers cluster-wide
+ * {@code //online} and tells the node which peers to route a private message to. When every
+ * link to a node is gone, its users are dropped from the directory.
+ * </p>
+ * <p>
+ * Every node is configured with the same secret. A link is used only after both ends have
+ * answered the other's random challenge with an HMAC keyed by the secret. The node that was
+ * dialed answers only once the dialer has proved itself, so nodes never answer challenges for
+ * whoever connects to them. A peer may
+ * only speak for itself: messages whose origin is not the node at the other end of the link are
+ * dropped. The secret authenticates peers but does not encrypt the links, so the cluster port
+ * belongs on a private network, which the bind address can enforce.
+ * </p>
+ * <p>
+ * Peer messages are tab-separated text in binary frames:
+ * {@code ALL id text}, {@code ROOM id room text}, {@code PM id user text},
+ * {@code JOIN id user} and {@code LEAVE id user}.
+ * </p>
+ */
+public final class ClusterNode {
+    private static final long RECONNECT_DELAY_MILLIS = 500;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int SEEN_CAPACITY = 64 * 1024;
+    private static final int NONCE_BYTES = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final String nodeId;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final LocalDelivery local;
+    private final AtomicLong sequence = new AtomicLong();
+    private final SeenSet seen = new SeenSet(SEEN_CAPACITY);
+    // Peer node -> its open links; messages go over the first, the others are standbys
+    private final ConcurrentMap<String, List<PeerLink>> peers = new ConcurrentHashMap<>();
+    // Peer node -> users logged in there
+    private final ConcurrentMap<String, Set<String>> remoteUsers = new ConcurrentHashMap<>();
+    private final Set<PeerLink> links = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running;
+
+    /**
+     * @param nodeId This node's unique name in the cluster; must not contain ':' or tabs
+     * @param secret The secret every node of the cluster shares; must not be empty
+     * @param local Delivers relayed messages to this node's clients
+     */
+    public ClusterNode(String nodeId, String secret, LocalDelivery local) {
+        if (nodeId.isEmpty() || nodeId.indexOf(':') >= 0 || nodeId.indexOf('\t') >= 0) {
+            throw new IllegalArgumentException("Invalid cluster node id '" + nodeId + "'");
+        }
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A cluster secret is required");
+        }
+        this.nodeId = nodeId;
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        this.local = local;
+    }
+
+    /**
+     * Parses a comma-separated list of {@code host:port} peer addresses.
+     *
+     * @param peers The list, may be null or empty
+     * @return The addresses
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (peers == null) {
+            return addresses;
+        }
+        for (String peer : peers.split(",")) {
+            String trimmed = peer.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Cluster peer must be host:port, got '" + trimmed + "'");
+            }
+            addresses.add(new InetSocketAddress(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    /**
+     * Starts listening for peers and dialing the configured ones. Returns immediately;
+     * links come up in the background and are retried while the node runs.
+     *
+     * @param bindAddress The address to accept peer connections on, null for every interface
+     * @param port The port to accept peer connections on, 0 for any free port
+     * @param peerAddresses The nodes to dial
+     * @throws IOException If the peer port cannot be opened
+     */
+    public void start(String bindAddress, int port, List<InetSocketAddress> peerAddresses) throws IOException {
+        serverSocket = new ServerSocket(port, 50, bindAddress == null ? null : InetAddress.getByName(bindAddress));
+        running = true;
+        startThread(this::acceptLoop, "cluster-accept-" + nodeId);
+        for (InetSocketAddress address : peerAddresses) {
+            startThread(() -> dialLoop(address), "cluster-dial-" + address.getPort());
+        }
+        System.out.println("ClusterNode: " + nodeId + " listening for peers on "
+                + serverSocket.getInetAddress().getHostAddress() + ":" + getPort());
+    }
+
+    private static void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                startThread(register(socket, false), "cluster-link-" + socket.getPort());
+            } catch (SocketException e) {
+                if (!running) {
+                    return; // stop() closed the socket
+                }
+                System.err.println("ClusterNode: Accept failed: " + e.getMessage());
+            } catch (IOException e) {
+                System.err.println("ClusterNode: Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Keeps one outgoing link to the address open, reconnecting whenever it drops
+    private void dialLoop(InetSocketAddress address) {
+        while (running) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                register(socket, true).run();
+            } catch (IOException e) {
+                // Peer not up yet or gone; try again shortly
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private PeerLink register(Socket socket, boolean dialed) {
+        PeerLink link = new PeerLink(this, socket, dialed);
+        links.add(link);
+        if (!running) {
+            link.close();
+        }
+        return link;
+    }
+
+    /**
+     * Creates a random challenge for a peer to answer.
+     *
+     * @return The challenge, Base64-encoded
+     */
+    String newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    /**
+     * Answers a challenge on behalf of a node. The answer covers both challenges and both node
+     * names, so it is good for one handshake between one pair of nodes only: it cannot be
+     * replayed, reflected back at the node that asked, or passed on to a third node.
+     *
+     * @param verifierNonce The challenge being answered
+     * @param proverNonce The challenge the answering node sent in its own HELLO
+     * @param proverId The node answering it
+     * @param verifierId The node that asked
+     * @return The answer, Base64-encoded
+     */
+    String prove(String verifierNonce, String proverNonce, String proverId, String verifierId) {
+        String signed = verifierNonce + '\t' + proverNonce + '\t' + proverId + '\t' + verifierId;
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            byte[] proof = mac.doFinal(signed.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(proof);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Checks a peer's answer to this node's challenge in constant time.
+     *
+     * @param nonce The challenge this node sent
+     * @param proverNonce The challenge the peer sent
+     * @param proverId The node the peer claims to be
+     * @param proof The peer's answer
+     * @return true if the peer knows the cluster secret
+     */
+    boolean verify(String nonce, String proverNonce, String proverId, String proof) {
+        return MessageDigest.isEqual(prove(nonce, proverNonce, proverId, nodeId).getBytes(StandardCharsets.UTF_8),
+                proof.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Called once a link has completed its handshake.
+     *
+     * @return false if the link must not be used
+     */
+    boolean linkUp(PeerLink link) {
+        String peerId = link.getPeerId();
+        if (peerId.equals(nodeId)) {
+            System.err.println("ClusterNode: Ignoring a link to ourselves.");
+            link.close();
+            return false;
+        }
+        List<PeerLink> peerLinks = peers.computeIfAbsent(peerId, id -> new CopyOnWriteArrayList<>());
+        synchronized (peerLinks) {
+            peerLinks.add(link);
+            if (peerLinks.size() == 1) {
+                System.out.println("ClusterNode: " + nodeId + " connected to " + peerId);
+                for (String user : local.localUserNames()) {
+                    link.send(encode("JOIN", user)); // Presence snapshot for the new peer
+                }
+            }
+        }
+        return true;
+    }
+
+    void linkDown(PeerLink link) {
+        links.remove(link);
+        String peerId = link.getPeerId();
+        List<PeerLink> peerLinks = peers.get(peerId);
+        if (peerLinks == null) {
+            return;
+        }
+        synchronized (peerLinks) {
+            if (peerLinks.remove(link) && peerLinks.isEmpty()) {
+                remoteUsers.remove(peerId);
+                System.out.println("ClusterNode: " + nodeId + " lost its last link to " + peerId);
+            }
+        }
+    }
+
+    /**
+     * Handles one message received from a peer. Messages claiming to come from any node but the
+     * peer itself are dropped before they can mark their ID as seen.
+     *
+     * @param link The link it arrived on
+     * @param payload The message
+     */
+    void handle(PeerLink link, String payload) {
+        String[] parts = payload.split("\t", 3);
+        if (parts.length < 3) {
+            return;
+        }
+        int colon = parts[1].lastIndexOf(':');
+        String origin = colon > 0 ? parts[1].substring(0, colon) : "";
+        if (!origin.equals(link.getPeerId())) {
+            System.err.println("ClusterNode: Dropping a message from " + link.getPeerId()
+                    + " that claims to come from '" + origin + "'");
+            return;
+        }
+        if (!seen.add(parts[1])) {
+            return;
+        }
+        String[] target;
+        switch (parts[0]) {
+            case "ALL":
+                local.deliverToAll(parts[2]);
+                break;
+            case "ROOM":
+                target = parts[2].split("\t", 2);
+                if (target.length == 2) {
+                    local.deliverToRoom(target[0], target[1]);
+                }
+                break;
+            case "PM":
+                target = parts[2].split("\t", 2);
+                if (target.length == 2) {
+                    local.deliverToUser(target[0], target[1]);
+                }
+                break;
+            case "JOIN":
+                remoteUsers.computeIfAbsent(origin, id -> ConcurrentHashMap.newKeySet()).add(parts[2]);
+                break;
+            case "LEAVE":
+                Set<String> users = remoteUsers.get(origin);
+                if (users != null) {
+                    users.remove(parts[2]);
+                }
+                break;
+            default:
+                System.err.println("ClusterNode: Ignoring unknown peer message type " + parts[0]);
+        }
+    }
+
+    private byte[] encode(String type, String... fields) {
+        StringBuilder payload = new StringBuilder(type).append('\t').append(nodeId).append(':').append(sequence.incrementAndGet());
+        for (String field : fields) {
+            payload.append('\t').append(field);
+        }
+        return FrameCodec.encodeMessage(payload.toString());
+    }
+
+    // Sends over the first link of every peer; the frame is encoded once for all of them
+    private void publish(byte[] frame) {
+        for (List<PeerLink> peerLinks : peers.values()) {
+            sendToPeer(peerLinks, frame);
+        }
+    }
+
+    private static void sendToPeer(List<PeerLink> peerLinks, byte[] frame) {
+        if (peerLinks == null) {
+            return;
+        }
+        try {
+            peerLinks.get(0).send(frame);
+        } catch (IndexOutOfBoundsException e) {
+            // Last link just went down
+        }
+    }
+
+    /**
+     * Relays a message for every client to all other nodes.
+     *
+     * @param message The message text
+     */
+    public void publishToAll(String message) {
+        publish(encode("ALL", message));
+    }
+
+    /**
+     * Relays a room message to all other nodes, which deliver it to their members of the room.
+     *
+     * @param room The room name
+     * @param message The message text
+     */
+    public void publishToRoom(String room, String message) {
+        publish(encode("ROOM", room, message));
+    }
+
+    /**
+     * Relays a private message to the nodes where the recipient is logged in.
+     *
+     * @param username The recipient
+     * @param message The message text
+     * @return true if the recipient is logged in on at least one other node
+     */
+    public boolean publishToUser(String username, String message) {
+        byte[] frame = null;
+        for (Map.Entry<String, Set<String>> node : remoteUsers.entrySet()) {
+            if (node.getValue().contains(username)) {
+                if (frame == null) {
+                    frame = encode("PM", username, message);
+                }
+                sendToPeer(peers.get(node.getKey()), frame);
+            }
+        }
+        return frame != null;
+    }
+
+    /**
+     * Announces that a user's first session on this node has logged in.
+     *
+     * @param username The user
+     */
+    public void userOnline(String username) {
+        publish(encode("JOIN", username));
+    }
+
+    /**
+     * Announces that a user's last session on this node has ended.
+     *
+     * @param username The user
+     */
+    public void userOffline(String username) {
+        publish(encode("LEAVE", username));
+    }
+
+    /**
+     * Gets the users logged in on other nodes.
+     *
+     * @return A snapshot of the remote usernames
+     */
+    public Set<String> getRemoteUserNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (Set<String> users : remoteUsers.values()) {
+            names.addAll(users);
+        }
+        return names;
+    }
+
+    /**
+     * Gets the nodes this node currently has a link to.
+     *
+     * @return The connected peer node IDs
+     */
+    public Set<String> getConnectedPeers() {
+        Set<String> connected = new LinkedHashSet<>();
+        for (Map.Entry<String, List<PeerLink>> peer : peers.entrySet()) {
+            if (!peer.getValue().isEmpty()) {
+                connected.add(peer.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(connected);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets the port peers connect to.
+     *
+     * @return The peer port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Closes every peer link and stops accepting and dialing.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("ClusterNode: Error closing peer socket: " + e.getMessage());
+        }
+        for (PeerLink link : links) {
+            link.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package chat.cluster;
+
+import java.util.Collection;
+
+/**
+ * What a {@link ClusterNode} needs from the chat server it belongs to: delivering relayed
+ * messages to the clients connected to this node, and knowing who those clients are.
+ * Implementations must only deliver locally and never publish back into the cluster.
+ */
+public interface LocalDelivery {
+
+    /**
+     * Delivers a message to every client on this node.
+     *
+     * @param message The message text
+     */
+    void deliverToAll(String message);
+
+    /**
+     * Delivers a message to this node's members of a room.
+     *
+     * @param room The room name
+     * @param message The message text
+     */
+    void deliverToRoom(String room, String message);
+
+    /**
+     * Delivers a message to every session of a user on this node.
+     *
+     * @param username The recipient
+     * @param message The message text
+     */
+    void deliverToUser(String username, String message);
+
+    /**
+     * Gets the users logged in on this node.
+     *
+     * @return A snapshot of the local usernames
+     */
+    Collection<String> localUserNames();
+}
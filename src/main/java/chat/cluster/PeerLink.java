@@ -0,0 +1,164 @@
+package chat.cluster;
+
+import chat.protocol.FrameCodec;
+import chat.protocol.FrameType;
+import chat.protocol.WireReader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One TCP connection to another cluster node, in either direction.
+ * <p>
+ * Both sides speak binary MESSAGE frames from the first byte and start with
+ * {@code HELLO<TAB>nodeId<TAB>challenge}, then answer the other's challenge with
+ * {@code AUTH<TAB>proof} (see {@link ClusterNode#prove(String, String, String, String)}). The
+ * dialing side answers first; the accepting side checks that answer before it sends its own, so
+ * a stranger cannot get an answer out of it to relay elsewhere. The link carries chat only once
+ * the peer's proof checks out. The thread that calls {@link #run()} reads; a writer
+ * thread drains the link's queue so that a slow peer never blocks the thread publishing a message.
+ * </p>
+ */
+final class PeerLink implements Runnable {
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_FRAME_LENGTH = 1 << 20;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final ClusterNode node;
+    private final Socket socket;
+    private final boolean dialed; // Whether this node opened the connection
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile String peerId;
+    private volatile Thread writer;
+
+    PeerLink(ClusterNode node, Socket socket, boolean dialed) {
+        this.node = node;
+        this.socket = socket;
+        this.dialed = dialed;
+    }
+
+    String getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * Queues an encoded frame for the peer. A peer that falls this far behind is cut off;
+     * it reconnects and gets a fresh presence snapshot.
+     *
+     * @param frame The frame bytes, shared between links
+     */
+    void send(byte[] frame) {
+        if (!closed.get() && !queue.offer(frame)) {
+            System.err.println("ClusterNode: Link to " + peerId + " is too far behind, closing it.");
+            close();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Thread writerThread = new Thread(() -> writeLoop(out), "cluster-writer-" + socket.getPort());
+            writerThread.setDaemon(true);
+            writer = writerThread;
+            writerThread.start();
+            String nonce = node.newNonce();
+            send(FrameCodec.encodeMessage("HELLO\t" + node.getNodeId() + "\t" + nonce));
+
+            // A peer that never finishes the handshake must not hold this thread forever
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            WireReader in = new WireReader(socket.getInputStream(), MAX_FRAME_LENGTH);
+            String[] hello = split(readPayload(in), "HELLO", 3);
+            byte[] proof = FrameCodec.encodeMessage("AUTH\t" + node.prove(hello[2], nonce, node.getNodeId(), hello[1]));
+            if (dialed) {
+                send(proof);
+                checkProof(in, nonce, hello);
+            } else {
+                checkProof(in, nonce, hello);
+                send(proof);
+            }
+            socket.setSoTimeout(0);
+            peerId = hello[1];
+            if (!node.linkUp(this)) {
+                return;
+            }
+            String payload;
+            while ((payload = readPayload(in)) != null) {
+                node.handle(this, payload);
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                System.err.println("ClusterNode: Link to " + (peerId != null ? peerId : socket.getRemoteSocketAddress())
+                        + " failed: " + e.getMessage());
+            }
+        } finally {
+            close();
+            if (peerId != null) {
+                node.linkDown(this);
+            }
+        }
+    }
+
+    private void checkProof(WireReader in, String nonce, String[] hello) throws IOException {
+        String[] auth = split(readPayload(in), "AUTH", 2);
+        if (!node.verify(nonce, hello[2], hello[1], auth[1])) {
+            throw new IOException("Cluster peer " + hello[1] + " does not know the cluster secret");
+        }
+    }
+
+    // Checks a handshake message's type and field count
+    private static String[] split(String payload, String type, int fields) throws IOException {
+        String[] parts = payload == null ? new String[0] : payload.split("\t", fields);
+        if (parts.length != fields || !parts[0].equals(type)) {
+            throw new IOException("Expected " + type + " from cluster peer, got: " + payload);
+        }
+        return parts;
+    }
+
+    private static String readPayload(WireReader in) throws IOException {
+        String[] text = new String[1];
+        while (in.readFrame((type, flags, payload) -> text[0] = type == FrameType.MESSAGE ? FrameCodec.text(payload) : null)) {
+            if (text[0] != null) {
+                return text[0];
+            }
+        }
+        return null;
+    }
+
+    // Coalesces queued frames and flushes whenever the queue runs dry
+    private void writeLoop(OutputStream out) {
+        try {
+            while (!closed.get()) {
+                byte[] frame = queue.poll();
+                if (frame == null) {
+                    out.flush();
+                    frame = queue.take();
+                }
+                out.write(frame);
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        Thread writerThread = writer;
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("ClusterNode: Error closing peer socket: " + e.getMessage());
+        }
+    }
+}
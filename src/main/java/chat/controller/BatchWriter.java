@@ -0,0 +1,285 @@
+package chat.controller;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes items to the database in batches on a background thread, so that callers never wait
+ * for a database round trip.
+ * <p>
+ * Items wait in a bounded queue. The writer takes the first one, then keeps collecting until it
+ * has {@code maxBatch} items or {@code maxDelayMillis} have passed since the first one, and hands
+ * the batch to its {@link BatchSink} to write in one transaction. A burst therefore costs one
+ * round trip per batch, while a lone item waits at most {@code maxDelayMillis}.
+ * </p>
+ * <p>
+ * When the database falls behind, the queue fills up: {@link #offer(Object)} then drops items
+ * right away, while {@link #offer(Object, long)} holds the producer back for a bounded time first.
+ * Closing the writer writes everything still queued. Batch sizes, commit latency and queue depth
+ * are tracked for monitoring.
+ * </p>
+ *
+ * @param <T> The type of the items written
+ */
+public final class BatchWriter<T> implements Closeable {
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final BlockingQueue<T> queue;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BatchSink<T> sink;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final Object progress = new Object();
+    private long completed; // Items written or given up on; guarded by progress
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    // Written by the writer thread only
+    private volatile long batches;
+    private volatile int maxBatchSize;
+    private volatile long commitNanos;
+    private volatile long maxCommitNanos;
+
+    /**
+     * Writes one batch.
+     *
+     * @param <T> The type of the items written
+     */
+    @FunctionalInterface
+    public interface BatchSink<T> {
+
+        /**
+         * Writes a batch, all or nothing.
+         *
+         * @param batch The items, oldest first
+         * @throws SQLException If the batch could not be written
+         */
+        void write(List<T> batch) throws SQLException;
+    }
+
+    /**
+     * Creates the writer and starts its thread.
+     *
+     * @param name Name of the writer thread
+     * @param capacity Most items waiting at once
+     * @param maxBatch Most items written in one batch
+     * @param maxDelayMillis Longest an item waits for others to share its batch
+     * @param sink Writes the batches
+     */
+    public BatchWriter(String name, int capacity, int maxBatch, long maxDelayMillis, BatchSink<T> sink) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+        this.sink = sink;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an item to be written. Never blocks.
+     *
+     * @param item The item
+     * @return false if the queue is full or the writer is closed, and the item was dropped
+     */
+    public boolean offer(T item) {
+        if (!running || !queue.offer(item)) {
+            rejected.increment();
+            return false;
+        }
+        return accepted();
+    }
+
+    /**
+     * Queues an item to be written, waiting for room if the queue is full.
+     *
+     * @param item The item
+     * @param timeoutMillis How long to wait for room at most
+     * @return false if there was no room in time or the writer is closed, and the item was dropped
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public boolean offer(T item, long timeoutMillis) throws InterruptedException {
+        if (!running || !queue.offer(item, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            rejected.increment();
+            return false;
+        }
+        return accepted();
+    }
+
+    private boolean accepted() {
+        offered.incrementAndGet();
+        int depth = queue.size();
+        if (depth > peakQueueDepth.get()) {
+            peakQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every item queued before the call has been written or given up on.
+     *
+     * @param timeoutMillis How long to wait at most
+     * @return true if they were, false if the timeout elapsed first
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long target = offered.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (progress) {
+            while (completed < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(progress, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting items, writes those still queued and stops the thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<T> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                T first = queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0 || !running) {
+                        break;
+                    }
+                    // In slices, so that close() is noticed during a long batch delay
+                    T next = queue.poll(Math.min(remaining, POLL_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch); // Also what was collected before an interrupt
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<T> batch) {
+        long start = System.nanoTime();
+        try {
+            sink.write(batch);
+            written.addAndGet(batch.size());
+        } catch (SQLException | RuntimeException e) {
+            System.err.println("BatchWriter " + thread.getName() + ": Dropping a batch of " + batch.size()
+                    + " after a failed write: " + e.getMessage());
+            failed.addAndGet(batch.size());
+        }
+        long elapsed = System.nanoTime() - start;
+        commitNanos += elapsed;
+        maxCommitNanos = Math.max(maxCommitNanos, elapsed);
+        maxBatchSize = Math.max(maxBatchSize, batch.size());
+        batches++;
+        synchronized (progress) {
+            completed += batch.size();
+            progress.notifyAll();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the most items that were waiting at once.
+     *
+     * @return The peak queue depth
+     */
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Gets the items lost because writing their batch failed.
+     *
+     * @return The failed item count
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Gets the items dropped because the queue was full or the writer closed.
+     *
+     * @return The rejected item count
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Gets the average number of items per batch.
+     *
+     * @return The average batch size, 0 before the first batch
+     */
+    public double getAverageBatchSize() {
+        long count = batches;
+        return count == 0 ? 0 : (double) (written.get() + failed.get()) / count;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Gets the average time writing and committing one batch took.
+     *
+     * @return The average commit latency in microseconds, 0 before the first batch
+     */
+    public long getAverageCommitMicros() {
+        long count = batches;
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(commitNanos / count);
+    }
+
+    public long getMaxCommitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxCommitNanos);
+    }
+}
@@ -0,0 +1,424 @@
+package chat.controller;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded pool of database connections.
+ * <p>
+ * At most {@code maxSize} connections are borrowed at once; a caller beyond that waits up to the
+ * acquisition timeout and then gets an {@link SQLTimeoutException}. Borrowers receive a wrapper
+ * whose {@code close()} returns the physical connection to the pool, so code that closes its
+ * connection in try-with-resources needs no change. Returned connections are rolled back if a
+ * transaction was left open and put back into autocommit mode.
+ * </p>
+ * <p>
+ * Idle connections are handed out most recently used first and checked with
+ * {@link Connection#isValid(int)} on borrow, unless they were returned only moments ago. A
+ * housekeeping thread keeps at least {@code minSize} connections open, closes idle connections
+ * beyond that once they have been idle too long, and reports connections borrowed for longer
+ * than the leak threshold together with where they were borrowed.
+ * </p>
+ */
+public class ConnectionPool implements ConnectionSource, Closeable {
+    private static final long VALIDATION_BYPASS_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final ConnectionSource factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutNanos;
+    private final long leakThresholdNanos;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Pooled> idle = new ConcurrentLinkedDeque<>();
+    private final Map<Pooled, Borrow> borrowed = new ConcurrentHashMap<>();
+    private final AtomicInteger open = new AtomicInteger(); // Physical connections, idle or borrowed
+    private final Thread housekeeper;
+    private volatile boolean closed;
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * Creates the pool, opens its first {@code minSize} connections and starts its housekeeping thread.
+     *
+     * @param factory Opens physical connections
+     * @param minSize Connections kept open even when idle
+     * @param maxSize Most connections open at once
+     * @param acquireTimeoutMillis Longest a caller waits for a connection
+     * @param idleTimeoutMillis How long a connection beyond {@code minSize} may stay idle before it is closed
+     * @param leakThresholdMillis How long a connection may be borrowed before it is reported as leaked; 0 to never report
+     */
+    public ConnectionPool(ConnectionSource factory, int minSize, int maxSize, long acquireTimeoutMillis,
+                          long idleTimeoutMillis, long leakThresholdMillis) {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.acquireTimeoutMillis = Math.max(0, acquireTimeoutMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleTimeoutMillis));
+        this.leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, leakThresholdMillis));
+        this.permits = new Semaphore(this.maxSize, true);
+        fillToMinimum();
+        this.housekeeper = new Thread(this::houseKeep, "db-pool-housekeeper");
+        housekeeper.setDaemon(true);
+        housekeeper.start();
+    }
+
+    /**
+     * Borrows a connection. Closing it returns it to the pool.
+     *
+     * @return The connection
+     * @throws SQLTimeoutException If none became available within the acquisition timeout
+     * @throws SQLException If the pool is closed or a new connection could not be opened
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLTimeoutException("No database connection available within " + acquireTimeoutMillis
+                        + " ms (" + maxSize + " in use)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        Pooled pooled;
+        try {
+            pooled = takeIdle();
+            if (pooled == null) {
+                pooled = openConnection();
+            }
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        long waited = System.nanoTime() - start;
+        borrows.increment();
+        borrowWaitNanos.add(waited);
+        if (waited > maxBorrowWaitNanos.get()) {
+            maxBorrowWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+        Borrow borrow = new Borrow(pooled);
+        borrowed.put(pooled, borrow);
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, borrow);
+    }
+
+    // The most recently returned idle connection that is still valid, or null
+    private Pooled takeIdle() {
+        Pooled pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.nanoTime() - pooled.returnedNanos < VALIDATION_BYPASS_NANOS || isValid(pooled.connection)) {
+                return pooled;
+            }
+            discard(pooled);
+        }
+        return null;
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Pooled openConnection() throws SQLException {
+        Connection connection = factory.getConnection();
+        open.incrementAndGet();
+        return new Pooled(connection);
+    }
+
+    // Called once per borrow, when the borrower closes its connection
+    private void giveBack(Pooled pooled, boolean broken) {
+        borrowed.remove(pooled);
+        try {
+            if (!broken && !closed && reset(pooled.connection)) {
+                pooled.returnedNanos = System.nanoTime();
+                idle.offerFirst(pooled);
+            } else {
+                discard(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // Leaves no transaction open for the next borrower
+    private static boolean reset(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Pooled pooled) {
+        open.decrementAndGet();
+        discarded.increment();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            // Already broken; nothing to clean up
+        }
+    }
+
+    private void fillToMinimum() {
+        while (!closed && open.get() < minSize && permits.tryAcquire()) {
+            try {
+                Pooled pooled = openConnection();
+                pooled.returnedNanos = System.nanoTime() - VALIDATION_BYPASS_NANOS; // Validated on first borrow
+                idle.offerLast(pooled);
+            } catch (SQLException e) {
+                System.err.println("ConnectionPool: Could not open a connection: " + e.getMessage());
+                return;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private void houseKeep() {
+        long interval = TimeUnit.SECONDS.toNanos(1);
+        if (leakThresholdNanos > 0) {
+            interval = Math.min(interval, Math.max(TimeUnit.MILLISECONDS.toNanos(10), leakThresholdNanos / 2));
+        }
+        while (!closed) {
+            LockSupport.parkNanos(this, interval);
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            evictIdle(now);
+            fillToMinimum();
+            reportLeaks(now);
+        }
+    }
+
+    // Closes the longest-idle connections beyond the minimum; they sit at the end of the deque
+    private void evictIdle(long now) {
+        Iterator<Pooled> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && open.get() > minSize) {
+            Pooled pooled = oldestFirst.next();
+            if (now - pooled.returnedNanos < idleTimeoutNanos) {
+                return;
+            }
+            if (idle.removeLastOccurrence(pooled)) {
+                discard(pooled);
+            }
+        }
+    }
+
+    private void reportLeaks(long now) {
+        if (leakThresholdNanos <= 0) {
+            return;
+        }
+        for (Borrow borrow : borrowed.values()) {
+            if (!borrow.reported && now - borrow.borrowedNanos > leakThresholdNanos) {
+                borrow.reported = true;
+                leaks.increment();
+                System.err.println("ConnectionPool: A connection has been borrowed for "
+                        + TimeUnit.NANOSECONDS.toMillis(now - borrow.borrowedNanos) + " ms by "
+                        + borrow.owner + "; possible leak, borrowed at:");
+                borrow.origin.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections and stops handing out new ones. Borrowed connections are closed
+     * when their borrowers return them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(housekeeper);
+        Pooled pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    /**
+     * Gets the connections currently borrowed.
+     *
+     * @return The active count
+     */
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * Gets the open connections waiting to be borrowed.
+     *
+     * @return The idle count
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getOpenCount() {
+        return open.get();
+    }
+
+    /**
+     * Gets the callers currently waiting for a connection.
+     *
+     * @return The waiting count, an estimate
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    /**
+     * Gets the average time a borrow took, waiting for a free connection or opening one included.
+     *
+     * @return The average borrow wait in microseconds, 0 before the first borrow
+     */
+    public long getAverageBorrowWaitMicros() {
+        long count = borrows.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(borrowWaitNanos.sum() / count);
+    }
+
+    public long getMaxBorrowWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxBorrowWaitNanos.get());
+    }
+
+    /**
+     * Gets the borrows that gave up because no connection became available in time.
+     *
+     * @return The timeout count
+     */
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Gets the connections closed by the pool because they were broken, idle too long or the
+     * pool was closed.
+     *
+     * @return The discarded count
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * Gets the borrows reported as possible leaks.
+     *
+     * @return The leak count
+     */
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+
+    /**
+     * A physical connection and when it was last returned.
+     */
+    private static final class Pooled {
+        final Connection connection;
+        volatile long returnedNanos;
+
+        Pooled(Connection connection) {
+            this.connection = connection;
+            this.returnedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * One borrow of a connection: the handler behind the borrower's wrapper. It forwards every
+     * call to the physical connection until the borrower closes it, then refuses further calls.
+     */
+    private final class Borrow implements InvocationHandler {
+        final Pooled pooled;
+        final long borrowedNanos = System.nanoTime();
+        final String owner = Thread.currentThread().getName();
+        final Throwable origin;
+        private final AtomicInteger state = new AtomicInteger(); // 0 borrowed, 1 returned
+        private volatile boolean broken;
+        volatile boolean reported;
+
+        Borrow(Pooled pooled) {
+            this.pooled = pooled;
+            this.origin = leakThresholdNanos > 0 ? new Throwable("Connection borrowed here") : null;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (state.compareAndSet(0, 1)) {
+                        giveBack(pooled, broken);
+                    }
+                    return null;
+                case "isClosed":
+                    return state.get() != 0 || pooled.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooled.connection;
+                default:
+                    break;
+            }
+            if (state.get() != 0) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            try {
+                return method.invoke(pooled.connection, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException && isConnectionLost((SQLException) cause)) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+    }
+
+    // SQLState class 08 is a connection exception
+    private static boolean isConnectionLost(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+}
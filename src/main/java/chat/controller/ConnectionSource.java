@@ -0,0 +1,20 @@
+package chat.controller;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Where database code gets its connections from. Callers close a connection when they are done
+ * with it, typically in try-with-resources.
+ */
+@FunctionalInterface
+public interface ConnectionSource {
+
+    /**
+     * Gets a connection to the chat database.
+     *
+     * @return The connection
+     * @throws SQLException If no connection can be made
+     */
+    Connection getConnection() throws SQLException;
+}
@@ -6,22 +6,42 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 
+/**
+ * Hands out connections to the chat database from one {@link ConnectionPool} sized by
+ * {@code database.properties}. Closing a connection returns it to the pool.
+ */
 public class DatabaseConnection {
-    private static Connection connection = null;
+
+    // Created on first use, so nothing connects to the database unless it is needed
+    private static final class Holder {
+        static final ConnectionPool POOL = new ConnectionPool(DatabaseConnection::connect,
+                DatabaseConfig.getPoolMinSize(), DatabaseConfig.getPoolMaxSize(),
+                DatabaseConfig.getPoolAcquireTimeoutMillis(), DatabaseConfig.getPoolIdleTimeoutMillis(),
+                DatabaseConfig.getPoolLeakThresholdMillis());
+    }
 
     public static Connection getConnection() throws SQLException {
-        if (connection == null || connection.isClosed()) {
-            try {
-                Class.forName(DatabaseConfig.getDriver());
-                connection = DriverManager.getConnection(
-                        DatabaseConfig.getUrl(),
-                        DatabaseConfig.getUsername(),
-                        DatabaseConfig.getPassword());
-            }
-            catch (ClassNotFoundException e) {
-                throw new SQLException("Database driver not found",e);
-            }
-        } return connection;
-     }
+        return Holder.POOL.getConnection();
+    }
+
+    /**
+     * Gets the pool, e.g. for its active and idle counts and borrow wait times.
+     *
+     * @return The pool
+     */
+    public static ConnectionPool getPool() {
+        return Holder.POOL;
+    }
 
+    private static Connection connect() throws SQLException {
+        try {
+            Class.forName(DatabaseConfig.getDriver());
+            return DriverManager.getConnection(
+                    DatabaseConfig.getUrl(),
+                    DatabaseConfig.getUsername(),
+                    DatabaseConfig.getPassword());
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("Database driver not found", e);
+        }
+    }
 }
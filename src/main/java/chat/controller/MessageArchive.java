@@ -0,0 +1,205 @@
+package chat.controller;
+
+import org.postgresql.PGConnection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Keeps every room message in the {@code chat_messages} table for later reference.
+ * <p>
+ * Archiving goes through a {@link BatchWriter}, so chat never waits for the database: messages
+ * are grouped into batches and each batch is written and committed at once. On PostgreSQL a batch
+ * is streamed with {@code COPY ... FROM STDIN}, which skips per-row statement overhead entirely;
+ * on other drivers, or with COPY turned off, it is one JDBC batch of inserts in one transaction.
+ * </p>
+ * <p>
+ * When the database cannot keep up and the queue is full, senders on threads that may block wait
+ * up to a configured time for room before their message is dropped from the archive; others drop
+ * it at once. Chat itself is unaffected either way.
+ * </p>
+ */
+public class MessageArchive implements Closeable {
+    private static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS chat_messages (" +
+            "id BIGSERIAL PRIMARY KEY, " +
+            "room VARCHAR(64) NOT NULL, " +
+            "sender VARCHAR(50) NOT NULL, " +
+            "body TEXT NOT NULL, " +
+            "created_at TIMESTAMPTZ NOT NULL DEFAULT now());";
+    private static final String CREATE_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS chat_messages_room ON chat_messages (room, created_at);";
+    private static final String INSERT_SQL =
+            "INSERT INTO chat_messages (room, sender, body, created_at) VALUES (?, ?, ?, ?);";
+    private static final String COPY_SQL =
+            "COPY chat_messages (room, sender, body, created_at) FROM STDIN WITH (FORMAT csv)";
+
+    private final ConnectionSource connections;
+    private final BatchWriter<Entry> writer;
+    private final boolean useCopy;
+    private final long blockTimeoutMillis;
+
+    /**
+     * Creates the archive and starts its writer.
+     *
+     * @param connections Where connections come from
+     * @param queueCapacity Most messages waiting to be written at once
+     * @param batchSize Most messages per batch
+     * @param batchDelayMillis Longest a message waits for others to share its batch
+     * @param blockTimeoutMillis Longest a sender waits for room in a full queue; 0 to drop at once
+     * @param useCopy Whether to write batches with COPY when the driver is PostgreSQL's
+     */
+    public MessageArchive(ConnectionSource connections, int queueCapacity, int batchSize, long batchDelayMillis,
+                          long blockTimeoutMillis, boolean useCopy) {
+        this.connections = connections;
+        this.useCopy = useCopy;
+        this.blockTimeoutMillis = Math.max(0, blockTimeoutMillis);
+        this.writer = new BatchWriter<>("archive-writer", queueCapacity, batchSize, batchDelayMillis, this::write);
+    }
+
+    /**
+     * Creates the table if it does not exist yet. Errors are logged, not thrown.
+     */
+    public void initDatabase() {
+        try (Connection conn = connections.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(CREATE_TABLE_SQL);
+            stmt.execute(CREATE_INDEX_SQL);
+            System.out.println("MessageArchive: chat_messages table created or already exists.");
+        } catch (SQLException e) {
+            System.err.println("Error initializing database for MessageArchive: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues a room message to be archived.
+     *
+     * @param room The room it was sent to
+     * @param sender Who sent it
+     * @param message The message as the sender typed it
+     * @param mayBlock Whether the caller may wait for room in a full queue; event-loop threads pass
+     *                 false, so a full queue drops the message at once instead of stalling the loop
+     * @return false if the queue was full (for the block timeout, if waiting) and the message was not archived
+     */
+    public boolean archive(String room, String sender, String message, boolean mayBlock) {
+        Entry entry = new Entry(room, sender, message, System.currentTimeMillis());
+        if (!mayBlock || blockTimeoutMillis == 0) {
+            return writer.offer(entry);
+        }
+        try {
+            return writer.offer(entry, blockTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits until every message queued so far has been written.
+     *
+     * @param timeoutMillis How long to wait at most
+     * @return true if they were, false if the timeout elapsed first
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        return writer.flush(timeoutMillis);
+    }
+
+    private void write(List<Entry> batch) throws SQLException {
+        try (Connection conn = connections.getConnection()) {
+            if (useCopy && conn.isWrapperFor(PGConnection.class)) {
+                copy(conn.unwrap(PGConnection.class), batch);
+            } else {
+                insert(conn, batch);
+            }
+        }
+    }
+
+    // COPY is a single statement, so the batch is committed as a whole even in autocommit mode
+    private static void copy(PGConnection conn, List<Entry> batch) throws SQLException {
+        StringBuilder csv = new StringBuilder(batch.size() * 64);
+        for (Entry entry : batch) {
+            appendCsv(csv, entry.room).append(',');
+            appendCsv(csv, entry.sender).append(',');
+            appendCsv(csv, entry.message).append(',');
+            csv.append(Instant.ofEpochMilli(entry.createdMillis)).append('\n');
+        }
+        try {
+            conn.getCopyAPI().copyIn(COPY_SQL, new StringReader(csv.toString()));
+        } catch (IOException e) {
+            throw new SQLException("COPY into chat_messages failed", e);
+        }
+    }
+
+    private static StringBuilder appendCsv(StringBuilder csv, String value) {
+        csv.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                csv.append('"');
+            }
+            csv.append(c);
+        }
+        return csv.append('"');
+    }
+
+    private static void insert(Connection conn, List<Entry> batch) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+            for (Entry entry : batch) {
+                pstmt.setString(1, entry.room);
+                pstmt.setString(2, entry.sender);
+                pstmt.setString(3, entry.message);
+                pstmt.setTimestamp(4, new Timestamp(entry.createdMillis));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Gets the writer the archive runs on, for its metrics: queue depth, batch sizes, commit
+     * latency and the messages written, lost and rejected.
+     *
+     * @return The writer
+     */
+    public BatchWriter<?> getWriter() {
+        return writer;
+    }
+
+    /**
+     * Writes the messages still waiting and stops the writer.
+     */
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    private static final class Entry {
+        final String room;
+        final String sender;
+        final String message;
+        final long createdMillis;
+
+        Entry(String room, String sender, String message, long createdMillis) {
+            this.room = room;
+            this.sender = sender;
+            this.message = message;
+            this.createdMillis = createdMillis;
+        }
+    }
+}
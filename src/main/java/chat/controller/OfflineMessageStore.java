@@ -0,0 +1,257 @@
+package chat.controller;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Keeps messages for users who are not connected and hands them over at their next login.
+ * <p>
+ * Messages are kept in the {@code offline_messages} table next to {@code users}. Storing goes
+ * through a {@link BatchWriter}: a burst of messages becomes a few multi-row inserts, each its own
+ * transaction, instead of one round trip per message. Messages for recipients without an account
+ * are filtered out by the insert itself, so nothing has to be looked up first.
+ * </p>
+ * <p>
+ * Delivery reads the recipient's messages a page at a time, oldest first, with
+ * {@link #nextPage(String, long, int)}, so a long backlog is never loaded at once. A page stays
+ * stored until the caller {@link #acknowledge(String, long) acknowledges} it, which it does once
+ * the page has actually been written to the recipient; a delivery cut short by a disconnect
+ * resumes at the next login with what was not acknowledged. A message may therefore be delivered
+ * twice, but is never lost.
+ * </p>
+ */
+public class OfflineMessageStore implements Closeable {
+    private static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS offline_messages (" +
+            "id BIGSERIAL PRIMARY KEY, " +
+            "recipient VARCHAR(50) NOT NULL REFERENCES users(username) ON DELETE CASCADE, " +
+            "body TEXT NOT NULL, " +
+            "created_at TIMESTAMPTZ NOT NULL DEFAULT now());";
+    private static final String CREATE_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS offline_messages_recipient ON offline_messages (recipient, id);";
+    private static final String SELECT_PAGE_SQL = "SELECT id, body, created_at FROM offline_messages " +
+            "WHERE recipient = ? AND id > ? ORDER BY id LIMIT ?;";
+    private static final String DELETE_DELIVERED_SQL = "DELETE FROM offline_messages WHERE recipient = ? AND id <= ?;";
+    private static final long FLUSH_BEFORE_DELIVERY_MILLIS = 1000;
+
+    private final ConnectionSource connections;
+    private final BatchWriter<Pending> writer;
+    private final int pageSize;
+
+    /**
+     * Creates the store and starts its writer.
+     *
+     * @param connections Where connections come from
+     * @param queueCapacity Most messages waiting to be inserted at once
+     * @param batchSize Most messages per insert
+     * @param batchDelayMillis Longest a message waits for others to share its insert
+     * @param pageSize Messages read per query during delivery
+     */
+    public OfflineMessageStore(ConnectionSource connections, int queueCapacity, int batchSize, long batchDelayMillis,
+                               int pageSize) {
+        this.connections = connections;
+        this.pageSize = Math.max(1, pageSize);
+        this.writer = new BatchWriter<>("offline-writer", queueCapacity, batchSize, batchDelayMillis, this::insert);
+    }
+
+    /**
+     * Creates the table if it does not exist yet. Errors are logged, not thrown.
+     */
+    public void initDatabase() {
+        try (Connection conn = connections.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(CREATE_TABLE_SQL);
+            stmt.execute(CREATE_INDEX_SQL);
+            System.out.println("OfflineMessageStore: offline_messages table created or already exists.");
+        } catch (SQLException e) {
+            System.err.println("Error initializing database for OfflineMessageStore: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues a message for a user who is not connected. Never blocks.
+     *
+     * @param recipient The user to deliver it to; dropped if there is no such account
+     * @param message The message
+     * @return false if too many messages are waiting to be stored and this one was dropped
+     */
+    public boolean store(String recipient, String message) {
+        return writer.offer(new Pending(recipient, message, System.currentTimeMillis()));
+    }
+
+    /**
+     * Reads the next page of a user's stored messages, oldest first. Runs on the calling thread;
+     * before the first page, messages still waiting to be stored are written.
+     *
+     * @param recipient The user
+     * @param afterId The id of the last message of the previous page, 0 for the first page
+     * @param limit The most messages to read; at most the page size the store was created with
+     * @return The page, empty if there are no more messages
+     * @throws SQLException If the messages could not be read
+     */
+    public Page nextPage(String recipient, long afterId, int limit) throws SQLException {
+        if (afterId == 0) {
+            try {
+                writer.flush(FLUSH_BEFORE_DELIVERY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Page.EMPTY;
+            }
+        }
+        int size = Math.max(1, Math.min(limit, pageSize));
+        Page page = new Page(size);
+        try (Connection conn = connections.getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_PAGE_SQL)) {
+            select.setString(1, recipient);
+            select.setLong(2, afterId);
+            select.setInt(3, size);
+            try (ResultSet rs = select.executeQuery()) {
+                while (page.size < size && rs.next()) {
+                    page.ids[page.size] = rs.getLong("id");
+                    page.createdMillis[page.size] = rs.getTimestamp("created_at").getTime();
+                    page.messages[page.size] = rs.getString("body");
+                    page.size++;
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Deletes a user's messages up to and including one that has been delivered.
+     *
+     * @param recipient The user
+     * @param upToId The id of the last message delivered, see {@link Page#getLastId()}
+     * @throws SQLException If the messages could not be deleted; they will be delivered again
+     */
+    public void acknowledge(String recipient, long upToId) throws SQLException {
+        try (Connection conn = connections.getConnection();
+             PreparedStatement delete = conn.prepareStatement(DELETE_DELIVERED_SQL)) {
+            delete.setString(1, recipient);
+            delete.setLong(2, upToId);
+            delete.executeUpdate();
+        }
+    }
+
+    // Inserts a batch with one multi-row statement in its own transaction
+    private void insert(List<Pending> batch) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO offline_messages (recipient, body, created_at) " +
+                "SELECT v.recipient, v.body, v.created_at FROM (VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(?, ?, ?::timestamptz)");
+        }
+        sql.append(") AS v(recipient, body, created_at) " +
+                "WHERE EXISTS (SELECT 1 FROM users u WHERE u.username = v.recipient);");
+        try (Connection conn = connections.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+                int parameter = 1;
+                for (Pending pending : batch) {
+                    pstmt.setString(parameter++, pending.recipient);
+                    pstmt.setString(parameter++, pending.message);
+                    pstmt.setTimestamp(parameter++, new Timestamp(pending.createdMillis));
+                }
+                pstmt.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Gets the messages waiting to be inserted.
+     *
+     * @return The queue depth
+     */
+    public int getPendingCount() {
+        return writer.getQueueDepth();
+    }
+
+    /**
+     * Gets the messages that could not be inserted and were lost.
+     *
+     * @return The failed message count
+     */
+    public long getFailedCount() {
+        return writer.getFailedCount();
+    }
+
+    /**
+     * Stores the messages still waiting and stops the writer.
+     */
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * One page of a user's stored messages, oldest first.
+     */
+    public static final class Page {
+        static final Page EMPTY = new Page(0);
+
+        private final long[] ids;
+        private final long[] createdMillis;
+        private final String[] messages;
+        private int size;
+
+        Page(int capacity) {
+            this.ids = new long[capacity];
+            this.createdMillis = new long[capacity];
+            this.messages = new String[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Gets when a message was stored.
+         *
+         * @param index The message's position in the page
+         * @return The time in milliseconds since the epoch
+         */
+        public long getCreatedMillis(int index) {
+            return createdMillis[index];
+        }
+
+        public String getMessage(int index) {
+            return messages[index];
+        }
+
+        /**
+         * Gets the id to acknowledge the page with and to read the next page after.
+         *
+         * @return The id of the page's last message
+         */
+        public long getLastId() {
+            return ids[size - 1];
+        }
+    }
+
+    private static final class Pending {
+        final String recipient;
+        final String message;
+        final long createdMillis;
+
+        Pending(String recipient, String message, long createdMillis) {
+            this.recipient = recipient;
+            this.message = message;
+            this.createdMillis = createdMillis;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package chat.journal;
+
+/**
+ * When the {@link MessageJournal} forces appended messages to disk. Appending never waits for
+ * the disk in any mode; a background thread does the forcing.
+ */
+public enum Durability {
+
+    /**
+     * Force as soon as anything has been appended. Messages that arrive while a force is running
+     * are forced together by the next one, so a burst costs a few forces, not one per message.
+     */
+    EVERY_MESSAGE,
+
+    /**
+     * Force every {@link JournalConfig#getFlushIntervalMillis()}, if anything was appended since.
+     * A crash loses at most that much.
+     */
+    PERIODIC,
+
+    /**
+     * Leave writing back to the operating system; only rolled segments and a clean shutdown are
+     * forced. Survives the process crashing, but not the machine.
+     */
+    OS
+}
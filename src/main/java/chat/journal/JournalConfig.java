@@ -0,0 +1,45 @@
+package chat.journal;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Settings of a {@link MessageJournal}.
+ */
+@Getter
+@Setter
+public class JournalConfig {
+
+    /** Directory the segment files live in; null or empty disables the journal. */
+    private String directory;
+
+    /** Size each segment file is mapped with; a segment is rolled once its next message would not fit. */
+    private int segmentBytes = 16 * 1024 * 1024;
+
+    /** Age after which a segment is rolled even if it is not full; 0 rolls by size only. */
+    private long segmentMaxAgeMillis = 3_600_000;
+
+    /** Rolled segments whose newest message is older than this are deleted; 0 keeps them regardless of age. */
+    private long retentionMillis = 7L * 24 * 3_600_000;
+
+    /** The oldest rolled segments are deleted while all segments together are larger than this; 0 means no limit. */
+    private long retentionBytes = 1024L * 1024 * 1024;
+
+    /** When appended messages are forced to disk. */
+    private Durability durability = Durability.PERIODIC;
+
+    /** Force interval for {@link Durability#PERIODIC}. */
+    private long flushIntervalMillis = 1000;
+
+    /** Bytes between two entries of a segment's sparse index; smaller finds messages faster but takes more memory. */
+    private int indexIntervalBytes = 4096;
+
+    /**
+     * Checks whether a journal is configured.
+     *
+     * @return true if a directory is set
+     */
+    public boolean isEnabled() {
+        return directory != null && !directory.trim().isEmpty();
+    }
+}
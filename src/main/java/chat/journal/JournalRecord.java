@@ -0,0 +1,30 @@
+package chat.journal;
+
+import lombok.Getter;
+
+/**
+ * One message read back from the {@link MessageJournal}.
+ */
+@Getter
+public final class JournalRecord {
+    /** Position of the message in the journal; increases by one per message and is never reused. */
+    private final long sequence;
+    /** When the message was appended. */
+    private final long timestampMillis;
+    /** The room the message was sent to. */
+    private final String room;
+    /** The message as the room's members received it. */
+    private final String message;
+
+    JournalRecord(long sequence, long timestampMillis, String room, String message) {
+        this.sequence = sequence;
+        this.timestampMillis = timestampMillis;
+        this.room = room;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " #" + room + " " + message;
+    }
+}
@@ -0,0 +1,426 @@
+package chat.journal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the {@link MessageJournal}: the messages from {@code baseSequence} on, until the
+ * segment was rolled.
+ * <p>
+ * The file is mapped into memory and appended to by copying into the mapping, so appending is a
+ * memory copy and the operating system writes the pages back. Each record is
+ * {@code [int length][int crc32][long sequence][long timestamp][short roomLength][room][message]},
+ * where the length and checksum cover everything after them. The length is written last, so a
+ * record torn by a crash has either no length or a checksum that does not match, and recovery
+ * stops right before it.
+ * </p>
+ * <p>
+ * A sparse index maps every few kilobytes' first sequence number to its position, so finding a
+ * message scans at most that many bytes. Once the segment is rolled, it is {@link #seal() sealed}:
+ * forced, cut to the size actually used and its index written next to it, so that reopening does
+ * not have to scan it.
+ * </p>
+ */
+final class JournalSegment {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    private static final int FIXED_BODY_BYTES = Long.BYTES * 2 + Short.BYTES;
+    private static final int INDEX_MAGIC = 0x4A49_4458; // "JIDX"
+
+    private final Path file;
+    private final long baseSequence;
+    private final int indexInterval;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final long createdMillis;
+    private final CRC32 crc = new CRC32(); // The writer's; readers use their own
+
+    private volatile int size; // Bytes of complete records; everything below is readable
+    private volatile long lastSequence;
+    private volatile long lastTimestamp;
+    private volatile boolean sealed;
+
+    private long[] indexSequences = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexCount;
+    private int lastIndexed = -1;
+
+    private JournalSegment(Path file, long baseSequence, int indexInterval, FileChannel channel,
+                           MappedByteBuffer map, long createdMillis) {
+        this.file = file;
+        this.baseSequence = baseSequence;
+        this.indexInterval = Math.max(1, indexInterval);
+        this.channel = channel;
+        this.map = map;
+        this.createdMillis = createdMillis;
+        this.lastSequence = baseSequence - 1;
+    }
+
+    /**
+     * Creates an empty segment to append to.
+     *
+     * @param directory The journal's directory
+     * @param baseSequence The sequence number of the segment's first message
+     * @param capacity The size to map the file with
+     * @param indexInterval Bytes between two index entries
+     * @return The segment
+     * @throws IOException If the file cannot be created or mapped
+     */
+    static JournalSegment create(Path directory, long baseSequence, int capacity, int indexInterval) throws IOException {
+        Path file = directory.resolve(fileName(baseSequence, LOG_SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new JournalSegment(file, baseSequence, indexInterval, channel, map, System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing segment, recovering its end by scanning it unless it was sealed.
+     *
+     * @param file The segment's log file
+     * @param baseSequence The sequence number in the file's name
+     * @param capacity The size to map the file with if it is to be appended to
+     * @param indexInterval Bytes between two index entries
+     * @param writable Whether the segment is to be appended to; otherwise it is treated as sealed
+     * @return The segment
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    static JournalSegment open(Path file, long baseSequence, int capacity, int indexInterval, boolean writable)
+            throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            MappedByteBuffer map = writable
+                    ? channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, length))
+                    : channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            JournalSegment segment = new JournalSegment(file, baseSequence, indexInterval, channel, map,
+                    System.currentTimeMillis());
+            if (writable || !segment.loadIndex(length)) {
+                segment.recover();
+            }
+            segment.sealed = !writable;
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static String fileName(long baseSequence, String suffix) {
+        return String.format("%020d%s", baseSequence, suffix);
+    }
+
+    /**
+     * Appends a message. Only one thread may append at a time.
+     *
+     * @param sequence The message's sequence number, one more than the previous one's
+     * @param timestampMillis When the message was sent
+     * @param room The room's name as UTF-8
+     * @param message The message as UTF-8
+     * @return false if the message does not fit into what is left of the segment
+     */
+    boolean append(long sequence, long timestampMillis, byte[] room, byte[] message) {
+        int position = size;
+        int bodyLength = FIXED_BODY_BYTES + room.length + message.length;
+        if ((long) position + HEADER_BYTES + bodyLength > map.capacity()) {
+            return false;
+        }
+        int body = position + HEADER_BYTES;
+        map.putLong(body, sequence);
+        map.putLong(body + Long.BYTES, timestampMillis);
+        map.putShort(body + Long.BYTES * 2, (short) room.length);
+        ByteBuffer out = map.duplicate();
+        out.position(body + FIXED_BODY_BYTES);
+        out.put(room).put(message);
+        out.position(body).limit(body + bodyLength);
+        crc.reset();
+        crc.update(out);
+        map.putInt(position + Integer.BYTES, (int) crc.getValue());
+        map.putInt(position, bodyLength);
+
+        if (lastIndexed < 0 || position - lastIndexed >= indexInterval) {
+            addIndexEntry(sequence, position);
+        }
+        lastTimestamp = timestampMillis;
+        lastSequence = sequence;
+        size = position + HEADER_BYTES + bodyLength; // Publishes the record to readers
+        return true;
+    }
+
+    /**
+     * Hands the messages from a sequence number on to a consumer, oldest first.
+     *
+     * @param fromSequence The first sequence number wanted
+     * @param consumer Receives the messages
+     */
+    void forEachFrom(long fromSequence, Consumer<JournalRecord> consumer) {
+        int limit = size;
+        int position = floorPosition(fromSequence);
+        ByteBuffer in = map.duplicate();
+        CRC32 check = new CRC32();
+        while (position < limit) {
+            JournalRecord record = readRecord(in, position, limit, check);
+            if (record == null) {
+                return;
+            }
+            if (record.getSequence() >= fromSequence) {
+                consumer.accept(record);
+            }
+            position += HEADER_BYTES + in.getInt(position);
+        }
+    }
+
+    /**
+     * Reads one message.
+     *
+     * @param sequence The message's sequence number
+     * @return The message, or null if the segment does not hold it
+     */
+    JournalRecord read(long sequence) {
+        if (sequence < baseSequence || sequence > lastSequence) {
+            return null;
+        }
+        int limit = size;
+        int position = floorPosition(sequence);
+        ByteBuffer in = map.duplicate();
+        CRC32 check = new CRC32();
+        while (position < limit) {
+            JournalRecord record = readRecord(in, position, limit, check);
+            if (record == null || record.getSequence() > sequence) {
+                return null;
+            }
+            if (record.getSequence() == sequence) {
+                return record;
+            }
+            position += HEADER_BYTES + in.getInt(position);
+        }
+        return null;
+    }
+
+    /**
+     * Forces the appended messages to disk.
+     */
+    void force() {
+        map.force();
+    }
+
+    /**
+     * Seals a segment that is no longer appended to: forces it, cuts the file to the bytes used and
+     * writes the index file.
+     *
+     * @throws IOException If the file cannot be cut or the index written
+     */
+    synchronized void seal() throws IOException {
+        if (sealed || !channel.isOpen()) {
+            return; // Sealed or deleted already
+        }
+        map.force();
+        channel.truncate(size);
+        writeIndex();
+        sealed = true;
+    }
+
+    /**
+     * Closes the file and deletes it along with its index. Messages already handed out stay valid.
+     *
+     * @throws IOException If a file cannot be deleted
+     */
+    synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(indexFile());
+        Files.deleteIfExists(file);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private void recover() {
+        ByteBuffer in = map.duplicate();
+        int limit = map.capacity();
+        int position = 0;
+        long expected = baseSequence;
+        JournalRecord record;
+        while ((record = readRecord(in, position, limit, crc)) != null && record.getSequence() == expected) {
+            if (lastIndexed < 0 || position - lastIndexed >= indexInterval) {
+                addIndexEntry(record.getSequence(), position);
+            }
+            lastSequence = record.getSequence();
+            lastTimestamp = record.getTimestampMillis();
+            position += HEADER_BYTES + in.getInt(position);
+            expected++;
+        }
+        size = position;
+        // Clear a torn record so that the next append cannot be confused with it
+        if (!map.isReadOnly()) {
+            for (int i = position; i < Math.min(limit, position + HEADER_BYTES); i++) {
+                map.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private static JournalRecord readRecord(ByteBuffer in, int position, int limit, CRC32 check) {
+        if (position + HEADER_BYTES > limit) {
+            return null;
+        }
+        int bodyLength = in.getInt(position);
+        int body = position + HEADER_BYTES;
+        if (bodyLength < FIXED_BODY_BYTES || bodyLength > limit - body) {
+            return null;
+        }
+        ByteBuffer slice = in.duplicate();
+        slice.position(body).limit(body + bodyLength);
+        check.reset();
+        check.update(slice);
+        if ((int) check.getValue() != in.getInt(position + Integer.BYTES)) {
+            return null;
+        }
+        long sequence = in.getLong(body);
+        long timestamp = in.getLong(body + Long.BYTES);
+        int roomLength = in.getShort(body + Long.BYTES * 2) & 0xFFFF;
+        if (roomLength > bodyLength - FIXED_BODY_BYTES) {
+            return null;
+        }
+        byte[] room = new byte[roomLength];
+        byte[] message = new byte[bodyLength - FIXED_BODY_BYTES - roomLength];
+        slice.position(body + FIXED_BODY_BYTES);
+        slice.get(room).get(message);
+        return new JournalRecord(sequence, timestamp, new String(room, StandardCharsets.UTF_8),
+                new String(message, StandardCharsets.UTF_8));
+    }
+
+    private synchronized void addIndexEntry(long sequence, int position) {
+        if (indexCount == indexSequences.length) {
+            indexSequences = Arrays.copyOf(indexSequences, indexCount * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+        }
+        indexSequences[indexCount] = sequence;
+        indexPositions[indexCount] = position;
+        indexCount++;
+        lastIndexed = position;
+    }
+
+    // Position of the last indexed message at or before a sequence number
+    private synchronized int floorPosition(long sequence) {
+        int low = 0;
+        int high = indexCount - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (indexSequences[middle] <= sequence) {
+                found = indexPositions[middle];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private synchronized void writeIndex() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(size);
+            out.writeLong(lastSequence);
+            out.writeLong(lastTimestamp);
+            out.writeInt(indexCount);
+            for (int i = 0; i < indexCount; i++) {
+                out.writeLong(indexSequences[i]);
+                out.writeInt(indexPositions[i]);
+            }
+        }
+        Files.move(temporary, indexFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the index written when the segment was sealed; false if there is none that fits the file
+    private synchronized boolean loadIndex(long fileLength) {
+        Path index = indexFile();
+        if (!Files.exists(index)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                return false;
+            }
+            int indexedSize = in.readInt();
+            if (indexedSize != fileLength) {
+                return false;
+            }
+            long indexedLastSequence = in.readLong();
+            long indexedLastTimestamp = in.readLong();
+            int count = in.readInt();
+            long[] sequences = new long[Math.max(1, count)];
+            int[] positions = new int[Math.max(1, count)];
+            for (int i = 0; i < count; i++) {
+                sequences[i] = in.readLong();
+                positions[i] = in.readInt();
+            }
+            indexSequences = sequences;
+            indexPositions = positions;
+            indexCount = count;
+            lastIndexed = count == 0 ? -1 : positions[count - 1];
+            size = indexedSize;
+            lastSequence = indexedLastSequence;
+            lastTimestamp = indexedLastTimestamp;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Path indexFile() {
+        return file.resolveSibling(fileName(baseSequence, INDEX_SUFFIX));
+    }
+
+    long getBaseSequence() {
+        return baseSequence;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+}
@@ -0,0 +1,377 @@
+package chat.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * An append-only log of room messages on disk, so that history survives a restart.
+ * <p>
+ * Messages go into segment files that are mapped into memory; appending copies the message into
+ * the mapping and returns without waiting for the disk. A background thread forces the mapping
+ * according to the {@link Durability}, seals segments once they are rolled and deletes the oldest
+ * ones once they fall out of the retention limits. A segment is rolled when the next message does
+ * not fit or when it gets older than {@link JournalConfig#getSegmentMaxAgeMillis()}.
+ * </p>
+ * <p>
+ * Every message gets the next sequence number, which is kept across restarts. Appending is
+ * serialised; reading never blocks it, and a reader sees every message whose append has returned.
+ * </p>
+ * <p>
+ * A {@link SearchIndex} can be attached to have every appended message indexed in sequence order;
+ * messages deleted by retention are removed from it too.
+ * </p>
+ */
+public final class MessageJournal implements Closeable {
+    private static final long RETENTION_CHECK_MILLIS = 10_000;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final JournalConfig config;
+    private final Path directory;
+    private final Object appendLock = new Object();
+    private final Thread flusher;
+
+    private volatile JournalSegment[] segments; // Oldest first; the last one is appended to
+    private long nextSequence; // Guarded by appendLock
+    private volatile boolean dirty;
+    private volatile boolean running = true;
+    private volatile SearchIndex searchIndex; // Null unless attached
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder failedAppends = new LongAdder();
+    private final AtomicLong flushes = new AtomicLong();
+
+    private MessageJournal(JournalConfig config, Path directory, List<JournalSegment> segments) {
+        this.config = config;
+        this.directory = directory;
+        this.segments = segments.toArray(new JournalSegment[0]);
+        this.nextSequence = segments.get(segments.size() - 1).getLastSequence() + 1;
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+    }
+
+    /**
+     * Opens the journal in the configured directory, creating it if needed, and recovers the end
+     * of the newest segment.
+     *
+     * @param config The journal's settings
+     * @return The journal, ready to append to
+     * @throws IOException If the directory or a segment cannot be opened
+     */
+    public static MessageJournal open(JournalConfig config) throws IOException {
+        Path directory = Paths.get(config.getDirectory().trim());
+        Files.createDirectories(directory);
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + JournalSegment.LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - JournalSegment.LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        bases.sort(null);
+
+        List<JournalSegment> segments = new ArrayList<>();
+        try {
+            for (int i = 0; i < bases.size(); i++) {
+                long base = bases.get(i);
+                boolean newest = i == bases.size() - 1;
+                segments.add(JournalSegment.open(directory.resolve(JournalSegment.fileName(base, JournalSegment.LOG_SUFFIX)),
+                        base, config.getSegmentBytes(), config.getIndexIntervalBytes(), newest));
+            }
+            if (segments.isEmpty()) {
+                segments.add(JournalSegment.create(directory, 1, config.getSegmentBytes(), config.getIndexIntervalBytes()));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (JournalSegment segment : segments) {
+                segment.close();
+            }
+            throw e;
+        }
+        MessageJournal journal = new MessageJournal(config, directory, segments);
+        journal.flusher.start();
+        return journal;
+    }
+
+    /**
+     * Appends a message. Never waits for the disk and never throws; a message that cannot be
+     * written is counted in {@link #getFailedAppendCount()} and dropped.
+     *
+     * @param room The room the message was sent to
+     * @param message The message as its members received it
+     * @return The message's sequence number, or -1 if it was not written
+     */
+    public long append(String room, String message) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        SearchIndex index = searchIndex;
+        Set<String> terms = index != null ? SearchIndex.terms(room, message) : null; // Outside the lock
+        long sequence;
+        synchronized (appendLock) {
+            if (!running) {
+                failedAppends.increment();
+                return -1;
+            }
+            JournalSegment active = active();
+            long maxAge = config.getSegmentMaxAgeMillis();
+            try {
+                if (maxAge > 0 && !active.isEmpty() && now - active.getCreatedMillis() >= maxAge) {
+                    active = roll();
+                }
+                if (!active.append(nextSequence, now, roomBytes, messageBytes)) {
+                    if (active.isEmpty() || !(active = roll()).append(nextSequence, now, roomBytes, messageBytes)) {
+                        failedAppends.increment(); // Larger than a whole segment
+                        return -1;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Journal: Cannot roll segment: " + e.getMessage());
+                failedAppends.increment();
+                return -1;
+            }
+            sequence = nextSequence++;
+            if (index != null) {
+                index.add(sequence, terms);
+            }
+        }
+        appended.increment();
+        dirty = true;
+        if (config.getDurability() == Durability.EVERY_MESSAGE) {
+            LockSupport.unpark(flusher);
+        }
+        return sequence;
+    }
+
+    /**
+     * Hands the messages from a sequence number on to a consumer, oldest first. Runs on the calling
+     * thread and does not block appending.
+     *
+     * @param fromSequence The first sequence number wanted; older messages that are still kept are skipped
+     * @param consumer Receives the messages
+     */
+    public void replay(long fromSequence, Consumer<JournalRecord> consumer) {
+        for (JournalSegment segment : segments) {
+            if (segment.getLastSequence() >= fromSequence) {
+                segment.forEachFrom(fromSequence, consumer);
+            }
+        }
+    }
+
+    /**
+     * Reads one message.
+     *
+     * @param sequence The message's sequence number
+     * @return The message, or null if it was never written or has been deleted
+     */
+    public JournalRecord read(long sequence) {
+        JournalSegment[] current = segments;
+        int low = 0;
+        int high = current.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (current[middle].getBaseSequence() <= sequence) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high < 0 ? null : current[high].read(sequence);
+    }
+
+    /**
+     * Forces everything appended so far to disk, regardless of the durability setting.
+     */
+    public void flush() {
+        for (JournalSegment segment : segments) {
+            if (!segment.isSealed()) {
+                segment.force();
+            }
+        }
+        flushes.incrementAndGet();
+    }
+
+    /**
+     * Stops the background thread, forces and seals what was appended and closes the files.
+     */
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        JournalSegment[] current = segments;
+        for (int i = 0; i < current.length; i++) {
+            try {
+                if (i < current.length - 1) {
+                    current[i].seal();
+                } else {
+                    current[i].force();
+                }
+                current[i].close();
+            } catch (IOException e) {
+                System.err.println("Journal: Cannot close segment: " + e.getMessage());
+            }
+        }
+    }
+
+    private JournalSegment active() {
+        JournalSegment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    // Starts a new segment; called under appendLock. The flusher seals the old one.
+    private JournalSegment roll() throws IOException {
+        JournalSegment next = JournalSegment.create(directory, nextSequence, config.getSegmentBytes(),
+                config.getIndexIntervalBytes());
+        JournalSegment[] current = segments;
+        JournalSegment[] rolled = Arrays.copyOf(current, current.length + 1);
+        rolled[current.length] = next;
+        segments = rolled;
+        LockSupport.unpark(flusher);
+        return next;
+    }
+
+    private void flushLoop() {
+        long nextRetentionCheck = 0;
+        while (running) {
+            Durability durability = config.getDurability();
+            if (durability == Durability.EVERY_MESSAGE) {
+                if (!dirty) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } else {
+                long interval = durability == Durability.PERIODIC ? config.getFlushIntervalMillis() : RETENTION_CHECK_MILLIS;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(1, interval)));
+            }
+            try {
+                sealRolled();
+                if (durability != Durability.OS && dirty) {
+                    dirty = false; // Cleared first, so an append during the force is forced next time
+                    active().force();
+                    flushes.incrementAndGet();
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextRetentionCheck) {
+                    applyRetention(now);
+                    nextRetentionCheck = now + RETENTION_CHECK_MILLIS;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Journal: Flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    void sealRolled() throws IOException {
+        JournalSegment[] current = segments;
+        for (int i = 0; i < current.length - 1; i++) {
+            current[i].seal();
+        }
+    }
+
+    void applyRetention(long now) throws IOException {
+        List<JournalSegment> expired = new ArrayList<>();
+        synchronized (appendLock) {
+            JournalSegment[] current = segments;
+            long total = 0;
+            for (JournalSegment segment : current) {
+                total += segment.size();
+            }
+            int keepFrom = 0;
+            while (keepFrom < current.length - 1 && current[keepFrom].isSealed()
+                    && (expiredByAge(current[keepFrom], now) || overBudget(total))) {
+                total -= current[keepFrom].size();
+                expired.add(current[keepFrom]);
+                keepFrom++;
+            }
+            if (keepFrom > 0) {
+                segments = Arrays.copyOfRange(current, keepFrom, current.length);
+            }
+        }
+        for (JournalSegment segment : expired) {
+            segment.delete();
+        }
+        SearchIndex index = searchIndex;
+        if (index != null && !expired.isEmpty()) {
+            index.removeBefore(getFirstSequence());
+        }
+    }
+
+    private boolean expiredByAge(JournalSegment segment, long now) {
+        long retention = config.getRetentionMillis();
+        return retention > 0 && now - segment.getLastTimestamp() > retention;
+    }
+
+    private boolean overBudget(long totalBytes) {
+        long retention = config.getRetentionBytes();
+        return retention > 0 && totalBytes > retention;
+    }
+
+    /**
+     * Attaches a search index that every message appended from now on is added to. To cover the
+     * messages already kept, fill it by {@link #replay(long, Consumer) replaying} them first.
+     *
+     * @param index The index, or null to stop indexing
+     */
+    public void setSearchIndex(SearchIndex index) {
+        searchIndex = index;
+    }
+
+    /**
+     * Gets the sequence number of the oldest message still kept.
+     *
+     * @return The sequence number, or one more than {@link #getLastSequence()} if no message is kept
+     */
+    public long getFirstSequence() {
+        return segments[0].getBaseSequence();
+    }
+
+    /**
+     * Gets the sequence number of the newest message.
+     *
+     * @return The sequence number, or 0 if nothing was ever appended
+     */
+    public long getLastSequence() {
+        return active().getLastSequence();
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public long getFailedAppendCount() {
+        return failedAppends.sum();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+}
@@ -0,0 +1,300 @@
+package chat.journal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index of journalled messages: every term maps to the sequence numbers of the
+ * messages containing it, so a search only touches the messages that match instead of scanning
+ * the history.
+ * <p>
+ * Terms are runs of letters and digits, lower-cased; each message's room is indexed as the term
+ * {@code #room}, which turns a room filter into one more term to intersect with. A posting list is
+ * a byte array of ascending sequence numbers, each stored as the varint-encoded difference to the
+ * previous one, so a term that occurs every few messages costs a byte or two per occurrence and
+ * no objects.
+ * </p>
+ * <p>
+ * Sequence numbers must be added in ascending order; the {@link MessageJournal} adds them under
+ * its append lock. Adding only ever writes past the end of a list's array, so a search copies the
+ * list's array and length under the lock and decodes them after releasing it, keeping appends
+ * waiting for no longer than a map lookup per term. Forgetting old messages rebuilds the lists
+ * outside the lock too.
+ * </p>
+ */
+public final class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final char ROOM_TERM_PREFIX = '#';
+
+    private final Map<String, PostingList> postings = new HashMap<>(); // Guarded by this
+    private final Object trimLock = new Object(); // One removeBefore at a time
+
+    /**
+     * Splits a message into its distinct terms.
+     *
+     * @param room The room the message was sent to, indexed as {@code #room}; null to leave it out
+     * @param text The message or query
+     * @return The terms, in the order they first appear
+     */
+    static Set<String> terms(String room, String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (room != null) {
+            terms.add(ROOM_TERM_PREFIX + room.toLowerCase());
+        }
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.append(Character.toLowerCase(c));
+            } else if (term.length() > 0) {
+                if (term.length() <= MAX_TERM_LENGTH) {
+                    terms.add(term.toString());
+                }
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Indexes a message.
+     *
+     * @param sequence The message's sequence number, greater than that of every message indexed before
+     * @param room The room the message was sent to
+     * @param message The message
+     */
+    public void add(long sequence, String room, String message) {
+        add(sequence, terms(room, message));
+    }
+
+    /**
+     * Indexes a message that has already been split into terms.
+     *
+     * @param sequence The message's sequence number, greater than that of every message indexed before
+     * @param terms The message's terms, see {@link #terms(String, String)}
+     */
+    synchronized void add(long sequence, Collection<String> terms) {
+        for (String term : terms) {
+            postings.computeIfAbsent(term, key -> new PostingList()).add(sequence);
+        }
+    }
+
+    /**
+     * Finds the newest messages containing every term of a query.
+     *
+     * @param query The words to look for
+     * @param room Only search this room, or null to search all rooms
+     * @param limit The most matches to return
+     * @return The matching sequence numbers, newest first; empty if the query has no terms
+     */
+    public long[] search(String query, String room, int limit) {
+        Set<String> terms = terms(room, query);
+        if (terms.size() == (room != null ? 1 : 0) || limit < 1) {
+            return new long[0];
+        }
+        byte[][] lists = new byte[terms.size()][];
+        int[] lengths = new int[terms.size()];
+        synchronized (this) {
+            int i = 0;
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    return new long[0];
+                }
+                lists[i] = list.data;
+                lengths[i] = list.length;
+                i++;
+            }
+        }
+        // Intersect starting from the shortest list, which bounds the result
+        Integer[] order = new Integer[lists.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(lengths[a], lengths[b]));
+        long[] matches = decode(lists[order[0]], lengths[order[0]]);
+        for (int i = 1; i < order.length && matches.length > 0; i++) {
+            matches = intersect(matches, lists[order[i]], lengths[order[i]]);
+        }
+        int count = Math.min(limit, matches.length);
+        long[] newest = new long[count];
+        for (int i = 0; i < count; i++) {
+            newest[i] = matches[matches.length - 1 - i];
+        }
+        return newest;
+    }
+
+    /**
+     * Forgets every message before a sequence number, e.g. once the journal has deleted them.
+     * The affected lists are decoded and rebuilt without holding the lock, which appends wait on;
+     * the rebuilt lists are then swapped in, together with whatever was appended meanwhile.
+     *
+     * @param sequence The oldest sequence number to keep
+     */
+    public void removeBefore(long sequence) {
+        synchronized (trimLock) {
+            List<Trim> trims = new ArrayList<>();
+            synchronized (this) {
+                for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                    PostingList list = entry.getValue();
+                    if (list.first < sequence) {
+                        trims.add(new Trim(entry.getKey(), list));
+                    }
+                }
+            }
+            for (Trim trim : trims) {
+                for (long value : decode(trim.data, 0, trim.length, 0)) {
+                    if (value >= sequence) {
+                        trim.kept.add(value);
+                    }
+                }
+            }
+            synchronized (this) {
+                for (Trim trim : trims) {
+                    // Values appended since the snapshot continue the delta chain from its last value
+                    PostingList list = trim.list;
+                    for (long value : decode(list.data, trim.length, list.length, trim.last)) {
+                        trim.kept.add(value);
+                    }
+                    if (trim.kept.length == 0) {
+                        postings.remove(trim.term);
+                    } else {
+                        postings.put(trim.term, trim.kept); // A new list, so searches still decoding the old one are unaffected
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of distinct terms, room terms included.
+     *
+     * @return The term count
+     */
+    public synchronized int getTermCount() {
+        return postings.size();
+    }
+
+    /**
+     * Gets the memory the posting lists' contents take, not counting unused capacity.
+     *
+     * @return The size in bytes
+     */
+    public synchronized long getPostingBytes() {
+        long bytes = 0;
+        for (PostingList list : postings.values()) {
+            bytes += list.length;
+        }
+        return bytes;
+    }
+
+    private static long[] decode(byte[] data, int length) {
+        return decode(data, 0, length, 0);
+    }
+
+    // Decodes the values encoded between two offsets, the first being a delta from base
+    private static long[] decode(byte[] data, int from, int to, long base) {
+        long[] values = new long[Math.max(1, to - from)];
+        int count = 0;
+        long value = base;
+        int offset = from;
+        while (offset < to) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            values[count++] = value;
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    // Keeps the values of a sorted array that also occur in an encoded list
+    private static long[] intersect(long[] values, byte[] data, int length) {
+        long[] both = new long[values.length];
+        int count = 0;
+        int next = 0;
+        long value = 0;
+        int offset = 0;
+        while (offset < length && next < values.length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            while (next < values.length && values[next] < value) {
+                next++;
+            }
+            if (next < values.length && values[next] == value) {
+                both[count++] = value;
+                next++;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    /**
+     * A list to trim: the list as it was when the sweep started, and what it keeps.
+     */
+    private static final class Trim {
+        final String term;
+        final PostingList list;
+        final byte[] data;
+        final int length;
+        final long last;
+        final PostingList kept = new PostingList();
+
+        Trim(String term, PostingList list) {
+            this.term = term;
+            this.list = list;
+            this.data = list.data;
+            this.length = list.length;
+            this.last = list.last;
+        }
+    }
+
+    /**
+     * Ascending sequence numbers, delta- and varint-encoded.
+     */
+    private static final class PostingList {
+        private static final int MAX_VARINT_BYTES = 10;
+
+        byte[] data = new byte[4];
+        int length;
+        long first = -1;
+        long last;
+
+        void add(long sequence) {
+            if (sequence <= last) {
+                return; // Already indexed; terms are distinct per message
+            }
+            if (length + MAX_VARINT_BYTES > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + MAX_VARINT_BYTES));
+            }
+            long delta = sequence - last;
+            while ((delta & ~0x7FL) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            if (first < 0) {
+                first = sequence;
+            }
+            last = sequence;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package chat.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the number of connections that have not logged in yet.
+ * <p>
+ * After a restart every client reconnects at once, and each new connection costs a handler,
+ * a LOGIN on the auth path and, in blocking mode, threads. Connections beyond the cap are
+ * turned away right after accept with a single {@link #BUSY_REPLY} line, before any of that
+ * is set up, so the server works through the storm at the pace it can sustain while the
+ * rejected clients back off and retry. A slot is released as soon as its connection logs in
+ * or closes.
+ * </p>
+ */
+final class AdmissionController {
+    static final String BUSY_REPLY = "BUSY:Server is busy, please retry shortly.";
+    private static final byte[] BUSY_LINE = (BUSY_REPLY + "\n").getBytes(StandardCharsets.UTF_8);
+
+    private final int maxUnauthenticated;
+    private final AtomicInteger unauthenticated = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxUnauthenticated The cap; 0 or less admits everyone
+     */
+    AdmissionController(int maxUnauthenticated) {
+        this.maxUnauthenticated = maxUnauthenticated;
+    }
+
+    /**
+     * Takes a slot for a new connection if one is free.
+     *
+     * @return true if the connection is admitted and must {@link #release()} its slot later
+     */
+    boolean tryAdmit() {
+        if (maxUnauthenticated <= 0) {
+            unauthenticated.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int current = unauthenticated.get();
+            if (current >= maxUnauthenticated) {
+                rejected.increment();
+                return false;
+            }
+            if (unauthenticated.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        unauthenticated.decrementAndGet();
+    }
+
+    /**
+     * Tells a connection that was not admitted to come back later and closes it. The socket must
+     * still be in blocking mode; the reply is one short line that fits in the send buffer.
+     *
+     * @param socket The rejected connection
+     * @param reply Whether to send the BUSY line; a TLS client only sees the connection close
+     */
+    void reject(Socket socket, boolean reply) {
+        try {
+            if (reply) {
+                OutputStream out = socket.getOutputStream();
+                out.write(BUSY_LINE);
+                out.flush();
+                socket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            // The client is gone already; nothing to tell it
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("AdmissionController: Error closing rejected socket: " + e.getMessage());
+            }
+        }
+    }
+
+    int getUnauthenticatedCount() {
+        return unauthenticated.get();
+    }
+
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,291 @@
+package chat.network;
+
+import chat.journal.MessageJournal;
+import chat.util.HistoryRing;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named chat room and its members.
+ * <p>
+ * Every room has its own lock and its own copy-on-write member snapshot, so traffic in one
+ * room never contends with another and a broadcast only touches the room's own members.
+ * The lock only orders the room's messages: under it a broadcast is numbered, recorded and queued
+ * for delivery together with the members it goes to. Sending happens after the lock is released,
+ * by whichever broadcasting thread finds nobody else delivering; it sends everything queued, in
+ * order. Every member therefore sees the room's messages in the same order, while a member that
+ * makes its sender wait (see {@link SlowConsumerPolicy#BLOCK}) holds up at most that one thread,
+ * never the other senders in the room.
+ * </p>
+ * <p>
+ * A room created with a replay buffer numbers its messages and keeps the most recent ones.
+ * Resumable sessions get each message as {@code SEQ:<room> <seq> <message>} so that they know
+ * what they have seen, and a resumed session is sent the messages it missed, in order with the
+ * live ones, see {@link #rejoin(ClientSession, long)}.
+ * </p>
+ * <p>
+ * A room may also keep a {@link HistoryRing} of its recent messages for {@code //history}.
+ * Appending happens under the lock, which makes the lock's holder the ring's only writer; {@link #getHistory(int)} reads it without taking the lock. With a
+ * {@link MessageJournal}, messages are appended to it under the same lock, so the journal holds
+ * each room's messages in the order its members saw them, and the history can be refilled from it
+ * after a restart with {@link #remember(String)}.
+ * </p>
+ */
+public class ChatRoom {
+    private static final ClientSession[] NO_MEMBERS = new ClientSession[0];
+    /** Prefix of a room message sent to a resumable session, followed by the room, its sequence number and the message. */
+    static final String SEQUENCE_PREFIX = "SEQ:";
+
+    @Getter
+    private final String name;
+    private final Object lock = new Object();
+    private volatile ClientSession[] members = NO_MEMBERS;
+    // Both null for a room without a replay buffer
+    private final AtomicLong sequences; // Shared by all rooms, so a recreated room never reuses a number
+    private final ReplayBuffer replay;  // Guarded by lock
+    private volatile long lastSequence; // Sequence number of the room's newest message, 0 if none
+    private final HistoryRing history;  // Null for a room without history; written under lock
+    private final MessageJournal journal; // Null unless messages are persisted; appended to under lock
+    private final ConcurrentLinkedQueue<Delivery> deliveries = new ConcurrentLinkedQueue<>(); // Added to under lock
+    private final AtomicBoolean delivering = new AtomicBoolean();
+
+    public ChatRoom(String name) {
+        this(name, null, 0, 0, null);
+    }
+
+    /**
+     * Creates a room that numbers its messages and keeps the most recent ones for replay.
+     *
+     * @param name The room name
+     * @param sequences Source of sequence numbers, or null for a room without replay
+     * @param replayCapacity The number of messages kept for replay; 0 for a room without replay
+     * @param historyBytes The memory budget for {@code //history}; 0 for a room without history
+     * @param journal The journal the room's messages are persisted to, or null
+     */
+    ChatRoom(String name, AtomicLong sequences, int replayCapacity, int historyBytes, MessageJournal journal) {
+        this.name = name;
+        this.history = historyBytes > 0 ? new HistoryRing(historyBytes) : null;
+        this.journal = journal;
+        boolean replayed = sequences != null && replayCapacity > 0;
+        this.sequences = replayed ? sequences : null;
+        this.replay = replayed ? new ReplayBuffer(replayCapacity) : null;
+    }
+
+    /**
+     * Adds a member to the room.
+     *
+     * @param client The client joining
+     * @return true if the client was not a member yet
+     */
+    boolean add(ClientSession client) {
+        synchronized (lock) {
+            for (ClientSession member : members) {
+                if (member == client) {
+                    return false;
+                }
+            }
+            ClientSession[] updated = Arrays.copyOf(members, members.length + 1);
+            updated[members.length] = client;
+            members = updated;
+            return true;
+        }
+    }
+
+    /**
+     * Removes a member from the room.
+     *
+     * @param client The client leaving
+     * @return true if the client was a member
+     */
+    boolean remove(ClientSession client) {
+        synchronized (lock) {
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] == client) {
+                    ClientSession[] updated = new ClientSession[members.length - 1];
+                    System.arraycopy(members, 0, updated, 0, i);
+                    System.arraycopy(members, i + 1, updated, i, members.length - i - 1);
+                    members = updated;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Sends a message to every member of the room except the sender.
+     * The message is encoded once; the cost is proportional to the room size only.
+     *
+     * @param message The message to send
+     * @param sender The member who sent it, or null to send to everybody
+     */
+    public void broadcast(String message, ClientSession sender) {
+        OutboundMessage encoded = OutboundMessage.of(message);
+        synchronized (lock) {
+            OutboundMessage sequenced = null;
+            if (replay != null) {
+                long sequence = sequences.incrementAndGet();
+                sequenced = OutboundMessage.of(SEQUENCE_PREFIX + name + " " + sequence + " " + message);
+                replay.add(sequence, sequenced);
+                lastSequence = sequence;
+            }
+            if (history != null) {
+                ByteBuffer text = encoded.buffer();
+                text.limit(text.limit() - 1); // Without the line terminator
+                history.append(text);
+            }
+            if (journal != null) {
+                journal.append(name, message);
+            }
+            deliveries.add(new Delivery(encoded, sequenced, members, sender));
+        }
+        deliver();
+    }
+
+    /**
+     * Adds a resumed session to the room and sends it the messages it missed. Messages broadcast
+     * afterwards follow them, so the session sees every message once and in order.
+     *
+     * @param client The resumed session
+     * @param lastSeen The sequence number of the last message the session has seen
+     * @return false if some of the missed messages are no longer kept and could not be sent
+     */
+    boolean rejoin(ClientSession client, long lastSeen) {
+        boolean complete;
+        synchronized (lock) {
+            add(client);
+            if (replay == null) {
+                return lastSeen >= lastSequence;
+            }
+            ClientSession[] recipient = {client};
+            for (OutboundMessage missed : replay.after(lastSeen)) {
+                deliveries.add(new Delivery(missed, null, recipient, null));
+            }
+            complete = replay.covers(lastSeen);
+        }
+        deliver();
+        return complete;
+    }
+
+    // Sends everything queued unless another thread already is; the loop picks up deliveries
+    // queued while that thread was finishing
+    private void deliver() {
+        while (!deliveries.isEmpty() && delivering.compareAndSet(false, true)) {
+            try {
+                Delivery delivery;
+                while ((delivery = deliveries.poll()) != null) {
+                    delivery.send();
+                }
+            } finally {
+                delivering.set(false);
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the room's history without sending it, e.g. one read back from the journal.
+     *
+     * @param message The message as the members received it
+     */
+    void remember(String message) {
+        if (history == null) {
+            return;
+        }
+        ByteBuffer text = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+        synchronized (lock) {
+            history.append(text);
+        }
+    }
+
+    /**
+     * Gets the room's most recent messages without blocking its broadcasts.
+     *
+     * @param count The most messages to return
+     * @return Up to {@code count} messages, oldest first; empty if the room keeps no history
+     */
+    public List<String> getHistory(int count) {
+        return history != null ? history.latest(count) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Gets the sequence number of the room's newest message.
+     *
+     * @return The sequence number, 0 if the room has no replay buffer or no messages yet
+     */
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Checks whether a client is a member of this room.
+     *
+     * @param client The client to check
+     * @return true if the client is a member
+     */
+    public boolean contains(ClientSession client) {
+        for (ClientSession member : members) {
+            if (member == client) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    /**
+     * Gets the distinct names of the room's members, in join order.
+     *
+     * @return A comma-separated list of usernames, or "No users online" if the room is empty
+     */
+    public String getOnlineUserNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (ClientSession member : members) {
+            if (member.getClientName() != null) {
+                names.add(member.getClientName());
+            }
+        }
+        return names.isEmpty() ? "No users online" : String.join(", ", names);
+    }
+
+    /**
+     * One message queued for delivery, with the members it was sent to.
+     */
+    private static final class Delivery {
+        final OutboundMessage plain;
+        final OutboundMessage sequenced; // Null unless resumable sessions get a numbered copy
+        final ClientSession[] recipients;
+        final ClientSession skip;
+
+        Delivery(OutboundMessage plain, OutboundMessage sequenced, ClientSession[] recipients, ClientSession skip) {
+            this.plain = plain;
+            this.sequenced = sequenced;
+            this.recipients = recipients;
+            this.skip = skip;
+        }
+
+        void send() {
+            for (ClientSession member : recipients) {
+                if (member != skip) {
+                    member.send(sequenced != null && member.isResumable() ? sequenced : plain);
+                }
+            }
+        }
+    }
+}
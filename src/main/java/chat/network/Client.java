@@ -1,17 +1,111 @@
 package chat.network;
 
 import chat.controller.MessageSender;
+import chat.p2p.GossipMessage;
+import chat.p2p.GossipNode;
+import chat.p2p.PeerConnection;
+import chat.p2p.PeerEndpoint;
+import chat.p2p.PeerListener;
+import chat.protocol.DeflateCodec;
+import chat.protocol.FrameCodec;
+import chat.protocol.FrameType;
+import chat.protocol.MessageInflater;
+import chat.protocol.WireFormat;
+import chat.protocol.WireReader;
 import chat.util.NotificationSound;
 import chat.util.SoundType;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+/**
+ * Chat client. Everything goes through the server by default; after {@link #enablePeerToPeer(int)}
+ * the client also accepts direct connections, and {@link #sendDirect(String, String)} talks to
+ * other clients without the server in between, falling back to the server whenever it must.
+ * For groups too large to message one by one, {@link #startGossip(Collection, int, int)} spreads
+ * {@link #gossip(String)} messages from peer to peer instead.
+ * <p>
+ * Chat lines are sent asynchronously: {@link #sendAsync(String)} queues a line for the client's
+ * writer thread, which writes everything queued since its last write in one go, and returns a
+ * future that completes once the line is on the socket.
+ * </p>
+ * <p>
+ * Commands with a reply go out as tagged requests, see {@link #request(String)}: {@link #loginAsync},
+ * {@link #registerAsync}, {@link #online()} and {@link #welcome()} return futures that the client's
+ * single reader thread completes when the matching reply arrives, while chat traffic goes to the
+ * message handler. Any number of requests can be in flight at once.
+ * </p>
+ * <p>
+ * Logins are resumable: the server hands out a session token and numbers room messages, and the
+ * client remembers the last one it saw in each room. After the connection is lost,
+ * {@link #connect(String, int)} followed by {@link #resume()} restores the session without the
+ * password and receives only the messages missed in between.
+ * </p>
+ * <p>
+ * With {@link #setTlsContext(SSLContext)} the connection to the server is TLS. Reconnecting with
+ * the same context resumes the previous session, which is much cheaper than a full handshake.
+ * </p>
+ */
 public class Client implements MessageSender {
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    private static final long SERVER_REPLY_TIMEOUT_MILLIS = 2000;
+    private static final String ONLINE_REPLY = "Online users: ";
+    private static final int PEER_CONNECT_TIMEOUT_MILLIS = 2000;
+    // Lines waiting for the writer before senders block, and most lines written with one flush
+    private static final int SEND_QUEUE_CAPACITY = 4096;
+    private static final int MAX_SEND_BATCH = 256;
+    private static final long SEND_DRAIN_TIMEOUT_MILLIS = 2000;
+    // Line prefixes on direct connections
+    private static final String DIRECT_MESSAGE = "MSG ";
+    private static final String GOSSIP_MESSAGE = "GOSSIP ";
+
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
+    // Binary framing, used instead of out/in once the server accepted it
+    private volatile WireFormat wireFormat = WireFormat.TEXT;
+    private OutputStream frameOut;
+    private WireReader frameIn;
+    private MessageInflater inflater; // Set once the server accepted compression
+    private volatile Consumer<String> messageHandler = System.out::println;
+    private volatile String username; // Set once logged in
+    // Direct connections to other clients by username, opened by either side
+    private final ConcurrentMap<String, PeerConnection> directPeers = new ConcurrentHashMap<>();
+    // Requests waiting for their tagged reply, by request id
+    private final ConcurrentMap<String, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private volatile PeerListener peerListener;
+    private volatile GossipNode gossipNode;
+    // Member -> direct connection being opened for gossip, so messages to it share one attempt
+    private final ConcurrentMap<String, CompletableFuture<PeerConnection>> gossipConnects = new ConcurrentHashMap<>();
+    private SSLContext tlsContext; // Null for a plain connection
+    private volatile ClientSendQueue sendQueue; // Set while connected
+    // Session resume; kept across disconnects so that the next connection can resume
+    private volatile boolean resumable = true;
+    private volatile String resumeToken;
+    private volatile String resumeUsername;
+    private final ConcurrentMap<String, Long> lastSeen = new ConcurrentHashMap<>(); // Room -> last sequence number seen
 
     /**
      * Establishes a basic socket connection to the server.
@@ -21,109 +115,754 @@ public class Client implements MessageSender {
      * @throws IOException If connection fails.
      */
     public void connect(String host, int port) throws IOException {
-        socket = new Socket(host, port);
+        open(host, port);
+        startServerListenerThread();
+    }
+
+    private void open(String host, int port) throws IOException {
+        socket = tlsContext != null ? connectTls(host, port) : new Socket(host, port);
+        socket.setTcpNoDelay(true); // Every line is a complete message; Nagle would only delay it
         out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
         in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        sendQueue = new ClientSendQueue(SEND_QUEUE_CAPACITY, MAX_SEND_BATCH, this::writeLines, "client-writer");
         System.out.println("Connection established with server: " + host + ":" + port);
     }
 
+    private SSLSocket connectTls(String host, int port) throws IOException {
+        // Host and port let the context find a session to resume
+        SSLSocket tlsSocket = (SSLSocket) tlsContext.getSocketFactory().createSocket(host, port);
+        try {
+            tlsSocket.setTcpNoDelay(true); // The handshake is several small flights
+            SSLParameters parameters = tlsSocket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS"); // The certificate must name this host
+            tlsSocket.setSSLParameters(parameters);
+            tlsSocket.startHandshake();
+        } catch (IOException e) {
+            tlsSocket.close();
+            throw e;
+        }
+        return tlsSocket;
+    }
+
+    /**
+     * Makes the following connections to the server use TLS. Keep using the same context across
+     * reconnects so that they can resume the previous session.
+     *
+     * @param tlsContext Context whose trust store accepts the server's certificate, e.g.
+     *                   {@link SSLContext#getDefault()}; null switches back to plain connections
+     */
+    public void setTlsContext(SSLContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
+    /**
+     * Establishes a connection and tries to switch it to the preferred wire format.
+     * Servers that do not know binary framing or compression reject the request, and the
+     * connection then simply continues with the best format both sides support.
+     *
+     * @param host The server hostname or IP.
+     * @param port The server port.
+     * @param preferredFormat The wire format to ask for.
+     * @throws IOException If connection fails.
+     */
+    public void connect(String host, int port, WireFormat preferredFormat) throws IOException {
+        open(host, port);
+        // Negotiation reads its replies directly; the reader thread only starts in the final format
+        if (preferredFormat.isFramed()) {
+            negotiateBinary();
+        }
+        if (preferredFormat == WireFormat.BINARY_DEFLATE && wireFormat == WireFormat.BINARY) {
+            negotiateCompression();
+        }
+        startServerListenerThread();
+    }
+
+    private void negotiateBinary() throws IOException {
+        out.println(FrameCodec.NEGOTIATION_REQUEST);
+        String reply = checkBusy(in.readLine());
+        if (FrameCodec.NEGOTIATION_ACCEPTED.equals(reply)) {
+            // The server sends nothing until our next command, so the text reader holds no frame bytes
+            frameOut = socket.getOutputStream();
+            frameIn = new WireReader(socket.getInputStream(), MAX_MESSAGE_LENGTH);
+            wireFormat = WireFormat.BINARY;
+        } else {
+            System.out.println("Server does not support binary framing, using the text protocol.");
+        }
+    }
+
+    private void negotiateCompression() throws IOException {
+        writeLine("COMPRESS " + DeflateCodec.NAME);
+        String reply = readLine();
+        if (("COMPRESS_OK:" + DeflateCodec.NAME).equals(reply)) {
+            inflater = new MessageInflater(MAX_MESSAGE_LENGTH);
+            wireFormat = WireFormat.BINARY_DEFLATE;
+        } else {
+            System.out.println("Server does not support compression, sending uncompressed messages.");
+        }
+    }
+
+    /**
+     * Gets the wire format the connection currently uses.
+     *
+     * @return The wire format
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Sets what happens with messages from the server and from direct connections.
+     * By default they are printed to standard output.
+     *
+     * @param messageHandler Receives every message line
+     */
+    public void setMessageHandler(Consumer<String> messageHandler) {
+        this.messageHandler = messageHandler;
+    }
+
+    private synchronized void writeLine(String line) throws IOException {
+        if (wireFormat.isFramed()) {
+            frameOut.write(frame(line));
+            frameOut.flush();
+        } else {
+            out.println(line);
+        }
+    }
+
+    // Writes a batch from the send queue with a single flush
+    private synchronized void writeLines(List<String> lines) throws IOException {
+        if (out == null) {
+            throw new IOException("Client disconnected.");
+        }
+        if (wireFormat.isFramed()) {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (String line : lines) {
+                batch.write(frame(line));
+            }
+            frameOut.write(batch.toByteArray());
+            frameOut.flush();
+            return;
+        }
+        StringBuilder batch = new StringBuilder();
+        for (String line : lines) {
+            batch.append(line).append('\n');
+        }
+        out.print(batch);
+        out.flush();
+        if (out.checkError()) { // PrintWriter keeps write errors to itself
+            throw new IOException("Connection to server lost.");
+        }
+    }
+
+    private byte[] frame(String line) {
+        byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+        int minBytes = wireFormat == WireFormat.BINARY_DEFLATE ? DeflateCodec.DEFAULT_MIN_BYTES : Integer.MAX_VALUE;
+        return DeflateCodec.encodeMessage(payload, 0, payload.length, minBytes);
+    }
+
+    // A server at its admission limit replies BUSY: to whatever comes first and closes the connection
+    private static String checkBusy(String reply) throws IOException {
+        if (reply != null && reply.startsWith("BUSY:")) {
+            throw new IOException("Server is busy: " + reply.substring("BUSY:".length()));
+        }
+        return reply;
+    }
+
+    // Answers the server's heartbeats, which never reach the caller
+    private String readLine() throws IOException {
+        String line;
+        while ((line = readAnyLine()) != null && line.equals("PING")) {
+            writeLine("PONG");
+        }
+        return line;
+    }
+
+    private String readAnyLine() throws IOException {
+        if (wireFormat == WireFormat.TEXT) {
+            return in.readLine();
+        }
+        String[] text = new String[1];
+        while (frameIn.readFrame((type, flags, payload) -> {
+            if (type != FrameType.MESSAGE) {
+                text[0] = null;
+            } else if ((flags & FrameCodec.FLAG_COMPRESSED) != 0 && inflater != null) {
+                text[0] = FrameCodec.text(inflater.inflate(payload));
+            } else {
+                text[0] = FrameCodec.text(payload);
+            }
+        })) {
+            if (text[0] != null) {
+                return text[0];
+            }
+        }
+        return null;
+    }
+
     /**
-     * Attempts to log in to the server.
+     * Attempts to log in to the server, waiting for the reply.
      *
      * @param username The username.
      * @param password The password.
      * @return true if login is successful, false otherwise.
-     * @throws IOException If communication error occurs.
+     * @throws IOException If communication error occurs, or the server is too busy to take the connection.
      */
     public boolean login(String username, String password) throws IOException {
-        if (!isConnected() || out == null || in == null) {
-            throw new IOException("Client not connected. Call connect() first.");
-        }
-        out.println("LOGIN " + username + " " + password);
-        String serverResponse = in.readLine();
-        if (serverResponse != null && serverResponse.startsWith("AUTH_SUCCESS:")) {
-            System.out.println("Server: " + serverResponse.substring("AUTH_SUCCESS:".length()));
-            NotificationSound connectionSound = new NotificationSound();
-            connectionSound.playSound(SoundType.CLIENT_CONNECTED);
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+        return await(loginAsync(username, password), Long.MAX_VALUE);
+    }
 
-            startServerListenerThread(); // Start listening for chat messages
-            return true;
-        } else {
-            System.err.println("Server: " + (serverResponse != null ? serverResponse : "No response or login failed."));
+    /**
+     * Sends a login request without waiting for the reply.
+     *
+     * @param username The username.
+     * @param password The password.
+     * @return Completes with true if login is successful, false otherwise, or exceptionally with an
+     *         IOException if the client is not connected, the connection fails or the server is too busy
+     */
+    public CompletableFuture<Boolean> loginAsync(String username, String password) {
+        if (resumable) {
+            request("RESUMABLE"); // A server without session resume just says so; the login works either way
+        }
+        lastSeen.clear();
+        return request("LOGIN " + username + " " + password).thenApply(serverResponse -> {
+            if (serverResponse.startsWith("AUTH_SUCCESS:")) {
+                System.out.println("Server: " + serverResponse.substring("AUTH_SUCCESS:".length()));
+                NotificationSound connectionSound = new NotificationSound();
+                connectionSound.playSound(SoundType.CLIENT_CONNECTED);
+                this.username = username;
+                this.resumeUsername = username;
+                return true;
+            }
+            System.err.println("Server: " + serverResponse);
             return false;
+        });
+    }
+
+    /**
+     * Resumes the session of an earlier connection, waiting for the reply. Call it right after
+     * {@link #connect(String, int)}, instead of logging in.
+     *
+     * @return true if the session was resumed, false if there is none to resume or it has
+     *         expired, in which case log in as usual
+     * @throws IOException If communication error occurs, or the server is too busy to take the connection.
+     */
+    public boolean resume() throws IOException {
+        return await(resumeAsync(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Sends a request to resume the session of an earlier connection, presenting the session
+     * token and the last message seen in each room. The server then sends only the messages
+     * this client missed.
+     *
+     * @return Completes with true if the session was resumed, false if there is none to resume or
+     *         it has expired, or exceptionally with an IOException if the connection fails
+     */
+    public CompletableFuture<Boolean> resumeAsync() {
+        String token = resumeToken;
+        if (token == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        StringJoiner positions = new StringJoiner(",", " ", "").setEmptyValue("");
+        for (Map.Entry<String, Long> room : lastSeen.entrySet()) {
+            positions.add(room.getKey() + ":" + room.getValue());
         }
+        return request("RESUME " + token + positions).thenApply(serverResponse -> {
+            if (serverResponse.startsWith("RESUMED:")) {
+                System.out.println("Server: " + serverResponse.substring("RESUMED:".length()));
+                this.username = resumeUsername;
+                return true;
+            }
+            System.err.println("Server: " + serverResponse);
+            resumeToken = null; // Used up or expired
+            lastSeen.clear();
+            return false;
+        });
+    }
+
+    /**
+     * Checks whether there is a session that {@link #resume()} can try to resume.
+     *
+     * @return true if the server issued a session token
+     */
+    public boolean canResume() {
+        return resumeToken != null;
     }
 
     /**
-     * Attempts to register a new account on the server.
+     * Sets whether the following logins ask the server for a resumable session. On by default.
+     *
+     * @param resumable false to log in without a session token
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Attempts to register a new account on the server, waiting for the reply.
      *
      * @param username The desired username.
      * @param password The desired password.
      * @return true if registration is successful, false otherwise.
-     * @throws IOException If communication error occurs.
+     * @throws IOException If communication error occurs, or the server is too busy to take the connection.
      */
     public boolean register(String username, String password) throws IOException {
-        if (!isConnected() || out == null || in == null) {
-            throw new IOException("Client not connected. Call connect() first.");
-        }
-        out.println("REGISTER " + username + " " + password);
-        String serverResponse = in.readLine();
-        if (serverResponse != null && serverResponse.startsWith("REGISTER_SUCCESS:")) {
-            return true;
-        } else {
-            System.err.println("Server: " + (serverResponse != null ? serverResponse : "No response or registration failed."));
+        return await(registerAsync(username, password), Long.MAX_VALUE);
+    }
+
+    /**
+     * Sends a registration request without waiting for the reply.
+     *
+     * @param username The desired username.
+     * @param password The desired password.
+     * @return Completes with true if registration is successful, false otherwise, or exceptionally
+     *         with an IOException if the client is not connected, the connection fails or the server is too busy
+     */
+    public CompletableFuture<Boolean> registerAsync(String username, String password) {
+        return request("REGISTER " + username + " " + password).thenApply(serverResponse -> {
+            if (serverResponse.startsWith("REGISTER_SUCCESS:")) {
+                return true;
+            }
+            System.err.println("Server: " + serverResponse);
             return false;
+        });
+    }
+
+    /**
+     * Asks the server who is online. Must be logged in.
+     *
+     * @return Completes with the usernames of everyone online, this client included
+     */
+    public CompletableFuture<List<String>> online() {
+        return request("//online").thenApply(reply -> {
+            if (!reply.startsWith(ONLINE_REPLY)) {
+                throw new CompletionException(new IOException("Unexpected reply from the server: " + reply));
+            }
+            String names = reply.substring(ONLINE_REPLY.length());
+            return names.equals("No users online") ? Collections.<String>emptyList()
+                    : new ArrayList<>(Arrays.asList(names.split(", ")));
+        });
+    }
+
+    /**
+     * Asks the server for its welcome message. Must be logged in.
+     *
+     * @return Completes with the welcome message
+     */
+    public CompletableFuture<String> welcome() {
+        return request("//welcome");
+    }
+
+    /**
+     * Sends a command as a tagged request. The server tags its reply with the same id, so the
+     * reply is told apart from chat traffic and from the replies to other requests in flight.
+     * Commands without a reply of their own, such as chat lines, are answered with {@code OK}.
+     *
+     * @param command The command or chat line
+     * @return Completes with the reply line, or exceptionally with an IOException if the client is
+     *         not connected, the connection fails first or the server is too busy
+     */
+    public CompletableFuture<String> request(String command) {
+        String id = Long.toString(requestIds.incrementAndGet());
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        pendingRequests.put(id, reply);
+        sendAsync(ClientSession.REQUEST_PREFIX + id + " " + command).whenComplete((written, e) -> {
+            if (e != null && pendingRequests.remove(id, reply)) {
+                reply.completeExceptionally(e);
+            }
+        });
+        return reply;
+    }
+
+    /**
+     * Gets the number of requests still waiting for their reply.
+     *
+     * @return The number of pending requests
+     */
+    public int getPendingRequestCount() {
+        return pendingRequests.size();
+    }
+
+    private void failPendingRequests(IOException cause) {
+        for (String id : pendingRequests.keySet()) {
+            CompletableFuture<String> reply = pendingRequests.remove(id);
+            if (reply != null) {
+                reply.completeExceptionally(cause);
+            }
         }
     }
 
+    // The only reader of the connection once it is set up: replies complete their requests,
+    // everything else goes to the message handler
     private void startServerListenerThread() {
         new Thread(() -> {
             try {
                 String messageFromServer;
-                while (isConnected() && (messageFromServer = in.readLine()) != null) {
-                    System.out.println(messageFromServer); // Display messages from server/other clients
+                while (isConnected() && (messageFromServer = readLine()) != null) {
+                    dispatch(messageFromServer);
                 }
             } catch (IOException e) {
                 if (isConnected()) { // Avoid error message if disconnect was intentional
                     System.err.println("Connection to server lost.");
                 }
             }
-        }).start();
+            failPendingRequests(new IOException("Connection to server closed."));
+        }, "client-reader").start();
+    }
+
+    private void dispatch(String line) {
+        if (line.startsWith(ClientSession.REPLY_PREFIX)) {
+            int space = line.indexOf(' ');
+            String id = line.substring(ClientSession.REPLY_PREFIX.length(), space > 0 ? space : line.length());
+            CompletableFuture<String> reply = pendingRequests.remove(id);
+            if (reply != null) {
+                reply.complete(space > 0 ? line.substring(space + 1) : "");
+            }
+            return; // A reply nobody waits for any more, e.g. after a timeout
+        }
+        if (line.startsWith("SESSION:")) {
+            resumeToken = line.substring("SESSION:".length());
+            return;
+        }
+        if (line.startsWith(ChatRoom.SEQUENCE_PREFIX)) {
+            line = sequenced(line);
+            if (line == null) {
+                return;
+            }
+        }
+        if (line.startsWith("BUSY:")) {
+            failPendingRequests(new IOException("Server is busy: " + line.substring("BUSY:".length())));
+        }
+        messageHandler.accept(line);
+    }
+
+    // Records how far into its room a "SEQ:<room> <seq> <message>" line is and returns the
+    // message, or null for a message already seen
+    private String sequenced(String line) {
+        String[] parts = line.substring(ChatRoom.SEQUENCE_PREFIX.length()).split(" ", 3);
+        if (parts.length < 3) {
+            return line;
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return line;
+        }
+        Long previous = lastSeen.get(parts[0]);
+        if (previous != null && sequence <= previous) {
+            return null;
+        }
+        lastSeen.put(parts[0], sequence); // Only the reader thread writes it
+        return parts[2];
+    }
+
+    /**
+     * Starts accepting direct connections from other clients and publishes the endpoint
+     * through the server. Must be called after logging in.
+     *
+     * @param port The port to listen on, 0 for any free port
+     * @return true if the server published the endpoint, false if it does not support direct connections
+     * @throws IOException If the port cannot be opened or the server does not answer
+     */
+    public boolean enablePeerToPeer(int port) throws IOException {
+        if (username == null || !isConnected()) {
+            throw new IOException("Client not logged in. Call login() first.");
+        }
+        if (peerListener != null) {
+            return true;
+        }
+        PeerListener listener = new PeerListener(username, port, this::peerConnected);
+        try {
+            String reply = await(request("//p2p " + listener.getPort()), SERVER_REPLY_TIMEOUT_MILLIS);
+            if (reply.startsWith("P2P_OK:")) {
+                listener.setSecret(reply.substring("P2P_OK:".length()));
+                peerListener = listener;
+                return true;
+            }
+            System.err.println("Server: " + reply);
+            listener.close();
+            return false;
+        } catch (IOException e) {
+            listener.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the port this client accepts direct connections on.
+     *
+     * @return The port, or 0 if peer-to-peer is not enabled
+     */
+    public int getPeerPort() {
+        PeerListener listener = peerListener;
+        return listener != null ? listener.getPort() : 0;
+    }
+
+    /**
+     * Sends a private message straight to another client, opening a direct connection first if
+     * there is none yet. If the recipient does not accept direct connections or cannot be
+     * reached, the message is relayed by the server as a //msg instead.
+     *
+     * @param recipient The recipient's username
+     * @param message The message text
+     * @return true if the message went over a direct connection, false if the server relayed it
+     */
+    public boolean sendDirect(String recipient, String message) {
+        PeerConnection peer = directPeers.get(recipient);
+        if (peer == null || !peer.isOpen()) {
+            peer = openDirect(recipient);
+        }
+        if (peer != null && peer.send(DIRECT_MESSAGE + message)) {
+            messageHandler.accept("[DM to " + recipient + "]: " + message);
+            return true;
+        }
+        if (peer != null) {
+            directPeers.remove(recipient, peer);
+        }
+        sendMessage("//msg " + recipient + " " + message);
+        return false;
+    }
+
+    // Asks the server where the recipient listens, then connects with the ticket it issued
+    private PeerConnection openDirect(String recipient) {
+        if (username == null || !isConnected()) {
+            return null;
+        }
+        try {
+            String reply = await(request("//peer " + recipient), SERVER_REPLY_TIMEOUT_MILLIS);
+            if (!reply.startsWith("PEER:")) {
+                return null;
+            }
+            String[] parts = reply.substring("PEER:".length()).split(" "); // user host port ticket
+            PeerConnection peer = PeerConnection.connect(new PeerEndpoint(parts[1], Integer.parseInt(parts[2])),
+                    username, parts[3], PEER_CONNECT_TIMEOUT_MILLIS);
+            if (!peer.getPeerName().equals(recipient)) {
+                peer.close();
+                return null;
+            }
+            peerConnected(peer);
+            return peer;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Direct connection to " + recipient + " failed, using the server: " + e.getMessage());
+            return null;
+        }
     }
 
+    // Waits for a request's reply; a request that failed rethrows its IOException
+    private static <T> T await(CompletableFuture<T> reply, long timeoutMillis) throws IOException {
+        try {
+            return reply.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Request failed.", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("No reply from the server.", e);
+        }
+    }
+
+    // Registers a direct connection opened by either side and starts reading from it
+    private void peerConnected(PeerConnection peer) {
+        String name = peer.getPeerName();
+        PeerConnection previous = directPeers.put(name, peer);
+        if (previous != null && previous != peer) {
+            previous.close();
+        }
+        Thread reader = new Thread(() -> {
+            peer.readLoop(line -> directLine(name, line));
+            directPeers.remove(name, peer);
+        }, "p2p-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void directLine(String peerName, String line) {
+        if (line.startsWith(DIRECT_MESSAGE)) {
+            messageHandler.accept("[DM from " + peerName + "]: " + line.substring(DIRECT_MESSAGE.length()));
+            return;
+        }
+        GossipNode node = gossipNode;
+        if (line.startsWith(GOSSIP_MESSAGE) && node != null) {
+            GossipMessage message;
+            try {
+                message = GossipMessage.decode(line.substring(GOSSIP_MESSAGE.length()));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring malformed gossip from " + peerName + ": " + e.getMessage());
+                return;
+            }
+            if (node.receive(message, peerName) && !message.getOrigin().equals(username)) {
+                showGossip(message, peerName);
+            }
+        }
+    }
+
+    // The origin is whatever the publisher put in the message ID; only a copy that came straight
+    // from the origin over its ticketed connection proves it, anything relayed is labelled as unverified
+    private void showGossip(GossipMessage message, String peerName) {
+        String origin = message.getOrigin();
+        String source = origin.equals(peerName) ? origin : origin + " (unverified, via " + peerName + ")";
+        messageHandler.accept("[gossip from " + source + "]: " + message.getText());
+    }
+
+    /**
+     * Joins a gossip group. Messages published with {@link #gossip(String)} travel over direct
+     * connections: each member forwards a message it has not seen yet to {@code fanout} random
+     * members until its TTL runs out. Every member of the group must call this with the same list.
+     * A message shows as {@code [gossip from <origin>]} only when it came straight from its origin;
+     * relayed copies name the member they came from and are marked as unverified, since any member
+     * can claim any origin.
+     *
+     * @param members The usernames in the group; this client's own name may be included
+     * @param fanout Members each message is forwarded to, e.g. {@link GossipNode#DEFAULT_FANOUT}
+     * @param ttl Hops a message may travel; about log_fanout(group size) + 2 reaches nearly everyone
+     * @throws IOException If the client is not logged in
+     */
+    public void startGossip(Collection<String> members, int fanout, int ttl) throws IOException {
+        if (username == null || !isConnected()) {
+            throw new IOException("Client not logged in. Call login() first.");
+        }
+        GossipNode node = new GossipNode(username, fanout, ttl, GossipNode.DEFAULT_SEEN_CAPACITY, new Random(),
+                this::sendGossip, message -> {
+                    // Shown by directLine, which knows the connection each message came over
+                });
+        node.setPeers(members);
+        gossipNode = node;
+    }
+
+    /**
+     * Publishes a message to the gossip group joined with {@link #startGossip(Collection, int, int)}.
+     *
+     * @param message The message text
+     * @throws IOException If no gossip group was joined
+     */
+    public void gossip(String message) throws IOException {
+        GossipNode node = gossipNode;
+        if (node == null) {
+            throw new IOException("Not in a gossip group. Call startGossip() first.");
+        }
+        node.publish(message);
+    }
+
+    // Gossip is redundant by design, so a member that cannot be reached directly is just skipped.
+    // Forwarding runs on the p2p reader threads, so a missing connection is opened on a thread of
+    // its own, which waits for the server's //peer reply, and the message follows once it is up.
+    private void sendGossip(String member, GossipMessage message) {
+        String line = GOSSIP_MESSAGE + message.encode();
+        PeerConnection peer = directPeers.get(member);
+        if (peer != null && peer.isOpen()) {
+            peer.send(line);
+            return;
+        }
+        CompletableFuture<PeerConnection> connection = new CompletableFuture<>();
+        CompletableFuture<PeerConnection> pending = gossipConnects.putIfAbsent(member, connection);
+        if (pending == null) {
+            pending = connection;
+            Thread connector = new Thread(() -> {
+                try {
+                    connection.complete(openDirect(member));
+                } finally {
+                    gossipConnects.remove(member, connection);
+                }
+            }, "p2p-connect-" + member);
+            connector.setDaemon(true);
+            connector.start();
+        }
+        pending.thenAccept(opened -> {
+            if (opened != null) {
+                opened.send(line);
+            }
+        });
+    }
+
+    /**
+     * Sends a message or command without waiting for the socket. Failures are reported on
+     * standard error; use {@link #sendAsync(String)} to handle them yourself.
+     *
+     * @param message The line to send
+     */
     @Override
     public void sendMessage(String message) {
         if (out != null && isConnected()) {
-            out.println(message);
-//            NotificationSound newMessageSound = new NotificationSound();
-//            newMessageSound.playSound(SoundType.NEW_MESSAGE);
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+            sendAsync(message).whenComplete((written, e) -> {
+                if (e != null) {
+                    System.err.println("Failed to send message: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a message or command for the writer thread. Lines are written in the order they
+     * were queued. If {@value #SEND_QUEUE_CAPACITY} lines are already waiting, this waits until
+     * the writer has made room, so a fast sender is held to the speed of the connection.
+     *
+     * @param message The line to send
+     * @return Completes once the line has been written to the socket, or exceptionally if the
+     *         client is not connected or the connection failed first
+     */
+    public CompletableFuture<Void> sendAsync(String message) {
+        ClientSendQueue queue = sendQueue;
+        if (queue == null || !isConnected()) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Client not connected. Call connect() first."));
+            return failed;
         }
+        return queue.send(message);
     }
 
+    /**
+     * Gets the number of queued lines the writer thread has not written yet.
+     *
+     * @return The number of pending lines, 0 if not connected
+     */
+    public int getPendingSendCount() {
+        ClientSendQueue queue = sendQueue;
+        return queue != null ? queue.size() : 0;
+    }
+
+    /**
+     * Disconnects from the server. Lines queued with {@link #sendAsync(String)} are written first,
+     * unless that takes longer than a couple of seconds.
+     *
+     * @throws IOException If closing the socket fails
+     */
     public void disconnect() throws IOException {
+        ClientSendQueue queue = sendQueue;
+        if (queue != null) {
+            queue.close(SEND_DRAIN_TIMEOUT_MILLIS);
+            sendQueue = null;
+        }
         if (socket != null && !socket.isClosed()) {
             NotificationSound disconnectionSound = new NotificationSound();
             disconnectionSound.playSound(SoundType.CLIENT_DISCONNECTED);
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
             socket.close(); // This closes associated in/out streams too
         }
+        PeerListener listener = peerListener;
+        if (listener != null) {
+            listener.close();
+            peerListener = null;
+        }
+        for (PeerConnection peer : directPeers.values()) {
+            peer.close();
+        }
+        directPeers.clear();
+        failPendingRequests(new IOException("Client disconnected."));
+        gossipNode = null;
+        username = null;
         // Nullify to help GC and ensure isConnected() is accurate
         out = null;
         in = null;
+        frameOut = null;
+        frameIn = null;
+        if (inflater != null) {
+            inflater.close();
+            inflater = null;
+        }
+        wireFormat = WireFormat.TEXT;
         socket = null;
     }
 
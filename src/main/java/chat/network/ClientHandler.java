@@ -1,180 +1,216 @@
 package chat.network;
 
-import chat.auth.AccountManager; // Ensure this import is correct for your project structure
-import chat.util.NotificationSound;
-import chat.util.SoundType;
-import lombok.Getter;
+import chat.protocol.FrameListener;
+import chat.protocol.WireReader;
 
-import java.io.*;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ClientSession} served by a thread of its own: {@link #run()} reads lines, or binary
+ * frames once negotiated, from a blocking {@link WireReader} and feeds them to
+ * {@link #handleLine(String)} until the connection closes.
+ * <p>
+ * A second thread per connection drains the outbound queue onto the socket. With
+ * {@link ServerConfig#isWriteCoalescing()} it batches whatever is queued into as few socket
+ * writes as possible and flushes as soon as the queue runs empty.
+ * </p>
+ */
+public class ClientHandler extends ClientSession implements Runnable {
+    private static final long WRITER_DRAIN_TIMEOUT_MILLIS = 1000;
 
-public class ClientHandler implements Runnable {
     private final Socket socket;
-    private final Server server;
-    private PrintWriter out;
-    // Getter for clientName, used by Server.getOnlineUserNames()
-    @Getter
-    String clientName; // Will be set after successful login
-
-    private final AccountManager accountManager;
-    private boolean isAuthenticated = false;
-    boolean clientWantsToExit = false;
+    private final ServerConfig config;
+    private final OutboundQueue outbound;
+    private OutputStream out;
+    private volatile Thread writerThread;
+    private long firstUnflushedAt; // Writer thread only, 0 when everything written has been flushed
 
     public ClientHandler(Socket socket, Server server) {
+        super(socket, server);
         this.socket = socket;
-        this.server = server;
-        this.accountManager = new AccountManager(); // Or get instance from Server
+        this.config = getConfig();
+        this.outbound = getOutbound();
     }
 
     @Override
     public void run() {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
-
-             clientWantsToExit = false;
-
-            // Loop to handle initial authentication (login/register) attempts
-            // This loop allows the client to retry if, for example, registration fails due to username taken.
-            while (!isAuthenticated && !socket.isClosed() && !clientWantsToExit) {
-                String clientRequest = in.readLine(); // Expect "LOGIN user pass" or "REGISTER user pass" or "EXIT"
-                if (clientRequest == null) { // Client disconnected
-                    clientWantsToExit = true;
-                    break;
-                }
-
-                //System.out.println("Server received from client: " + clientRequest); // Debug log
-
-                String[] parts = clientRequest.split(" ", 3);
-                String command = parts[0].toUpperCase(); // Make command case-insensitive
-
-                switch (command) {
-                    case "REGISTER":
-                        if (parts.length == 3) {
-                            String usernameToRegister = parts[1];
-                            String passwordToRegister = parts[2];
-
-                            if (accountManager.accountExists(usernameToRegister)) {
-                                out.println("REGISTER_FAILED_USERNAME_TAKEN:Username '" + usernameToRegister + "' is already in use. Please choose another.");
-                                System.out.println("ClientHandler: Registration attempt failed for " + usernameToRegister + " - username taken.");
-                                // Connection stays open, client can try again or send another command
-                            } else {
-                                if (accountManager.addAccount(usernameToRegister, passwordToRegister)) {
-                                    out.println("REGISTER_SUCCESS:Account for '" + usernameToRegister + "' created successfully. Please login.");
-                                    System.out.println("ClientHandler: New account registered: " + usernameToRegister);
-                                    // Connection stays open, client should now attempt to log in.
-                                } else {
-                                    out.println("REGISTER_FAILED_SERVER_ERROR:Could not register account due to a server-side issue.");
-                                    System.err.println("ClientHandler: Registration failed for " + usernameToRegister + " due to server error (addAccount returned false).");
-                                    // For server errors, we might still close the connection or let them retry.
-                                    // For now, let's keep it open for another attempt.
-                                }
-                            }
-                        } else {
-                            out.println("ERROR:Invalid REGISTER command format. Expected: REGISTER <username> <password>");
-                        }
-                        break;
-
-                    case "LOGIN":
-                        if (parts.length == 3) {
-                            String usernameToLogin = parts[1];
-                            String passwordToLogin = parts[2];
-                            if (accountManager.validateCredentials(usernameToLogin, passwordToLogin)) {
-                                this.clientName = usernameToLogin;
-                                out.println("AUTH_SUCCESS:Welcome, " + this.clientName + "!");
-                                System.out.println("ClientHandler: " + this.clientName + " has logged in.");
-                                if (server != null) {
-                                    server.addClient(this); // Add client to server's list *after* successful auth
-                                    server.broadcastMessage(this.clientName + " has joined the chat!", this);
-                                }
-                                isAuthenticated = true; // Exit the authentication loop
-                            } else {
-                                out.println("AUTH_FAILED:Invalid username or password.");
-                                System.out.println("ClientHandler: Login failed for " + usernameToLogin);
-                                // Connection stays open, client can try again
-                            }
-                        } else {
-                            out.println("ERROR:Invalid LOGIN command format. Expected: LOGIN <username> <password>");
-                        }
+            WireReader in = new WireReader(socket.getInputStream(), config.getMaxLineLength());
+            OutputStream socketOut = new CountingOutputStream(socket.getOutputStream(), getSocketWriteCounter());
+            out = config.isWriteCoalescing()
+                    ? new BufferedOutputStream(socketOut, config.getCoalesceMaxBytes()) : socketOut;
+            writerThread = new Thread(this::writeLoop, "client-writer-" + socket.getPort());
+            writerThread.setDaemon(true);
+            writerThread.start();
+            startIdleTimer();
+
+            clientWantsToExit = false;
+
+            String[] frameText = new String[1];
+            FrameListener frames = (type, flags, payload) -> frameText[0] = inboundMessage(type, flags, payload);
+            while (!socket.isClosed()) {
+                String line;
+                if (getInboundFormat().isFramed()) {
+                    if (!in.readFrame(frames)) {
                         break;
-
-                    case "EXIT_AUTH": // A command client can send if they want to give up during auth phase
-                        out.println("INFO:Disconnecting as per your request during authentication.");
-                        clientWantsToExit = true;
-                        break;
-
-                    default:
-                        out.println("ERROR:Invalid initial command. Expected REGISTER, LOGIN, or EXIT_AUTH.");
-                        break;
-                }
-            } // End of authentication while loop
-
-            if (!isAuthenticated) {
-                // If loop exited without authentication (e.g., client sent EXIT_AUTH or disconnected)
-                System.out.println("ClientHandler: Client did not authenticate or chose to exit. Closing connection.");
-                if (!socket.isClosed()) socket.close();
-                return; // End this client handler thread
-            }
-
-            // If authenticated, proceed to the main chat message loop
-            String message;
-            while ((message = in.readLine()) != null) {
-                if (message.equalsIgnoreCase("//exit") || message.equalsIgnoreCase("//disconnect")) {
+                    }
+                    line = frameText[0];
+                    frameText[0] = null;
+                    if (line == null) {
+                        continue; // Not a message frame
+                    }
+                } else if ((line = in.readLine()) == null) {
                     break;
                 }
-                // Handle other chat commands (//online, //welcome, etc.)
-                // Based on your ClientHandler.java [3] from previous context
-                if (message.equalsIgnoreCase("//online")) {
-                    assert server != null;
-                    out.println("Online users: " + server.getOnlineUserNames());
-                } else if (message.equalsIgnoreCase("//welcome")) {
-                    assert server != null;
-                    out.println(server.getWelcomeMessage());
-                } else if (message.startsWith("//setwelcome ")) {
-                    String newWelcome = message.substring("//setwelcome ".length());
-                    assert server != null;
-                    server.setWelcomeMessage(newWelcome);
-                    out.println("Welcome message updated.");
-                } else {
-                    // Default: broadcast chat message
-                    String formattedMessage = "[" + clientName + "]: " + message;
-                    NotificationSound newMessageSound = new NotificationSound();
-                    newMessageSound.playSound(SoundType.NEW_MESSAGE);
-                    System.out.println(formattedMessage); // Log on server
-                    assert server != null;
-                    server.broadcastMessage(formattedMessage, this);
+                markActivity();
+                if (!handleLine(line)) {
+                    break;
                 }
             }
         } catch (IOException e) {
-            String logName = (this.clientName != null && !this.clientName.isEmpty()) ? this.clientName : "Client (pre-auth or unknown)";
             if (!socket.isClosed()) { // Only log if not an expected closure
-                System.err.println("ClientHandler: Connection with " + logName + " lost or error: " + e.getMessage());
+                System.err.println("ClientHandler: Connection with " + logName() + " lost or error: " + e.getMessage());
             }
         } finally {
-            try {
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
+            connectionClosed();
+        }
+    }
+
+    // Drains the outbound queue onto the socket until the connection closes. Without coalescing
+    // the stream is unbuffered and every message is its own write; with it, messages collect in
+    // the buffer, which writes itself out when full and is flushed whenever the queue runs dry.
+    private void writeLoop() {
+        try {
+            while (true) {
+                OutboundMessage message = outbound.poll();
+                if (message == null && (message = lingerForMore()) == null) {
+                    if (!flushWrites()) {
+                        return;
+                    }
+                    message = outbound.take();
+                }
+                if (!writeMessage(message)) {
+                    return;
                 }
-            } catch (IOException e) {
-                System.err.println("ClientHandler: Error closing socket: " + e.getMessage());
             }
-            // Only remove and broadcast if client was fully authenticated and added to server's list
-            if (this.clientName != null && !this.clientName.isEmpty() && isAuthenticated) {
-                assert server != null;
-                server.removeClient(this);
-                System.out.println("ClientHandler: " + this.clientName + " has left the chat.");
-                server.broadcastMessage(this.clientName + " has left the chat.", this);
+        } catch (InterruptedException e) {
+            // Connection is closing: write whatever is still queued, e.g. a final INFO reply
+            OutboundMessage message;
+            while ((message = outbound.poll()) != null) {
+                if (!writeMessage(message)) {
+                    return;
+                }
+            }
+            flushWrites();
+        }
+    }
 
+    // With a max delay configured, gives a partial batch a little time to fill up before it is flushed
+    private OutboundMessage lingerForMore() throws InterruptedException {
+        if (firstUnflushedAt == 0) {
+            return null;
+        }
+        long wait = firstUnflushedAt + TimeUnit.MICROSECONDS.toNanos(config.getCoalesceMaxDelayMicros()) - System.nanoTime();
+        return wait > 0 ? outbound.poll(wait, TimeUnit.NANOSECONDS) : null;
+    }
+
+    private boolean writeMessage(OutboundMessage message) {
+        if (applyFormatSwitch(message)) {
+            return true;
+        }
+        Runnable written = message.getWrittenCallback();
+        if (written != null) {
+            if (!flushWrites()) {
+                return false;
             }
+            written.run();
+            return true;
+        }
+        try {
+            message.writeTo(out, outboundFormatFor(message));
+            if (config.getCoalesceMaxDelayMicros() > 0 && out instanceof BufferedOutputStream) {
+                long now = System.nanoTime();
+                if (firstUnflushedAt == 0) {
+                    firstUnflushedAt = now;
+                } else if (now - firstUnflushedAt >= TimeUnit.MICROSECONDS.toNanos(config.getCoalesceMaxDelayMicros())) {
+                    return flushWrites(); // The queue keeps refilling, but the oldest message has waited long enough
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            disconnect();
+            return false;
         }
     }
 
-    // Send a message to this specific client
-    public void sendMessage(String message) {
-        if (out != null && !socket.isClosed()) {
-            out.println(message);
+    private boolean flushWrites() {
+        firstUnflushedAt = 0;
+        try {
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            disconnect();
+            return false;
         }
     }
 
+    // Lets the writer flush what is already queued, but never waits long for a slow client
+    @Override
+    void stopWriter() {
+        Thread writer = writerThread;
+        if (writer == null || writer == Thread.currentThread()) {
+            return;
+        }
+        writer.interrupt();
+        try {
+            writer.join(WRITER_DRAIN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the socket; the connection's own thread notices and runs the usual departure handling.
+     */
+    @Override
+    void disconnect() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("ClientHandler: Error closing socket: " + e.getMessage());
+        }
+    }
+
+    // The writer thread blocks on the queue and wakes up by itself
+    @Override
+    void messageQueued() {
+    }
+
+    // Counts the writes that reach the socket, i.e. roughly its send syscalls
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder writes;
+
+        CountingOutputStream(OutputStream out, LongAdder writes) {
+            super(out);
+            this.writes = writes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            writes.increment();
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            writes.increment();
+        }
+    }
 }
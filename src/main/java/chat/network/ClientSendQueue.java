@@ -0,0 +1,165 @@
+package chat.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of lines a {@link Client} sends to the server, written by a dedicated thread.
+ * <p>
+ * Senders only enqueue and get a future back, so they never wait for the socket. The writer takes
+ * whatever has collected since its last write, up to {@code maxBatch} lines, and writes it with a
+ * single flush. A full queue is the backpressure: {@link #send(String)} then waits for room, so a
+ * sender can go no faster than the connection.
+ * </p>
+ */
+final class ClientSendQueue {
+
+    /**
+     * Writes a batch of lines, in order, and flushes them to the socket.
+     */
+    interface BatchWriter {
+        void write(List<String> lines) throws IOException;
+    }
+
+    private static final class PendingLine {
+        final String line;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        PendingLine(String line) {
+            this.line = line;
+        }
+    }
+
+    private final BlockingQueue<PendingLine> queue;
+    private final int maxBatch;
+    private final BatchWriter writer;
+    private final Thread thread;
+    private volatile IOException failure; // Why sends fail from now on; set when closing or on a write error
+    private volatile boolean stopped;      // The writer has exited and takes nothing more from the queue
+
+    /**
+     * Creates the queue and starts its writer thread.
+     *
+     * @param capacity Lines that may wait before senders block
+     * @param maxBatch Most lines written with one flush
+     * @param writer Writes the lines to the connection
+     * @param threadName Name of the writer thread
+     */
+    ClientSendQueue(int capacity, int maxBatch, BatchWriter writer, String threadName) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.writer = writer;
+        this.thread = new Thread(this::writeLoop, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a line, waiting for room if the queue is full.
+     *
+     * @param line The line to send
+     * @return Completes once the line has been written to the socket, or exceptionally if it never will be
+     */
+    CompletableFuture<Void> send(String line) {
+        PendingLine pending = new PendingLine(line);
+        IOException closed = failure;
+        if (closed != null) {
+            pending.written.completeExceptionally(closed);
+            return pending.written;
+        }
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.written.completeExceptionally(new InterruptedIOException("Interrupted while waiting to send."));
+            return pending.written;
+        }
+        // The writer may have exited in the meantime; whoever takes the line out completes it
+        if (stopped && queue.remove(pending)) {
+            pending.written.completeExceptionally(failure);
+        }
+        return pending.written;
+    }
+
+    /**
+     * Gets the number of lines waiting to be written.
+     *
+     * @return The queue length
+     */
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Stops taking new lines, gives the writer a moment to write what is queued and stops it.
+     * Lines still queued afterwards fail.
+     *
+     * @param drainTimeoutMillis How long to wait for queued lines to be written
+     */
+    void close(long drainTimeoutMillis) {
+        if (failure == null) {
+            failure = new IOException("Client disconnected.");
+        }
+        thread.interrupt();
+        try {
+            thread.join(drainTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingLine> batch = new ArrayList<>(maxBatch);
+        try {
+            while (true) {
+                PendingLine first;
+                try {
+                    first = queue.take();
+                } catch (InterruptedException e) {
+                    // Closing: write whatever is already queued, then stop
+                    while ((first = queue.poll()) != null) {
+                        writeBatch(first, batch);
+                    }
+                    return;
+                }
+                writeBatch(first, batch);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            stopped = true;
+            PendingLine left;
+            while ((left = queue.poll()) != null) {
+                left.written.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private void writeBatch(PendingLine first, List<PendingLine> batch) throws IOException {
+        batch.add(first);
+        queue.drainTo(batch, maxBatch - 1);
+        List<String> lines = new ArrayList<>(batch.size());
+        for (PendingLine pending : batch) {
+            lines.add(pending.line);
+        }
+        try {
+            writer.write(lines);
+        } catch (IOException e) {
+            for (PendingLine pending : batch) {
+                pending.written.completeExceptionally(e);
+            }
+            batch.clear();
+            throw e;
+        }
+        for (PendingLine pending : batch) {
+            pending.written.complete(null);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,993 @@
+package chat.network;
+
+import chat.auth.AccountManager;
+import chat.journal.JournalRecord;
+import chat.p2p.PeerEndpoint;
+import chat.p2p.PeerTicket;
+import chat.protocol.DeflateCodec;
+import chat.protocol.FrameCodec;
+import chat.protocol.FrameType;
+import chat.protocol.MessageInflater;
+import chat.protocol.WireFormat;
+import chat.protocol.WireReader;
+import chat.util.SoundType;
+import chat.util.TimerWheel;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Server-side session for a single connected client, independent of how its connection is driven.
+ * <p>
+ * The protocol itself lives in {@link #handleLine(String)}, which processes exactly one
+ * line at a time and is shared by every server engine. {@link ClientHandler} is the classic
+ * thread-per-connection transport that feeds it from a blocking {@link WireReader};
+ * {@link NioClientHandler} feeds it from a selector-driven event loop instead.
+ * </p>
+ * <p>
+ * Every connection starts with newline-terminated text. A client may send
+ * {@link FrameCodec#NEGOTIATION_REQUEST} as its first line to switch both directions to
+ * length-prefixed binary frames; each {@link FrameType#MESSAGE} frame then carries what
+ * would otherwise have been one line. Framed clients may further ask for {@link DeflateCodec}
+ * compression before LOGIN; larger messages in both directions are then compressed one by one.
+ * </p>
+ * <p>
+ * Every line is checked against the connection's and, once logged in, the user's
+ * {@link RateLimits} before it is handled. Lines over budget are dropped with a
+ * {@code THROTTLED:} notice, and a client that keeps flooding is disconnected.
+ * </p>
+ * <p>
+ * A client that goes quiet gets a {@code PING}, which it answers with {@code PONG}; one that stays
+ * silent past the idle timeout, such as the far end of a half-open connection, is disconnected
+ * like any other departure. These checks run on the server's shared {@link TimerWheel}, not on
+ * a timer or thread per connection.
+ * </p>
+ * <p>
+ * Any line may be sent as a request, {@code REQ:<id> <line>}, where the id is up to 16 letters,
+ * digits, '-' or '_' chosen by the client. Every reply to it then comes back as
+ * {@code REPLY:<id> <reply>}, and a line that has no reply of its own, such as a chat message,
+ * is acknowledged with {@code REPLY:<id> OK}. Clients can thereby keep several requests in flight
+ * and tell replies apart from chat traffic. Untagged lines work exactly as before.
+ * </p>
+ * <p>
+ * A client that sends {@code RESUMABLE} before LOGIN gets a {@code SESSION:<token>} line along
+ * with AUTH_SUCCESS, and room messages as {@code SEQ:<room> <seq> <message>}. After losing the
+ * connection it may reconnect and send {@code RESUME <token> <room>:<seq>,...} with the last
+ * sequence number it saw in each room instead of LOGIN: the session is restored without a password
+ * check, and each room sends only the messages it missed, see {@link ChatRoom#rejoin}.
+ * </p>
+ * <p>
+ * Outgoing messages never touch the socket on the sender's thread: {@link #sendMessage(String)}
+ * only puts them on this client's bounded {@link OutboundQueue}, and the transport's writer
+ * drains it. A client that cannot keep up is handled by the configured {@link SlowConsumerPolicy}
+ * instead of stalling broadcasts to everybody else.
+ * </p>
+ */
+public abstract class ClientSession {
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final Pattern REQUEST_ID = Pattern.compile("[A-Za-z0-9_-]{1,16}");
+    private static final int DEFAULT_HISTORY_LINES = 20;
+    private static final int MAX_OFFLINE_MENTIONS = 5; // Per message, so one line cannot fan out into many stored copies
+    /** Prefix of a tagged request line, followed by the request id, a space and the line itself. */
+    static final String REQUEST_PREFIX = "REQ:";
+    /** Prefix of a reply to a tagged request, followed by the request id, a space and the reply. */
+    static final String REPLY_PREFIX = "REPLY:";
+
+    private final Socket socket;
+    private final Server server;
+    // Getter for clientName, used by Server.getOnlineUserNames()
+    @Getter
+    String clientName; // Will be set after successful login
+
+    private final AccountManager accountManager;
+    private boolean isAuthenticated = false;
+    boolean clientWantsToExit = false;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean disconnecting = new AtomicBoolean(false);
+    private final OutboundQueue outbound;
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    private volatile String activeRoom; // Room that plain chat lines go to
+    private final ServerConfig config;
+    private final LongAdder socketWrites;
+    private int commandsReceived;
+    private volatile WireFormat inboundFormat = WireFormat.TEXT;
+    private WireFormat outboundFormat = WireFormat.TEXT; // Owned by whichever thread writes to the socket
+    private volatile MessageInflater inflater; // Set once compression is negotiated, used by the reading thread
+    private final RateLimits connectionLimits; // Null when rate limiting is disabled
+    private volatile RateLimits userLimits;    // Set at LOGIN
+    private int throttledStreak;               // Consecutive dropped lines, reading thread only
+    private volatile PeerEndpoint peerEndpoint; // Where this client accepts direct connections, if it published one
+    private volatile String peerSecret;         // Key for the tickets other clients present at that endpoint
+    private volatile long lastReadNanos = System.nanoTime(); // Last input of any kind from the client
+    private long pingedAfterReadNanos;          // lastReadNanos when we last sent PING, timer thread only
+    private volatile TimerWheel.Timeout idleCheck;
+    // Slot this connection holds until it logs in or closes, see AdmissionController
+    private final AtomicReference<AdmissionController> admissionSlot = new AtomicReference<>();
+    private String requestId; // Id of the REQ: line being handled, null for untagged lines; handling thread only
+    private boolean replied;  // Whether that request has been replied to yet
+    private volatile boolean resumable; // Asked for sequenced room messages and a resume token
+    private volatile String resumeToken; // Token that resumes this session once its connection is gone
+
+    ClientSession(Socket socket, Server server) {
+        this.socket = socket;
+        this.server = server;
+        this.accountManager = server != null ? server.getAccountManager() : new AccountManager();
+        ServerConfig config = server != null && server.getConfig() != null ? server.getConfig() : new ServerConfig();
+        AtomicLong totalDropped = server != null && server.getDroppedMessageCounter() != null
+                ? server.getDroppedMessageCounter() : new AtomicLong();
+        this.outbound = new OutboundQueue(config.getOutboundQueueCapacity(), config.getSlowConsumerPolicy(),
+                config.getSlowConsumerBlockTimeoutMillis(), totalDropped);
+        this.config = config;
+        this.connectionLimits = config.isRateLimitEnabled() ? RateLimits.perConnection(config) : null;
+        this.socketWrites = server != null && server.getSocketWriteCounter() != null
+                ? server.getSocketWriteCounter() : new LongAdder();
+    }
+
+    /**
+     * Processes a single line received from the client.
+     * Before authentication the line is treated as a LOGIN/REGISTER/EXIT_AUTH request,
+     * afterwards as a chat command or chat message.
+     *
+     * @param line The line received from the client, without the line terminator
+     * @return false if the connection should be closed, true to keep reading
+     */
+    boolean handleLine(String line) {
+        if (line.equals("PONG")) {
+            return true; // Heartbeat reply; receiving it already counted as activity
+        }
+        int space = line.indexOf(' ');
+        if (!line.startsWith(REQUEST_PREFIX) || space < 0
+                || !REQUEST_ID.matcher(line.substring(REQUEST_PREFIX.length(), space)).matches()) {
+            return handleCommand(line); // Untagged, or not a well-formed request and thus an ordinary line
+        }
+        requestId = line.substring(REQUEST_PREFIX.length(), space);
+        replied = false;
+        try {
+            boolean keepOpen = handleCommand(line.substring(space + 1));
+            if (!replied) {
+                reply("OK");
+            }
+            return keepOpen;
+        } finally {
+            requestId = null;
+        }
+    }
+
+    private boolean handleCommand(String line) {
+        commandsReceived++;
+        if (!admit(line)) {
+            return config.getThrottleDisconnectThreshold() <= 0 || throttledStreak < config.getThrottleDisconnectThreshold();
+        }
+        if (line.equals("PING")) {
+            reply("PONG"); // Lets clients check the connection too
+            return true;
+        }
+        if (!isAuthenticated) {
+            handleAuthRequest(line);
+            return !clientWantsToExit;
+        }
+        return handleChatLine(line);
+    }
+
+    // Checks the line against the rate limits; the first dropped line of a streak gets a notice
+    private boolean admit(String line) {
+        if (connectionLimits == null) {
+            return true;
+        }
+        boolean command = !isAuthenticated || RateLimits.isCommand(line);
+        RateLimits user = userLimits;
+        if (connectionLimits.tryAcquire(command) && (user == null || user.tryAcquire(command))) {
+            throttledStreak = 0;
+            return true;
+        }
+        throttledStreak++;
+        if (server != null) {
+            server.lineThrottled();
+        }
+        int disconnectThreshold = config.getThrottleDisconnectThreshold();
+        if (disconnectThreshold > 0 && throttledStreak >= disconnectThreshold) {
+            System.err.println("ClientSession: Disconnecting " + logName() + " for flooding.");
+            reply("THROTTLED:Disconnected for sending too many messages.");
+        } else if (throttledStreak == 1 || requestId != null) { // A request must not go unanswered
+            reply("THROTTLED:You are sending " + (command ? "commands" : "messages")
+                    + " too fast. Lines are dropped until you slow down.");
+        }
+        return false;
+    }
+
+    // Handles initial authentication (login/register) attempts.
+    // The client may retry as often as it likes, for example if registration fails due to username taken.
+    private void handleAuthRequest(String clientRequest) { // Expect "LOGIN user pass" or "REGISTER user pass" or "EXIT_AUTH"
+        String[] parts = clientRequest.split(" ", 3);
+        String command = parts[0].toUpperCase(); // Make command case-insensitive
+
+        switch (command) {
+            case "REGISTER":
+                if (parts.length == 3) {
+                    String usernameToRegister = parts[1];
+                    String passwordToRegister = parts[2];
+
+                    if (accountManager.accountExists(usernameToRegister)) {
+                        reply("REGISTER_FAILED_USERNAME_TAKEN:Username '" + usernameToRegister + "' is already in use. Please choose another.");
+                        System.out.println("ClientSession: Registration attempt failed for " + usernameToRegister + " - username taken.");
+                        // Connection stays open, client can try again or send another command
+                    } else {
+                        if (accountManager.addAccount(usernameToRegister, passwordToRegister)) {
+                            reply("REGISTER_SUCCESS:Account for '" + usernameToRegister + "' created successfully. Please login.");
+                            System.out.println("ClientSession: New account registered: " + usernameToRegister);
+                            // Connection stays open, client should now attempt to log in.
+                        } else {
+                            reply("REGISTER_FAILED_SERVER_ERROR:Could not register account due to a server-side issue.");
+                            System.err.println("ClientSession: Registration failed for " + usernameToRegister + " due to server error (addAccount returned false).");
+                            // For server errors, we might still close the connection or let them retry.
+                            // For now, let's keep it open for another attempt.
+                        }
+                    }
+                } else {
+                    reply("ERROR:Invalid REGISTER command format. Expected: REGISTER <username> <password>");
+                }
+                break;
+
+            case "LOGIN":
+                if (parts.length == 3) {
+                    String usernameToLogin = parts[1];
+                    String passwordToLogin = parts[2];
+                    if (accountManager.validateCredentials(usernameToLogin, passwordToLogin)) {
+                        this.clientName = usernameToLogin;
+                        issueResumeToken();
+                        reply("AUTH_SUCCESS:Welcome, " + this.clientName + "!");
+                        System.out.println("ClientSession: " + this.clientName + " has logged in.");
+                        isAuthenticated = true; // Leave the authentication phase
+                        releaseAdmission();
+                        if (server != null) {
+                            userLimits = server.getUserRateLimits(this.clientName);
+                            server.addClient(this); // Add client to server's list *after* successful auth
+                            String lobby = server.getConfig().getDefaultRoom();
+                            server.joinRoom(lobby, this);
+                            joinedRooms.add(lobby);
+                            activeRoom = lobby;
+                            server.broadcastMessage(this.clientName + " has joined the chat!", this);
+                            server.deliverOffline(this);
+                        }
+                    } else {
+                        reply("AUTH_FAILED:Invalid username or password.");
+                        System.out.println("ClientSession: Login failed for " + usernameToLogin);
+                        // Connection stays open, client can try again
+                    }
+                } else {
+                    reply("ERROR:Invalid LOGIN command format. Expected: LOGIN <username> <password>");
+                }
+                break;
+
+            case "PROTOCOL":
+                handleProtocolRequest(clientRequest);
+                break;
+
+            case "COMPRESS":
+                handleCompressRequest(parts);
+                break;
+
+            case "RESUMABLE":
+                if (server == null || config.getResumeBufferSize() <= 0) {
+                    reply("RESUME_UNSUPPORTED:Session resume is disabled on this server.");
+                } else {
+                    resumable = true;
+                    reply("RESUMABLE_OK");
+                }
+                break;
+
+            case "RESUME":
+                handleResumeRequest(parts);
+                break;
+
+            case "EXIT_AUTH": // A command client can send if they want to give up during auth phase
+                reply("INFO:Disconnecting as per your request during authentication.");
+                clientWantsToExit = true;
+                break;
+
+            default:
+                reply("ERROR:Invalid initial command. Expected REGISTER, LOGIN, or EXIT_AUTH.");
+                break;
+        }
+    }
+
+    // Takes over a session whose connection was lost: no password check, and each room sends
+    // only what the client has not seen yet
+    private void handleResumeRequest(String[] parts) {
+        if (server == null || config.getResumeBufferSize() <= 0) {
+            reply("RESUME_UNSUPPORTED:Session resume is disabled on this server.");
+            return;
+        }
+        Map<String, Long> lastSeen = parts.length >= 2 ? parseLastSeen(parts.length == 3 ? parts[2].trim() : "") : null;
+        if (lastSeen == null) {
+            reply("ERROR:Invalid RESUME command format. Expected: RESUME <token> [<room>:<seq>,...]");
+            return;
+        }
+        ResumeSessions.Parked session = server.getResumeSessions().take(parts[1], System.currentTimeMillis());
+        if (session == null) {
+            reply("RESUME_FAILED:Unknown or expired session. Please log in.");
+            return;
+        }
+        this.clientName = session.username;
+        resumable = true;
+        issueResumeToken();
+        reply("RESUMED:Welcome back, " + this.clientName + "!");
+        System.out.println("ClientSession: " + this.clientName + " has resumed their session.");
+        isAuthenticated = true;
+        releaseAdmission();
+        userLimits = server.getUserRateLimits(this.clientName);
+        server.addClient(this);
+        for (Map.Entry<String, Long> room : session.rooms.entrySet()) {
+            // Without the client's own position, resume from where the room was when the connection closed
+            Long seen = lastSeen.get(room.getKey());
+            joinedRooms.add(room.getKey());
+            if (!server.rejoinRoom(room.getKey(), this, seen != null ? seen : room.getValue())) {
+                sendMessage("INFO:Some messages in #" + room.getKey() + " are no longer available.");
+            }
+        }
+        activeRoom = session.activeRoom != null && joinedRooms.contains(session.activeRoom) ? session.activeRoom : null;
+        server.broadcastMessage(this.clientName + " has joined the chat!", this);
+        server.deliverOffline(this);
+    }
+
+    // Parses "room:seq,room:seq"; null if malformed
+    private static Map<String, Long> parseLastSeen(String argument) {
+        Map<String, Long> lastSeen = new HashMap<>();
+        if (argument.isEmpty()) {
+            return lastSeen;
+        }
+        for (String entry : argument.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0 || !ROOM_NAME.matcher(entry.substring(0, colon)).matches()) {
+                return null;
+            }
+            try {
+                lastSeen.put(entry.substring(0, colon), Long.parseLong(entry.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return lastSeen;
+    }
+
+    // Sent ahead of the AUTH_SUCCESS or RESUMED reply, untagged, so it never answers a request itself
+    private void issueResumeToken() {
+        if (!resumable) {
+            return;
+        }
+        resumeToken = ResumeSessions.newToken();
+        sendMessage("SESSION:" + resumeToken);
+    }
+
+    /**
+     * Checks whether the client asked for sequenced room messages, i.e. for a resumable session.
+     *
+     * @return true if room messages go to this client with their sequence number
+     */
+    boolean isResumable() {
+        return resumable;
+    }
+
+    // Switches to binary frames. Only the first command may do this, so that the reader never
+    // has to guess how bytes received before the switch were meant.
+    private void handleProtocolRequest(String request) {
+        if (requestId != null) {
+            reply("ERROR:PROTOCOL cannot be sent as a request.");
+        } else if (commandsReceived != 1) {
+            reply("ERROR:PROTOCOL must be the first command on a connection.");
+        } else if (FrameCodec.NEGOTIATION_REQUEST.equalsIgnoreCase(request.trim())) {
+            reply(FrameCodec.NEGOTIATION_ACCEPTED);
+            send(OutboundMessage.formatSwitch(WireFormat.BINARY)); // Replies after the acceptance are framed
+            inboundFormat = WireFormat.BINARY;
+        } else {
+            reply("PROTOCOL_UNSUPPORTED:Supported protocols are TEXT and BINARY/1.");
+        }
+    }
+
+    private void handleCompressRequest(String[] parts) {
+        if (parts.length != 2 || !DeflateCodec.NAME.equalsIgnoreCase(parts[1].trim())) {
+            reply("COMPRESS_UNSUPPORTED:Supported codecs are " + DeflateCodec.NAME + ".");
+        } else if (!config.isCompressionEnabled()) {
+            reply("COMPRESS_UNSUPPORTED:Compression is disabled on this server.");
+        } else if (!inboundFormat.isFramed()) {
+            reply("ERROR:COMPRESS requires the BINARY/1 protocol.");
+        } else if (inflater == null) {
+            inflater = new MessageInflater(config.getMaxLineLength());
+            reply("COMPRESS_OK:" + DeflateCodec.NAME);
+            send(OutboundMessage.formatSwitch(WireFormat.BINARY_DEFLATE));
+        } else {
+            reply("COMPRESS_OK:" + DeflateCodec.NAME);
+        }
+    }
+
+    // Handles a line from an authenticated client. Returns false when the client asked to leave.
+    private boolean handleChatLine(String message) {
+        if (message.equalsIgnoreCase("//exit") || message.equalsIgnoreCase("//disconnect")) {
+            return false;
+        }
+        // Handle other chat commands (//online, //welcome, etc.)
+        if (message.equalsIgnoreCase("//online")) {
+            assert server != null;
+            reply("Online users: " + server.getOnlineUserNames());
+        } else if (message.startsWith("//online ")) {
+            handleRoomOnline(message.substring("//online ".length()).trim());
+        } else if (message.startsWith("//join ")) {
+            handleJoin(message.substring("//join ".length()).trim());
+        } else if (message.startsWith("//leave ")) {
+            handleLeave(message.substring("//leave ".length()).trim());
+        } else if (message.equalsIgnoreCase("//rooms")) {
+            handleRooms();
+        } else if (message.equalsIgnoreCase("//history") || message.startsWith("//history ")) {
+            handleHistory(message.substring("//history".length()).trim());
+        } else if (message.equalsIgnoreCase("//search") || message.startsWith("//search ")) {
+            handleSearch(message.substring("//search".length()).trim());
+        } else if (message.startsWith("//msg ")) {
+            handlePrivateMessage(message.substring("//msg ".length()));
+        } else if (message.startsWith("//p2p ")) {
+            handlePeerRegistration(message.substring("//p2p ".length()).trim());
+        } else if (message.startsWith("//peer ")) {
+            handlePeerLookup(message.substring("//peer ".length()).trim());
+        } else if (message.equalsIgnoreCase("//peers")) {
+            reply("Peers: " + server.getPeerDirectory());
+        } else if (message.equalsIgnoreCase("//welcome")) {
+            assert server != null;
+            reply(server.getWelcomeMessage());
+        } else if (message.startsWith("//setwelcome ")) {
+            String newWelcome = message.substring("//setwelcome ".length());
+            assert server != null;
+            server.setWelcomeMessage(newWelcome);
+            reply("Welcome message updated.");
+        } else {
+            // Default: broadcast chat message to the active room
+            String room = activeRoom;
+            if (room == null) {
+                reply("ERROR:You are not in any room. Use //join <room> first.");
+                return true;
+            }
+            String formattedMessage = formatRoomMessage(room, message);
+            assert server != null;
+            server.playNotification(SoundType.NEW_MESSAGE);
+            System.out.println(formattedMessage); // Log on server
+            server.broadcastToRoom(room, formattedMessage, this);
+            server.archiveMessage(room, clientName, message);
+            storeOfflineMentions(message, formattedMessage);
+        }
+        return true;
+    }
+
+    // Keeps the message for mentioned users who are not online; unknown names are dropped by the store
+    private void storeOfflineMentions(String message, String formattedMessage) {
+        if (message.indexOf('@') < 0 || !config.isOfflineDeliveryEnabled()) {
+            return;
+        }
+        Set<String> mentioned = new LinkedHashSet<>();
+        for (int i = message.indexOf('@'); i >= 0 && mentioned.size() < MAX_OFFLINE_MENTIONS; i = message.indexOf('@', i + 1)) {
+            if (i > 0 && !Character.isWhitespace(message.charAt(i - 1))) {
+                continue; // Part of a word, e.g. an e-mail address
+            }
+            int end = i + 1;
+            while (end < message.length() && (Character.isLetterOrDigit(message.charAt(end))
+                    || message.charAt(end) == '_' || message.charAt(end) == '-')) {
+                end++;
+            }
+            String name = message.substring(i + 1, end);
+            if (!name.isEmpty() && !name.equals(clientName)) {
+                mentioned.add(name);
+            }
+        }
+        for (String name : mentioned) {
+            if (!server.isUserOnline(name)) {
+                server.storeOffline(name, formattedMessage);
+            }
+        }
+    }
+
+    // Messages in the default room keep the classic "[name]: text" format
+    private String formatRoomMessage(String room, String message) {
+        if (room.equals(server.getConfig().getDefaultRoom())) {
+            return "[" + clientName + "]: " + message;
+        }
+        return "#" + room + " [" + clientName + "]: " + message;
+    }
+
+    private void handlePrivateMessage(String arguments) {
+        String[] parts = arguments.trim().split(" ", 2);
+        if (parts.length < 2 || parts[0].isEmpty() || parts[1].trim().isEmpty()) {
+            reply("ERROR:Invalid //msg command format. Expected: //msg <username> <message>");
+            return;
+        }
+        String recipient = parts[0];
+        String privateMessage = "[PM from " + clientName + "]: " + parts[1];
+        if (server.sendToUser(recipient, privateMessage)) {
+            reply("[PM to " + recipient + "]: " + parts[1]);
+            return;
+        }
+        // Answered once it is known whether the recipient has an account, maybe after later replies
+        String id = requestId;
+        replied = true;
+        server.storeOfflineForAccount(recipient, privateMessage, stored -> replyTo(id, stored
+                ? "[PM to " + recipient + " (offline, delivered at their next login)]: " + parts[1]
+                : "ERROR:User '" + recipient + "' is not online."));
+    }
+
+    // Publishes the port this client accepts direct connections on; the host is the address it connected from
+    private void handlePeerRegistration(String argument) {
+        if (!config.isPeerToPeerEnabled()) {
+            reply("P2P_UNSUPPORTED:Direct connections are disabled on this server.");
+            return;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(argument);
+        } catch (NumberFormatException e) {
+            port = 0;
+        }
+        if (port < 1 || port > 65535) {
+            reply("ERROR:Invalid //p2p command format. Expected: //p2p <port>");
+            return;
+        }
+        String secret = PeerTicket.newSecret();
+        peerSecret = secret;
+        peerEndpoint = new PeerEndpoint(socket.getInetAddress().getHostAddress(), port);
+        reply("P2P_OK:" + secret);
+    }
+
+    // Hands out another user's endpoint with a ticket proving to them who is calling
+    private void handlePeerLookup(String username) {
+        ClientSession target = server.getClient(username);
+        PeerEndpoint endpoint = target != null ? target.peerEndpoint : null;
+        String secret = target != null ? target.peerSecret : null;
+        if (endpoint == null || secret == null || target == this) {
+            reply("PEER_UNAVAILABLE:" + username);
+            return;
+        }
+        reply("PEER:" + username + " " + endpoint + " " + PeerTicket.issue(secret, clientName, System.currentTimeMillis()));
+    }
+
+    /**
+     * Gets where this client accepts direct connections.
+     *
+     * @return The endpoint, or null if the client has not published one
+     */
+    PeerEndpoint getPeerEndpoint() {
+        return peerEndpoint;
+    }
+
+    private void handleJoin(String room) {
+        if (!ROOM_NAME.matcher(room).matches()) {
+            reply("ERROR:Invalid room name. Use 1-32 letters, digits, '-' or '_'.");
+            return;
+        }
+        if (server.joinRoom(room, this)) {
+            joinedRooms.add(room);
+            server.broadcastToRoom(room, clientName + " has joined #" + room, this);
+        }
+        activeRoom = room;
+        reply("Joined room '" + room + "'. Messages now go to #" + room + ".");
+    }
+
+    private void handleLeave(String room) {
+        if (!joinedRooms.remove(room)) {
+            reply("ERROR:You are not in room '" + room + "'.");
+            return;
+        }
+        server.leaveRoom(room, this);
+        server.broadcastToRoom(room, clientName + " has left #" + room, this);
+        if (room.equals(activeRoom)) {
+            Iterator<String> remaining = joinedRooms.iterator();
+            activeRoom = remaining.hasNext() ? remaining.next() : null;
+        }
+        reply("Left room '" + room + "'." + (activeRoom != null
+                ? " Messages now go to #" + activeRoom + "." : " Use //join <room> to chat again."));
+    }
+
+    private void handleRooms() {
+        StringBuilder rooms = new StringBuilder("Rooms: ");
+        boolean first = true;
+        for (ChatRoom room : server.getRooms()) {
+            if (!first) {
+                rooms.append(", ");
+            }
+            first = false;
+            rooms.append(room.getName()).append(" (").append(room.size()).append(')');
+            if (room.getName().equals(activeRoom)) {
+                rooms.append(" [active]");
+            } else if (joinedRooms.contains(room.getName())) {
+                rooms.append(" [joined]");
+            }
+        }
+        reply(first ? "Rooms: none" : rooms.toString());
+    }
+
+    // Streams the active room's recent messages; the closing HISTORY_END line is the reply
+    private void handleHistory(String argument) {
+        int count = DEFAULT_HISTORY_LINES;
+        if (!argument.isEmpty()) {
+            try {
+                count = Integer.parseInt(argument);
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count < 1) {
+                reply("ERROR:Invalid //history command format. Expected: //history [count]");
+                return;
+            }
+        }
+        String roomName = activeRoom;
+        ChatRoom room = roomName != null ? server.getRoom(roomName) : null;
+        if (room == null) {
+            reply("ERROR:You are not in any room. Use //join <room> first.");
+            return;
+        }
+        List<String> lines = room.getHistory(count);
+        for (String line : lines) {
+            sendMessage(line);
+        }
+        reply("HISTORY_END:" + lines.size() + " messages from #" + roomName);
+    }
+
+    // Streams the newest matches, newest first; the closing SEARCH_END line is the reply
+    private void handleSearch(String argument) {
+        if (argument.isEmpty()) {
+            reply("ERROR:Invalid //search command format. Expected: //search <terms> [#room]");
+            return;
+        }
+        if (server.getSearchIndex() == null) {
+            reply("ERROR:Search is not available on this server.");
+            return;
+        }
+        String query = argument;
+        String roomName = null;
+        int lastSpace = argument.lastIndexOf(' ');
+        if (lastSpace > 0 && argument.charAt(lastSpace + 1) == '#' && argument.length() > lastSpace + 2) {
+            query = argument.substring(0, lastSpace).trim();
+            roomName = argument.substring(lastSpace + 2);
+        }
+        List<JournalRecord> matches = server.search(query, roomName, server.getConfig().getSearchMaxResults());
+        for (JournalRecord match : matches) {
+            String roomPrefix = "#" + match.getRoom() + " ";
+            sendMessage(match.getMessage().startsWith(roomPrefix) ? match.getMessage() : roomPrefix + match.getMessage());
+        }
+        reply("SEARCH_END:" + matches.size() + " matches for '" + query + "'" + (roomName != null ? " in #" + roomName : ""));
+    }
+
+    private void handleRoomOnline(String roomName) {
+        ChatRoom room = server.getRoom(roomName);
+        if (room == null) {
+            reply("ERROR:No such room '" + roomName + "'.");
+            return;
+        }
+        reply("Online users in " + roomName + ": " + room.getOnlineUserNames());
+    }
+
+    /**
+     * Marks this connection as holding one of the admission controller's unauthenticated slots.
+     *
+     * @param admission The controller that admitted the connection
+     */
+    void holdAdmission(AdmissionController admission) {
+        admissionSlot.set(admission);
+    }
+
+    private void releaseAdmission() {
+        AdmissionController admission = admissionSlot.getAndSet(null);
+        if (admission != null) {
+            admission.release();
+        }
+    }
+
+    /**
+     * Records that the client sent something, which keeps heartbeats and idle reaping away.
+     */
+    void markActivity() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts watching the connection for silence on the server's timer wheel, if heartbeats
+     * or idle timeouts are enabled.
+     */
+    void startIdleTimer() {
+        TimerWheel timers = server != null ? server.getIdleTimers() : null;
+        if (timers != null) {
+            checkIdle(timers);
+        }
+    }
+
+    // Runs on the timer wheel: PINGs a client once per silent period and disconnects it once
+    // it has been silent past the idle timeout, then re-arms for whichever comes next
+    private void checkIdle(TimerWheel timers) {
+        if (closed.get()) {
+            return;
+        }
+        long lastRead = lastReadNanos;
+        long idle = System.nanoTime() - lastRead;
+        long timeout = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        long interval = TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatIntervalMillis());
+        if (timeout > 0 && idle >= timeout) {
+            System.err.println("ClientSession: Disconnecting " + logName() + " after "
+                    + TimeUnit.NANOSECONDS.toMillis(idle) + " ms of silence.");
+            server.connectionReaped();
+            disconnect();
+            return;
+        }
+        long next = timeout > 0 ? timeout - idle : Long.MAX_VALUE;
+        if (interval > 0 && pingedAfterReadNanos != lastRead) {
+            if (idle >= interval) {
+                pingedAfterReadNanos = lastRead;
+                server.heartbeatSent();
+                sendHeartbeat();
+            } else {
+                next = Math.min(next, interval - idle);
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            next = interval; // Pinged and never reaped: look again once the client has had time to answer
+        }
+        idleCheck = timers.schedule(() -> checkIdle(timers), next, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Releases the connection and, for authenticated clients, removes them from the server
+     * and announces their departure. Safe to call more than once; only the first call has an effect.
+     */
+    void connectionClosed() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (!isAuthenticated) {
+            // Client sent EXIT_AUTH, disconnected or failed before logging in
+            System.out.println("ClientSession: Client did not authenticate or chose to exit. Closing connection.");
+        }
+        releaseAdmission();
+        TimerWheel.Timeout pendingIdleCheck = idleCheck;
+        if (pendingIdleCheck != null) {
+            pendingIdleCheck.cancel();
+        }
+        stopWriter();
+        MessageInflater connectionInflater = inflater;
+        if (connectionInflater != null) {
+            connectionInflater.close();
+        }
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("ClientSession: Error closing socket: " + e.getMessage());
+        }
+        // Only remove and broadcast if client was fully authenticated and added to server's list
+        if (this.clientName != null && !this.clientName.isEmpty() && isAuthenticated) {
+            assert server != null;
+            parkForResume();
+            for (String room : joinedRooms) {
+                server.leaveRoom(room, this);
+            }
+            server.removeClient(this);
+            System.out.println("ClientSession: " + this.clientName + " has left the chat.");
+            server.broadcastMessage(this.clientName + " has left the chat.", this);
+        }
+    }
+
+    // Keeps the session resumable for a while, positioned at the newest message of each room
+    private void parkForResume() {
+        String token = resumeToken;
+        if (token == null) {
+            return;
+        }
+        Map<String, Long> rooms = new LinkedHashMap<>();
+        for (String roomName : joinedRooms) {
+            ChatRoom room = server.getRoom(roomName);
+            rooms.put(roomName, room != null ? room.getLastSequence() : 0L);
+        }
+        server.getResumeSessions().park(token, clientName, rooms, activeRoom, System.currentTimeMillis());
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Checks whether the client has completed LOGIN.
+     *
+     * @return true once the client is authenticated
+     */
+    boolean isAuthenticated() {
+        return isAuthenticated;
+    }
+
+    /**
+     * Extracts the text of a frame received from the client.
+     *
+     * @param type The frame type
+     * @param flags The frame flags
+     * @param payload The frame payload
+     * @return The message text, or null if the frame carries no message for {@link #handleLine(String)}
+     * @throws ProtocolException If the frame is compressed although compression was not negotiated, or corrupt
+     */
+    String inboundMessage(FrameType type, int flags, ByteBuffer payload) throws ProtocolException {
+        if (type != FrameType.MESSAGE) {
+            return null;
+        }
+        if ((flags & FrameCodec.FLAG_COMPRESSED) != 0) {
+            MessageInflater connectionInflater = inflater;
+            if (connectionInflater == null) {
+                throw new ProtocolException("Compressed frame received without negotiating compression");
+            }
+            return FrameCodec.text(connectionInflater.inflate(payload));
+        }
+        return FrameCodec.text(payload);
+    }
+
+    /**
+     * Gets the format the client's next bytes are expected in. Only changes while handling
+     * the first command, on the thread that reads from the connection.
+     *
+     * @return The inbound wire format
+     */
+    WireFormat getInboundFormat() {
+        return inboundFormat;
+    }
+
+    /**
+     * Applies a format switch marker taken from the outbound queue. Writer thread only.
+     *
+     * @param message The message taken from the queue
+     * @return true if it was a marker and must not be written
+     */
+    boolean applyFormatSwitch(OutboundMessage message) {
+        WireFormat format = message.getFormatSwitch();
+        if (format == null) {
+            return false;
+        }
+        outboundFormat = format;
+        return true;
+    }
+
+    /**
+     * Gets the format a queued message is written in. Messages too short to be worth
+     * compressing go out as plain frames to compressing clients. Writer thread only.
+     *
+     * @param message The message about to be written
+     * @return The wire format for this message
+     */
+    WireFormat outboundFormatFor(OutboundMessage message) {
+        if (outboundFormat == WireFormat.BINARY_DEFLATE && message.encodedLength() <= config.getCompressionMinBytes()) {
+            return WireFormat.BINARY;
+        }
+        return outboundFormat;
+    }
+
+    String logName() {
+        return (this.clientName != null && !this.clientName.isEmpty()) ? this.clientName : "Client (pre-auth or unknown)";
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    Server getServer() {
+        return server;
+    }
+
+    /**
+     * Gets the number of messages this client never received because its outbound queue was full.
+     *
+     * @return The dropped message count
+     */
+    public long getDroppedMessages() {
+        return outbound.getDroppedMessages();
+    }
+
+    ServerConfig getConfig() {
+        return config;
+    }
+
+    LongAdder getSocketWriteCounter() {
+        return socketWrites;
+    }
+
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    // Replies to the line being handled, tagged with its request id if it was a request
+    private void reply(String message) {
+        if (requestId != null) {
+            replied = true;
+        }
+        replyTo(requestId, message);
+    }
+
+    // Replies to a request by its id, e.g. from another thread once the handling thread has moved on
+    private void replyTo(String id, String message) {
+        sendMessage(id == null ? message : REPLY_PREFIX + id + " " + message);
+    }
+
+    /**
+     * Queues a message for this specific client. Never writes to the socket on the caller's thread.
+     *
+     * @param message The message to send
+     */
+    public void sendMessage(String message) {
+        send(OutboundMessage.of(message));
+    }
+
+    /**
+     * Queues an already encoded message for this client. Broadcasts use this so that
+     * all recipients share one encoded copy.
+     *
+     * @param message The encoded message to send
+     */
+    public void send(OutboundMessage message) {
+        if (closed.get() || disconnecting.get()) {
+            return;
+        }
+        if (!outbound.offer(message, !NioEventLoop.isEventLoopThread())) {
+            if (!disconnecting.compareAndSet(false, true)) {
+                return; // Another sender already gave up on this client
+            }
+            System.err.println("ClientSession: Disconnecting slow consumer " + logName()
+                    + " (" + outbound.getDroppedMessages() + " messages dropped).");
+            if (server != null) {
+                server.slowConsumerDisconnected();
+            }
+            disconnect();
+            return;
+        }
+        messageQueued();
+    }
+
+    // Never waits, so one stuck client cannot hold up the timer wheel; a full queue needs no PING
+    private void sendHeartbeat() {
+        if (!closed.get() && !disconnecting.get() && outbound.offerIfRoom(OutboundMessage.of("PING"))) {
+            messageQueued();
+        }
+    }
+
+    /**
+     * Runs a callback once every message queued for this client so far has been written, e.g. to
+     * confirm a delivery. It never runs if the connection closes first or, under
+     * {@link SlowConsumerPolicy#DROP_OLDEST}, the queue overflows before it is reached.
+     *
+     * @param callback Runs on the writer's thread, so it must be short
+     */
+    void whenWritten(Runnable callback) {
+        send(OutboundMessage.whenWritten(callback));
+    }
+
+    /**
+     * Called after a message was queued, so that the transport can schedule its writer.
+     */
+    abstract void messageQueued();
+
+    /**
+     * Forcibly disconnects the client, e.g. because it cannot keep up with its messages.
+     * The transport then runs the usual departure handling, {@link #connectionClosed()}.
+     */
+    abstract void disconnect();
+
+    /**
+     * Called once while the connection closes, before its socket is. A transport with a writer
+     * thread of its own lets it write out what is already queued here.
+     */
+    void stopWriter() {
+    }
+}
@@ -0,0 +1,325 @@
+package chat.network;
+
+import chat.protocol.FrameDecoder;
+import chat.protocol.FrameListener;
+import chat.protocol.LineDecoder;
+import chat.protocol.WireFormat;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link ClientSession} served by a {@link NioEventLoop} instead of threads of its own.
+ * <p>
+ * Reads are decoded into lines, or binary frames once negotiated, on the loop thread and fed
+ * to {@link #handleLine(String)}.
+ * Lines received before authentication hit the database, so they are handed to the
+ * engine's auth workers while reading is paused; everything afterwards runs on the loop.
+ * Outgoing messages may be produced by any thread; they wait in the session's outbound
+ * queue and are written by the loop whenever the socket accepts more data. With write
+ * coalescing, everything queued goes out in one gathering write of up to
+ * {@link ServerConfig#getCoalesceMaxBytes()} bytes instead of one write per message.
+ * </p>
+ * <p>
+ * With TLS, a {@link TlsChannel} sits between the socket and the decoders and batches; its
+ * handshake work runs on the server's handshake pool while reading is paused.
+ * </p>
+ * <p>
+ * A protocol negotiation line is handled directly on the loop, before the rest of the read is
+ * decoded, so bytes that follow it in the same read are already decoded as frames.
+ * </p>
+ */
+class NioClientHandler extends ClientSession {
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Executor authExecutor;
+    private final LineDecoder lineDecoder;
+    private final FrameDecoder frameDecoder;
+    private final FrameListener frameListener;
+    private final TlsChannel tls; // Null for plain connections
+    private final Queue<String> pendingLines = new ArrayDeque<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private static final int MAX_GATHER_BUFFERS = 64;
+
+    // Messages taken from the queue but not completely written yet, loop thread only
+    private final ByteBuffer[] batch;
+    private int batchStart;
+    private int batchEnd;
+    private Runnable afterBatch; // Written callback waiting for the batch before it to be written
+    private SelectionKey key;
+    private boolean awaitingAuthWorker;
+
+    NioClientHandler(SocketChannel channel, Server server, NioEventLoop loop, Executor authExecutor, int maxLineLength) {
+        this(channel, server, loop, authExecutor, maxLineLength, null, null);
+    }
+
+    /**
+     * @param tlsEngine Server-mode engine for a TLS connection, or null for a plain one
+     * @param handshakeExecutor Runs the engine's delegated handshake tasks
+     */
+    NioClientHandler(SocketChannel channel, Server server, NioEventLoop loop, Executor authExecutor, int maxLineLength,
+                     SSLEngine tlsEngine, Executor handshakeExecutor) {
+        super(channel.socket(), server);
+        this.channel = channel;
+        this.loop = loop;
+        this.authExecutor = authExecutor;
+        this.lineDecoder = new LineDecoder(maxLineLength);
+        this.frameDecoder = new FrameDecoder(maxLineLength);
+        this.batch = new ByteBuffer[getConfig().isWriteCoalescing() ? MAX_GATHER_BUFFERS : 1];
+        this.frameListener = (type, flags, payload) -> {
+            String text = inboundMessage(type, flags, payload);
+            if (text != null) {
+                pendingLines.add(text);
+            }
+        };
+        this.tls = tlsEngine == null ? null : new TlsChannel(channel, tlsEngine, handshakeExecutor,
+                () -> loop.execute(this::resumeAfterHandshakeTasks), getSocketWriteCounter(),
+                server != null ? server::tlsHandshakeFinished : null);
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+        startIdleTimer();
+        flush(); // Anything queued before registration
+    }
+
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            ByteBuffer input;
+            if (tls != null) {
+                input = tls.read();
+            } else {
+                readBuffer.clear();
+                input = channel.read(readBuffer) < 0 ? null : (ByteBuffer) readBuffer.flip();
+            }
+            if (input == null) {
+                closeChannel();
+                return;
+            }
+            markActivity();
+            decode(input);
+        } catch (IOException e) {
+            connectionFailed(e);
+            return;
+        }
+        if (tls != null) {
+            flush(); // Handshake messages, and replies that waited for the handshake
+            updateReadInterest();
+        }
+        processPendingLines();
+    }
+
+    private void decode(ByteBuffer input) throws IOException {
+        while (input.hasRemaining() && channel.isOpen()) {
+            if (getInboundFormat().isFramed()) {
+                frameDecoder.decodeOne(input, frameListener);
+                continue;
+            }
+            String line = lineDecoder.next(input);
+            if (line == null) {
+                break;
+            }
+            if (isNegotiation(line)) {
+                handleLine(line); // No database access, and it decides how the rest of the read is decoded
+            } else {
+                pendingLines.add(line);
+            }
+        }
+    }
+
+    private void resumeAfterHandshakeTasks() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        tls.tasksFinished();
+        try {
+            decode(tls.resume());
+        } catch (IOException e) {
+            connectionFailed(e);
+            return;
+        }
+        flush();
+        updateReadInterest();
+        processPendingLines();
+    }
+
+    private void connectionFailed(IOException e) {
+        if (channel.isOpen()) {
+            System.err.println("NioClientHandler: Connection with " + logName() + " lost or error: " + e.getMessage());
+        }
+        closeChannel();
+    }
+
+    // Only a first line can switch formats; anything else waits its turn like other commands
+    private boolean isNegotiation(String line) {
+        return !awaitingAuthWorker && pendingLines.isEmpty() && !isAuthenticated()
+                && line.regionMatches(true, 0, "PROTOCOL ", 0, "PROTOCOL ".length());
+    }
+
+    private void processPendingLines() {
+        String line;
+        while (!awaitingAuthWorker && channel.isOpen() && (line = pendingLines.poll()) != null) {
+            if (!isAuthenticated()) {
+                handOffToAuthWorker(line);
+                return;
+            }
+            if (!handleLine(line)) {
+                closeChannel();
+                return;
+            }
+        }
+    }
+
+    // LOGIN/REGISTER block on the database; run them on a worker and stop reading until they finish
+    private void handOffToAuthWorker(String line) {
+        awaitingAuthWorker = true;
+        updateReadInterest();
+        try {
+            authExecutor.execute(() -> {
+                boolean keepOpen = handleLine(line);
+                loop.execute(() -> {
+                    awaitingAuthWorker = false;
+                    if (!keepOpen) {
+                        closeChannel();
+                        return;
+                    }
+                    updateReadInterest();
+                    processPendingLines();
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            sendMessage("ERROR:Server is busy, please try again later.");
+            closeChannel();
+        }
+    }
+
+    // Reading pauses while an auth worker or the TLS handshake pool has the connection
+    private void updateReadInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        boolean enabled = !awaitingAuthWorker && (tls == null || !tls.isRunningTasks());
+        int ops = key.interestOps();
+        key.interestOps(enabled ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Writes as much as the socket accepts; the rest waits for OP_WRITE. Loop thread only.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            if (tls != null) {
+                tls.write(batch, 0, 0); // Ciphertext left over from before, and handshake messages
+            }
+            while (fillBatch()) {
+                if (tls != null) {
+                    tls.write(batch, batchStart, batchEnd - batchStart);
+                } else {
+                    channel.write(batch, batchStart, batchEnd - batchStart);
+                    getSocketWriteCounter().increment();
+                }
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    break;
+                }
+            }
+            // A TLS batch may also wait for the handshake, which is not helped by OP_WRITE
+            boolean socketFull = tls != null ? tls.hasPendingOutput() : batchStart < batchEnd;
+            key.interestOps(socketFull ? key.interestOps() | SelectionKey.OP_WRITE : key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            key.cancel(); // Nothing more can be written, skip the final flush
+            connectionClosed();
+        }
+    }
+
+    // Tops up the batch from the outbound queue; returns false if there is nothing to write
+    private boolean fillBatch() {
+        if (batchStart == batchEnd) {
+            batchStart = 0;
+            batchEnd = 0;
+            Runnable written = afterBatch;
+            if (written != null) {
+                afterBatch = null;
+                written.run();
+            }
+        }
+        long bytes = 0;
+        for (int i = batchStart; i < batchEnd; i++) {
+            bytes += batch[i].remaining();
+        }
+        int maxBytes = getConfig().getCoalesceMaxBytes();
+        while (afterBatch == null && batchEnd < batch.length && (bytes < maxBytes || batchEnd == batchStart)) {
+            OutboundMessage message = getOutbound().poll();
+            if (message == null) {
+                break;
+            }
+            if (applyFormatSwitch(message)) {
+                continue;
+            }
+            Runnable written = message.getWrittenCallback();
+            if (written != null) {
+                if (batchStart == batchEnd) {
+                    written.run();
+                    continue;
+                }
+                afterBatch = written; // Runs once this batch is written; nothing joins it until then
+                break;
+            }
+            ByteBuffer buffer = message.buffer(outboundFormatFor(message));
+            bytes += buffer.remaining();
+            batch[batchEnd++] = buffer;
+        }
+        return batchStart < batchEnd;
+    }
+
+    @Override
+    void messageQueued() {
+        if (loop.inEventLoop()) {
+            if (!getConfig().isWriteCoalescing()) {
+                flush();
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.flushLater(this); // Written together with whatever else this iteration queues
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    @Override
+    void disconnect() {
+        loop.execute(this::closeChannel);
+    }
+
+    /**
+     * Closes the channel and runs the usual departure handling. Loop thread only.
+     * Queued replies get one last non-blocking write attempt first.
+     */
+    void closeChannel() {
+        if (key != null && key.isValid()) {
+            flush();
+            if (tls != null) {
+                tls.close();
+            }
+            key.cancel();
+        }
+        connectionClosed();
+    }
+}
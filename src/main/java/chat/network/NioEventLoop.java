@@ -0,0 +1,172 @@
+package chat.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread of the {@link NioServerEngine}.
+ * <p>
+ * Each loop owns a {@link Selector} and every connection registered with it; all reads,
+ * writes and protocol handling for those connections happen on the loop thread.
+ * Other threads hand work to the loop through {@link #execute(Runnable)}.
+ * </p>
+ * <p>
+ * Messages queued on the loop thread itself are not written immediately: the connection asks
+ * for {@link #flushLater(NioClientHandler)} and all of them go out together once the current
+ * batch of ready keys and tasks has been handled.
+ * </p>
+ */
+final class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<Boolean> EVENT_LOOP_THREAD = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<NioClientHandler> pendingFlushes = new ArrayDeque<>(); // Loop thread only
+    // Shared by all connections of this loop; each read is fully decoded before the next one
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop on a new thread.
+     */
+    void start() {
+        Thread loopThread = new Thread(this, name);
+        thread = loopThread;
+        loopThread.start();
+    }
+
+    /**
+     * Checks whether the caller is running on this loop's thread.
+     *
+     * @return true if called from the loop thread
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Checks whether the caller is running on any event loop thread. Such threads must never
+     * wait for another connection, since that connection may be served by the very same loop.
+     *
+     * @return true if called from an event loop thread
+     */
+    static boolean isEventLoopThread() {
+        return EVENT_LOOP_THREAD.get();
+    }
+
+    /**
+     * Schedules a task to run on the loop thread and wakes the selector if needed.
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Flushes a connection at the end of the current loop iteration, after everything else that
+     * may still queue messages for it. Loop thread only.
+     *
+     * @param handler The connection to flush
+     */
+    void flushLater(NioClientHandler handler) {
+        pendingFlushes.add(handler);
+    }
+
+    /**
+     * Registers an accepted, non-blocking channel with this loop for reading.
+     *
+     * @param channel The accepted channel
+     * @param handler The session that will serve the channel
+     */
+    void register(SocketChannel channel, NioClientHandler handler) {
+        execute(() -> {
+            try {
+                handler.attach(channel.register(selector, SelectionKey.OP_READ, handler));
+            } catch (ClosedChannelException e) {
+                handler.connectionClosed();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        EVENT_LOOP_THREAD.set(Boolean.TRUE);
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("NioEventLoop: Selector failure on " + name + ": " + e.getMessage());
+                break;
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioClientHandler handler = (NioClientHandler) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    handler.onReadable(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handler.onWritable();
+                }
+            }
+            flushPending();
+        }
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            ((NioClientHandler) key.attachment()).closeChannel();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("NioEventLoop: Error closing selector: " + e.getMessage());
+        }
+    }
+
+    private void flushPending() {
+        NioClientHandler handler;
+        while ((handler = pendingFlushes.poll()) != null) {
+            handler.flush();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("NioEventLoop: Task failed on " + name + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Stops the loop and closes every channel registered with it.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,144 @@
+package chat.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector-based connection engine for the {@link Server}.
+ * <p>
+ * {@link ServerConfig#getAcceptorThreads()} threads accept connections, turn away those the
+ * {@link AdmissionController} has no room for, and deal the rest out round-robin to a fixed set of
+ * {@link NioEventLoop}s, so the number of threads no longer grows with the number of
+ * connected clients. It speaks exactly the same line protocol as the blocking engine,
+ * because every connection is still a {@link ClientSession} underneath.
+ * </p>
+ */
+class NioServerEngine {
+    private static final int AUTH_QUEUE_CAPACITY = 1024;
+    private static final long ACCEPT_RETRY_DELAY_MILLIS = 50;
+
+    private final Server server;
+    private final ServerConfig config;
+    private final NioEventLoop[] loops;
+    private final ThreadPoolExecutor authExecutor;
+    private ServerSocketChannel serverChannel;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    NioServerEngine(Server server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.config = config;
+        this.loops = new NioEventLoop[Math.max(1, config.getEventLoopThreads())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("nio-event-loop-" + i);
+        }
+        AtomicInteger workerIds = new AtomicInteger();
+        this.authExecutor = new ThreadPoolExecutor(config.getAuthWorkerThreads(), config.getAuthWorkerThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(AUTH_QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "nio-auth-worker-" + workerIds.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Opens the listening channel and starts the event loops.
+     *
+     * @param port The port to listen on, or 0 for an ephemeral port
+     * @throws IOException If the port cannot be bound
+     */
+    void bind(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+        } catch (IOException | RuntimeException e) {
+            serverChannel.close();
+            throw e;
+        }
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Accepts connections until {@link #stop()} closes the listening channel.
+     * Several threads may run this at once.
+     */
+    void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break; // stop() was called
+            } catch (IOException e) {
+                // Typically "Too many open files": keep serving existing clients and retry shortly
+                System.err.println("NioServerEngine: Accept failed: " + e.getMessage());
+                pauseAfterAcceptFailure();
+                continue;
+            }
+            AdmissionController admission = server.getAdmission();
+            if (!admission.tryAdmit()) {
+                // Still blocking, so the short reply is written at once; TLS clients could not read it
+                admission.reject(channel.socket(), !config.isTlsEnabled());
+                continue;
+            }
+            try {
+                channel.socket().setTcpNoDelay(config.isTcpNoDelay());
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                // Reset by the client before it was served
+                admission.release();
+                closeQuietly(channel);
+                continue;
+            }
+            NioEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            NioClientHandler handler = new NioClientHandler(channel, server, loop, authExecutor, config.getMaxLineLength(),
+                    server.newTlsEngine(), server.getHandshakeExecutor());
+            handler.holdAdmission(admission);
+            loop.register(channel, handler);
+        }
+    }
+
+    // Only stop() ends accepting, by closing the channel; an interrupt on its own would leave the
+    // port open with nobody accepting, so it only cuts the pause short instead of turning every
+    // later pause into a busy retry
+    private static void pauseAfterAcceptFailure() {
+        try {
+            Thread.sleep(ACCEPT_RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            // Keep accepting
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Never served, nothing to clean up
+        }
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Closes the listening channel, every connection and all engine threads.
+     *
+     * @throws IOException If the listening channel cannot be closed
+     */
+    void stop() throws IOException {
+        serverChannel.close();
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        authExecutor.shutdownNow();
+    }
+}
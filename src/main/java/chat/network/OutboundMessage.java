@@ -0,0 +1,189 @@
+package chat.network;
+
+import chat.protocol.DeflateCodec;
+import chat.protocol.FrameCodec;
+import chat.protocol.FrameType;
+import chat.protocol.WireFormat;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message on its way to one or more clients, encoded to wire bytes exactly once per format.
+ * <p>
+ * The encoded line (UTF-8 text plus {@code '\n'}) is immutable and shared by every recipient:
+ * blocking writers copy it straight onto their socket stream and NIO writers get a read-only
+ * {@link ByteBuffer} view of the same array, so a broadcast to N clients costs one encode
+ * instead of N. The binary frame for {@link WireFormat#BINARY} recipients is built from the
+ * line on first use and shared the same way, as is the compressed frame for
+ * {@link WireFormat#BINARY_DEFLATE} recipients: a broadcast is compressed at most once.
+ * </p>
+ */
+public final class OutboundMessage {
+    @Getter
+    private final String text;
+    private final byte[] line;
+    private volatile byte[] frame; // Racing writers may both encode it; the results are identical
+    private volatile byte[] compressedFrame; // Same, plain frame if compression does not pay off
+    // Non-null for the marker that switches the writer to another wire format
+    private final WireFormat formatSwitch;
+    // Non-null for the marker that reports when everything queued before it has been written
+    private final Runnable writtenCallback;
+
+    private OutboundMessage(String text) {
+        this.text = text;
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        this.line = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, line, 0, encoded.length);
+        line[encoded.length] = '\n';
+        this.formatSwitch = null;
+        this.writtenCallback = null;
+    }
+
+    private OutboundMessage(WireFormat formatSwitch, Runnable writtenCallback) {
+        this.text = "";
+        this.line = new byte[0];
+        this.formatSwitch = formatSwitch;
+        this.writtenCallback = writtenCallback;
+    }
+
+    /**
+     * Encodes a text message for sending.
+     *
+     * @param text The message text, without a line terminator
+     * @return The encoded message
+     */
+    public static OutboundMessage of(String text) {
+        return new OutboundMessage(text);
+    }
+
+    /**
+     * Creates a marker that is queued like a message but tells the writer to encode every
+     * following message in another format. Queuing it right after the last message of the
+     * old format keeps the switch in order with the replies around it.
+     *
+     * @param format The format for all following messages
+     * @return The marker
+     */
+    static OutboundMessage formatSwitch(WireFormat format) {
+        return new OutboundMessage(format, null);
+    }
+
+    /**
+     * Creates a marker that is queued like a message but writes nothing: the writer runs the
+     * callback once every message queued before it has been handed to the connection. If the
+     * connection closes first, or the marker is dropped from a full queue, it never runs.
+     *
+     * @param callback Runs on the writer's thread, so it must be short
+     * @return The marker
+     */
+    static OutboundMessage whenWritten(Runnable callback) {
+        return new OutboundMessage(null, callback);
+    }
+
+    /**
+     * Gets the format a writer must switch to, if this is a format switch marker.
+     *
+     * @return The new format, or null for an ordinary message
+     */
+    WireFormat getFormatSwitch() {
+        return formatSwitch;
+    }
+
+    /**
+     * Gets the callback to run once the messages before it are written, if this is such a marker.
+     *
+     * @return The callback, or null for an ordinary message
+     */
+    Runnable getWrittenCallback() {
+        return writtenCallback;
+    }
+
+    /**
+     * Gets a fresh read-only view of the encoded line. Views share the underlying bytes but have
+     * their own position, so every recipient can write its view independently.
+     *
+     * @return A read-only buffer positioned at the start of the line
+     */
+    public ByteBuffer buffer() {
+        return buffer(WireFormat.TEXT);
+    }
+
+    /**
+     * Gets a fresh read-only view of the message encoded for a wire format.
+     *
+     * @param format The recipient's wire format
+     * @return A read-only buffer positioned at the start of the encoded message
+     */
+    public ByteBuffer buffer(WireFormat format) {
+        return ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the encoded line to a stream.
+     *
+     * @param out The stream to write to
+     * @throws IOException If writing fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, WireFormat.TEXT);
+    }
+
+    /**
+     * Writes the message encoded for a wire format to a stream.
+     *
+     * @param out The stream to write to
+     * @param format The recipient's wire format
+     * @throws IOException If writing fails
+     */
+    public void writeTo(OutputStream out, WireFormat format) throws IOException {
+        out.write(bytes(format));
+    }
+
+    /**
+     * Gets the size of the encoded line in bytes, including the terminator.
+     *
+     * @return The encoded length
+     */
+    public int encodedLength() {
+        return line.length;
+    }
+
+    /**
+     * Gets the size of the message encoded for a wire format.
+     *
+     * @param format The recipient's wire format
+     * @return The encoded length in bytes
+     */
+    public int encodedLength(WireFormat format) {
+        return bytes(format).length;
+    }
+
+    private byte[] bytes(WireFormat format) {
+        if (format == WireFormat.TEXT || line.length == 0) {
+            return line;
+        }
+        if (format == WireFormat.BINARY_DEFLATE) {
+            byte[] compressed = compressedFrame;
+            if (compressed == null) {
+                compressed = DeflateCodec.encodeMessage(line, 0, line.length - 1, 0);
+                compressedFrame = compressed;
+            }
+            return compressed;
+        }
+        byte[] encoded = frame;
+        if (encoded == null) {
+            encoded = FrameCodec.encode(FrameType.MESSAGE, 0, line, 0, line.length - 1);
+            frame = encoded;
+        }
+        return encoded;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,138 @@
+package chat.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of messages waiting to be written to one client.
+ * <p>
+ * Any thread may {@link #offer(OutboundMessage, boolean)} messages; a single writer (the connection's
+ * writer thread or its event loop) drains them. When the queue is full the configured
+ * {@link SlowConsumerPolicy} decides whether an old message is dropped, the sender waits,
+ * or the client has to be disconnected.
+ * </p>
+ */
+final class OutboundQueue {
+    private final ArrayBlockingQueue<OutboundMessage> queue;
+    private final SlowConsumerPolicy policy;
+    private final long blockTimeoutMillis;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong totalDroppedMessages;
+
+    /**
+     * @param capacity The maximum number of queued messages
+     * @param policy What to do when the queue is full
+     * @param blockTimeoutMillis How long a sender may wait for room under {@link SlowConsumerPolicy#BLOCK}
+     * @param totalDroppedMessages Server-wide drop counter, incremented together with this queue's own
+     */
+    OutboundQueue(int capacity, SlowConsumerPolicy policy, long blockTimeoutMillis, AtomicLong totalDroppedMessages) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.totalDroppedMessages = totalDroppedMessages;
+    }
+
+    /**
+     * Enqueues a message according to the slow-consumer policy.
+     *
+     * @param message The message to queue
+     * @param mayBlock Whether the caller is allowed to wait for room; event-loop threads pass false
+     *                 because waiting there could wait on themselves
+     * @return true if the message was queued, false if the client must be disconnected
+     */
+    boolean offer(OutboundMessage message, boolean mayBlock) {
+        if (queue.offer(message)) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    if (queue.poll() != null) {
+                        countDrop();
+                    }
+                }
+                return true;
+            case BLOCK:
+                if (mayBlock) {
+                    try {
+                        if (queue.offer(message, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            return true;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                countDrop();
+                return false;
+            case DISCONNECT:
+            default:
+                countDrop();
+                return false;
+        }
+    }
+
+    /**
+     * Enqueues a message only if there is room, leaving the slow-consumer policy out of it.
+     * For messages that are pointless once the queue is full, such as heartbeats.
+     *
+     * @param message The message to queue
+     * @return true if the message was queued
+     */
+    boolean offerIfRoom(OutboundMessage message) {
+        return queue.offer(message);
+    }
+
+    private void countDrop() {
+        droppedMessages.incrementAndGet();
+        totalDroppedMessages.incrementAndGet();
+    }
+
+    /**
+     * Removes the next message, waiting for one to arrive if necessary.
+     *
+     * @return The next message
+     * @throws InterruptedException If the writer is interrupted while waiting
+     */
+    OutboundMessage take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Removes the next message without waiting.
+     *
+     * @return The next message, or null if the queue is empty
+     */
+    OutboundMessage poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Removes the next message, waiting up to the given time for one to arrive.
+     *
+     * @param timeout How long to wait
+     * @param unit The unit of the timeout argument
+     * @return The next message, or null if none arrived in time
+     * @throws InterruptedException If the writer is interrupted while waiting
+     */
+    OutboundMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the number of messages this client never received because its queue was full.
+     *
+     * @return The dropped message count
+     */
+    long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+}
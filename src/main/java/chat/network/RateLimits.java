@@ -0,0 +1,48 @@
+package chat.network;
+
+import chat.util.TokenBucket;
+
+/**
+ * The two rate limit budgets of one connection or one user: chat lines, which fan out to other
+ * clients, and commands such as {@code //online}, which only cost the server work. Private
+ * messages fan out too, so they count as chat.
+ */
+final class RateLimits {
+    private final TokenBucket chat;
+    private final TokenBucket commands;
+
+    private RateLimits(TokenBucket chat, TokenBucket commands) {
+        this.chat = chat;
+        this.commands = commands;
+    }
+
+    static RateLimits perConnection(ServerConfig config) {
+        return new RateLimits(new TokenBucket(config.getChatRatePerSecond(), config.getChatBurst()),
+                new TokenBucket(config.getCommandRatePerSecond(), config.getCommandBurst()));
+    }
+
+    static RateLimits perUser(ServerConfig config) {
+        return new RateLimits(new TokenBucket(config.getUserChatRatePerSecond(), config.getUserChatBurst()),
+                new TokenBucket(config.getUserCommandRatePerSecond(), config.getUserCommandBurst()));
+    }
+
+    /**
+     * Checks whether a line is a command rather than chat.
+     *
+     * @param line The line received from an authenticated client
+     * @return true for commands other than {@code //msg}
+     */
+    static boolean isCommand(String line) {
+        return line.startsWith("//") && !line.startsWith("//msg ");
+    }
+
+    /**
+     * Takes one permit from the matching budget.
+     *
+     * @param command true for a command, false for a chat line
+     * @return true if the line is within the limit
+     */
+    boolean tryAcquire(boolean command) {
+        return command ? commands.tryAcquire() : chat.tryAcquire();
+    }
+}
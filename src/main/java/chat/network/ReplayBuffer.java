@@ -0,0 +1,87 @@
+package chat.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The most recent sequenced messages of one room, kept so that a resumed session can be sent
+ * exactly the messages it missed while it was disconnected.
+ * <p>
+ * A fixed-size ring of already encoded messages: appending overwrites the oldest entry and never
+ * allocates, and a replay hands out the shared encoded messages without encoding them again.
+ * Not thread-safe; {@link ChatRoom} only touches it under its lock, which also keeps a replay
+ * in order with the room's live messages.
+ * </p>
+ */
+final class ReplayBuffer {
+    private final long[] sequences;
+    private final OutboundMessage[] messages;
+    private int next;  // Slot the next message goes into
+    private int count; // Slots in use
+    private long overwritten; // Sequence number of the newest message no longer kept, 0 if none
+
+    /**
+     * @param capacity The number of messages kept; must be positive
+     */
+    ReplayBuffer(int capacity) {
+        this.sequences = new long[capacity];
+        this.messages = new OutboundMessage[capacity];
+    }
+
+    /**
+     * Appends a message, overwriting the oldest one once the buffer is full.
+     *
+     * @param sequence The message's sequence number, greater than that of every message before it
+     * @param message The encoded message
+     */
+    void add(long sequence, OutboundMessage message) {
+        if (count == messages.length) {
+            overwritten = sequences[next];
+        }
+        sequences[next] = sequence;
+        messages[next] = message;
+        next = (next + 1) % messages.length;
+        if (count < messages.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Gets the messages after a sequence number, oldest first.
+     *
+     * @param sequence The last sequence number the recipient has seen
+     * @return The messages it has not seen that are still kept
+     */
+    List<OutboundMessage> after(long sequence) {
+        if (count == 0 || sequences[newest()] <= sequence) {
+            return Collections.emptyList();
+        }
+        List<OutboundMessage> missed = new ArrayList<>();
+        for (int i = count; i > 0; i--) {
+            int slot = (next - i + messages.length) % messages.length;
+            if (sequences[slot] > sequence) {
+                missed.add(messages[slot]);
+            }
+        }
+        return missed;
+    }
+
+    /**
+     * Checks whether every message after a sequence number is still kept.
+     *
+     * @param sequence The last sequence number the recipient has seen
+     * @return false if some of the messages after it have been overwritten
+     */
+    boolean covers(long sequence) {
+        return overwritten <= sequence;
+    }
+
+    private int newest() {
+        return (next - 1 + messages.length) % messages.length;
+    }
+
+    int size() {
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+package chat.network;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions that have lost their connection but may still be resumed with their token.
+ * <p>
+ * A resumable session gets a random token at LOGIN. When its connection closes, the session's
+ * rooms and what it had seen of them are parked here for {@code windowMillis}; a new connection
+ * that presents the token within that time takes the session over without a password check.
+ * Only sessions without a connection are kept, so a token can never take over a live session,
+ * and each token works once: resuming issues a new one.
+ * </p>
+ * <p>
+ * Sessions are kept in the order they were parked, which is also the order they expire in, so
+ * expired ones are dropped from the front without scanning the rest. At most {@code maxSessions}
+ * are kept; beyond that the oldest is dropped early.
+ * </p>
+ */
+final class ResumeSessions {
+    private static final int TOKEN_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long windowMillis;
+    private final int maxSessions;
+    private final LinkedHashMap<String, Parked> parked = new LinkedHashMap<>();
+    private final LongAdder resumed = new LongAdder();
+
+    /**
+     * @param windowMillis How long a session can be resumed after its connection closed
+     * @param maxSessions The most sessions kept at once
+     */
+    ResumeSessions(long windowMillis, int maxSessions) {
+        this.windowMillis = windowMillis;
+        this.maxSessions = Math.max(1, maxSessions);
+    }
+
+    /**
+     * Generates a token for a resumable session.
+     *
+     * @return The token, encoded for the wire
+     */
+    static String newToken() {
+        byte[] token = new byte[TOKEN_LENGTH];
+        RANDOM.nextBytes(token);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    /**
+     * Parks a session whose connection has closed.
+     *
+     * @param token The session's token
+     * @param username The user the session belongs to
+     * @param rooms The session's rooms, each with the sequence number of the room's newest message
+     *              when the connection closed
+     * @param activeRoom The room its chat lines went to, or null
+     * @param nowMillis The current time
+     */
+    synchronized void park(String token, String username, Map<String, Long> rooms, String activeRoom, long nowMillis) {
+        expire(nowMillis);
+        while (parked.size() >= maxSessions) {
+            Iterator<String> oldest = parked.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        parked.put(token, new Parked(username, rooms, activeRoom, nowMillis + windowMillis));
+    }
+
+    /**
+     * Takes a parked session over. The token is used up either way.
+     *
+     * @param token The token the client presented
+     * @param nowMillis The current time
+     * @return The session, or null if the token is unknown or has expired
+     */
+    synchronized Parked take(String token, long nowMillis) {
+        expire(nowMillis);
+        Parked session = parked.remove(token);
+        if (session != null) {
+            resumed.increment();
+        }
+        return session;
+    }
+
+    private void expire(long nowMillis) {
+        Iterator<Parked> sessions = parked.values().iterator();
+        while (sessions.hasNext() && sessions.next().expiresAt <= nowMillis) {
+            sessions.remove();
+        }
+    }
+
+    synchronized int size() {
+        return parked.size();
+    }
+
+    long getResumedCount() {
+        return resumed.sum();
+    }
+
+    /**
+     * A session waiting to be resumed.
+     */
+    static final class Parked {
+        final String username;
+        final Map<String, Long> rooms;
+        final String activeRoom;
+        final long expiresAt;
+
+        Parked(String username, Map<String, Long> rooms, String activeRoom, long expiresAt) {
+            this.username = username;
+            this.rooms = Collections.unmodifiableMap(rooms);
+            this.activeRoom = activeRoom;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,63 +1,506 @@
 package chat.network;
 
+import chat.auth.AccountManager;
+import chat.cluster.ClusterNode;
+import chat.cluster.LocalDelivery;
+import chat.controller.DatabaseConnection;
+import chat.controller.MessageArchive;
+import chat.controller.OfflineMessageStore;
+import chat.journal.JournalConfig;
+import chat.journal.JournalRecord;
+import chat.journal.MessageJournal;
+import chat.journal.SearchIndex;
+import chat.util.NotificationSound;
+import chat.util.SoundType;
+import chat.util.TimerWheel;
+import chat.util.TlsContexts;
 import lombok.Getter;
 import lombok.Setter;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Server class for the P2P Chat application.
  * This class handles the server-side operations, including accepting client connections
  * and broadcasting messages to connected clients.
+ * <p>
+ * Connections are served either by one {@link ClientHandler} thread each or by the
+ * selector-based {@link NioServerEngine}, depending on {@link ServerConfig#getMode()}.
+ * </p>
+ * <p>
+ * With {@link ServerConfig#isTlsEnabled()} every connection is TLS. Handshakes run on a small
+ * bounded pool, and the server's session cache lets reconnecting clients resume their session
+ * instead of repeating the full key exchange.
+ * </p>
+ * <p>
+ * With {@link ServerConfig#getClusterNodeId()} set, the server is one node of a cluster: room
+ * messages, server-wide notices and private messages are relayed through a {@link ClusterNode}
+ * to users on the other nodes, and {@code //online} lists the users of the whole cluster.
+ * </p>
+ * <p>
+ * Rooms number their messages and keep the most recent ones, so a client that lost its
+ * connection can resume its session with a token instead of logging in again and is sent only
+ * what it missed, see {@link ServerConfig#getResumeBufferSize()}.
+ * </p>
  */
 public class Server {
+    private static final int HANDSHAKE_QUEUE_CAPACITY = 1024;
+    private static final long ACCEPT_RETRY_DELAY_MILLIS = 50;
     @Getter
     @Setter
     private String welcomeMessage  = "Welcome to the P2P chat!";
-    private ServerSocket serverSocket;
+    private volatile ServerSocket serverSocket;
+    // Copy-on-write, so iterating it never blocks logins, logouts or other broadcasts
+    private final List<ClientSession> clients = new CopyOnWriteArrayList<>();
+    // Username -> that user's sessions (almost always exactly one), for constant-time lookup
+    private final ConcurrentMap<String, ClientSession[]> clientsByName = new ConcurrentHashMap<>();
+    // Room name -> room; empty rooms other than the default room are dropped
+    private final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final AtomicLong roomSequences = new AtomicLong(); // Numbers room messages for session resume
+    private final ResumeSessions resumeSessions;
     /**
      * -- GETTER --
-     *  Gets the list of connected clients.
+     *  Gets the journal room messages are persisted to.
+     *  Null unless a journal directory is configured and {@link #start(int)} has opened it.
      */
     @Getter
-    private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+    private volatile MessageJournal journal;
+    /**
+     * -- GETTER --
+     *  Gets the index {@code //search} runs on.
+     *  Null unless search is enabled and the journal is open.
+     */
+    @Getter
+    private volatile SearchIndex searchIndex;
+    // Both null unless offline delivery is enabled
+    private volatile OfflineMessageStore offlineStore;
+    private volatile ExecutorService offlineDeliveryExecutor;
+    /**
+     * -- GETTER --
+     *  Gets the archive room messages are written to.
+     *  Null unless archiving is enabled.
+     */
+    @Getter
+    private volatile MessageArchive archive;
+    // Users known to have an account, so that //msg to them while offline needs no lookup
+    private final Set<String> knownAccounts = ConcurrentHashMap.newKeySet();
+    private static final int KNOWN_ACCOUNTS_CAPACITY = 10_000;
+    private static final DateTimeFormatter OFFLINE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    @Getter
+    private final ServerConfig config;
+    private AccountManager accountManager;
+    private volatile NioServerEngine nioEngine;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private ExecutorService soundExecutor;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong slowConsumerDisconnects = new AtomicLong();
+    private final LongAdder socketWrites = new LongAdder(); // Hit by every writer, so striped
+    private final LongAdder throttledLines = new LongAdder();
+    private final LongAdder reapedConnections = new LongAdder();
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final AdmissionController admission;
+    // Both null unless TLS is enabled
+    private volatile SSLContext tlsContext;
+    private volatile ThreadPoolExecutor handshakeExecutor;
+    private final LongAdder tlsHandshakes = new LongAdder();
+    private final LongAdder resumedTlsHandshakes = new LongAdder();
+    // One wheel runs every connection's heartbeat and idle timeout; null when both are disabled
+    private volatile TimerWheel idleTimers;
+    // Username -> that user's rate limits, shared by all their sessions. Kept after logout so that
+    // reconnecting does not refill the budget; bounded by the number of accounts.
+    private final ConcurrentMap<String, RateLimits> userRateLimits = new ConcurrentHashMap<>();
+    /**
+     * -- GETTER --
+     *  Gets this server's link to the rest of its cluster.
+     *  Null for a standalone server or before {@link #start(int)} has started it.
+     */
+    @Getter
+    private volatile ClusterNode cluster;
+
+    /**
+     * Creates a server with the default configuration.
+     */
+    public Server() {
+        this(new ServerConfig());
+    }
+
+    /**
+     * Creates a server with the given configuration.
+     *
+     * @param config The server configuration
+     */
+    public Server(ServerConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * Creates a server with the given configuration and account manager.
+     *
+     * @param config The server configuration
+     * @param accountManager The account manager shared by all client handlers,
+     *                       or null to create one on first use
+     */
+    public Server(ServerConfig config, AccountManager accountManager) {
+        this.config = config;
+        this.accountManager = accountManager;
+        this.admission = new AdmissionController(config.getMaxUnauthenticatedConnections());
+        this.resumeSessions = new ResumeSessions(config.getResumeWindowMillis(), config.getResumeMaxSessions());
+    }
 
     /**
      * Starts the server on the specified port.
-     * This method enters an infinite loop waiting for client connections.
+     * This method enters an infinite loop waiting for client connections
+     * and only returns once the server has been stopped.
      *
      * @param port The port number to start the server on
      * @throws IOException If an I/O error occurs when opening the server socket
      */
 
     public void start(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        System.out.println("Server started on port: " + port + ", Waiting for clients...");
+        startJournal();
+        startOfflineDelivery();
+        startArchive();
+        startTls();
+        startIdleTimers();
+        startCluster();
+        int acceptors = Math.max(1, config.getAcceptorThreads());
+        if (config.getMode() == ServerMode.NIO) {
+            NioServerEngine engine = new NioServerEngine(this, config);
+            engine.bind(port);
+            nioEngine = engine;
+            System.out.println("Server started on port: " + engine.getPort() + " (NIO, "
+                    + config.getEventLoopThreads() + " event loops, " + acceptors + " acceptors"
+                    + (tlsContext != null ? ", TLS" : "") + "), Waiting for clients...");
+            started.countDown();
+            runAcceptors(acceptors, engine::acceptLoop);
+            return;
+        }
+
+        serverSocket = new ServerSocket(port, config.getAcceptBacklog());
+        System.out.println("Server started on port: " + serverSocket.getLocalPort() + " (" + acceptors
+                + " acceptors" + (tlsContext != null ? ", TLS" : "") + "), Waiting for clients...");
+        started.countDown();
+        ServerSocket listener = serverSocket;
+        runAcceptors(acceptors, () -> acceptLoop(listener));
+    }
+
+    private interface AcceptLoop {
+        void run() throws IOException;
+    }
+
+    // Runs the loop on extra daemon threads and on the calling thread, which returns once the listener closes
+    private static void runAcceptors(int acceptors, AcceptLoop loop) throws IOException {
+        for (int i = 1; i < acceptors; i++) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    loop.run();
+                } catch (IOException e) {
+                    System.err.println("Server: Acceptor failed: " + e.getMessage());
+                }
+            }, "acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        loop.run();
+    }
+
+    // Several threads may run this on the same listener; the OS hands each connection to one of them
+    private void acceptLoop(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            Socket clientSocket;
+            try {
+                clientSocket = listener.accept();
+            } catch (IOException e) {
+                if (listener.isClosed()) {
+                    break; // stop() was called
+                }
+                // Typically "Too many open files": keep serving existing clients and retry shortly
+                System.err.println("Server: Accept failed: " + e.getMessage());
+                pauseAfterAcceptFailure();
+                continue;
+            }
+            if (!admission.tryAdmit()) {
+                admission.reject(clientSocket, tlsContext == null);
+                continue;
+            }
+            try {
+                clientSocket.setTcpNoDelay(config.isTcpNoDelay());
+            } catch (IOException e) {
+                // Reset by the client before it was served
+                admission.release();
+                closeQuietly(clientSocket);
+                continue;
+            }
+            if (tlsContext != null) {
+                handshakeThenServe(clientSocket);
+            } else {
+                serve(clientSocket);
+            }
+        }
+    }
 
+    // An interrupt only cuts the pause short: stop() is what ends accepting
+    private static void pauseAfterAcceptFailure() {
+        try {
+            Thread.sleep(ACCEPT_RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            // Keep accepting
+        }
+    }
+
+    private void serve(Socket clientSocket) {
+        ClientHandler clientHandler = new ClientHandler(clientSocket, this);
+        clientHandler.holdAdmission(admission);
+        new Thread(clientHandler).start();
+    }
+
+    // The handshake runs on the pool rather than the acceptor, and the connection only gets its
+    // handler threads once it has completed
+    private void handshakeThenServe(Socket clientSocket) {
+        try {
+            handshakeExecutor.execute(() -> {
+                long startedAt = System.currentTimeMillis();
+                try {
+                    SSLSocket tlsSocket = (SSLSocket) tlsContext.getSocketFactory().createSocket(clientSocket,
+                            clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort(), true);
+                    tlsSocket.setUseClientMode(false);
+                    tlsSocket.setSoTimeout(config.getTlsHandshakeTimeoutMillis());
+                    tlsSocket.startHandshake();
+                    tlsSocket.setSoTimeout(0);
+                    tlsHandshakeFinished(tlsSocket.getSession().getCreationTime() < startedAt);
+                    serve(tlsSocket);
+                } catch (IOException e) {
+                    admission.release();
+                    closeQuietly(clientSocket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            closeQuietly(clientSocket);
+        }
+    }
 
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("New client connected: " + clientSocket.getInetAddress());
-            ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-            new Thread(clientHandler).start();
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Never served, nothing to clean up
         }
     }
 
+    private void startTls() throws IOException {
+        if (!config.isTlsEnabled()) {
+            return;
+        }
+        if (config.getTlsKeyStore() == null) {
+            throw new IOException("TLS is enabled but no key store is configured (server.tls.keyStore)");
+        }
+        char[] password = config.getTlsKeyStorePassword().toCharArray();
+        try {
+            tlsContext = TlsContexts.serverContext(
+                    TlsContexts.loadKeyStore(config.getTlsKeyStore(), password, config.getTlsKeyStoreType()),
+                    password, config.getTlsSessionCacheSize(), config.getTlsSessionTimeoutSeconds());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use the TLS key store " + config.getTlsKeyStore() + ": " + e.getMessage(), e);
+        }
+        int threads = Math.max(1, config.getTlsHandshakeThreads());
+        AtomicInteger threadIds = new AtomicInteger();
+        handshakeExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(HANDSHAKE_QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "tls-handshake-" + threadIds.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Creates the engine for a new TLS connection of the NIO engine.
+     *
+     * @return A server-mode engine, or null if TLS is disabled
+     */
+    SSLEngine newTlsEngine() {
+        SSLContext context = tlsContext;
+        if (context == null) {
+            return null;
+        }
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    ThreadPoolExecutor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    void tlsHandshakeFinished(boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            resumedTlsHandshakes.increment();
+        }
+    }
+
+    private void startJournal() throws IOException {
+        JournalConfig journalConfig = config.getJournal();
+        if (journalConfig == null || !journalConfig.isEnabled()) {
+            return;
+        }
+        MessageJournal opened = MessageJournal.open(journalConfig);
+        journal = opened; // Before restoring, so that the rooms it creates persist their new messages
+        boolean restoreHistory = config.getHistoryBytesPerRoom() > 0;
+        SearchIndex index = config.isSearchEnabled() ? new SearchIndex() : null;
+        if (!restoreHistory && index == null) {
+            return;
+        }
+        long[] restored = new long[1];
+        // One pass rebuilds both. Only the newest messages of each room fit its history; older ones are overwritten as they come
+        opened.replay(opened.getFirstSequence(), record -> {
+            if (restoreHistory) {
+                rooms.computeIfAbsent(record.getRoom(), this::newRoom).remember(record.getMessage());
+            }
+            if (index != null) {
+                index.add(record.getSequence(), record.getRoom(), record.getMessage());
+            }
+            restored[0]++;
+        });
+        opened.setSearchIndex(index);
+        searchIndex = index;
+        System.out.println("Server: Restored " + restored[0] + " messages from the journal in "
+                + opened.getSegmentCount() + " segments" + (index != null ? ", " + index.getTermCount()
+                + " search terms." : "."));
+    }
+
+    private void startOfflineDelivery() {
+        OfflineMessageStore store = offlineStore;
+        if (store == null) {
+            if (!config.isOfflineDeliveryEnabled()) {
+                return;
+            }
+            store = new OfflineMessageStore(DatabaseConnection::getConnection, config.getOfflineQueueCapacity(),
+                    config.getOfflineBatchSize(), config.getOfflineBatchDelayMillis(), config.getOfflinePageSize());
+            store.initDatabase();
+            offlineStore = store;
+        }
+        AtomicInteger threadIds = new AtomicInteger();
+        offlineDeliveryExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "offline-delivery-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Uses the given store for offline delivery instead of one on the configured database.
+     * Must be called before {@link #start(int)}.
+     *
+     * @param store The store
+     */
+    void setOfflineStore(OfflineMessageStore store) {
+        this.offlineStore = store;
+    }
+
+    private void startArchive() {
+        if (archive != null || !config.isArchiveEnabled()) {
+            return;
+        }
+        MessageArchive created = new MessageArchive(DatabaseConnection::getConnection, config.getArchiveQueueCapacity(),
+                config.getArchiveBatchSize(), config.getArchiveBatchDelayMillis(), config.getArchiveBlockTimeoutMillis(),
+                config.isArchiveUseCopy());
+        created.initDatabase();
+        archive = created;
+    }
+
+    /**
+     * Uses the given archive instead of one on the configured database.
+     * Must be called before {@link #start(int)}.
+     *
+     * @param archive The archive
+     */
+    void setArchive(MessageArchive archive) {
+        this.archive = archive;
+    }
+
+    private void startIdleTimers() {
+        if (config.getHeartbeatIntervalMillis() <= 0 && config.getIdleTimeoutMillis() <= 0) {
+            return;
+        }
+        long longest = Math.max(config.getHeartbeatIntervalMillis(), config.getIdleTimeoutMillis());
+        // Enough buckets that one turn covers the longest delay, so timeouts rarely wait extra rounds
+        int wheelSize = (int) Math.min(4096, longest / config.getIdleTimerTickMillis() + 1);
+        idleTimers = new TimerWheel(config.getIdleTimerTickMillis(), TimeUnit.MILLISECONDS, wheelSize, "idle-timer");
+    }
+
+    private void startCluster() throws IOException {
+        String nodeId = config.getClusterNodeId();
+        if (nodeId == null || nodeId.isEmpty()) {
+            return;
+        }
+        if (config.getClusterSecret() == null) {
+            throw new IOException("Cluster mode is enabled but no cluster secret is configured (server.cluster.secret)");
+        }
+        ClusterNode node = new ClusterNode(nodeId, config.getClusterSecret(), new ClusterDelivery());
+        node.start(config.getClusterBindAddress(), config.getClusterPort(), ClusterNode.parsePeers(config.getClusterPeers()));
+        cluster = node;
+    }
+
+    /**
+     * Waits until {@link #start(int)} has bound its listening socket.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout argument
+     * @return true if the server is listening, false if the timeout elapsed first
+     * @throws InterruptedException If the current thread is interrupted while waiting
+     */
+    public boolean awaitStartup(long timeout, TimeUnit unit) throws InterruptedException {
+        return started.await(timeout, unit);
+    }
+
     /**
      * Broadcasts a message to all connected clients except the sender.
+     * The message is encoded once and the same bytes are enqueued on each recipient's
+     * outbound queue, so a slow recipient cannot hold up the others.
      *
      * @param message The message to broadcast
      * @param sender The client who sent the message (will not receive the broadcast)
      */
-    public void broadcastMessage(String message, ClientHandler sender) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client != sender) { // Don't send the message back to the sender
-                    client.sendMessage(message);
-                }
+    public void broadcastMessage(String message, ClientSession sender) {
+        deliverToAll(message, sender);
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishToAll(message);
+        }
+    }
+
+    private void deliverToAll(String message, ClientSession sender) {
+        OutboundMessage encoded = OutboundMessage.of(message);
+        for (ClientSession client : clients) { // Iterates a snapshot, no lock held
+            if (client != sender) { // Don't send the message back to the sender
+                client.send(encoded);
             }
         }
     }
@@ -68,8 +511,19 @@ public class Server {
      * @param clientHandler The client handler to remove
      *
      */
-    public void removeClient(ClientHandler clientHandler) {
+    public void removeClient(ClientSession clientHandler) {
         clients.remove(clientHandler);
+        String name = clientHandler.getClientName();
+        if (name != null) {
+            clientsByName.computeIfPresent(name, (key, sessions) -> {
+                ClientSession[] remaining = withoutSession(sessions, clientHandler);
+                ClusterNode node = cluster;
+                if (remaining == null && node != null) {
+                    node.userOffline(name); // Inside compute, so presence changes for a name go out in order
+                }
+                return remaining;
+            });
+        }
     }
 
     /**
@@ -77,23 +531,606 @@ public class Server {
      *
      * @param clientHandler The client handler to add
      */
-    public void addClient(ClientHandler clientHandler) {
+    public void addClient(ClientSession clientHandler) {
         clients.add(clientHandler);
+        String name = clientHandler.getClientName();
+        if (name != null && !name.isEmpty()) {
+            accountKnown(name);
+            clientsByName.compute(name, (key, sessions) -> {
+                if (sessions != null) {
+                    return withSession(sessions, clientHandler);
+                }
+                ClusterNode node = cluster;
+                if (node != null) {
+                    node.userOnline(name);
+                }
+                return new ClientSession[]{clientHandler};
+            });
+        }
     }
 
+    /**
+     * Looks up a connected user by name in constant time.
+     *
+     * @param username The username to look up
+     * @return The user's most recent session, or null if the user is not online
+     */
+    public ClientSession getClient(String username) {
+        ClientSession[] sessions = clientsByName.get(username);
+        return sessions == null ? null : sessions[sessions.length - 1];
+    }
+
+    /**
+     * Delivers a message to every session of one user, found through the username index
+     * rather than by scanning the client list. In a cluster, sessions on other nodes get it too.
+     *
+     * @param username The recipient's username
+     * @param message The message to deliver
+     * @return true if the user is online and the message was queued for them
+     */
+    public boolean sendToUser(String username, String message) {
+        boolean local = deliverToUser(username, message);
+        ClusterNode node = cluster;
+        return node != null && node.publishToUser(username, message) || local;
+    }
+
+    private boolean deliverToUser(String username, String message) {
+        ClientSession[] sessions = clientsByName.get(username);
+        if (sessions == null) {
+            return false;
+        }
+        OutboundMessage encoded = OutboundMessage.of(message);
+        for (ClientSession session : sessions) {
+            session.send(encoded);
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a user has a session on this server or, in a cluster, on another node.
+     *
+     * @param username The username
+     * @return true if the user is online
+     */
+    public boolean isUserOnline(String username) {
+        if (clientsByName.containsKey(username)) {
+            return true;
+        }
+        ClusterNode node = cluster;
+        return node != null && node.getRemoteUserNames().contains(username);
+    }
+
+    /**
+     * Keeps a message for a user who is not connected, to be delivered at their next login.
+     *
+     * @param username The recipient
+     * @param message The message
+     * @return false if offline delivery is disabled or the message could not be kept
+     */
+    public boolean storeOffline(String username, String message) {
+        OfflineMessageStore store = offlineStore;
+        return store != null && store.store(username, message);
+    }
+
+    /**
+     * Writes a room message to the archive, if there is one. On an event-loop thread a full archive
+     * queue drops the message instead of waiting for room.
+     *
+     * @param roomName The room
+     * @param sender The sender's username
+     * @param message The message as the sender typed it
+     */
+    public void archiveMessage(String roomName, String sender, String message) {
+        MessageArchive opened = archive;
+        if (opened != null) {
+            opened.archive(roomName, sender, message, !NioEventLoop.isEventLoopThread());
+        }
+    }
+
+    /**
+     * Keeps a private message for a user who is not connected, once it is certain that the user
+     * has an account; a message for a mistyped name would otherwise be confirmed and never
+     * delivered. Users who have logged in since the server started are known to have one; anybody
+     * else is looked up on a delivery thread, so the caller never waits for the database.
+     *
+     * @param username The recipient
+     * @param message The message
+     * @param done Told whether the message was kept: false if offline delivery is disabled, there
+     *             is no such account, or the message could not be kept. Runs on the calling thread
+     *             or on a delivery thread.
+     */
+    void storeOfflineForAccount(String username, String message, Consumer<Boolean> done) {
+        OfflineMessageStore store = offlineStore;
+        ExecutorService executor = offlineDeliveryExecutor;
+        if (store == null || executor == null) {
+            done.accept(false);
+            return;
+        }
+        if (knownAccounts.contains(username)) {
+            done.accept(store.store(username, message));
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                boolean exists = getAccountManager().accountExists(username);
+                if (exists) {
+                    accountKnown(username);
+                }
+                done.accept(exists && store.store(username, message));
+            });
+        } catch (RejectedExecutionException e) {
+            done.accept(false); // Shutting down
+        }
+    }
+
+    private void accountKnown(String username) {
+        if (knownAccounts.size() >= KNOWN_ACCOUNTS_CAPACITY) {
+            knownAccounts.clear(); // Rarely; the cache only saves lookups
+        }
+        knownAccounts.add(username);
+    }
+
+    /**
+     * Sends a client that has just logged in the messages kept for it while it was offline. Pages
+     * are read on a delivery thread and queued for the client at once; a page is deleted, and the
+     * next one read, only once the client's writer reports it written. No delivery thread waits
+     * for a slow client meanwhile, and a page cut short by a disconnect or a queue overflow stays
+     * stored for the next login.
+     *
+     * @param client The client
+     */
+    void deliverOffline(ClientSession client) {
+        OfflineMessageStore store = offlineStore;
+        ExecutorService executor = offlineDeliveryExecutor;
+        if (store == null || executor == null) {
+            return;
+        }
+        int pageLimit = Math.max(1, config.getOutboundQueueCapacity() / 2); // Leaves room for live traffic
+        deliverOfflinePage(client, store, executor, pageLimit, 0, 0);
+    }
+
+    private void deliverOfflinePage(ClientSession client, OfflineMessageStore store, ExecutorService executor,
+                                    int pageLimit, long afterId, int delivered) {
+        String username = client.getClientName();
+        try {
+            executor.execute(() -> {
+                if (client.isClosed()) {
+                    return;
+                }
+                OfflineMessageStore.Page page;
+                try {
+                    page = store.nextPage(username, afterId, pageLimit);
+                } catch (SQLException e) {
+                    System.err.println("Error reading offline messages for '" + username + "': " + e.getMessage());
+                    return;
+                }
+                if (page.isEmpty()) {
+                    if (delivered > 0) {
+                        client.sendMessage("OFFLINE_END:" + delivered + " messages arrived while you were offline.");
+                    }
+                    return;
+                }
+                long droppedBefore = client.getOutbound().getDroppedMessages();
+                for (int i = 0; i < page.size(); i++) {
+                    client.sendMessage("[" + OFFLINE_TIME.format(Instant.ofEpochMilli(page.getCreatedMillis(i))) + "] "
+                            + page.getMessage(i));
+                }
+                client.whenWritten(() -> {
+                    if (client.getOutbound().getDroppedMessages() != droppedBefore) {
+                        return; // Some of the page may have been dropped; keep it for the next login
+                    }
+                    try {
+                        executor.execute(() -> {
+                            try {
+                                store.acknowledge(username, page.getLastId());
+                            } catch (SQLException e) {
+                                System.err.println("Error deleting delivered offline messages for '" + username
+                                        + "': " + e.getMessage());
+                                return;
+                            }
+                            deliverOfflinePage(client, store, executor, pageLimit, page.getLastId(),
+                                    delivered + page.size());
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // Server is shutting down; the page stays stored
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down; the messages stay stored
+        }
+    }
+
+    /**
+     * Gets the connected clients of every engine.
+     * Copy-on-write, so iterating it never blocks logins, logouts or other broadcasts.
+     *
+     * @return The live list of sessions
+     */
+    public List<ClientSession> getSessions() {
+        return clients;
+    }
+
+    /**
+     * Gets the connected clients that have a {@link ClientHandler} thread of their own. That is
+     * every client of the blocking engine; event-loop sessions are only in {@link #getSessions()}.
+     *
+     * @return A snapshot of the blocking-engine sessions
+     */
+    public List<ClientHandler> getClients() {
+        List<ClientHandler> handlers = new ArrayList<>();
+        for (ClientSession session : clients) {
+            if (session instanceof ClientHandler) {
+                handlers.add((ClientHandler) session);
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * Lists the users online on this server, or on the whole cluster in cluster mode.
+     *
+     * @return The comma-separated usernames, or a notice if nobody is online
+     */
     public String getOnlineUserNames() {
-        synchronized (clients) { //  List<ClientHandler>
-            List<String> userNames = clients.stream()
-                    .map(ClientHandler::getClientName)
-                    .filter(Objects::nonNull)
-                    .filter(name -> !name.isEmpty())
-                    .distinct()
-                    .collect(Collectors.toList());
-
-            if (userNames.isEmpty()) {
-                return "No users online";
+        ClusterNode node = cluster;
+        Collection<String> names = clientsByName.keySet();
+        if (node != null) {
+            Set<String> clusterNames = new LinkedHashSet<>(names);
+            clusterNames.addAll(node.getRemoteUserNames());
+            names = clusterNames;
+        }
+        if (names.isEmpty()) {
+            return "No users online";
+        }
+        return String.join(", ", names);
+    }
+
+    /**
+     * Lists the users that accept direct connections, as published with {@code //p2p}.
+     *
+     * @return The comma-separated usernames, or "none"
+     */
+    public String getPeerDirectory() {
+        StringJoiner peers = new StringJoiner(", ");
+        for (Map.Entry<String, ClientSession[]> user : clientsByName.entrySet()) {
+            ClientSession[] sessions = user.getValue();
+            if (sessions[sessions.length - 1].getPeerEndpoint() != null) {
+                peers.add(user.getKey());
+            }
+        }
+        return peers.length() == 0 ? "none" : peers.toString();
+    }
+
+    private static ClientSession[] withSession(ClientSession[] sessions, ClientSession added) {
+        ClientSession[] result = Arrays.copyOf(sessions, sessions.length + 1);
+        result[sessions.length] = added;
+        return result;
+    }
+
+    // Returns null once the last session is gone, which removes the map entry
+    private static ClientSession[] withoutSession(ClientSession[] sessions, ClientSession removed) {
+        ClientSession[] result = new ClientSession[sessions.length];
+        int count = 0;
+        for (ClientSession session : sessions) {
+            if (session != removed) {
+                result[count++] = session;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return count == sessions.length ? sessions : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist yet.
+     *
+     * @param roomName The room to join
+     * @param client The client joining
+     * @return true if the client was not in the room before
+     */
+    public boolean joinRoom(String roomName, ClientSession client) {
+        boolean[] joined = new boolean[1];
+        rooms.compute(roomName, (name, room) -> {
+            ChatRoom target = room != null ? room : newRoom(name);
+            joined[0] = target.add(client);
+            return target;
+        });
+        return joined[0];
+    }
+
+    /**
+     * Puts a resumed session back into a room and sends it the room's messages it missed.
+     *
+     * @param roomName The room the session was in
+     * @param client The resumed session
+     * @param lastSeen The sequence number of the last message of the room the session has seen
+     * @return false if some of the missed messages are no longer kept
+     */
+    boolean rejoinRoom(String roomName, ClientSession client, long lastSeen) {
+        boolean[] complete = new boolean[1];
+        rooms.compute(roomName, (name, room) -> {
+            ChatRoom target = room != null ? room : newRoom(name);
+            complete[0] = target.rejoin(client, lastSeen);
+            return target;
+        });
+        return complete[0];
+    }
+
+    private ChatRoom newRoom(String name) {
+        return new ChatRoom(name, roomSequences, config.getResumeBufferSize(), config.getHistoryBytesPerRoom(), journal);
+    }
+
+    /**
+     * Removes a client from a room. The room disappears once its last member has left,
+     * unless it is the default room.
+     *
+     * @param roomName The room to leave
+     * @param client The client leaving
+     * @return true if the client was in the room
+     */
+    public boolean leaveRoom(String roomName, ClientSession client) {
+        boolean[] left = new boolean[1];
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            left[0] = room.remove(client);
+            return room.isEmpty() && !name.equals(config.getDefaultRoom()) ? null : room;
+        });
+        return left[0];
+    }
+
+    /**
+     * Gets a room by name.
+     *
+     * @param roomName The room name
+     * @return The room, or null if it does not exist
+     */
+    public ChatRoom getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * Gets all current rooms.
+     *
+     * @return A read-only view of the rooms
+     */
+    public Collection<ChatRoom> getRooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    /**
+     * Broadcasts a message to the members of one room except the sender.
+     * Only that room's members are visited, so the cost scales with the room, not the server.
+     * In a cluster, the room's members on other nodes get it too.
+     *
+     * @param roomName The room to broadcast to
+     * @param message The message to broadcast
+     * @param sender The client who sent the message (will not receive the broadcast)
+     */
+    public void broadcastToRoom(String roomName, String message, ClientSession sender) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            room.broadcast(message, sender);
+        }
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishToRoom(roomName, message);
+        }
+    }
+
+    /**
+     * Finds the newest journalled room messages that contain every word of a query.
+     *
+     * @param query The words to look for
+     * @param roomName Only search this room, or null to search every room
+     * @param limit The most matches to return
+     * @return The matches, newest first; empty if search is not available
+     */
+    public List<JournalRecord> search(String query, String roomName, int limit) {
+        SearchIndex index = searchIndex;
+        MessageJournal opened = journal;
+        if (index == null || opened == null) {
+            return Collections.emptyList();
+        }
+        List<JournalRecord> matches = new ArrayList<>();
+        for (long sequence : index.search(query, roomName, limit)) {
+            JournalRecord record = opened.read(sequence);
+            if (record != null) { // Null if retention deleted it since the lookup
+                matches.add(record);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Gets the number of messages dropped across all clients because their outbound queue was full.
+     *
+     * @return The total dropped message count
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Gets the number of clients disconnected by the slow-consumer policy.
+     *
+     * @return The slow-consumer disconnect count
+     */
+    public long getSlowConsumerDisconnectCount() {
+        return slowConsumerDisconnects.get();
+    }
+
+    /**
+     * Gets the number of write calls made on client sockets, i.e. roughly the number of
+     * send syscalls. Compare it with the number of messages delivered to see how well
+     * write coalescing batches them.
+     *
+     * @return The total socket write count
+     */
+    public long getSocketWriteCount() {
+        return socketWrites.sum();
+    }
+
+    /**
+     * Gets the number of client lines dropped by rate limiting.
+     *
+     * @return The total throttled line count
+     */
+    public long getThrottledLineCount() {
+        return throttledLines.sum();
+    }
+
+    void lineThrottled() {
+        throttledLines.increment();
+    }
+
+    /**
+     * Gets the rate limits shared by all sessions of a user.
+     *
+     * @param username The authenticated username
+     * @return The user's limits, or null if rate limiting is disabled
+     */
+    RateLimits getUserRateLimits(String username) {
+        if (!config.isRateLimitEnabled()) {
+            return null;
+        }
+        return userRateLimits.computeIfAbsent(username, name -> RateLimits.perUser(config));
+    }
+
+    LongAdder getSocketWriteCounter() {
+        return socketWrites;
+    }
+
+    AtomicLong getDroppedMessageCounter() {
+        return droppedMessages;
+    }
+
+    void slowConsumerDisconnected() {
+        slowConsumerDisconnects.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of completed TLS handshakes, full and resumed.
+     *
+     * @return The handshake count
+     */
+    public long getTlsHandshakeCount() {
+        return tlsHandshakes.sum();
+    }
+
+    /**
+     * Gets the number of TLS handshakes that resumed an earlier session instead of a full key exchange.
+     *
+     * @return The resumed handshake count
+     */
+    public long getResumedTlsHandshakeCount() {
+        return resumedTlsHandshakes.sum();
+    }
+
+    /**
+     * Gets the number of connections turned away with a BUSY reply because too many
+     * connections had not logged in yet.
+     *
+     * @return The rejected connection count
+     */
+    public long getRejectedConnectionCount() {
+        return admission.getRejectedCount();
+    }
+
+    /**
+     * Gets the number of open connections that have not logged in yet.
+     *
+     * @return The unauthenticated connection count
+     */
+    public int getUnauthenticatedConnectionCount() {
+        return admission.getUnauthenticatedCount();
+    }
+
+    AdmissionController getAdmission() {
+        return admission;
+    }
+
+    ResumeSessions getResumeSessions() {
+        return resumeSessions;
+    }
+
+    /**
+     * Gets the number of sessions that were resumed with their token instead of a new LOGIN.
+     *
+     * @return The resumed session count
+     */
+    public long getResumedSessionCount() {
+        return resumeSessions.getResumedCount();
+    }
+
+    /**
+     * Gets the number of connections disconnected because the client stayed silent past
+     * {@link ServerConfig#getIdleTimeoutMillis()}.
+     *
+     * @return The reaped connection count
+     */
+    public long getReapedConnectionCount() {
+        return reapedConnections.sum();
+    }
+
+    /**
+     * Gets the number of PING heartbeats sent to idle clients.
+     *
+     * @return The heartbeat count
+     */
+    public long getHeartbeatCount() {
+        return heartbeatsSent.sum();
+    }
+
+    void connectionReaped() {
+        reapedConnections.increment();
+    }
+
+    void heartbeatSent() {
+        heartbeatsSent.increment();
+    }
+
+    TimerWheel getIdleTimers() {
+        return idleTimers;
+    }
+
+    /**
+     * Gets the account manager shared by all client handlers, creating it on first use.
+     *
+     * @return The account manager
+     */
+    public synchronized AccountManager getAccountManager() {
+        if (accountManager == null) {
+            accountManager = new AccountManager();
+        }
+        return accountManager;
+    }
+
+    /**
+     * Plays a notification sound without blocking the calling connection thread.
+     * Does nothing if sounds are disabled in the configuration.
+     *
+     * @param soundType The sound to play
+     */
+    void playNotification(SoundType soundType) {
+        if (!config.isSoundEnabled()) {
+            return;
+        }
+        ExecutorService executor;
+        synchronized (this) {
+            if (soundExecutor == null) {
+                soundExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "notification-sound");
+                    thread.setDaemon(true);
+                    return thread;
+                });
             }
-            return String.join(", ", userNames);
+            executor = soundExecutor;
+        }
+        try {
+            executor.execute(() -> new NotificationSound().playSound(soundType));
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down, the sound is not worth reporting
         }
     }
 
@@ -103,6 +1140,10 @@ public class Server {
      * @return The port number
      */
     public int getPort() {
+        NioServerEngine engine = nioEngine;
+        if (engine != null) {
+            return engine.getPort();
+        }
         return serverSocket.getLocalPort();
     }
 
@@ -112,8 +1153,71 @@ public class Server {
      * @throws IOException If an I/O error occurs when closing the server socket
      */
     public void stop() throws IOException {
+        TimerWheel timers = idleTimers;
+        if (timers != null) {
+            timers.close();
+        }
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.stop();
+        }
         if (serverSocket != null) {
             serverSocket.close();
         }
+        NioServerEngine engine = nioEngine;
+        if (engine != null) {
+            engine.stop();
+        }
+        ThreadPoolExecutor handshakes = handshakeExecutor;
+        if (handshakes != null) {
+            handshakes.shutdownNow();
+        }
+        synchronized (this) {
+            if (soundExecutor != null) {
+                soundExecutor.shutdownNow();
+            }
+        }
+        ExecutorService deliveries = offlineDeliveryExecutor;
+        if (deliveries != null) {
+            deliveries.shutdownNow();
+        }
+        OfflineMessageStore store = offlineStore;
+        if (store != null) {
+            store.close();
+        }
+        MessageArchive archived = archive;
+        if (archived != null) {
+            archived.close(); // Writes what is still queued
+        }
+        MessageJournal opened = journal;
+        if (opened != null) {
+            opened.close();
+        }
+    }
+
+    // Delivers messages relayed by other cluster nodes to this server's clients only
+    private final class ClusterDelivery implements LocalDelivery {
+        @Override
+        public void deliverToAll(String message) {
+            Server.this.deliverToAll(message, null);
+        }
+
+        @Override
+        public void deliverToRoom(String room, String message) {
+            ChatRoom target = rooms.get(room);
+            if (target != null) {
+                target.broadcast(message, null);
+            }
+        }
+
+        @Override
+        public void deliverToUser(String username, String message) {
+            Server.this.deliverToUser(username, message);
+        }
+
+        @Override
+        public Collection<String> localUserNames() {
+            return new ArrayList<>(clientsByName.keySet());
+        }
     }
 }
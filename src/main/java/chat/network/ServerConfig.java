@@ -0,0 +1,394 @@
+package chat.network;
+
+import chat.journal.Durability;
+import chat.journal.JournalConfig;
+import chat.protocol.DeflateCodec;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Tunable settings for the {@link Server}.
+ * Defaults are suitable for a small LAN deployment; {@link #load()} overrides them from
+ * an optional {@code /server.properties} resource on the classpath.
+ */
+@Getter
+@Setter
+public class ServerConfig {
+
+    /** Connection engine used by {@link Server#start(int)}. */
+    private ServerMode mode = ServerMode.BLOCKING;
+
+    /** Pending connections the OS queues for the listening socket before refusing new ones. */
+    private int acceptBacklog = 1024;
+
+    /** Threads accepting connections on the listening socket, in either mode. */
+    private int acceptorThreads = 2;
+
+    /**
+     * Connections that may be open without having logged in yet. Further connections get a BUSY
+     * reply and are closed right away; 0 admits everyone.
+     */
+    private int maxUnauthenticatedConnections = 1024;
+
+    /**
+     * Whether clients connect over TLS. The server then needs a key store with its certificate,
+     * see {@link #getTlsKeyStore()}.
+     */
+    private boolean tlsEnabled = false;
+
+    /** Path of the key store holding the server's private key and certificate chain. */
+    private String tlsKeyStore;
+
+    /** Password of the key store and of the key in it. */
+    private String tlsKeyStorePassword = "";
+
+    /** Type of the key store file, e.g. PKCS12 or JKS. */
+    private String tlsKeyStoreType = "PKCS12";
+
+    /** TLS sessions the server remembers so that reconnecting clients can skip the full handshake. */
+    private int tlsSessionCacheSize = 20_000;
+
+    /** How long a client may resume its TLS session instead of doing a full handshake. */
+    private int tlsSessionTimeoutSeconds = 3600;
+
+    /**
+     * Threads that run the CPU-heavy part of TLS handshakes, so that a reconnect storm cannot
+     * occupy the acceptors and event loops; further handshakes wait in a bounded queue.
+     */
+    private int tlsHandshakeThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** How long the blocking engine waits for a client to complete its TLS handshake. */
+    private int tlsHandshakeTimeoutMillis = 10_000;
+
+    /** Number of selector threads in {@link ServerMode#NIO} mode. */
+    private int eventLoopThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Worker threads that run blocking LOGIN/REGISTER database calls off the event loops. */
+    private int authWorkerThreads = 4;
+
+    /** Longest line (in bytes) the NIO engine accepts before dropping the connection. */
+    private int maxLineLength = 64 * 1024;
+
+    /** Room every client joins after logging in; chat lines go there until they join another one. */
+    private String defaultRoom = "general";
+
+    /**
+     * Messages each room keeps so that a client that reconnects can resume its session and be sent
+     * just the messages it missed, without logging in again. 0 disables session resume.
+     */
+    private int resumeBufferSize = 256;
+
+    /** How long after its connection closed a session can still be resumed. */
+    private long resumeWindowMillis = 120_000;
+
+    /** Most sessions waiting to be resumed at once; beyond that the oldest can no longer be resumed. */
+    private int resumeMaxSessions = 10_000;
+
+    /**
+     * Memory in bytes each room uses to keep its recent messages for {@code //history}. How many
+     * messages that is depends on their length; 0 disables history.
+     */
+    private int historyBytesPerRoom = 32 * 1024;
+
+    /**
+     * Where room messages are persisted, so that {@code //history} survives a restart. Disabled
+     * unless {@link JournalConfig#getDirectory()} is set.
+     */
+    private JournalConfig journal = new JournalConfig();
+
+    /** Whether journalled messages are indexed for {@code //search}; needs the journal. */
+    private boolean searchEnabled = true;
+
+    /** Most matches one {@code //search} returns. */
+    private int searchMaxResults = 10;
+
+    /**
+     * Whether private messages and {@code @mentions} for users who are not connected are stored
+     * in the database and delivered at their next login.
+     */
+    private boolean offlineDeliveryEnabled = true;
+
+    /** Most offline messages waiting to be stored at once; further ones are not kept. */
+    private int offlineQueueCapacity = 10_000;
+
+    /** Most offline messages stored with one insert. */
+    private int offlineBatchSize = 200;
+
+    /** Longest an offline message waits for others to share its insert. */
+    private long offlineBatchDelayMillis = 50;
+
+    /** Offline messages read from the database at a time while delivering them at login. */
+    private int offlinePageSize = 100;
+
+    /** Whether every room message is also written to the {@code chat_messages} table. */
+    private boolean archiveEnabled = false;
+
+    /** Most room messages waiting to be archived at once. */
+    private int archiveQueueCapacity = 10_000;
+
+    /** Most room messages written and committed together. */
+    private int archiveBatchSize = 500;
+
+    /** Longest a room message waits for others to share its batch. */
+    private long archiveBatchDelayMillis = 20;
+
+    /** Longest a sender waits for room in a full archive queue before the message is not archived. */
+    private long archiveBlockTimeoutMillis = 10;
+
+    /** Whether batches are written with PostgreSQL's COPY instead of batched inserts. */
+    private boolean archiveUseCopy = true;
+
+    /** Maximum number of messages queued for one client before the slow-consumer policy applies. */
+    private int outboundQueueCapacity = 1024;
+
+    /** What happens to messages for a client whose outbound queue is full. */
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    /** How long a sender waits for queue room under {@link SlowConsumerPolicy#BLOCK}. */
+    private long slowConsumerBlockTimeoutMillis = 100;
+
+    /**
+     * Whether queued messages are written to the socket in batches instead of one write per message.
+     * A batch is flushed as soon as the client's queue is empty, so coalescing adds no latency by itself.
+     */
+    private boolean writeCoalescing = true;
+
+    /** Largest batch in bytes; a batch is written at this size even if more messages are queued. */
+    private int coalesceMaxBytes = 16 * 1024;
+
+    /**
+     * How long the blocking engine lets a partial batch wait for more messages once the queue is empty.
+     * 0 flushes immediately. The NIO engine always flushes at the end of the current event-loop iteration.
+     */
+    private long coalesceMaxDelayMicros = 0;
+
+    /** Whether TCP_NODELAY is set on client connections, so written batches are not held back by Nagle's algorithm. */
+    private boolean tcpNoDelay = true;
+
+    /** Whether clients on binary frames may negotiate DEFLATE compression before LOGIN. */
+    private boolean compressionEnabled = true;
+
+    /** Messages shorter than this many bytes are sent uncompressed even to clients that negotiated compression. */
+    private int compressionMinBytes = DeflateCodec.DEFAULT_MIN_BYTES;
+
+    /**
+     * Whether lines from clients are rate limited. Every connection and every user has a budget
+     * for chat lines and one for commands; lines over budget are dropped with a THROTTLED notice.
+     */
+    private boolean rateLimitEnabled = true;
+
+    /** Sustained chat lines per second for one connection. */
+    private int chatRatePerSecond = 10;
+
+    /** Chat lines one connection may send at once before the sustained rate applies. */
+    private int chatBurst = 20;
+
+    /** Sustained commands per second for one connection; lines before LOGIN count as commands. */
+    private int commandRatePerSecond = 5;
+
+    /** Commands one connection may send at once before the sustained rate applies. */
+    private int commandBurst = 10;
+
+    /** Sustained chat lines per second for one user across all of their sessions. */
+    private int userChatRatePerSecond = 20;
+
+    /** Chat line burst for one user across all of their sessions. */
+    private int userChatBurst = 40;
+
+    /** Sustained commands per second for one user across all of their sessions. */
+    private int userCommandRatePerSecond = 10;
+
+    /** Command burst for one user across all of their sessions. */
+    private int userCommandBurst = 20;
+
+    /** Consecutive throttled lines after which a client is disconnected for flooding; 0 never disconnects. */
+    private int throttleDisconnectThreshold = 100;
+
+    /**
+     * Send PING to a client that has sent nothing for this long; it answers PONG.
+     * 0 disables heartbeats.
+     */
+    private long heartbeatIntervalMillis = 30_000;
+
+    /**
+     * Disconnect a client that has sent nothing, not even PONG, for this long, so that half-open
+     * connections do not keep their slot. 0 disables idle reaping.
+     */
+    private long idleTimeoutMillis = 90_000;
+
+    /** Resolution of the timer wheel that runs heartbeats and idle timeouts. */
+    private long idleTimerTickMillis = 100;
+
+    /**
+     * Whether clients may publish an endpoint for direct client-to-client connections. The server
+     * then only hands out endpoints and tickets; chat between peers bypasses it, and it remains
+     * the relay whenever a direct connection cannot be made.
+     */
+    private boolean peerToPeerEnabled = true;
+
+    /**
+     * This server's name in a cluster, unique among the nodes. Null or empty runs a standalone
+     * server; otherwise the server relays chat to and from the other nodes of the cluster.
+     */
+    private String clusterNodeId;
+
+    /** Port other cluster nodes connect to; 0 picks a free port. */
+    private int clusterPort;
+
+    /** Address the cluster port listens on, e.g. a private interface; null listens on every interface. */
+    private String clusterBindAddress;
+
+    /**
+     * Secret shared by every node of the cluster. A peer link is used only once both sides have
+     * proved they know it; cluster mode refuses to start without one.
+     */
+    private String clusterSecret;
+
+    /** Comma-separated {@code host:port} cluster ports of other nodes to dial; the rest dial us. */
+    private String clusterPeers = "";
+
+    /** Whether the server plays a notification sound for every chat message. */
+    private boolean soundEnabled = true;
+
+    /**
+     * Loads the configuration from {@code /server.properties} if it exists on the classpath.
+     *
+     * @return The loaded configuration, or the defaults if no resource is present
+     */
+    public static ServerConfig load() {
+        Properties properties = new Properties();
+        try (InputStream input = ServerConfig.class.getResourceAsStream("/server.properties")) {
+            if (input != null) {
+                properties.load(input);
+            }
+        } catch (IOException e) {
+            System.err.println("ServerConfig: Error loading /server.properties, using defaults: " + e.getMessage());
+        }
+        return fromProperties(properties);
+    }
+
+    /**
+     * Builds a configuration from the given properties. Missing keys keep their defaults.
+     *
+     * @param properties The properties to read
+     * @return A new configuration
+     */
+    public static ServerConfig fromProperties(Properties properties) {
+        ServerConfig config = new ServerConfig();
+        config.mode = ServerMode.parse(properties.getProperty("server.mode"), config.mode);
+        config.acceptBacklog = intProperty(properties, "server.acceptBacklog", config.acceptBacklog);
+        config.acceptorThreads = intProperty(properties, "server.acceptorThreads", config.acceptorThreads);
+        config.maxUnauthenticatedConnections = intProperty(properties, "server.admission.maxUnauthenticated",
+                config.maxUnauthenticatedConnections);
+        config.tlsEnabled = booleanProperty(properties, "server.tls.enabled", config.tlsEnabled);
+        String keyStore = properties.getProperty("server.tls.keyStore");
+        config.tlsKeyStore = keyStore == null || keyStore.trim().isEmpty() ? null : keyStore.trim();
+        config.tlsKeyStorePassword = properties.getProperty("server.tls.keyStorePassword", config.tlsKeyStorePassword);
+        config.tlsKeyStoreType = properties.getProperty("server.tls.keyStoreType", config.tlsKeyStoreType).trim();
+        config.tlsSessionCacheSize = intProperty(properties, "server.tls.sessionCacheSize", config.tlsSessionCacheSize);
+        config.tlsSessionTimeoutSeconds = intProperty(properties, "server.tls.sessionTimeoutSeconds",
+                config.tlsSessionTimeoutSeconds);
+        config.tlsHandshakeThreads = intProperty(properties, "server.tls.handshakeThreads", config.tlsHandshakeThreads);
+        config.tlsHandshakeTimeoutMillis = intProperty(properties, "server.tls.handshakeTimeoutMillis",
+                config.tlsHandshakeTimeoutMillis);
+        config.eventLoopThreads = intProperty(properties, "server.nio.eventLoopThreads", config.eventLoopThreads);
+        config.authWorkerThreads = intProperty(properties, "server.nio.authWorkerThreads", config.authWorkerThreads);
+        config.maxLineLength = intProperty(properties, "server.maxLineLength", config.maxLineLength);
+        config.defaultRoom = properties.getProperty("server.defaultRoom", config.defaultRoom).trim();
+        config.resumeBufferSize = intProperty(properties, "server.resume.bufferSize", config.resumeBufferSize);
+        config.resumeWindowMillis = longProperty(properties, "server.resume.windowMillis", config.resumeWindowMillis);
+        config.resumeMaxSessions = intProperty(properties, "server.resume.maxSessions", config.resumeMaxSessions);
+        config.historyBytesPerRoom = intProperty(properties, "server.history.bytesPerRoom", config.historyBytesPerRoom);
+        JournalConfig journal = config.journal;
+        journal.setDirectory(properties.getProperty("server.journal.directory", journal.getDirectory()));
+        journal.setSegmentBytes(intProperty(properties, "server.journal.segmentBytes", journal.getSegmentBytes()));
+        journal.setSegmentMaxAgeMillis(longProperty(properties, "server.journal.segmentMaxAgeMillis",
+                journal.getSegmentMaxAgeMillis()));
+        journal.setRetentionMillis(longProperty(properties, "server.journal.retentionMillis", journal.getRetentionMillis()));
+        journal.setRetentionBytes(longProperty(properties, "server.journal.retentionBytes", journal.getRetentionBytes()));
+        String durability = properties.getProperty("server.journal.durability");
+        if (durability != null && !durability.trim().isEmpty()) {
+            journal.setDurability(Durability.valueOf(durability.trim().toUpperCase()));
+        }
+        journal.setFlushIntervalMillis(longProperty(properties, "server.journal.flushIntervalMillis",
+                journal.getFlushIntervalMillis()));
+        journal.setIndexIntervalBytes(intProperty(properties, "server.journal.indexIntervalBytes",
+                journal.getIndexIntervalBytes()));
+        config.searchEnabled = booleanProperty(properties, "server.search.enabled", config.searchEnabled);
+        config.searchMaxResults = intProperty(properties, "server.search.maxResults", config.searchMaxResults);
+        config.offlineDeliveryEnabled = booleanProperty(properties, "server.offline.enabled", config.offlineDeliveryEnabled);
+        config.offlineQueueCapacity = intProperty(properties, "server.offline.queueCapacity", config.offlineQueueCapacity);
+        config.offlineBatchSize = intProperty(properties, "server.offline.batchSize", config.offlineBatchSize);
+        config.offlineBatchDelayMillis = longProperty(properties, "server.offline.batchDelayMillis",
+                config.offlineBatchDelayMillis);
+        config.offlinePageSize = intProperty(properties, "server.offline.pageSize", config.offlinePageSize);
+        config.archiveEnabled = booleanProperty(properties, "server.archive.enabled", config.archiveEnabled);
+        config.archiveQueueCapacity = intProperty(properties, "server.archive.queueCapacity", config.archiveQueueCapacity);
+        config.archiveBatchSize = intProperty(properties, "server.archive.batchSize", config.archiveBatchSize);
+        config.archiveBatchDelayMillis = longProperty(properties, "server.archive.batchDelayMillis",
+                config.archiveBatchDelayMillis);
+        config.archiveBlockTimeoutMillis = longProperty(properties, "server.archive.blockTimeoutMillis",
+                config.archiveBlockTimeoutMillis);
+        config.archiveUseCopy = booleanProperty(properties, "server.archive.useCopy", config.archiveUseCopy);
+        config.outboundQueueCapacity = intProperty(properties, "server.outbound.queueCapacity", config.outboundQueueCapacity);
+        String policy = properties.getProperty("server.outbound.slowConsumerPolicy");
+        if (policy != null && !policy.trim().isEmpty()) {
+            config.slowConsumerPolicy = SlowConsumerPolicy.valueOf(policy.trim().toUpperCase());
+        }
+        config.slowConsumerBlockTimeoutMillis = longProperty(properties, "server.outbound.blockTimeoutMillis",
+                config.slowConsumerBlockTimeoutMillis);
+        config.writeCoalescing = booleanProperty(properties, "server.outbound.coalesce", config.writeCoalescing);
+        config.coalesceMaxBytes = intProperty(properties, "server.outbound.coalesceMaxBytes", config.coalesceMaxBytes);
+        config.coalesceMaxDelayMicros = longProperty(properties, "server.outbound.coalesceMaxDelayMicros",
+                config.coalesceMaxDelayMicros);
+        config.tcpNoDelay = booleanProperty(properties, "server.tcpNoDelay", config.tcpNoDelay);
+        config.compressionEnabled = booleanProperty(properties, "server.compression.enabled", config.compressionEnabled);
+        config.compressionMinBytes = intProperty(properties, "server.compression.minBytes", config.compressionMinBytes);
+        config.rateLimitEnabled = booleanProperty(properties, "server.rateLimit.enabled", config.rateLimitEnabled);
+        config.chatRatePerSecond = intProperty(properties, "server.rateLimit.chatPerSecond", config.chatRatePerSecond);
+        config.chatBurst = intProperty(properties, "server.rateLimit.chatBurst", config.chatBurst);
+        config.commandRatePerSecond = intProperty(properties, "server.rateLimit.commandsPerSecond", config.commandRatePerSecond);
+        config.commandBurst = intProperty(properties, "server.rateLimit.commandBurst", config.commandBurst);
+        config.userChatRatePerSecond = intProperty(properties, "server.rateLimit.user.chatPerSecond", config.userChatRatePerSecond);
+        config.userChatBurst = intProperty(properties, "server.rateLimit.user.chatBurst", config.userChatBurst);
+        config.userCommandRatePerSecond = intProperty(properties, "server.rateLimit.user.commandsPerSecond",
+                config.userCommandRatePerSecond);
+        config.userCommandBurst = intProperty(properties, "server.rateLimit.user.commandBurst", config.userCommandBurst);
+        config.throttleDisconnectThreshold = intProperty(properties, "server.rateLimit.disconnectAfter",
+                config.throttleDisconnectThreshold);
+        config.heartbeatIntervalMillis = longProperty(properties, "server.heartbeat.intervalMillis",
+                config.heartbeatIntervalMillis);
+        config.idleTimeoutMillis = longProperty(properties, "server.heartbeat.idleTimeoutMillis", config.idleTimeoutMillis);
+        config.idleTimerTickMillis = longProperty(properties, "server.heartbeat.tickMillis", config.idleTimerTickMillis);
+        config.peerToPeerEnabled = booleanProperty(properties, "server.p2p.enabled", config.peerToPeerEnabled);
+        String nodeId = properties.getProperty("server.cluster.nodeId");
+        config.clusterNodeId = nodeId == null || nodeId.trim().isEmpty() ? null : nodeId.trim();
+        config.clusterPort = intProperty(properties, "server.cluster.port", config.clusterPort);
+        String bindAddress = properties.getProperty("server.cluster.bindAddress");
+        config.clusterBindAddress = bindAddress == null || bindAddress.trim().isEmpty() ? null : bindAddress.trim();
+        String secret = properties.getProperty("server.cluster.secret");
+        config.clusterSecret = secret == null || secret.isEmpty() ? null : secret;
+        config.clusterPeers = properties.getProperty("server.cluster.peers", config.clusterPeers).trim();
+        config.soundEnabled = booleanProperty(properties, "server.sound.enabled", config.soundEnabled);
+        return config;
+    }
+
+    static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    static long longProperty(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    static boolean booleanProperty(Properties properties, String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
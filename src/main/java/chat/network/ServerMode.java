@@ -0,0 +1,33 @@
+package chat.network;
+
+/**
+ * Enumeration of the connection engines the {@link Server} can run on.
+ */
+public enum ServerMode {
+
+    /**
+     * Classic engine: one blocking {@link ClientHandler} thread per connected socket.
+     */
+    BLOCKING,
+
+    /**
+     * Selector-based engine: a small fixed set of event-loop threads multiplexes all
+     * connections over non-blocking {@link java.nio.channels.SocketChannel}s.
+     */
+    NIO;
+
+    /**
+     * Parses a mode name case-insensitively.
+     *
+     * @param value The mode name, e.g. "nio" or "blocking"
+     * @param defaultMode The mode to return when the value is null or empty
+     * @return The matching mode
+     * @throws IllegalArgumentException If the value names no known mode
+     */
+    public static ServerMode parse(String value, ServerMode defaultMode) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultMode;
+        }
+        return ServerMode.valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,24 @@
+package chat.network;
+
+/**
+ * What the server does when a client's outbound queue is full because the client
+ * reads more slowly than messages arrive for it.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Discard the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnect the slow client.
+     */
+    DISCONNECT,
+
+    /**
+     * Make the sender wait up to {@link ServerConfig#getSlowConsumerBlockTimeoutMillis()} for room,
+     * then disconnect the slow client if the queue is still full.
+     */
+    BLOCK
+}
@@ -0,0 +1,267 @@
+package chat.network;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TLS on a non-blocking {@link SocketChannel}, for the {@link NioClientHandler}.
+ * <p>
+ * Ciphertext read from the socket is decrypted into a plaintext buffer that the handler decodes
+ * as usual, and outgoing plaintext is encrypted into a network buffer that is written whenever
+ * the socket accepts more. The handshake is driven from the same calls. Its expensive steps, the
+ * engine's delegated tasks, run on the server's handshake pool instead of the event loop: while
+ * they run the channel neither reads nor writes, and {@code tasksDone} is called on the pool
+ * thread when they finish, after which the handler calls {@link #resume()} on the loop.
+ * </p>
+ * <p>
+ * Loop thread only, apart from the delegated tasks.
+ * </p>
+ */
+final class TlsChannel {
+    private static final ByteBuffer[] NO_DATA = new ByteBuffer[0];
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Executor handshakeExecutor;
+    private final Runnable tasksDone;
+    private final LongAdder socketWrites;
+    private final HandshakeListener handshakeListener;
+    private final long createdAtMillis = System.currentTimeMillis();
+    private ByteBuffer netIn;  // Ciphertext read but not decrypted yet, in fill mode
+    private ByteBuffer netOut; // Ciphertext not written yet, in fill mode
+    private ByteBuffer appIn;  // Decrypted plaintext handed to the handler
+    private boolean runningTasks;
+    private boolean inboundClosed;
+
+    /**
+     * Told whenever a handshake has finished.
+     */
+    interface HandshakeListener {
+        void handshakeFinished(boolean resumed);
+    }
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, Executor handshakeExecutor, Runnable tasksDone,
+               LongAdder socketWrites, HandshakeListener handshakeListener) {
+        this.channel = channel;
+        this.engine = engine;
+        this.handshakeExecutor = handshakeExecutor;
+        this.tasksDone = tasksDone;
+        this.socketWrites = socketWrites;
+        this.handshakeListener = handshakeListener;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    /**
+     * Reads what the socket has and decrypts it.
+     *
+     * @return Plaintext to decode before the next call, possibly empty, or null at the end of the stream
+     * @throws IOException If the socket fails or the peer violates the protocol
+     */
+    ByteBuffer read() throws IOException {
+        if (inboundClosed) {
+            return null;
+        }
+        if (!runningTasks && channel.read(netIn) < 0) {
+            return null;
+        }
+        return resume();
+    }
+
+    /**
+     * Continues with ciphertext that was read before, e.g. once the delegated tasks have finished.
+     *
+     * @return Plaintext to decode, possibly empty
+     * @throws IOException If the socket fails or the peer violates the protocol
+     */
+    ByteBuffer resume() throws IOException {
+        appIn.clear();
+        netIn.flip();
+        try {
+            while (!runningTasks && !inboundClosed) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                } else if (status == HandshakeStatus.NEED_WRAP) {
+                    write(NO_DATA, 0, 0);
+                    if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                        break; // Socket is full; writing resumes on OP_WRITE
+                    }
+                } else if (!unwrap()) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        appIn.flip();
+        return appIn;
+    }
+
+    // Decrypts one record; false if more ciphertext is needed
+    private boolean unwrap() throws IOException {
+        SSLEngineResult result = engine.unwrap(netIn, appIn);
+        checkFinished(result);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (netIn.limit() == netIn.capacity()) {
+                    // A record larger than the buffer; read mode must survive the copy
+                    ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() + engine.getSession().getPacketBufferSize());
+                    larger.put(netIn).flip();
+                    netIn = larger;
+                }
+                return false;
+            case CLOSED:
+                inboundClosed = true; // close_notify; what was decrypted before it is still delivered
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Encrypts plaintext and writes as much as the socket accepts, continuing the handshake first
+     * if it needs to send something.
+     *
+     * @param srcs Plaintext buffers
+     * @param offset First buffer to use
+     * @param length Number of buffers to use
+     * @return Plaintext bytes consumed; fewer than offered while the socket is full or the handshake runs
+     * @throws IOException If the socket fails or the connection is closed
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long consumed = 0;
+        while (!runningTasks && flushNetOut()) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                break;
+            }
+            if (status == HandshakeStatus.NEED_UNWRAP) {
+                break; // Waiting for the peer; reads continue the handshake
+            }
+            if (status == HandshakeStatus.NOT_HANDSHAKING && !hasRemaining(srcs, offset, length)) {
+                break;
+            }
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            checkFinished(result);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection closed");
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Checks whether encrypted bytes are waiting for the socket to accept more.
+     *
+     * @return true if the handler should wait for OP_WRITE
+     */
+    boolean hasPendingOutput() {
+        return netOut.position() > 0;
+    }
+
+    /**
+     * Checks whether delegated handshake tasks are running; the handler must not read meanwhile.
+     *
+     * @return true until {@link #resume()} is called after the tasks finished
+     */
+    boolean isRunningTasks() {
+        return runningTasks;
+    }
+
+    /**
+     * Marks the delegated tasks as finished. Loop thread, before {@link #resume()}.
+     */
+    void tasksFinished() {
+        runningTasks = false;
+    }
+
+    /**
+     * Sends close_notify if the socket accepts it right away.
+     */
+    void close() {
+        if (runningTasks) {
+            return;
+        }
+        engine.closeOutbound();
+        try {
+            engine.wrap(NO_DATA, 0, 0, netOut);
+            flushNetOut();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private void runDelegatedTasks() throws SSLException {
+        runningTasks = true;
+        try {
+            handshakeExecutor.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                tasksDone.run();
+            });
+        } catch (RejectedExecutionException e) {
+            throw new SSLException("Too many TLS handshakes in progress");
+        }
+    }
+
+    private void checkFinished(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED && handshakeListener != null) {
+            // A resumed session keeps the creation time of the handshake that established it
+            handshakeListener.handshakeFinished(engine.getSession().getCreationTime() < createdAtMillis);
+        }
+    }
+
+    // Writes buffered ciphertext; true once all of it is out
+    private boolean flushNetOut() throws IOException {
+        if (netOut.position() == 0) {
+            return true;
+        }
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            socketWrites.increment();
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Grows a buffer in fill mode, keeping its content
+    private static ByteBuffer enlarge(ByteBuffer buffer, int extra) {
+        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + extra);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,64 @@
+package chat.p2p;
+
+import lombok.Getter;
+
+/**
+ * A message spread through a peer group by {@link GossipNode}s.
+ * The ID is {@code origin:sequence}; the TTL is the number of hops the message may still travel.
+ */
+@Getter
+public final class GossipMessage {
+    private final String id;
+    private final int ttl;
+    private final String text;
+
+    /**
+     * @param id The unique message ID, {@code origin:sequence}
+     * @param ttl The hops the message may still travel
+     * @param text The message text, without line breaks
+     */
+    public GossipMessage(String id, int ttl, String text) {
+        this.id = id;
+        this.ttl = ttl;
+        this.text = text;
+    }
+
+    /**
+     * Gets the peer that published the message, as claimed by its ID. Anyone forwarding the
+     * message could have written that ID, so the origin is only known to be genuine for a copy
+     * received straight from that peer.
+     *
+     * @return The origin's name
+     */
+    public String getOrigin() {
+        return id.substring(0, id.lastIndexOf(':'));
+    }
+
+    GossipMessage nextHop() {
+        return new GossipMessage(id, ttl - 1, text);
+    }
+
+    /**
+     * Encodes the message as one line: {@code id ttl text}.
+     *
+     * @return The encoded line
+     */
+    public String encode() {
+        return id + " " + ttl + " " + text;
+    }
+
+    /**
+     * Decodes a line written by {@link #encode()}.
+     *
+     * @param line The encoded message
+     * @return The message
+     * @throws IllegalArgumentException If the line is malformed
+     */
+    public static GossipMessage decode(String line) {
+        String[] parts = line.split(" ", 3);
+        if (parts.length != 3 || parts[0].lastIndexOf(':') <= 0) {
+            throw new IllegalArgumentException("Malformed gossip message: " + line);
+        }
+        return new GossipMessage(parts[0], Integer.parseInt(parts[1]), parts[2]);
+    }
+}
@@ -0,0 +1,17 @@
+package chat.p2p;
+
+/**
+ * Carries gossip messages from one {@link GossipNode} to another: direct connections in the
+ * client, an event queue in simulations.
+ */
+public interface GossipTransport {
+
+    /**
+     * Sends a message to a peer. Must not block for long; failures are simply dropped,
+     * since gossip reaches peers over several paths.
+     *
+     * @param peer The peer's name
+     * @param message The message
+     */
+    void send(String peer, GossipMessage message);
+}
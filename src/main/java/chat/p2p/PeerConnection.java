@@ -0,0 +1,129 @@
+package chat.p2p;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * A direct connection between two clients, carrying chat lines without going through the server.
+ * <p>
+ * The caller opens it with {@code P2P_HELLO <caller> <ticket>}; the target answers
+ * {@code P2P_WELCOME <target>} or {@code P2P_DENIED} and closes. After that each line
+ * is one message, in both directions.
+ * </p>
+ */
+public final class PeerConnection {
+    static final String HELLO = "P2P_HELLO";
+    static final String WELCOME = "P2P_WELCOME";
+    static final String DENIED = "P2P_DENIED";
+
+    private final Socket socket;
+    private final String peerName;
+    private final PrintWriter out;
+    private final BufferedReader in;
+
+    PeerConnection(Socket socket, String peerName, BufferedReader in) throws IOException {
+        this.socket = socket;
+        this.peerName = peerName;
+        this.in = in;
+        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), false);
+    }
+
+    /**
+     * Connects to another client.
+     *
+     * @param endpoint Where the target listens
+     * @param caller This client's username
+     * @param ticket The ticket the server issued for this connection
+     * @param timeoutMillis How long to wait for the connection and the handshake
+     * @return The open connection
+     * @throws IOException If the target cannot be reached or rejects the ticket
+     */
+    public static PeerConnection connect(PeerEndpoint endpoint, String caller, String ticket, int timeoutMillis)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(endpoint.getHost(), endpoint.getPort()), timeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            PrintWriter hello = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            hello.println(HELLO + " " + caller + " " + ticket);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith(WELCOME + " ")) {
+                throw new IOException("Peer at " + endpoint + " refused the connection: " + reply);
+            }
+            socket.setSoTimeout(0);
+            return new PeerConnection(socket, reply.substring(WELCOME.length() + 1), in);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the username of the client at the other end.
+     *
+     * @return The peer's username
+     */
+    public String getPeerName() {
+        return peerName;
+    }
+
+    /**
+     * Sends one message to the peer.
+     *
+     * @param message The message, without line breaks
+     * @return true if it was written, false if the connection is broken
+     */
+    public synchronized boolean send(String message) {
+        if (socket.isClosed()) {
+            return false;
+        }
+        out.println(message);
+        out.flush();
+        if (out.checkError()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads messages from the peer until the connection closes, on the calling thread.
+     *
+     * @param handler Receives each message
+     */
+    public void readLoop(Consumer<String> handler) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                handler.accept(line);
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.err.println("Direct connection to " + peerName + " lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing direct connection to " + peerName + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package chat.p2p;
+
+import lombok.Getter;
+
+/**
+ * Address where a client accepts direct connections from other clients.
+ */
+@Getter
+public final class PeerEndpoint {
+    private final String host;
+    private final int port;
+
+    /**
+     * @param host The host or IP address
+     * @param port The port of the client's {@link PeerListener}
+     */
+    public PeerEndpoint(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String toString() {
+        return host + " " + port;
+    }
+}
@@ -0,0 +1,110 @@
+package chat.p2p;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Accepts direct connections from other clients and admits those whose ticket checks out
+ * against the secret the server gave this client.
+ */
+public final class PeerListener {
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final String username;
+    private final ServerSocket serverSocket;
+    private final Consumer<PeerConnection> onConnected;
+    private volatile String secret; // Null until the server accepted the endpoint; callers are refused until then
+
+    /**
+     * Opens the listening socket and starts accepting on a background thread.
+     *
+     * @param username This client's username, announced to callers
+     * @param port The port to listen on, 0 for any free port
+     * @param onConnected Receives each admitted connection
+     * @throws IOException If the port cannot be opened
+     */
+    public PeerListener(String username, int port, Consumer<PeerConnection> onConnected) throws IOException {
+        this.username = username;
+        this.onConnected = onConnected;
+        this.serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptLoop, "p2p-accept-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sets the secret tickets are checked against.
+     *
+     * @param secret The secret from the server's {@code P2P_OK} reply
+     */
+    public void setSecret(String secret) {
+        this.secret = secret;
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread handshake = new Thread(() -> admit(socket), "p2p-handshake-" + socket.getPort());
+                handshake.setDaemon(true);
+                handshake.start();
+            } catch (SocketException e) {
+                return; // close() was called
+            } catch (IOException e) {
+                System.err.println("PeerListener: Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void admit(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            String hello = in.readLine();
+            String[] parts = hello == null ? new String[0] : hello.split(" ");
+            String currentSecret = secret;
+            if (parts.length != 3 || !PeerConnection.HELLO.equals(parts[0]) || currentSecret == null
+                    || !PeerTicket.verify(currentSecret, parts[1], parts[2], System.currentTimeMillis())) {
+                System.err.println("PeerListener: Rejected direct connection from " + socket.getInetAddress());
+                out.println(PeerConnection.DENIED);
+                socket.close();
+                return;
+            }
+            out.println(PeerConnection.WELCOME + " " + username);
+            socket.setSoTimeout(0);
+            onConnected.accept(new PeerConnection(socket, parts[1], in));
+        } catch (IOException e) {
+            System.err.println("PeerListener: Handshake failed: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+        }
+    }
+
+    /**
+     * Stops accepting direct connections. Connections already admitted stay open.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("PeerListener: Error closing: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package chat.p2p;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Tickets that let a client prove to another client that the server authenticated it.
+ * <p>
+ * When a client publishes its direct-connection endpoint, the server hands it a random secret.
+ * A client that wants to connect asks the server for the endpoint and gets a ticket: the time
+ * of issue plus an HMAC of its own username and that time, keyed with the target's secret.
+ * The target checks the ticket with its secret alone, without asking the server, and rejects
+ * tickets that are older than {@link #MAX_AGE_MILLIS}.
+ * </p>
+ */
+public final class PeerTicket {
+    /** How long a ticket may be used after the server issued it. */
+    public static final long MAX_AGE_MILLIS = 60_000;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SECRET_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PeerTicket() {
+    }
+
+    /**
+     * Generates a secret for a client that accepts direct connections.
+     *
+     * @return The secret, encoded for the wire
+     */
+    public static String newSecret() {
+        byte[] secret = new byte[SECRET_LENGTH];
+        RANDOM.nextBytes(secret);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+    }
+
+    /**
+     * Issues a ticket for a caller to connect to the owner of a secret.
+     *
+     * @param secret The target's secret as returned by {@link #newSecret()}
+     * @param caller The authenticated username of the caller
+     * @param nowMillis The current time
+     * @return The ticket, a single token without spaces
+     */
+    public static String issue(String secret, String caller, long nowMillis) {
+        return nowMillis + "." + sign(secret, caller, nowMillis);
+    }
+
+    /**
+     * Checks a ticket presented by a caller.
+     *
+     * @param secret This client's secret
+     * @param caller The username the caller claims
+     * @param ticket The ticket the caller presented
+     * @param nowMillis The current time
+     * @return true if the server issued the ticket for this caller within the last {@link #MAX_AGE_MILLIS}
+     */
+    public static boolean verify(String secret, String caller, String ticket, long nowMillis) {
+        int dot = ticket.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        long issuedAt;
+        try {
+            issuedAt = Long.parseLong(ticket.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (Math.abs(nowMillis - issuedAt) > MAX_AGE_MILLIS) {
+            return false;
+        }
+        byte[] expected = sign(secret, caller, issuedAt).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, ticket.substring(dot + 1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String sign(String secret, String caller, long issuedAt) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(Base64.getUrlDecoder().decode(secret), ALGORITHM));
+            byte[] signature = mac.doFinal((caller + "\n" + issuedAt).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IllegalStateException("Cannot sign peer ticket: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package chat.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Per-message DEFLATE compression for binary frames.
+ * <p>
+ * A client that speaks {@link WireFormat#BINARY} may send {@code COMPRESS DEFLATE} before LOGIN;
+ * after {@code COMPRESS_OK:DEFLATE} either side may set {@link FrameCodec#FLAG_COMPRESSED} on a
+ * {@link FrameType#MESSAGE} frame whose payload is then a zlib stream. Every message is compressed
+ * on its own, so one compressed broadcast can be sent to every recipient that negotiated the codec.
+ * Both sides preset the same {@link #DICTIONARY} of common chat and stack trace fragments, which
+ * lets even short messages compress.
+ * </p>
+ * <p>
+ * A {@link Deflater} holds a few hundred KB of native memory, so instead of allocating one per
+ * message or per connection they are borrowed from a small shared pool.
+ * </p>
+ */
+public final class DeflateCodec {
+
+    /** Codec name used in the COMPRESS negotiation. */
+    public static final String NAME = "DEFLATE";
+
+    /** Payloads smaller than this are sent uncompressed by default; they rarely shrink enough to matter. */
+    public static final int DEFAULT_MIN_BYTES = 256;
+
+    private static final int MAX_POOLED_DEFLATERS = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    // Most frequent fragments last: zlib reaches the end of the dictionary with the shortest distances
+    static final byte[] DICTIONARY = ("null true false Thread main INFO WARN DEBUG TRACE "
+            + "org.springframework. com. javax. sun. jdk.internal. ... more\n\t... Suppressed: "
+            + "java.util.concurrent. java.io.IOException java.lang.IllegalStateException "
+            + "java.lang.IllegalArgumentException java.lang.NullPointerException java.lang.RuntimeException "
+            + "Exception in thread \"main\" Caused by: (Native Method) (Unknown Source) .java:"
+            + "Online users: [PM from [PM to has left the chat. has joined the chat! has joined #"
+            + "ERROR: http:// https:// the and that this with you for have not but what "
+            + "\n\tat java.base/java.lang.").getBytes(StandardCharsets.UTF_8);
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private DeflateCodec() {
+    }
+
+    /**
+     * Encodes a {@link FrameType#MESSAGE} frame, compressed if the payload is large enough and
+     * compression actually makes it smaller.
+     *
+     * @param payload The UTF-8 message bytes
+     * @param offset Start of the payload in the array
+     * @param length Number of payload bytes
+     * @param minBytes Payloads shorter than this are not compressed
+     * @return The frame bytes
+     */
+    public static byte[] encodeMessage(byte[] payload, int offset, int length, int minBytes) {
+        if (length >= minBytes) {
+            byte[] compressed = compress(payload, offset, length);
+            if (compressed != null) {
+                return FrameCodec.encode(FrameType.MESSAGE, FrameCodec.FLAG_COMPRESSED, compressed, 0, compressed.length);
+            }
+        }
+        return FrameCodec.encode(FrameType.MESSAGE, 0, payload, offset, length);
+    }
+
+    /**
+     * Compresses bytes into a zlib stream using the shared dictionary.
+     *
+     * @param input The bytes to compress
+     * @param offset Start of the input in the array
+     * @param length Number of input bytes
+     * @return The compressed bytes, or null if they would not be smaller than the input
+     */
+    public static byte[] compress(byte[] input, int offset, int length) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            byte[] output = new byte[length]; // Anything that does not fit here is not worth sending compressed
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == output.length) {
+                    return null;
+                }
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            return Arrays.copyOf(output, size);
+        } finally {
+            release(deflater);
+        }
+    }
+
+    private static void release(Deflater deflater) {
+        if (DEFLATERS.size() < MAX_POOLED_DEFLATERS) {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package chat.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding helpers for the binary frame format.
+ * <p>
+ * A frame is {@code [type: 1 byte][flags: 1 byte][payload length: varint][payload]}.
+ * The length prefix means payloads may contain newlines and the receiver knows the size of
+ * a frame before buffering it, so an oversized frame can be rejected immediately.
+ * </p>
+ * <p>
+ * A connection starts in {@link WireFormat#TEXT}. A client that wants frames sends
+ * {@link #NEGOTIATION_REQUEST} as its very first line and waits: a server that supports them
+ * answers {@link #NEGOTIATION_ACCEPTED} and both sides switch to frames right after that line.
+ * Any other answer (older servers reply with an ERROR line) means the connection stays text.
+ * </p>
+ */
+public final class FrameCodec {
+
+    /** First line a client sends to ask for binary frames. */
+    public static final String NEGOTIATION_REQUEST = "PROTOCOL BINARY/1";
+
+    /** Server reply confirming the switch to binary frames. */
+    public static final String NEGOTIATION_ACCEPTED = "PROTOCOL_OK:BINARY/1";
+
+    /** Flag bit marking a payload compressed with {@link DeflateCodec}. */
+    public static final int FLAG_COMPRESSED = 0x01;
+
+    /** Longest possible frame header: type, flags and a 5-byte varint. */
+    public static final int MAX_HEADER_LENGTH = 2 + Varint.MAX_BYTES;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a complete frame.
+     *
+     * @param type The frame type
+     * @param flags The flags byte
+     * @param payload The payload bytes
+     * @param offset Start of the payload in the array
+     * @param length Number of payload bytes
+     * @return The frame bytes
+     */
+    public static byte[] encode(FrameType type, int flags, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[2 + Varint.size(length) + length];
+        frame[0] = (byte) type.getCode();
+        frame[1] = (byte) flags;
+        int headerEnd = Varint.write(length, frame, 2);
+        System.arraycopy(payload, offset, frame, headerEnd, length);
+        return frame;
+    }
+
+    /**
+     * Encodes a {@link FrameType#MESSAGE} frame carrying UTF-8 text.
+     *
+     * @param text The message text
+     * @return The frame bytes
+     */
+    public static byte[] encodeMessage(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return encode(FrameType.MESSAGE, 0, payload, 0, payload.length);
+    }
+
+    /**
+     * Decodes a UTF-8 payload into a String without disturbing the buffer's position.
+     *
+     * @param payload The payload between position and limit
+     * @return The decoded text
+     */
+    public static String text(ByteBuffer payload) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+                    StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
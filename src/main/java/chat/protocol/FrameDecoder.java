@@ -0,0 +1,153 @@
+package chat.protocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the binary frame format described in {@link FrameCodec}.
+ * <p>
+ * Bytes may arrive in arbitrary pieces; the decoder keeps its position inside the current frame
+ * between calls. When a frame's payload is entirely contained in the input buffer the listener
+ * gets a view of that buffer, so the common case decodes without copying or allocating. Only
+ * payloads split across reads are assembled in an internal buffer.
+ * </p>
+ * <p>
+ * The payload length is known from the header, so oversized frames are rejected before any of
+ * their payload is buffered. Not thread-safe: each connection owns its own decoder.
+ * </p>
+ */
+public final class FrameDecoder {
+    private static final int INITIAL_CAPACITY = 128;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private enum State { TYPE, FLAGS, LENGTH, PAYLOAD }
+
+    private final int maxPayloadLength;
+    private State state = State.TYPE;
+    private FrameType type;
+    private int flags;
+    private int length;
+    private int lengthShift;
+    private byte[] partial = new byte[INITIAL_CAPACITY];
+    private int filled;
+    private ByteBuffer source; // Input buffer that view was created from
+    private ByteBuffer view;   // Reused window onto source, handed to the listener
+
+    /**
+     * @param maxPayloadLength The largest payload in bytes that is accepted
+     */
+    public FrameDecoder(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Consumes all remaining bytes of the buffer and passes every completed frame to the listener.
+     *
+     * @param bytes The bytes received from the network, in read mode
+     * @param listener Receives each decoded frame
+     * @throws IOException If the input is not a valid frame stream, or the listener throws
+     */
+    public void decode(ByteBuffer bytes, FrameListener listener) throws IOException {
+        while (bytes.hasRemaining()) {
+            decodeOne(bytes, listener);
+        }
+    }
+
+    /**
+     * Consumes bytes up to the end of the next frame and passes that frame to the listener.
+     * Bytes after it stay in the buffer.
+     *
+     * @param bytes The bytes received from the network, in read mode
+     * @param listener Receives the decoded frame
+     * @return true if a frame was completed, false if the buffer ran out first
+     * @throws IOException If the input is not a valid frame stream, or the listener throws
+     */
+    public boolean decodeOne(ByteBuffer bytes, FrameListener listener) throws IOException {
+        while (bytes.hasRemaining()) {
+            switch (state) {
+                case TYPE:
+                    type = FrameType.fromCode(bytes.get());
+                    state = State.FLAGS;
+                    break;
+                case FLAGS:
+                    flags = bytes.get() & 0xFF;
+                    length = 0;
+                    lengthShift = 0;
+                    state = State.LENGTH;
+                    break;
+                case LENGTH:
+                    int b = bytes.get();
+                    if (lengthShift == 28 && (b & 0xF8) != 0) {
+                        throw new ProtocolException("Frame length does not fit in 31 bits");
+                    }
+                    length |= (b & 0x7F) << lengthShift;
+                    lengthShift += 7;
+                    if ((b & 0x80) != 0) {
+                        break;
+                    }
+                    if (length > maxPayloadLength) {
+                        throw new ProtocolException("Frame of " + length + " bytes exceeds maximum of "
+                                + maxPayloadLength + " bytes");
+                    }
+                    if (length == 0) {
+                        return emit(listener, EMPTY);
+                    }
+                    filled = 0;
+                    state = State.PAYLOAD;
+                    break;
+                case PAYLOAD:
+                    if (filled == 0 && bytes.remaining() >= length) {
+                        // Whole payload is already in the input: hand out a view instead of copying
+                        int start = bytes.position();
+                        bytes.position(start + length);
+                        return emit(listener, viewOf(bytes, start));
+                    }
+                    if (partial.length < length) {
+                        partial = new byte[length];
+                    }
+                    int chunk = Math.min(bytes.remaining(), length - filled);
+                    bytes.get(partial, filled, chunk);
+                    filled += chunk;
+                    if (filled == length) {
+                        boolean emitted = emit(listener, ByteBuffer.wrap(partial, 0, length));
+                        if (partial.length > INITIAL_CAPACITY * 8) {
+                            partial = new byte[INITIAL_CAPACITY]; // Don't keep a huge buffer after one big frame
+                        }
+                        return emitted;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown decoder state " + state);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether part of a frame has been consumed but not completed, e.g. to tell a clean
+     * end of stream from a truncated frame.
+     *
+     * @return true if the decoder is in the middle of a frame
+     */
+    public boolean isMidFrame() {
+        return state != State.TYPE;
+    }
+
+    private boolean emit(FrameListener listener, ByteBuffer payload) throws IOException {
+        state = State.TYPE;
+        listener.onFrame(type, flags, payload);
+        return true;
+    }
+
+    // Connections read into the same buffer every time, so one duplicate serves every frame
+    private ByteBuffer viewOf(ByteBuffer bytes, int start) {
+        if (source != bytes) {
+            source = bytes;
+            view = bytes.duplicate();
+        }
+        view.limit(view.capacity()).position(start);
+        view.limit(start + length);
+        return view;
+    }
+}
@@ -0,0 +1,23 @@
+package chat.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives frames from a {@link FrameDecoder} or {@link WireReader}.
+ */
+@FunctionalInterface
+public interface FrameListener {
+
+    /**
+     * Called once per complete frame.
+     *
+     * @param type The frame type
+     * @param flags The flags byte
+     * @param payload The payload between its position and limit. The buffer is only valid
+     *                during this call and may be a view of the decoder's internal memory,
+     *                so copy whatever must be kept.
+     * @throws IOException To abort decoding, e.g. on a protocol violation
+     */
+    void onFrame(FrameType type, int flags, ByteBuffer payload) throws IOException;
+}
@@ -0,0 +1,47 @@
+package chat.protocol;
+
+import lombok.Getter;
+
+import java.net.ProtocolException;
+
+/**
+ * Enumeration of binary frame types. The code is the first byte of every frame.
+ */
+@Getter
+public enum FrameType {
+
+    /**
+     * One protocol message: a command or chat line from the client, or a reply or
+     * chat message from the server. The payload is UTF-8 text and may contain newlines.
+     */
+    MESSAGE(0x01);
+
+    private static final FrameType[] BY_CODE = new FrameType[256];
+
+    static {
+        for (FrameType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    FrameType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Looks up a frame type by its wire code.
+     *
+     * @param code The type byte, 0-255
+     * @return The frame type
+     * @throws ProtocolException If no frame type has this code
+     */
+    public static FrameType fromCode(int code) throws ProtocolException {
+        FrameType type = BY_CODE[code & 0xFF];
+        if (type == null) {
+            throw new ProtocolException("Unknown frame type 0x" + Integer.toHexString(code & 0xFF));
+        }
+        return type;
+    }
+}
@@ -0,0 +1,78 @@
+package chat.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Incremental decoder that splits a stream of UTF-8 bytes into text lines.
+ * Bytes are accumulated until a {@code '\n'} arrives; a trailing {@code '\r'} is dropped so
+ * that both {@code \n} and {@code \r\n} terminated lines are accepted, like
+ * {@link java.io.BufferedReader#readLine()}.
+ * <p>
+ * The internal buffer starts small and grows on demand, so idle connections stay cheap.
+ * Not thread-safe: each connection owns its own decoder.
+ * </p>
+ */
+public final class LineDecoder {
+    private static final int INITIAL_CAPACITY = 128;
+
+    private final int maxLineLength;
+    private byte[] line = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    /**
+     * @param maxLineLength The longest line in bytes that is accepted
+     */
+    public LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Consumes all remaining bytes of the buffer and passes every completed line to the consumer.
+     *
+     * @param bytes The bytes received from the network, in read mode
+     * @param lines Receives each decoded line, without its terminator
+     * @throws IOException If a line exceeds the configured maximum length
+     */
+    public void decode(ByteBuffer bytes, Consumer<String> lines) throws IOException {
+        String decoded;
+        while ((decoded = next(bytes)) != null) {
+            lines.accept(decoded);
+        }
+    }
+
+    /**
+     * Consumes bytes up to and including the next line terminator. Bytes after it stay in
+     * the buffer, so the caller can hand them to a different decoder, e.g. after the
+     * connection switched to binary frames.
+     *
+     * @param bytes The bytes received from the network, in read mode
+     * @return The completed line without its terminator, or null if the buffer ran out first
+     * @throws IOException If the line exceeds the configured maximum length
+     */
+    public String next(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (b == '\n') {
+                int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+                String decoded = new String(line, 0, end, StandardCharsets.UTF_8);
+                length = 0;
+                if (line.length > INITIAL_CAPACITY * 8) {
+                    line = new byte[INITIAL_CAPACITY]; // Don't keep a huge buffer after one long line
+                }
+                return decoded;
+            }
+            if (length == maxLineLength) {
+                throw new IOException("Line exceeds maximum length of " + maxLineLength + " bytes");
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(maxLineLength, line.length * 2));
+            }
+            line[length++] = b;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,80 @@
+package chat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses {@link DeflateCodec} message payloads for one connection. The {@link Inflater}
+ * and its output buffer are reused for every message instead of being allocated each time.
+ * <p>
+ * Not thread-safe: it belongs to the thread that reads the connection. {@link #close()} must be
+ * called when the connection ends to release the Inflater's native memory.
+ * </p>
+ */
+public final class MessageInflater implements AutoCloseable {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Inflater inflater = new Inflater();
+    private final int maxLength;
+    private byte[] output = new byte[INITIAL_CAPACITY];
+    private byte[] input = new byte[0]; // Copy of direct-buffer payloads, which have no array
+
+    /**
+     * @param maxLength The largest decompressed message in bytes that is accepted
+     */
+    public MessageInflater(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Decompresses one message payload.
+     *
+     * @param compressed The compressed payload between position and limit; left unchanged
+     * @return The decompressed bytes, valid until the next call
+     * @throws ProtocolException If the payload is corrupt, truncated, or decompresses beyond the maximum length
+     */
+    public ByteBuffer inflate(ByteBuffer compressed) throws ProtocolException {
+        int length = compressed.remaining();
+        inflater.reset();
+        if (compressed.hasArray()) {
+            inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), length);
+        } else {
+            if (input.length < length) {
+                input = new byte[length];
+            }
+            compressed.duplicate().get(input, 0, length);
+            inflater.setInput(input, 0, length);
+        }
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (size >= maxLength) {
+                        throw new ProtocolException("Decompressed message exceeds maximum of " + maxLength + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(maxLength, size * 2));
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DeflateCodec.DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new ProtocolException("Truncated compressed message");
+                    }
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed message: " + e.getMessage());
+        }
+        return ByteBuffer.wrap(output, 0, size);
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+}
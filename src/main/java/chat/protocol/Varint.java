@@ -0,0 +1,46 @@
+package chat.protocol;
+
+/**
+ * Unsigned LEB128 variable-length encoding for non-negative ints: 7 bits per byte,
+ * high bit set on every byte except the last. Values below 128 take a single byte.
+ */
+public final class Varint {
+
+    /** Longest encoding of an int. */
+    public static final int MAX_BYTES = 5;
+
+    private Varint() {
+    }
+
+    /**
+     * Gets the number of bytes {@link #write(int, byte[], int)} uses for a value.
+     *
+     * @param value A non-negative value
+     * @return The encoded size, 1-5
+     */
+    public static int size(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a value into an array.
+     *
+     * @param value A non-negative value
+     * @param target The array to write into
+     * @param offset Where to start writing
+     * @return The offset just after the encoded value
+     */
+    public static int write(int value, byte[] target, int offset) {
+        while ((value & ~0x7F) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+}
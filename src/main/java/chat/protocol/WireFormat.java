@@ -0,0 +1,33 @@
+package chat.protocol;
+
+/**
+ * Enumeration of the wire formats a connection can speak.
+ */
+public enum WireFormat {
+
+    /**
+     * Newline-terminated UTF-8 lines. Every connection starts in this format.
+     */
+    TEXT,
+
+    /**
+     * Length-prefixed binary frames, see {@link FrameCodec}. Negotiated with
+     * {@link FrameCodec#NEGOTIATION_REQUEST} as the first line of a connection.
+     */
+    BINARY,
+
+    /**
+     * {@link #BINARY} frames whose larger payloads are DEFLATE-compressed, see {@link DeflateCodec}.
+     * Negotiated with {@code COMPRESS DEFLATE} after switching to binary frames.
+     */
+    BINARY_DEFLATE;
+
+    /**
+     * Checks whether this format uses binary frames rather than text lines.
+     *
+     * @return true for the framed formats
+     */
+    public boolean isFramed() {
+        return this != TEXT;
+    }
+}
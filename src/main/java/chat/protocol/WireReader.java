@@ -0,0 +1,83 @@
+package chat.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking reader for connections that start in {@link WireFormat#TEXT} and may switch to
+ * {@link WireFormat#BINARY} frames. Lines and frames are decoded from the same read buffer,
+ * so no bytes are lost or misread when the format changes mid-stream.
+ * <p>
+ * Not thread-safe: each connection has one reading thread.
+ * </p>
+ */
+public final class WireReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final LineDecoder lines;
+    private final FrameDecoder frames;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer window = ByteBuffer.wrap(buffer); // Unread bytes between position and limit
+
+    /**
+     * @param in The stream to read from
+     * @param maxLength The longest line or frame payload in bytes that is accepted
+     */
+    public WireReader(InputStream in, int maxLength) {
+        this.in = in;
+        this.lines = new LineDecoder(maxLength);
+        this.frames = new FrameDecoder(maxLength);
+        window.limit(0);
+    }
+
+    /**
+     * Reads the next text line.
+     *
+     * @return The line without its terminator, or null at the end of the stream
+     * @throws IOException If reading fails or the line is too long
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            String line = lines.next(window);
+            if (line != null) {
+                return line;
+            }
+            if (!fill()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the next binary frame and passes it to the listener.
+     *
+     * @param listener Receives the frame
+     * @return true if a frame was read, false at the end of the stream
+     * @throws IOException If reading fails, the input is not a valid frame, or the stream ends mid-frame
+     */
+    public boolean readFrame(FrameListener listener) throws IOException {
+        while (!frames.decodeOne(window, listener)) {
+            if (!fill()) {
+                if (frames.isMidFrame()) {
+                    throw new EOFException("Connection closed in the middle of a frame");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Only called once the window is drained, so the whole buffer can be reused
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read < 0) {
+            window.limit(0);
+            return false;
+        }
+        window.limit(read).position(0);
+        return true;
+    }
+}
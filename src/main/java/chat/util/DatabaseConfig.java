@@ -37,4 +37,29 @@ public class DatabaseConfig {
 
     }
 
+    public static int getPoolMinSize() {
+        return intProperty("db.pool.minSize", 2);
+    }
+
+    public static int getPoolMaxSize() {
+        return intProperty("db.pool.maxSize", 10);
+    }
+
+    public static long getPoolAcquireTimeoutMillis() {
+        return intProperty("db.pool.acquireTimeoutMillis", 5000);
+    }
+
+    public static long getPoolIdleTimeoutMillis() {
+        return intProperty("db.pool.idleTimeoutMillis", 600_000);
+    }
+
+    public static long getPoolLeakThresholdMillis() {
+        return intProperty("db.pool.leakThresholdMillis", 30_000);
+    }
+
+    private static int intProperty(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
 }
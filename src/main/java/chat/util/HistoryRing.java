@@ -0,0 +1,122 @@
+package chat.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The most recent messages of a conversation, kept in a fixed memory budget.
+ * <p>
+ * Messages are stored as UTF-8 bytes in one preallocated array of longs, eight bytes per slot,
+ * each followed by a slot holding its length so that readers can walk back from the newest
+ * message. Appending copies the bytes in and never allocates; once the budget is used up the
+ * oldest messages are overwritten, so how many are kept depends on their size, not on a count.
+ * </p>
+ * <p>
+ * One writer at a time appends (callers serialise appends, e.g. under the lock that already
+ * orders the messages), and any number of readers read concurrently without blocking it. Readers
+ * take no lock: the writer first announces the slots it is about to overwrite, and a reader checks
+ * after copying a message that none of its slots were announced in the meantime, dropping the
+ * message otherwise. All slot accesses are atomic, which is what makes that check sound.
+ * </p>
+ */
+public final class HistoryRing {
+    private static final int SLOT_BYTES = Long.BYTES;
+
+    private final AtomicLongArray slots;
+    private final int capacity; // In slots
+    // Slots ever claimed by the writer, including those it is still writing
+    private final AtomicLong reserved = new AtomicLong();
+    // Slots ever completely written; the newest message ends here
+    private final AtomicLong committed = new AtomicLong();
+
+    /**
+     * @param budgetBytes The memory to use for messages, including an eight-byte length per message
+     */
+    public HistoryRing(int budgetBytes) {
+        this.capacity = Math.max(2, budgetBytes / SLOT_BYTES);
+        this.slots = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Appends a message, overwriting the oldest ones as needed. Must not be called concurrently.
+     *
+     * @param message The message's UTF-8 bytes, from its position to its limit; the position is not changed
+     * @return false if the message is larger than the whole budget and was not kept
+     */
+    public boolean append(ByteBuffer message) {
+        int length = message.remaining();
+        int payloadSlots = (length + SLOT_BYTES - 1) / SLOT_BYTES;
+        if (payloadSlots + 1 > capacity) {
+            return false;
+        }
+        long start = committed.get();
+        reserved.set(start + payloadSlots + 1); // Readers learn of the overwrite before it happens
+        int offset = message.position();
+        for (int slot = 0; slot < payloadSlots; slot++) {
+            long packed = 0;
+            int bytes = Math.min(SLOT_BYTES, length - slot * SLOT_BYTES);
+            for (int i = 0; i < bytes; i++) {
+                packed |= (message.get(offset + slot * SLOT_BYTES + i) & 0xFFL) << (8 * i);
+            }
+            slots.lazySet(index(start + slot), packed);
+        }
+        slots.lazySet(index(start + payloadSlots), length);
+        committed.lazySet(start + payloadSlots + 1);
+        return true;
+    }
+
+    /**
+     * Gets the newest messages, oldest first. Never blocks the writer.
+     *
+     * @param count The most messages to return
+     * @return Up to {@code count} messages; fewer if fewer are kept
+     */
+    public List<String> latest(int count) {
+        List<String> newestFirst = new ArrayList<>();
+        long end = committed.get();
+        while (newestFirst.size() < count && end > 0) {
+            long length = slots.get(index(end - 1));
+            if (length < 0 || length > (long) (capacity - 1) * SLOT_BYTES) {
+                break; // Overwritten under us
+            }
+            int payloadSlots = (int) ((length + SLOT_BYTES - 1) / SLOT_BYTES);
+            long start = end - 1 - payloadSlots;
+            if (start < 0 || start < reserved.get() - capacity) {
+                break; // Older messages are gone
+            }
+            byte[] bytes = new byte[(int) length];
+            for (int slot = 0; slot < payloadSlots; slot++) {
+                long packed = slots.get(index(start + slot));
+                int chunk = Math.min(SLOT_BYTES, bytes.length - slot * SLOT_BYTES);
+                for (int i = 0; i < chunk; i++) {
+                    bytes[slot * SLOT_BYTES + i] = (byte) (packed >>> (8 * i));
+                }
+            }
+            if (start < reserved.get() - capacity) {
+                break; // The writer claimed some of these slots while we copied them
+            }
+            newestFirst.add(new String(bytes, StandardCharsets.UTF_8));
+            end = start;
+        }
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    /**
+     * Gets the memory the ring uses for messages.
+     *
+     * @return The budget in bytes, rounded down to whole slots
+     */
+    public int getBudgetBytes() {
+        return capacity * SLOT_BYTES;
+    }
+
+    private int index(long slot) {
+        return (int) (slot % capacity);
+    }
+}
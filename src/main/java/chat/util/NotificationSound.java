@@ -103,7 +103,7 @@ public class NotificationSound {
                 }
             }
 
-        } catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
+        } catch (UnsupportedAudioFileException | IOException | LineUnavailableException | IllegalArgumentException e) {
             System.err.println("NotificationSound: Error playing sound for " + soundType + ": " + e.getMessage());
             // e.printStackTrace(); // Keep this commented unless actively debugging specific errors
             try {
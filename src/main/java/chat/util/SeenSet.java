@@ -0,0 +1,66 @@
+package chat.util;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe set of recently seen message IDs with a fixed capacity.
+ * Once full, the oldest IDs are forgotten first, so memory stays bounded however long the
+ * node runs; duplicates only ever arrive shortly after the original, well within the window.
+ */
+public final class SeenSet {
+    private final int capacity;
+    private final Set<String> ids = ConcurrentHashMap.newKeySet();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity The number of IDs to remember
+     */
+    public SeenSet(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Records an ID.
+     *
+     * @param id The message ID
+     * @return true if the ID had not been seen yet, false for a duplicate
+     */
+    public boolean add(String id) {
+        if (!ids.add(id)) {
+            return false;
+        }
+        order.offer(id);
+        if (size.incrementAndGet() > capacity) {
+            String oldest = order.poll();
+            if (oldest != null) {
+                ids.remove(oldest);
+                size.decrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether an ID is currently remembered.
+     *
+     * @param id The message ID
+     * @return true if it was seen and not yet forgotten
+     */
+    public boolean contains(String id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * Gets the number of remembered IDs.
+     *
+     * @return The size, at most the capacity
+     */
+    public int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,164 @@
+package chat.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel: one thread serves any number of timeouts at a fixed tick resolution.
+ * <p>
+ * The wheel is a ring of buckets, each covering one tick. A timeout goes into the bucket of its
+ * deadline, with a count of the full turns still to wait, so scheduling and cancelling are O(1)
+ * however many timeouts are pending; each tick only looks at one bucket. Timeouts fire up to
+ * one tick late, which suits coarse deadlines such as idle-connection checks, where a timer
+ * or thread per connection would cost far more.
+ * </p>
+ * <p>
+ * Tasks run on the wheel's thread and must be short; anything slow should be handed off.
+ * </p>
+ */
+public final class TimerWheel implements AutoCloseable {
+    private final long tickNanos;
+    private final List<Timeout>[] buckets;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startNanos;
+    private volatile boolean running = true;
+    private long tick; // Worker thread only
+
+    /**
+     * Starts a wheel.
+     *
+     * @param tickDuration The resolution
+     * @param unit The unit of the resolution
+     * @param wheelSize Number of buckets, rounded up to a power of two; one turn of the wheel
+     *                  should cover the typical delay
+     * @param threadName Name of the wheel's thread
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickDuration, TimeUnit unit, int wheelSize, String threadName) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new List[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task. Thread-safe.
+     *
+     * @param task What to run when the delay has passed, on the wheel's thread
+     * @param delay The delay
+     * @param unit The unit of the delay
+     * @return A handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(delay));
+        if (running) {
+            scheduled.add(timeout);
+        }
+        return timeout;
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            transferScheduled();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    // Moves newly scheduled timeouts into their buckets
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long dueTick = Math.max(timeout.deadlineNanos / tickNanos, tick); // Overdue ones fire now
+            timeout.remainingRounds = (dueTick - tick) / buckets.length;
+            buckets[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                System.err.println("TimerWheel: Task failed: " + e);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    /**
+     * Stops the wheel. Pending tasks never run.
+     */
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos; // Relative to the wheel's start
+        private long remainingRounds;     // Worker thread only
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevents the task from running if it has not run yet. The wheel drops the timeout
+         * the next time it passes its bucket.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
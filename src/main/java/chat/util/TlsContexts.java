@@ -0,0 +1,83 @@
+package chat.util;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Builds the {@link SSLContext}s for TLS connections between clients and the server.
+ * <p>
+ * A context owns the session cache, so one context should live as long as the server, or as
+ * long as a client keeps reconnecting: only then can a reconnect resume the previous session
+ * with an abbreviated handshake instead of repeating the full key exchange.
+ * </p>
+ */
+public final class TlsContexts {
+    private static final String PROTOCOL = "TLS";
+
+    private TlsContexts() {
+    }
+
+    /**
+     * Loads a key store or trust store from a file.
+     *
+     * @param path The file to read
+     * @param password The store password
+     * @param type The store type, e.g. PKCS12 or JKS
+     * @return The loaded store
+     * @throws IOException If the file cannot be read
+     * @throws GeneralSecurityException If the store cannot be decoded or the password is wrong
+     */
+    public static KeyStore loadKeyStore(String path, char[] password, String type) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream input = new FileInputStream(path)) {
+            keyStore.load(input, password);
+        }
+        return keyStore;
+    }
+
+    /**
+     * Creates the server's context.
+     *
+     * @param keyStore Holds the server's private key and certificate chain
+     * @param keyPassword The password of the key
+     * @param sessionCacheSize Sessions kept for resumption; 0 means no limit
+     * @param sessionTimeoutSeconds How long a session can be resumed
+     * @return The context
+     * @throws GeneralSecurityException If the key cannot be used
+     */
+    public static SSLContext serverContext(KeyStore keyStore, char[] keyPassword, int sessionCacheSize,
+                                           int sessionTimeoutSeconds) throws GeneralSecurityException {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, keyPassword);
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+        return context;
+    }
+
+    /**
+     * Creates a client context that trusts the certificates in the given store, e.g. a
+     * self-signed server certificate. Clients trusting the usual certificate authorities can
+     * use {@link SSLContext#getDefault()} instead.
+     *
+     * @param trustStore The trusted certificates
+     * @return The context
+     * @throws GeneralSecurityException If the store cannot be used
+     */
+    public static SSLContext clientContext(KeyStore trustStore) throws GeneralSecurityException {
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,62 @@
+package chat.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket for rate limiting, implemented as the generic cell rate algorithm (GCRA).
+ * <p>
+ * Instead of a token count that has to be refilled, the bucket stores a single "theoretical
+ * arrival time": the moment the bucket would be full again if nothing else arrived. Each
+ * permit pushes it one emission interval into the future, and a request is refused when it is
+ * more than {@code burst} intervals ahead of now. That state fits in one {@link AtomicLong},
+ * so a check is a read and usually one compare-and-set, with no locks, timers or refill threads.
+ * </p>
+ */
+public final class TokenBucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Creates a bucket that starts full.
+     *
+     * @param permitsPerSecond The sustained rate, at least 1
+     * @param burst The number of permits available at once, at least 1
+     */
+    public TokenBucket(int permitsPerSecond, int burst) {
+        if (permitsPerSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + permitsPerSecond + "/s, burst " + burst);
+        }
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.toleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    /**
+     * Takes one permit if available.
+     *
+     * @return true if the permit was granted, false if the caller is over its rate
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Takes one permit if available at the given time.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}
+     * @return true if the permit was granted, false if the caller is over its rate
+     */
+    public boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long start = Math.max(arrival, nowNanos);
+            if (start - nowNanos > toleranceNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+}
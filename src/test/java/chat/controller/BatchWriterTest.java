@@ -0,0 +1,118 @@
+package chat.controller;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the group-commit writer, with an in-memory sink standing in for the database.
+ */
+class BatchWriterTest {
+
+    /**
+     * Test that a burst is written in full batches and the metrics add up.
+     */
+    @Test
+    void testBurstIsGrouped() throws InterruptedException {
+        List<Integer> batchSizes = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        BatchWriter<Integer> writer = new BatchWriter<>("test-writer", 100, 10, 1000, batch -> {
+            try {
+                release.await(); // Holds the first batch back so the rest of the burst piles up
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batchSizes.add(batch.size());
+        });
+        try {
+            for (int i = 0; i < 31; i++) {
+                assertTrue(writer.offer(i));
+            }
+            release.countDown();
+            assertTrue(writer.flush(5000));
+            assertEquals(31, writer.getWrittenCount());
+            assertEquals(10, (int) batchSizes.get(1));
+            assertEquals(10, writer.getMaxBatchSize());
+            assertEquals(31.0 / writer.getBatchCount(), writer.getAverageBatchSize(), 1e-9);
+            assertTrue(writer.getPeakQueueDepth() >= 21);
+            assertEquals(0, writer.getQueueDepth());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Test that a full queue holds a producer back until the writer catches up, and rejects the
+     * item once the timeout passes.
+     */
+    @Test
+    void testBackpressure() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        BatchWriter<Integer> writer = new BatchWriter<>("test-writer", 2, 1, 0, batch -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            assertTrue(writer.offer(1));
+            // Wait for the writer to take the first item, leaving it stuck in the sink
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (writer.getQueueDepth() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(writer.offer(2));
+            assertTrue(writer.offer(3));
+            assertFalse(writer.offer(4));
+            assertFalse(writer.offer(5, 20));
+            assertEquals(2, writer.getRejectedCount());
+
+            new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }).start();
+            assertTrue(writer.offer(6, 5000)); // Admitted once the writer drains
+            assertTrue(writer.flush(5000));
+            assertEquals(4, writer.getWrittenCount());
+        } finally {
+            release.countDown();
+            writer.close();
+        }
+    }
+
+    /**
+     * Test that closing writes what is still queued and that a failed batch is counted, not retried.
+     */
+    @Test
+    void testCloseWritesTheRest() {
+        List<Integer> written = new ArrayList<>();
+        BatchWriter<Integer> writer = new BatchWriter<>("test-writer", 100, 5, 10_000, batch -> {
+            if (batch.contains(0)) {
+                throw new SQLException("Connection refused");
+            }
+            written.addAll(batch);
+        });
+        writer.offer(0);
+        for (int i = 1; i <= 12; i++) {
+            writer.offer(i);
+        }
+        writer.close();
+
+        assertFalse(writer.offer(13));
+        assertEquals(5, writer.getFailedCount());
+        assertEquals(8, writer.getWrittenCount());
+        assertEquals(12, (int) written.get(written.size() - 1));
+        assertTrue(writer.getMaxCommitMicros() >= writer.getAverageCommitMicros());
+    }
+}
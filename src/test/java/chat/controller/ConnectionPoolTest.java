@@ -0,0 +1,119 @@
+package chat.controller;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for the connection pool, with mocked physical connections.
+ */
+class ConnectionPoolTest {
+
+    private final List<Connection> opened = new ArrayList<>();
+
+    private synchronized Connection open() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(connection.isValid(anyInt())).thenReturn(true);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+        opened.add(connection);
+        return connection;
+    }
+
+    /**
+     * Test that closing a borrowed connection returns it for reuse instead of closing it.
+     */
+    @Test
+    void testCloseReturnsToPool() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool(this::open, 0, 4, 1000, 60_000, 0)) {
+            try (Connection conn = pool.getConnection()) {
+                conn.prepareStatement("SELECT 1");
+                assertEquals(1, pool.getActiveCount());
+            }
+            assertEquals(0, pool.getActiveCount());
+            assertEquals(1, pool.getIdleCount());
+            Connection again = pool.getConnection();
+            again.prepareStatement("SELECT 2");
+            again.close();
+            again.close(); // A second close is harmless
+
+            assertEquals(1, opened.size());
+            verify(opened.get(0)).prepareStatement("SELECT 2");
+            verify(opened.get(0), never()).close();
+            assertThrows(SQLException.class, () -> again.prepareStatement("SELECT 3"));
+            assertTrue(again.isClosed());
+            assertEquals(2, pool.getBorrowCount());
+        }
+        verify(opened.get(0)).close();
+    }
+
+    /**
+     * Test that the pool opens its minimum up front and never more than its maximum.
+     */
+    @Test
+    void testSizeLimits() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool(this::open, 2, 2, 50, 60_000, 0)) {
+            assertEquals(2, pool.getIdleCount());
+            Connection first = pool.getConnection();
+            Connection second = pool.getConnection();
+            assertThrows(SQLTimeoutException.class, pool::getConnection);
+            assertEquals(1, pool.getTimeoutCount());
+            assertEquals(2, pool.getActiveCount());
+            first.close();
+            pool.getConnection().close();
+            second.close();
+            assertEquals(2, opened.size());
+            assertEquals(2, pool.getOpenCount());
+        }
+    }
+
+    /**
+     * Test that an idle connection failing validation is replaced and one returned mid-transaction
+     * is rolled back.
+     */
+    @Test
+    void testValidationAndReset() throws SQLException, InterruptedException {
+        try (ConnectionPool pool = new ConnectionPool(this::open, 0, 4, 1000, 60_000, 0)) {
+            Connection conn = pool.getConnection();
+            Connection physical = opened.get(0);
+            when(physical.getAutoCommit()).thenReturn(false);
+            conn.close();
+            verify(physical).rollback();
+            verify(physical).setAutoCommit(true);
+
+            when(physical.isValid(anyInt())).thenReturn(false);
+            Thread.sleep(600); // Past the window in which a just-returned connection is trusted
+            pool.getConnection().close();
+            assertEquals(2, opened.size());
+            verify(physical).close();
+            assertEquals(1, pool.getDiscardedCount());
+        }
+    }
+
+    /**
+     * Test that a connection held past the leak threshold is reported once.
+     */
+    @Test
+    void testLeakDetection() throws SQLException, InterruptedException {
+        try (ConnectionPool pool = new ConnectionPool(this::open, 0, 4, 1000, 60_000, 20)) {
+            Connection leaked = pool.getConnection();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getLeakCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(50);
+            assertEquals(1, pool.getLeakCount());
+            leaked.close();
+        }
+    }
+}
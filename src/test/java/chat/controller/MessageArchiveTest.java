@@ -0,0 +1,120 @@
+package chat.controller;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for archiving room messages with COPY or batched inserts.
+ */
+class MessageArchiveTest {
+
+    private Connection connection;
+    private PreparedStatement insert;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = mock(Connection.class);
+        insert = mock(PreparedStatement.class);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.prepareStatement(startsWith("INSERT"))).thenReturn(insert);
+    }
+
+    /**
+     * Test that without PostgreSQL's driver a burst becomes one JDBC batch in one transaction.
+     */
+    @Test
+    void testBatchedInsert() throws SQLException {
+        MessageArchive archive = new MessageArchive(() -> connection, 100, 50, 500, 0, true);
+        assertTrue(archive.archive("general", "alice", "hello", true));
+        assertTrue(archive.archive("general", "bob", "hi", true));
+        assertTrue(archive.archive("dev", "alice", "build is green", true));
+        archive.close(); // Writes what is queued
+
+        verify(insert, times(3)).addBatch();
+        verify(insert).setString(1, "dev");
+        verify(insert).setString(3, "hi");
+        verify(insert, times(1)).executeBatch();
+        verify(connection, times(1)).commit();
+        verify(connection).setAutoCommit(true);
+        assertEquals(1, archive.getWriter().getBatchCount());
+        assertEquals(3, archive.getWriter().getWrittenCount());
+    }
+
+    /**
+     * Test that on PostgreSQL a batch is streamed with one COPY, quoting the CSV fields.
+     */
+    @Test
+    void testCopy() throws SQLException, IOException {
+        PGConnection pg = mock(PGConnection.class);
+        CopyManager copy = mock(CopyManager.class);
+        when(connection.isWrapperFor(PGConnection.class)).thenReturn(true);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pg);
+        when(pg.getCopyAPI()).thenReturn(copy);
+        String[] csv = new String[1];
+        when(copy.copyIn(anyString(), any(Reader.class))).thenAnswer(invocation -> {
+            csv[0] = new BufferedReader(invocation.getArgument(1, Reader.class)).lines()
+                    .collect(Collectors.joining("\n"));
+            return 2L;
+        });
+
+        MessageArchive archive = new MessageArchive(() -> connection, 100, 50, 500, 0, true);
+        archive.archive("general", "alice", "say \"cheese\", please", true);
+        archive.archive("general", "bob", "two\nlines", true);
+        archive.close();
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(copy, times(1)).copyIn(sql.capture(), any(Reader.class));
+        assertTrue(sql.getValue().startsWith("COPY chat_messages (room, sender, body, created_at) FROM STDIN"));
+        assertTrue(csv[0].startsWith("\"general\",\"alice\",\"say \"\"cheese\"\", please\","));
+        assertTrue(csv[0].contains("\"bob\",\"two\nlines\","));
+        verify(connection, never()).prepareStatement(anyString());
+    }
+
+    /**
+     * Test that a caller that may not block, such as an event-loop thread, is turned away from a
+     * full queue at once, however long the block timeout.
+     */
+    @Test
+    void testFullQueueDoesNotBlockNonBlockingCallers() throws SQLException {
+        CountDownLatch release = new CountDownLatch(1);
+        when(insert.executeBatch()).thenAnswer(invocation -> {
+            release.await();
+            return new int[0];
+        });
+        MessageArchive archive = new MessageArchive(() -> connection, 1, 1, 0, 60_000, false);
+        try {
+            assertTrue(archive.archive("general", "alice", "one", false));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (archive.getWriter().getQueueDepth() > 0 && System.nanoTime() < deadline) {
+                Thread.yield(); // Until the writer is stuck in the first batch
+            }
+            assertTrue(archive.archive("general", "alice", "two", false));
+            long start = System.nanoTime();
+            assertFalse(archive.archive("general", "alice", "three", false));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            assertEquals(1, archive.getWriter().getRejectedCount());
+        } finally {
+            release.countDown();
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package chat.controller;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for storing offline messages in batches and delivering them in pages.
+ */
+class OfflineMessageStoreTest {
+
+    private Connection connection;
+    private PreparedStatement insert;
+    private PreparedStatement select;
+    private PreparedStatement delete;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = mock(Connection.class);
+        insert = mock(PreparedStatement.class);
+        select = mock(PreparedStatement.class);
+        delete = mock(PreparedStatement.class);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.prepareStatement(startsWith("INSERT"))).thenReturn(insert);
+        when(connection.prepareStatement(startsWith("SELECT"))).thenReturn(select);
+        when(connection.prepareStatement(startsWith("DELETE"))).thenReturn(delete);
+    }
+
+    private static ResultSet page(long... ids) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        int[] row = {-1};
+        when(rs.next()).thenAnswer(invocation -> ++row[0] < ids.length);
+        when(rs.getLong("id")).thenAnswer(invocation -> ids[row[0]]);
+        when(rs.getString("body")).thenAnswer(invocation -> "message " + ids[row[0]]);
+        when(rs.getTimestamp("created_at")).thenReturn(new Timestamp(0));
+        return rs;
+    }
+
+    /**
+     * Test that a burst of messages is stored with one multi-row insert in one transaction.
+     */
+    @Test
+    void testBurstIsOneInsert() throws SQLException {
+        OfflineMessageStore store = new OfflineMessageStore(() -> connection, 100, 50, 500, 10);
+        assertTrue(store.store("bob", "one"));
+        assertTrue(store.store("bob", "two"));
+        assertTrue(store.store("carol", "three"));
+        store.close(); // Writes what is queued
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        assertEquals(3, sql.getValue().split("\\(\\?, \\?, \\?::timestamptz\\)", -1).length - 1);
+        verify(insert).setString(1, "bob");
+        verify(insert).setString(5, "two");
+        verify(insert).setString(7, "carol");
+        verify(insert, times(1)).executeUpdate();
+        verify(connection, times(1)).commit();
+        verify(connection).setAutoCommit(true); // Restored for the next user of the connection
+        assertEquals(0, store.getFailedCount());
+    }
+
+    /**
+     * Test that pages are read by keyset, after the last id of the previous page.
+     */
+    @Test
+    void testPagesFollowEachOther() throws SQLException {
+        ResultSet first = page(1, 2);
+        ResultSet last = page(5);
+        when(select.executeQuery()).thenReturn(first, last);
+        OfflineMessageStore store = new OfflineMessageStore(() -> connection, 100, 50, 0, 2);
+        try {
+            OfflineMessageStore.Page page = store.nextPage("bob", 0, 10);
+            assertEquals(2, page.size());
+            assertEquals("message 1", page.getMessage(0));
+            assertEquals(2, page.getLastId());
+            verify(select).setLong(2, 0);
+            verify(select).setInt(3, 2); // Never more than the store's page size
+
+            page = store.nextPage("bob", page.getLastId(), 10);
+            assertEquals(1, page.size());
+            assertEquals("message 5", page.getMessage(0));
+            verify(select).setLong(2, 2);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Test that reading a page deletes nothing; only acknowledging it does.
+     */
+    @Test
+    void testOnlyAcknowledgedMessagesAreDeleted() throws SQLException {
+        ResultSet first = page(3, 4);
+        when(select.executeQuery()).thenReturn(first);
+        OfflineMessageStore store = new OfflineMessageStore(() -> connection, 100, 50, 0, 2);
+        try {
+            OfflineMessageStore.Page page = store.nextPage("bob", 0, 2);
+            verify(connection, never()).prepareStatement(startsWith("DELETE"));
+            store.acknowledge("bob", page.getLastId());
+            verify(delete).setString(1, "bob");
+            verify(delete).setLong(2, 4);
+            verify(delete).executeUpdate();
+            verify(connection, never()).prepareStatement(startsWith("INSERT"));
+        } finally {
+            store.close();
+        }
+    }
+}
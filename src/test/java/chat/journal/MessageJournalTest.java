@@ -0,0 +1,119 @@
+package chat.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the segmented message journal.
+ */
+class MessageJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private JournalConfig config(int segmentBytes) {
+        JournalConfig config = new JournalConfig();
+        config.setDirectory(directory.toString());
+        config.setSegmentBytes(segmentBytes);
+        config.setIndexIntervalBytes(256);
+        config.setRetentionBytes(0);
+        return config;
+    }
+
+    private static List<String> replayAll(MessageJournal journal, long fromSequence) {
+        List<String> messages = new ArrayList<>();
+        journal.replay(fromSequence, record -> messages.add(record.getRoom() + " " + record.getMessage()));
+        return messages;
+    }
+
+    /**
+     * Test that messages roll over into new segments and are found again after reopening.
+     */
+    @Test
+    void testRollAndReopen() throws IOException {
+        JournalConfig config = config(4096);
+        try (MessageJournal journal = MessageJournal.open(config)) {
+            for (int i = 1; i <= 500; i++) {
+                assertEquals(i, journal.append(i % 2 == 0 ? "general" : "dev", "message " + i));
+            }
+            assertTrue(journal.getSegmentCount() > 1);
+        }
+
+        try (MessageJournal journal = MessageJournal.open(config)) {
+            assertEquals(500, journal.getLastSequence());
+            List<String> messages = replayAll(journal, 1);
+            assertEquals(500, messages.size());
+            assertEquals("dev message 1", messages.get(0));
+            assertEquals("general message 500", messages.get(499));
+            assertEquals("dev message 333", journal.read(333).getRoom() + " " + journal.read(333).getMessage());
+            assertEquals(3, replayAll(journal, 498).size());
+            assertNull(journal.read(501));
+
+            assertEquals(501, journal.append("general", "after reopening"));
+            assertEquals("after reopening", journal.read(501).getMessage());
+        }
+    }
+
+    /**
+     * Test that a record torn by a crash is dropped and overwritten by the next append.
+     */
+    @Test
+    void testTornRecordIsDropped() throws IOException {
+        JournalConfig config = config(64 * 1024);
+        try (MessageJournal journal = MessageJournal.open(config)) {
+            journal.append("general", "kept");
+            journal.append("general", "torn");
+        }
+        Path segment = directory.resolve(JournalSegment.fileName(1, JournalSegment.LOG_SUFFIX));
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length - 1;
+        while (bytes[end] == 0) {
+            end--; // The second record ends where the unused, zeroed part of the segment starts
+        }
+        bytes[end] ^= 0xFF;
+        Files.write(segment, bytes);
+
+        try (MessageJournal journal = MessageJournal.open(config)) {
+            assertEquals(1, journal.getLastSequence());
+            assertEquals(2, journal.append("general", "after the crash"));
+            List<String> messages = replayAll(journal, 1);
+            assertEquals(2, messages.size());
+            assertEquals("general after the crash", messages.get(1));
+        }
+    }
+
+    /**
+     * Test that the oldest sealed segments are deleted once the journal is over its byte budget.
+     */
+    @Test
+    void testRetentionDeletesOldestSegments() throws IOException {
+        JournalConfig config = config(4096);
+        config.setRetentionBytes(3 * 4096);
+        try (MessageJournal journal = MessageJournal.open(config)) {
+            for (int i = 1; i <= 1000; i++) {
+                journal.append("general", "message " + i);
+            }
+            journal.sealRolled();
+            journal.applyRetention(System.currentTimeMillis());
+
+            assertTrue(journal.getSegmentCount() <= 4, "segments: " + journal.getSegmentCount());
+            assertTrue(journal.getFirstSequence() > 1);
+            assertNull(journal.read(1));
+            assertEquals("message 1000", journal.read(1000).getMessage());
+            assertEquals(1000 - journal.getFirstSequence() + 1, replayAll(journal, 0).size());
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(journal.getSegmentCount(),
+                        files.filter(file -> file.toString().endsWith(JournalSegment.LOG_SUFFIX)).count());
+            }
+        }
+    }
+}
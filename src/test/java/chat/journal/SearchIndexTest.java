@@ -0,0 +1,74 @@
+package chat.journal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the inverted index behind //search.
+ */
+class SearchIndexTest {
+
+    /**
+     * Test that a search returns the newest messages containing every term, optionally in one room.
+     */
+    @Test
+    void testSearchIntersectsTermsNewestFirst() {
+        SearchIndex index = new SearchIndex();
+        index.add(1, "general", "[alice]: Deploy went fine");
+        index.add(2, "dev", "[bob]: deploy failed, rolling back");
+        index.add(3, "general", "[carol]: lunch?");
+        index.add(300, "dev", "[alice]: deploy fixed");
+        index.add(70_000, "general", "[bob]: another DEPLOY!");
+
+        assertArrayEquals(new long[]{70_000, 300, 2, 1}, index.search("deploy", null, 10));
+        assertArrayEquals(new long[]{70_000, 300}, index.search("deploy", null, 2));
+        assertArrayEquals(new long[]{300, 2}, index.search("deploy", "dev", 10));
+        assertArrayEquals(new long[]{300, 1}, index.search("Alice deploy", null, 10));
+        assertArrayEquals(new long[0], index.search("deploy lunch", null, 10));
+        assertArrayEquals(new long[0], index.search("?!", null, 10));
+        assertArrayEquals(new long[0], index.search("nowhere", null, 10));
+    }
+
+    /**
+     * Test that messages deleted from the journal are forgotten, and terms left without messages with them.
+     */
+    @Test
+    void testRemoveBefore() {
+        SearchIndex index = new SearchIndex();
+        index.add(1, "general", "only once");
+        for (long sequence = 2; sequence <= 100; sequence++) {
+            index.add(sequence, "general", "message " + sequence);
+        }
+        int terms = index.getTermCount();
+        long bytes = index.getPostingBytes();
+
+        index.removeBefore(90);
+        assertArrayEquals(new long[]{100, 99, 98}, index.search("message", null, 3));
+        assertEquals(11, index.search("message", "general", 100).length);
+        assertArrayEquals(new long[0], index.search("once", null, 10));
+        assertTrue(index.getTermCount() < terms);
+        assertTrue(index.getPostingBytes() < bytes);
+    }
+
+    /**
+     * Test that messages indexed while old ones are being forgotten are kept.
+     */
+    @Test
+    void testAddDuringRemoveBefore() throws InterruptedException {
+        SearchIndex index = new SearchIndex();
+        for (long sequence = 1; sequence <= 20_000; sequence++) {
+            index.add(sequence, "general", "message " + (sequence % 100));
+        }
+        Thread trimmer = new Thread(() -> index.removeBefore(19_000));
+        trimmer.start();
+        for (long sequence = 20_001; sequence <= 25_000; sequence++) {
+            index.add(sequence, "general", "message " + (sequence % 100));
+        }
+        trimmer.join();
+
+        assertEquals(6001, index.search("message", null, 100_000).length);
+        assertArrayEquals(new long[]{25_000, 24_900}, index.search("message 0", null, 2));
+        assertEquals(19_000, index.search("message", "general", 100_000)[6000]);
+    }
+}
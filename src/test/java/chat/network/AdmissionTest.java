@@ -0,0 +1,93 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the cap on connections that have not logged in yet.
+ */
+class AdmissionTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test that a connection beyond the cap gets a BUSY reply and is closed, and that a login
+     * frees a slot for the next connection.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testRejectsBeyondCapUntilLogin(ServerMode mode) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setMaxUnauthenticatedConnections(2);
+        server = TestServers.start(config);
+        try (TestLineClient first = new TestLineClient(server.getPort());
+             TestLineClient second = new TestLineClient(server.getPort())) {
+            TestServers.await(() -> server.getUnauthenticatedConnectionCount() == 2, "both connections are admitted");
+
+            try (TestLineClient rejected = new TestLineClient(server.getPort())) {
+                assertEquals(AdmissionController.BUSY_REPLY, rejected.readLine());
+                assertTrue(rejected.isClosedByServer());
+            }
+            assertEquals(1, server.getRejectedConnectionCount());
+
+            first.login("first", TestServers.PASSWORD);
+            assertEquals(1, server.getUnauthenticatedConnectionCount());
+            try (TestLineClient admitted = new TestLineClient(server.getPort()).login("third", TestServers.PASSWORD)) {
+                admitted.send("//online");
+                assertTrue(admitted.readLineStartingWith("Online users: ").contains("third"));
+            }
+            assertEquals(1, server.getRejectedConnectionCount());
+        }
+    }
+
+    /**
+     * Test that a connection closing before it logs in gives its slot back.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testClosedConnectionReleasesSlot(ServerMode mode) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setMaxUnauthenticatedConnections(1);
+        server = TestServers.start(config);
+        try (TestLineClient quitter = new TestLineClient(server.getPort())) {
+            TestServers.await(() -> server.getUnauthenticatedConnectionCount() == 1, "the connection is admitted");
+        }
+        TestServers.await(() -> server.getUnauthenticatedConnectionCount() == 0, "the slot is released");
+        try (TestLineClient next = new TestLineClient(server.getPort()).login("next", TestServers.PASSWORD)) {
+            assertEquals(0, server.getRejectedConnectionCount());
+        }
+    }
+
+    /**
+     * Test that clients resetting their connections right after connecting neither stop the
+     * acceptors nor keep their slots.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testResetStormKeepsAccepting(ServerMode mode) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setMaxUnauthenticatedConnections(64);
+        server = TestServers.start(config);
+        for (int i = 0; i < 50; i++) {
+            try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+                socket.setSoLinger(true, 0); // Close with a reset
+            }
+        }
+        try (TestLineClient next = new TestLineClient(server.getPort()).login("next", TestServers.PASSWORD)) {
+            next.send("//online");
+            assertTrue(next.readLineStartingWith("Online users: ").contains("next"));
+            TestServers.await(() -> server.getUnauthenticatedConnectionCount() == 0, "every slot is released");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package chat.network;
+
+import chat.protocol.FrameType;
+import chat.protocol.WireFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for negotiating binary framing and mixing binary and text clients.
+ */
+class BinaryProtocolTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Test that binary and text clients chat with each other, including multi-line messages.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testBinaryAndTextClients(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        try (TestLineClient alice = new TestLineClient(server.getPort()).switchToBinary().login("alice", TestServers.PASSWORD);
+             TestLineClient bob = new TestLineClient(server.getPort()).login("bob", TestServers.PASSWORD)) {
+            alice.readLineStartingWith("bob has joined the chat!");
+
+            bob.send("hi from text");
+            assertEquals("[bob]: hi from text", alice.readLine());
+
+            alice.send("two\nlines");
+            assertEquals("[alice]: two", bob.readLine()); // Text clients see the embedded newline
+            assertEquals("lines", bob.readLine());
+
+            alice.send("//msg bob framed pm");
+            assertEquals("[PM to bob]: framed pm", alice.readLine());
+            assertEquals("[PM from alice]: framed pm", bob.readLine());
+        }
+    }
+
+    /**
+     * Test that only the first command may negotiate, and unknown versions keep the text protocol.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testNegotiationRules(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        try (TestLineClient late = new TestLineClient(server.getPort());
+             TestLineClient unknown = new TestLineClient(server.getPort())) {
+            late.send("LOGIN late wrong");
+            assertTrue(late.readLine().startsWith("AUTH_FAILED:"));
+            late.send("PROTOCOL BINARY/1");
+            assertEquals("ERROR:PROTOCOL must be the first command on a connection.", late.readLine());
+
+            unknown.send("PROTOCOL BINARY/9");
+            assertTrue(unknown.readLine().startsWith("PROTOCOL_UNSUPPORTED:"));
+            unknown.login("unknown", TestServers.PASSWORD); // Still speaking text
+        }
+    }
+
+    /**
+     * Test that a frame larger than the maximum line length closes the connection.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testOversizedFrameDisconnects(ServerMode mode) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setMaxLineLength(1024);
+        server = TestServers.start(config);
+        try (TestLineClient client = new TestLineClient(server.getPort()).switchToBinary()) {
+            client.sendRaw(new byte[]{(byte) FrameType.MESSAGE.getCode(), 0, (byte) 0x80, (byte) 0x80, 0x01});
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    /**
+     * Test that Client negotiates binary framing with this server and logs in over it.
+     */
+    @Test
+    void testClientUsesBinary() throws Exception {
+        server = TestServers.start(TestServers.quietConfig(ServerMode.NIO));
+        Client client = new Client();
+        client.connect("localhost", server.getPort(), WireFormat.BINARY);
+        try {
+            assertEquals(WireFormat.BINARY, client.getWireFormat());
+            assertTrue(client.login("alice", TestServers.PASSWORD));
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test that Client falls back to text against a server that rejects the negotiation,
+     * as servers without binary framing do.
+     */
+    @Test
+    void testClientFallsBackToText() throws Exception {
+        try (ServerSocket oldServer = new ServerSocket(0)) {
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = oldServer.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                    in.readLine();
+                    out.println("ERROR:Invalid initial command. Expected REGISTER, LOGIN, or EXIT_AUTH.");
+                    String[] request = in.readLine().split(" ", 2); // REQ:<id> <command>
+                    if (request[1].startsWith("REGISTER ")) {
+                        out.println("REPLY:" + request[0].substring("REQ:".length()) + " REGISTER_SUCCESS:Account created.");
+                    }
+                } catch (IOException e) {
+                    // Test fails on the client side
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            Client client = new Client();
+            client.connect("localhost", oldServer.getLocalPort(), WireFormat.BINARY);
+            try {
+                assertEquals(WireFormat.TEXT, client.getWireFormat());
+                assertTrue(client.register("alice", "pw"));
+            } finally {
+                client.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package chat.network;
+
+import chat.util.BenchmarkSupport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Harness comparing broadcast encoding strategies for 1k recipients:
+ * the old path where each recipient's {@link PrintWriter} re-encodes the String, against
+ * {@link OutboundMessage} which is encoded once and shared as read-only buffer views.
+ * Reports time and bytes allocated per broadcast.
+ */
+@Tag("benchmark")
+class BroadcastEncodingBenchmark {
+
+    private static final int RECIPIENTS = 1_000;
+    private static final int BROADCASTS = 2_000;
+    private static final String MESSAGE = "[alice]: The deploy finished, all nodes are healthy again. "
+            + "Ping me if the dashboards still look off — ünïcödé included.";
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private static final WritableByteChannel DISCARD_CHANNEL = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Test
+    void compareBroadcastEncoding() {
+        PrintWriter[] writers = new PrintWriter[RECIPIENTS];
+        for (int i = 0; i < RECIPIENTS; i++) {
+            writers[i] = new PrintWriter(new OutputStreamWriter(DISCARD, StandardCharsets.UTF_8), true);
+        }
+        Runnable perWriterEncoding = () -> {
+            for (PrintWriter writer : writers) {
+                writer.println(MESSAGE);
+            }
+        };
+        Runnable encodeOnceStream = () -> {
+            OutboundMessage message = OutboundMessage.of(MESSAGE);
+            try {
+                for (int i = 0; i < RECIPIENTS; i++) {
+                    message.writeTo(DISCARD);
+                }
+            } catch (java.io.IOException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        Runnable encodeOnceBuffers = () -> {
+            OutboundMessage message = OutboundMessage.of(MESSAGE);
+            try {
+                for (int i = 0; i < RECIPIENTS; i++) {
+                    DISCARD_CHANNEL.write(message.buffer());
+                }
+            } catch (java.io.IOException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+
+        double legacy = measure("per-writer encoding", perWriterEncoding);
+        measure("encode once, stream", encodeOnceStream);
+        double shared = measure("encode once, buffer views", encodeOnceBuffers);
+        assertTrue(shared < legacy, "shared buffers must allocate less than per-writer encoding");
+    }
+
+    // Returns bytes allocated per broadcast
+    private static double measure(String variant, Runnable broadcast) {
+        BenchmarkSupport.warmUp(broadcast, BROADCASTS);
+        long allocatedBefore = BenchmarkSupport.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < BROADCASTS; i++) {
+            broadcast.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        double bytesPerBroadcast = (BenchmarkSupport.allocatedBytes() - allocatedBefore) / (double) BROADCASTS;
+        BenchmarkSupport.report("broadcast x" + RECIPIENTS, variant, String.format(
+                "%,10.0f ns/broadcast %,10.0f broadcasts/s %,12.0f B allocated/broadcast",
+                elapsed / (double) BROADCASTS, BROADCASTS * 1e9 / elapsed, bytesPerBroadcast));
+        return bytesPerBroadcast;
+    }
+}
@@ -0,0 +1,83 @@
+package chat.network;
+
+import chat.protocol.WireFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for {@link Client#sendAsync(String)} against a real server.
+ */
+class ClientAsyncSendTest {
+
+    private static final int MESSAGES = 2000;
+
+    private Server server;
+    private final Client client = new Client();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.disconnect();
+        server.stop();
+    }
+
+    /**
+     * Test that a burst of asynchronous sends arrives complete and in order, in every wire format.
+     */
+    @ParameterizedTest
+    @EnumSource(WireFormat.class)
+    void testBurstArrivesInOrder(WireFormat format) throws Exception {
+        ServerConfig config = TestServers.quietConfig(ServerMode.NIO);
+        config.setOutboundQueueCapacity(2 * MESSAGES); // The receiver only starts reading once everything is sent
+        server = TestServers.start(config);
+        client.setMessageHandler(line -> { });
+        try (TestLineClient receiver = new TestLineClient(server.getPort()).login("receiver", TestServers.PASSWORD)) {
+            client.connect("localhost", server.getPort(), format);
+            assertTrue(client.login("bot", TestServers.PASSWORD));
+            receiver.readLineStartingWith("bot has joined the chat!");
+
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (int i = 0; i < MESSAGES; i++) {
+                sent.add(client.sendAsync("message " + i));
+            }
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals("[bot]: message " + i, receiver.readLine());
+            }
+        }
+    }
+
+    /**
+     * Test that disconnecting writes what is still queued, and that sending afterwards fails.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testDisconnectFlushesQueue(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        client.setMessageHandler(line -> { });
+        try (TestLineClient receiver = new TestLineClient(server.getPort()).login("receiver", TestServers.PASSWORD)) {
+            client.connect("localhost", server.getPort());
+            assertTrue(client.login("bot", TestServers.PASSWORD));
+            receiver.readLineStartingWith("bot has joined the chat!");
+            for (int i = 0; i < 100; i++) {
+                client.sendAsync("last words " + i);
+            }
+            client.disconnect();
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals("[bot]: last words " + i, receiver.readLine());
+            }
+            ExecutionException failed = assertThrows(ExecutionException.class, () -> client.sendAsync("gone").get());
+            assertInstanceOf(IOException.class, failed.getCause());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package chat.network;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for tagged requests and the {@link CompletableFuture}-based {@link Client} API.
+ */
+class ClientRequestTest {
+
+    /**
+     * Test that pipelined requests each get their own reply while chat traffic reaches the message handler.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testPipelinedRequestsAreDemultiplexed(ServerMode mode) throws Exception {
+        Server server = TestServers.start(TestServers.quietConfig(mode));
+        BlockingQueue<String> chat = new LinkedBlockingQueue<>();
+        Client client = new Client();
+        client.setMessageHandler(chat::add);
+        try (TestLineClient other = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD)) {
+            client.connect("localhost", server.getPort());
+            CompletableFuture<Boolean> login = client.loginAsync("bot", TestServers.PASSWORD);
+            CompletableFuture<List<String>> online = client.online();
+            CompletableFuture<String> welcome = client.welcome();
+            CompletableFuture<String> chatLine = client.request("hello");
+
+            assertTrue(login.get(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("alice", "bot"), online.get(5, TimeUnit.SECONDS).stream()
+                    .sorted().collect(Collectors.toList()));
+            assertEquals(server.getWelcomeMessage(), welcome.get(5, TimeUnit.SECONDS));
+            assertEquals("OK", chatLine.get(5, TimeUnit.SECONDS));
+            other.readLineStartingWith("[bot]: hello");
+
+            other.send("hi bot");
+            assertEquals("[alice]: hi bot", chat.poll(5, TimeUnit.SECONDS));
+            assertEquals(0, client.getPendingRequestCount());
+        } finally {
+            client.disconnect();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test that the server tags every reply to a request and leaves untagged lines alone.
+     */
+    @Test
+    void testServerTagsReplies() throws Exception {
+        Server server = TestServers.start(TestServers.quietConfig(ServerMode.NIO));
+        try (TestLineClient client = new TestLineClient(server.getPort())) {
+            client.send("REQ:r-1 LOGIN carol " + TestServers.PASSWORD);
+            assertEquals("REPLY:r-1 AUTH_SUCCESS:Welcome, carol!", client.readLineStartingWith("REPLY:r-1 "));
+            client.send("REQ:r_2 just chatting");
+            client.send("//welcome");
+            assertEquals("REPLY:r_2 OK", client.readLineStartingWith("REPLY:r_2 "));
+            assertEquals(server.getWelcomeMessage(), client.readLineStartingWith(server.getWelcomeMessage()));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Test that requests still waiting for a reply fail once the client disconnects.
+     */
+    @Test
+    void testDisconnectFailsPendingRequests() throws Exception {
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            Client client = new Client();
+            client.connect("localhost", silentServer.getLocalPort());
+            try (Socket ignored = silentServer.accept()) {
+                CompletableFuture<String> welcome = client.welcome();
+                assertEquals(1, client.getPendingRequestCount());
+                client.disconnect();
+
+                ExecutionException e = assertThrows(ExecutionException.class, () -> welcome.get(5, TimeUnit.SECONDS));
+                assertInstanceOf(IOException.class, e.getCause());
+                assertEquals(0, client.getPendingRequestCount());
+            }
+        }
+    }
+}
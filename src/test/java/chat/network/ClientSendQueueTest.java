@@ -0,0 +1,116 @@
+package chat.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the client's asynchronous send queue.
+ */
+class ClientSendQueueTest {
+
+    /**
+     * Test that lines queued while the writer is busy go out together, in order.
+     */
+    @Test
+    void testBatchesLinesInOrder() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        ClientSendQueue queue = new ClientSendQueue(100, 10, lines -> {
+            awaitQuietly(release);
+            batches.add(new ArrayList<>(lines));
+        }, "test-writer");
+
+        CompletableFuture<Void> first = queue.send("0");
+        TestServers.await(() -> queue.size() == 0, "the writer took the first line");
+        List<CompletableFuture<Void>> rest = new ArrayList<>();
+        for (int i = 1; i <= 15; i++) {
+            rest.add(queue.send(String.valueOf(i)));
+        }
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> future : rest) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(3, batches.size());
+        assertEquals(Collections.singletonList("0"), batches.get(0));
+        assertEquals(10, batches.get(1).size()); // At most maxBatch lines per write
+        List<String> all = new ArrayList<>();
+        batches.forEach(all::addAll);
+        for (int i = 0; i <= 15; i++) {
+            assertEquals(String.valueOf(i), all.get(i));
+        }
+        queue.close(1000);
+    }
+
+    /**
+     * Test that a full queue holds the sender back until the writer makes room.
+     */
+    @Test
+    void testFullQueueBlocksSender() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ClientSendQueue queue = new ClientSendQueue(2, 10, lines -> awaitQuietly(release), "test-writer");
+        queue.send("in flight");
+        TestServers.await(() -> queue.size() == 0, "the writer took the first line");
+        queue.send("queued 1");
+        queue.send("queued 2");
+
+        CompletableFuture<CompletableFuture<Void>> blocked = CompletableFuture.supplyAsync(() -> queue.send("waits"));
+        Thread.sleep(200);
+        assertFalse(blocked.isDone(), "send must wait while the queue is full");
+
+        release.countDown();
+        blocked.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        queue.close(1000);
+    }
+
+    /**
+     * Test that a write error fails the batch and every later send.
+     */
+    @Test
+    void testWriteErrorFailsPendingAndLaterSends() throws Exception {
+        ClientSendQueue queue = new ClientSendQueue(10, 10, lines -> {
+            throw new IOException("broken pipe");
+        }, "test-writer");
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> queue.send("lost").get(5, TimeUnit.SECONDS));
+        assertEquals("broken pipe", failed.getCause().getMessage());
+        TestServers.await(() -> queue.send("after").isCompletedExceptionally(), "later sends fail at once");
+    }
+
+    /**
+     * Test that closing writes what is queued and then refuses new lines.
+     */
+    @Test
+    void testCloseDrainsQueue() throws Exception {
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        ClientSendQueue queue = new ClientSendQueue(1000, 50, written::addAll, "test-writer");
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(queue.send("line " + i));
+        }
+        queue.close(5000);
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        }
+        assertEquals(500, written.size());
+        assertTrue(queue.send("too late").isCompletedExceptionally());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
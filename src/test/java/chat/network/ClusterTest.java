@@ -0,0 +1,234 @@
+package chat.network;
+
+import chat.protocol.FrameCodec;
+import chat.protocol.WireReader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for cluster mode: three nodes on loopback ports in one JVM relaying chat,
+ * private messages and presence, plus peer authentication and duplicate, loop and spoofing
+ * suppression on the peer links.
+ */
+class ClusterTest {
+    private static final String SECRET = "cluster-test-secret";
+    private static final String NONCE = "bm9uY2U=";
+
+    private final List<Server> nodes = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (Server node : nodes) {
+            node.stop();
+        }
+    }
+
+    private Server startNode(ServerMode mode, String nodeId, Server... peers) throws InterruptedException {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setClusterNodeId(nodeId);
+        config.setClusterSecret(SECRET);
+        config.setClusterBindAddress("127.0.0.1");
+        StringBuilder peerList = new StringBuilder();
+        for (Server peer : peers) {
+            peerList.append(peerList.length() == 0 ? "" : ",").append("127.0.0.1:").append(peer.getCluster().getPort());
+        }
+        config.setClusterPeers(peerList.toString());
+        Server node = TestServers.start(config);
+        nodes.add(node);
+        return node;
+    }
+
+    // Reads the next text frame, or null at the end of the stream
+    private static String readPayload(WireReader in) throws IOException {
+        String[] text = new String[1];
+        return in.readFrame((type, flags, payload) -> text[0] = FrameCodec.text(payload)) ? text[0] : null;
+    }
+
+    private static String prove(String secret, String verifierNonce, String proverNonce, String proverId,
+                                String verifierId) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        String signed = verifierNonce + '\t' + proverNonce + '\t' + proverId + '\t' + verifierId;
+        return Base64.getEncoder().encodeToString(mac.doFinal(signed.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Reads a node's HELLO: its id and its challenge
+    private static String[] readHello(WireReader in) throws IOException {
+        String[] hello = readPayload(in).split("\t");
+        assertEquals("HELLO", hello[0]);
+        return hello;
+    }
+
+    /**
+     * Dials a node's cluster port over a raw socket as node {@code peerId}, proving itself with
+     * {@code secret}, and checks the node's answer if it gives one.
+     *
+     * @return true if the node answered, false if it hung up instead
+     */
+    private static boolean handshake(Socket peer, WireReader in, String peerId, String secret) throws Exception {
+        String[] hello = readHello(in);
+        OutputStream out = peer.getOutputStream();
+        out.write(FrameCodec.encodeMessage("HELLO\t" + peerId + "\t" + NONCE));
+        out.write(FrameCodec.encodeMessage("AUTH\t" + prove(secret, hello[2], NONCE, peerId, hello[1])));
+        out.flush();
+        String answer;
+        try {
+            answer = readPayload(in);
+        } catch (IOException e) {
+            return false; // Reset rather than closed
+        }
+        if (answer == null) {
+            return false;
+        }
+        assertEquals("AUTH\t" + prove(SECRET, NONCE, hello[2], hello[1], peerId), answer);
+        return true;
+    }
+
+    /**
+     * Test that room messages, notices, private messages and //online span all three nodes.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testThreeNodeRelay(ServerMode mode) throws Exception {
+        Server a = startNode(mode, "a");
+        Server b = startNode(mode, "b", a);
+        Server c = startNode(mode, "c", a, b);
+        for (Server node : nodes) {
+            TestServers.await(() -> node.getCluster().getConnectedPeers().size() == 2, "the mesh is complete");
+        }
+
+        try (TestLineClient alice = new TestLineClient(a.getPort()).login("alice", TestServers.PASSWORD);
+             TestLineClient bob = new TestLineClient(b.getPort()).login("bob", TestServers.PASSWORD);
+             TestLineClient carol = new TestLineClient(c.getPort()).login("carol", TestServers.PASSWORD)) {
+            for (Server node : nodes) {
+                TestServers.await(() -> node.getOnlineUserNames().split(", ").length == 3, "presence reached every node");
+            }
+            alice.readLineStartingWith("carol has joined the chat!");
+            bob.readLineStartingWith("carol has joined the chat!");
+
+            alice.send("hello cluster");
+            assertEquals("[alice]: hello cluster", bob.readLineStartingWith("[alice]:"));
+            assertEquals("[alice]: hello cluster", carol.readLineStartingWith("[alice]:"));
+
+            carol.send("//online");
+            String online = carol.readLineStartingWith("Online users: ");
+            assertTrue(online.contains("alice") && online.contains("bob") && online.contains("carol"), online);
+
+            alice.send("//msg carol psst");
+            // Join notices from different nodes travel different links, so bob's may still be ahead
+            assertEquals("[PM to carol]: psst", alice.readLineStartingWith("[PM to carol]:"));
+            assertEquals("[PM from alice]: psst", carol.readLine());
+
+            // bob saw no private message: his next line is this public one
+            carol.send("public again");
+            assertEquals("[carol]: public again", bob.readLine());
+            assertEquals("[carol]: public again", alice.readLine());
+
+            c.stop();
+            nodes.remove(c);
+            TestServers.await(() -> !a.getOnlineUserNames().contains("carol"), "carol's node left the directory");
+            alice.send("//msg carol still there?");
+            assertEquals("ERROR:User 'carol' is not online.", alice.readLine());
+        }
+    }
+
+    /**
+     * Test that a peer's duplicate messages and messages claiming another origin, including this
+     * node's own, are dropped, and that a peer's users leave //online when its link goes down.
+     */
+    @Test
+    void testDuplicatesAndLoopsAreDropped() throws Exception {
+        Server a = startNode(ServerMode.BLOCKING, "a");
+        try (TestLineClient alice = new TestLineClient(a.getPort()).login("alice", TestServers.PASSWORD)) {
+            try (Socket peer = new Socket("127.0.0.1", a.getCluster().getPort())) {
+                WireReader in = new WireReader(peer.getInputStream(), 1 << 20);
+                assertTrue(handshake(peer, in, "z", SECRET));
+                OutputStream out = peer.getOutputStream();
+                out.write(FrameCodec.encodeMessage("JOIN\tz:1\tzed"));
+                out.write(FrameCodec.encodeMessage("ROOM\tz:2\tgeneral\t[zed]: once"));
+                out.write(FrameCodec.encodeMessage("ROOM\tz:2\tgeneral\t[zed]: once"));
+                out.write(FrameCodec.encodeMessage("ROOM\ta:2\tgeneral\t[zed]: looped back"));
+                out.write(FrameCodec.encodeMessage("ROOM\ty:1\tgeneral\t[yan]: spoofed"));
+                out.write(FrameCodec.encodeMessage("JOIN\ty:2\tyan"));
+                out.write(FrameCodec.encodeMessage("ROOM\tz:3\tgeneral\t[zed]: twice"));
+                out.flush();
+
+                assertEquals("[zed]: once", alice.readLine());
+                assertEquals("[zed]: twice", alice.readLine());
+                alice.send("//online");
+                assertEquals("Online users: alice, zed", alice.readLine());
+            }
+            TestServers.await(() -> !a.getOnlineUserNames().contains("zed"), "the closed peer's users are dropped");
+        }
+    }
+
+    /**
+     * Test that a peer that does not know the cluster secret is cut off before anything it sends
+     * is delivered.
+     */
+    @Test
+    void testPeerWithoutSecretIsRefused() throws Exception {
+        Server a = startNode(ServerMode.BLOCKING, "a");
+        try (TestLineClient alice = new TestLineClient(a.getPort()).login("alice", TestServers.PASSWORD);
+             Socket peer = new Socket("127.0.0.1", a.getCluster().getPort())) {
+            WireReader in = new WireReader(peer.getInputStream(), 1 << 20);
+            assertFalse(handshake(peer, in, "z", "wrong-secret"));
+            assertTrue(a.getCluster().getConnectedPeers().isEmpty());
+            alice.send("//online");
+            assertEquals("Online users: alice", alice.readLine());
+        }
+    }
+
+    /**
+     * Test that a node never answers the challenge of a peer that has not proved itself, and
+     * that an answer one node gave for a handshake with a third node does not get a link to
+     * another node accepted.
+     */
+    @Test
+    void testRelayedProofIsRefused() throws Exception {
+        Server a = startNode(ServerMode.BLOCKING, "a");
+        Server b = startNode(ServerMode.BLOCKING, "b");
+        try (Socket toA = new Socket("127.0.0.1", a.getCluster().getPort());
+             Socket toB = new Socket("127.0.0.1", b.getCluster().getPort())) {
+            WireReader fromA = new WireReader(toA.getInputStream(), 1 << 20);
+            WireReader fromB = new WireReader(toB.getInputStream(), 1 << 20);
+            String[] helloA = readHello(fromA);
+            readHello(fromB);
+
+            // Pass a's challenge on to b: b waits for our proof and gives nothing away
+            toB.getOutputStream().write(FrameCodec.encodeMessage("HELLO\tx\t" + helloA[2]));
+            toB.getOutputStream().flush();
+            toB.setSoTimeout(300);
+            assertThrows(SocketTimeoutException.class, () -> readPayload(fromB));
+
+            // Even b's answer to a's challenge, had b given it to node x, is no good to a
+            OutputStream out = toA.getOutputStream();
+            out.write(FrameCodec.encodeMessage("HELLO\tb\t" + NONCE));
+            out.write(FrameCodec.encodeMessage("AUTH\t" + prove(SECRET, helloA[2], NONCE, "b", "x")));
+            out.flush();
+            try {
+                assertNull(readPayload(fromA)); // a hung up
+            } catch (IOException e) {
+                // Reset rather than closed
+            }
+            assertTrue(a.getCluster().getConnectedPeers().isEmpty());
+            assertTrue(b.getCluster().getConnectedPeers().isEmpty());
+        }
+    }
+}
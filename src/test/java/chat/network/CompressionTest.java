@@ -0,0 +1,85 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for per-message compression negotiated before LOGIN.
+ */
+class CompressionTest {
+
+    private static final String LOG = buildLog();
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test that large messages reach compressing clients compressed and everyone else as before,
+     * and that compressed messages from a client are understood.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testMixedClients(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        try (TestLineClient zipped = new TestLineClient(server.getPort()).switchToBinary().enableCompression()
+                .login("zipped", TestServers.PASSWORD);
+             TestLineClient framed = new TestLineClient(server.getPort()).switchToBinary().login("framed", TestServers.PASSWORD);
+             TestLineClient text = new TestLineClient(server.getPort()).login("text", TestServers.PASSWORD)) {
+            zipped.readLineStartingWith("text has joined the chat!");
+            framed.readLineStartingWith("text has joined the chat!");
+
+            text.sendRaw(("//msg zipped " + LOG.replace('\n', ' ') + "\n").getBytes("UTF-8"));
+            assertEquals("[PM from text]: " + LOG.replace('\n', ' '), zipped.readLine());
+            assertTrue(zipped.wasLastLineCompressed());
+            text.readLineStartingWith("[PM to zipped]: ");
+
+            zipped.sendCompressed(LOG);
+            String[] lines = ("[zipped]: " + LOG).split("\n");
+            for (String line : lines) {
+                assertEquals(line, text.readLine());
+            }
+            assertEquals("[zipped]: " + LOG, framed.readLine());
+            assertFalse(framed.wasLastLineCompressed());
+
+            zipped.send("//rooms"); // Short replies are not worth compressing
+            assertTrue(zipped.readLine().startsWith("Rooms: "));
+            assertFalse(zipped.wasLastLineCompressed());
+        }
+    }
+
+    /**
+     * Test that text connections cannot negotiate compression and un-negotiated compressed frames are refused.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testNegotiationRules(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        try (TestLineClient text = new TestLineClient(server.getPort());
+             TestLineClient framed = new TestLineClient(server.getPort()).switchToBinary()) {
+            text.send("COMPRESS DEFLATE");
+            assertEquals("ERROR:COMPRESS requires the BINARY/1 protocol.", text.readLine());
+            text.send("COMPRESS BROTLI");
+            assertTrue(text.readLine().startsWith("COMPRESS_UNSUPPORTED:"));
+
+            framed.sendCompressed("LOGIN framed " + LOG);
+            assertTrue(framed.isClosedByServer());
+        }
+    }
+
+    private static String buildLog() {
+        StringBuilder log = new StringBuilder("java.lang.NullPointerException: room was null");
+        for (int i = 0; i < 30; i++) {
+            log.append("\n\tat chat.network.ClientHandler.handleChatLine(ClientHandler.java:").append(200 + i).append(')');
+        }
+        return log.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for PING/PONG heartbeats and reaping of silent connections.
+ */
+class HeartbeatTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    private static ServerConfig heartbeatConfig(ServerMode mode) {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setHeartbeatIntervalMillis(100);
+        config.setIdleTimeoutMillis(400);
+        config.setIdleTimerTickMillis(10);
+        return config;
+    }
+
+    /**
+     * Test that a client answering PINGs stays connected well past the idle timeout, while a
+     * silent one is reaped and announced as having left.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testSilentClientIsReaped(ServerMode mode) throws Exception {
+        server = TestServers.start(heartbeatConfig(mode));
+        try (TestLineClient alive = new TestLineClient(server.getPort()).login("alive", TestServers.PASSWORD);
+             TestLineClient silent = new TestLineClient(server.getPort()).login("silent", TestServers.PASSWORD)) {
+            int pings = 0;
+            String line;
+            while (!(line = alive.readLine()).equals("silent has left the chat.")) {
+                if (line.equals("PING")) {
+                    pings++;
+                    alive.send("PONG");
+                }
+            }
+            assertTrue(pings >= 2, "answered " + pings + " PINGs");
+            assertEquals("PING", silent.readLineStartingWith("PING"));
+            assertTrue(silent.isClosedByServer());
+            assertEquals(1, server.getReapedConnectionCount());
+            assertTrue(server.getHeartbeatCount() >= 3);
+
+            alive.send("//online");
+            assertEquals("Online users: alive", alive.readLineStartingWith("Online users: "));
+        }
+    }
+
+    /**
+     * Test that clients may PING the server too.
+     */
+    @Test
+    void testClientPing() throws Exception {
+        server = TestServers.start(TestServers.quietConfig(ServerMode.BLOCKING));
+        try (TestLineClient client = new TestLineClient(server.getPort()).login("pinger", TestServers.PASSWORD)) {
+            client.send("PING");
+            assertEquals("PONG", client.readLine());
+        }
+    }
+
+    /**
+     * Test that {@link Client} answers heartbeats by itself, without showing them to the user.
+     */
+    @Test
+    void testClientAnswersHeartbeats() throws Exception {
+        server = TestServers.start(heartbeatConfig(ServerMode.NIO));
+        Client client = new Client();
+        try {
+            client.connect("127.0.0.1", server.getPort());
+            assertTrue(client.login("steady", TestServers.PASSWORD));
+            BlockingQueue<String> shown = new LinkedBlockingQueue<>();
+            client.setMessageHandler(shown::add);
+            Thread.sleep(1000); // Two and a half idle timeouts
+            assertTrue(client.isConnected());
+            assertEquals(0, server.getReapedConnectionCount());
+            assertTrue(server.getHeartbeatCount() >= 2);
+            assertFalse(shown.contains("PING"));
+        } finally {
+            client.disconnect();
+        }
+    }
+}
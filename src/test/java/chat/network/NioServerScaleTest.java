@@ -0,0 +1,72 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Scale test for the NIO server engine: holds many loopback connections open in one JVM.
+ * Each connection costs two file descriptors here (client and server side), so run it with
+ * {@code mvn test -Pperf} on a machine whose open-files limit is above 2x the connection count.
+ * The count can be lowered with {@code -Dchat.scale.connections=N}.
+ */
+@Tag("scale")
+class NioServerScaleTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("chat.scale.connections", 10_000);
+
+    private Server server;
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        ServerConfig config = TestServers.quietConfig(ServerMode.NIO);
+        config.setMaxUnauthenticatedConnections(0); // The held connections never log in
+        server = TestServers.start(config);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Test that the server keeps serving with thousands of idle connections and a fixed thread count.
+     */
+    @Test
+    void testHoldsTenThousandConnections() throws IOException {
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            channels.add(SocketChannel.open(new InetSocketAddress("localhost", server.getPort())));
+        }
+        long connectMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // A fresh client can still log in and see the server answer while all the others stay connected
+        try (TestLineClient probe = new TestLineClient(server.getPort()).login("probe", TestServers.PASSWORD)) {
+            probe.send("//online");
+            assertEquals("Online users: probe", probe.readLineStartingWith("Online users: "));
+        }
+
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println("NioServerScaleTest: " + CONNECTIONS + " connections opened in " + connectMillis
+                + " ms, threads before=" + threadsBefore + " after=" + threadsAfter);
+        for (SocketChannel channel : channels) {
+            assertTrue(channel.isConnected());
+        }
+        assertTrue(threadsAfter - threadsBefore < 50, "thread count must not grow with connections");
+    }
+}
@@ -0,0 +1,100 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the NIO server engine.
+ * Drives the line protocol over real loopback sockets and checks it matches the blocking engine.
+ */
+class NioServerTest {
+
+    private Server server;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        server = TestServers.start(TestServers.quietConfig(ServerMode.NIO));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test that LOGIN is answered and failed attempts may be retried on the same connection.
+     */
+    @Test
+    void testLoginAndRetry() throws IOException {
+        try (TestLineClient client = new TestLineClient(server.getPort())) {
+            client.send("LOGIN alice wrong");
+            assertEquals("AUTH_FAILED:Invalid username or password.", client.readLine());
+            client.send("LOGIN alice " + TestServers.PASSWORD);
+            assertEquals("AUTH_SUCCESS:Welcome, alice!", client.readLine());
+        }
+    }
+
+    /**
+     * Test REGISTER, unknown commands and EXIT_AUTH during the authentication phase.
+     */
+    @Test
+    void testAuthPhaseCommands() throws IOException {
+        try (TestLineClient client = new TestLineClient(server.getPort())) {
+            client.send("HELLO");
+            assertEquals("ERROR:Invalid initial command. Expected REGISTER, LOGIN, or EXIT_AUTH.", client.readLine());
+            client.send("REGISTER bob pw");
+            assertTrue(client.readLine().startsWith("REGISTER_SUCCESS:"));
+            client.send("EXIT_AUTH");
+            assertTrue(client.readLine().startsWith("INFO:"));
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    /**
+     * Test chat broadcasts and the //online, //welcome and //setwelcome commands.
+     */
+    @Test
+    void testChatCommandsAndBroadcast() throws IOException {
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD);
+             TestLineClient bob = new TestLineClient(server.getPort()).login("bob", TestServers.PASSWORD)) {
+            assertEquals("bob has joined the chat!", alice.readLine());
+
+            bob.send("Hello Alice");
+            assertEquals("[bob]: Hello Alice", alice.readLine());
+
+            alice.send("//online");
+            String online = alice.readLineStartingWith("Online users: ");
+            assertTrue(online.contains("alice") && online.contains("bob"));
+
+            alice.send("//setwelcome Hi there");
+            assertEquals("Welcome message updated.", alice.readLine());
+            bob.send("//welcome");
+            assertEquals("Hi there", bob.readLine());
+
+            bob.send("//exit");
+            assertTrue(bob.isClosedByServer());
+            assertEquals("bob has left the chat.", alice.readLine());
+        }
+    }
+
+    /**
+     * Test that a peer sending an endless line is disconnected instead of growing a buffer forever.
+     */
+    @Test
+    void testOverlongLineClosesConnection() throws IOException {
+        server.getConfig().setMaxLineLength(1024);
+        try (TestLineClient client = new TestLineClient(server.getPort())) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < 2048; i++) {
+                line.append('x');
+            }
+            client.send(line.toString());
+            assertTrue(client.isClosedByServer());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package chat.network;
+
+import chat.auth.AccountManager;
+import chat.controller.OfflineMessageStore;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for keeping messages for offline users and delivering them at login.
+ */
+class OfflineDeliveryTest {
+
+    // A store on mocked JDBC: the first page read is empty (the sender's own login), the second
+    // holds the given messages
+    private static OfflineMessageStore storeWithPage(String... messages) throws SQLException {
+        Connection connection = mock(Connection.class);
+        PreparedStatement select = mock(PreparedStatement.class);
+        ResultSet page = mock(ResultSet.class);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.prepareStatement(startsWith("INSERT"))).thenReturn(mock(PreparedStatement.class));
+        when(connection.prepareStatement(startsWith("DELETE"))).thenReturn(mock(PreparedStatement.class));
+        when(connection.prepareStatement(startsWith("SELECT"))).thenReturn(select);
+        when(select.executeQuery()).thenReturn(mock(ResultSet.class), page, mock(ResultSet.class));
+        int[] row = {-1};
+        when(page.next()).thenAnswer(invocation -> ++row[0] < messages.length);
+        when(page.getLong("id")).thenAnswer(invocation -> (long) row[0] + 1);
+        when(page.getString("body")).thenAnswer(invocation -> messages[row[0]]);
+        when(page.getTimestamp("created_at")).thenReturn(new Timestamp(System.currentTimeMillis()));
+        return spy(new OfflineMessageStore(() -> connection, 100, 50, 0, 100));
+    }
+
+    /**
+     * Test that private messages and mentions for offline users are stored, and stored messages
+     * are sent after LOGIN and deleted once written.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testStoreAndDeliver(ServerMode mode) throws Exception {
+        OfflineMessageStore store = storeWithPage("[PM from alice]: see you tomorrow", "[alice]: ping @bob");
+        AccountManager accounts = TestServers.acceptingAccountManager();
+        when(accounts.accountExists("bob")).thenReturn(true);
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setOfflineDeliveryEnabled(true);
+        Server server = new Server(config, accounts);
+        server.setOfflineStore(store);
+        TestServers.start(server);
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD)) {
+            alice.send("//msg bob see you tomorrow");
+            assertEquals("[PM to bob (offline, delivered at their next login)]: see you tomorrow", alice.readLine());
+            verify(store).store("bob", "[PM from alice]: see you tomorrow");
+
+            alice.send("ping @bob, @alice and mail@example.com");
+            verify(store, timeout(5000)).store("bob", "[alice]: ping @bob, @alice and mail@example.com");
+            verify(store, never()).store(eq("alice"), anyString());
+            verify(store, never()).store(eq("example"), anyString());
+
+            try (TestLineClient bob = new TestLineClient(server.getPort())) {
+                bob.send("LOGIN bob " + TestServers.PASSWORD);
+                bob.readLineStartingWith("AUTH_SUCCESS:");
+                assertTrue(bob.readLine().endsWith("] [PM from alice]: see you tomorrow"));
+                assertTrue(bob.readLine().endsWith("] [alice]: ping @bob"));
+                assertEquals("OFFLINE_END:2 messages arrived while you were offline.", bob.readLine());
+                verify(store).acknowledge("bob", 2);
+            }
+        } finally {
+            server.stop();
+        }
+        verify(store).close();
+    }
+
+    /**
+     * Test that a private message to a name without an account is refused instead of confirmed.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testUnknownRecipientIsRefused(ServerMode mode) throws Exception {
+        OfflineMessageStore store = storeWithPage("one", "two");
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setOfflineDeliveryEnabled(true);
+        Server server = new Server(config, TestServers.acceptingAccountManager());
+        server.setOfflineStore(store);
+        TestServers.start(server);
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD)) {
+            alice.send("REQ:7 //msg bbo see you tomorrow");
+            assertEquals("REPLY:7 ERROR:User 'bbo' is not online.", alice.readLine());
+            verify(store, never()).store(anyString(), anyString());
+            verify(store, never()).nextPage(eq("bbo"), anyLong(), anyInt());
+        } finally {
+            server.stop();
+        }
+    }
+}
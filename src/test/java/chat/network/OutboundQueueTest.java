@@ -0,0 +1,76 @@
+package chat.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the OutboundQueue class.
+ * Tests each slow-consumer policy and the drop counters.
+ */
+class OutboundQueueTest {
+
+    private final AtomicLong totalDropped = new AtomicLong();
+
+    private static OutboundMessage message(String text) {
+        return OutboundMessage.of(text);
+    }
+
+    /**
+     * Test that DROP_OLDEST keeps the newest messages and counts what it discarded.
+     */
+    @Test
+    void testDropOldest() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.DROP_OLDEST, 0, totalDropped);
+        assertTrue(queue.offer(message("1"), true));
+        assertTrue(queue.offer(message("2"), true));
+        assertTrue(queue.offer(message("3"), true));
+
+        assertEquals("2", queue.poll().getText());
+        assertEquals("3", queue.poll().getText());
+        assertNull(queue.poll());
+        assertEquals(1, queue.getDroppedMessages());
+        assertEquals(1, totalDropped.get());
+    }
+
+    /**
+     * Test that DISCONNECT refuses the message once the queue is full.
+     */
+    @Test
+    void testDisconnect() {
+        OutboundQueue queue = new OutboundQueue(1, SlowConsumerPolicy.DISCONNECT, 0, totalDropped);
+        assertTrue(queue.offer(message("1"), true));
+        assertFalse(queue.offer(message("2"), true));
+        assertEquals(1, queue.getDroppedMessages());
+    }
+
+    /**
+     * Test that BLOCK waits for the writer to make room and gives up after the timeout.
+     */
+    @Test
+    void testBlockWithTimeout() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, SlowConsumerPolicy.BLOCK, 2000, totalDropped);
+        assertTrue(queue.offer(message("1"), true));
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                queue.take();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        writer.start();
+        assertTrue(queue.offer(message("2"), true)); // Waits until the writer took "1"
+        writer.join();
+
+        OutboundQueue stuck = new OutboundQueue(1, SlowConsumerPolicy.BLOCK, 50, totalDropped);
+        assertTrue(stuck.offer(message("1"), true));
+        long start = System.nanoTime();
+        assertFalse(stuck.offer(message("2"), true));
+        assertTrue(System.nanoTime() - start >= 40_000_000L);
+        assertFalse(stuck.offer(message("3"), false)); // Event-loop callers never wait
+        assertEquals(2, totalDropped.get());
+    }
+}
@@ -0,0 +1,163 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for peer-to-peer mode: the server hands out endpoints and tickets, clients
+ * then chat over direct connections and fall back to the server relay when they cannot.
+ */
+class PeerToPeerTest {
+
+    private Server server;
+    private final List<Client> clients = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (Client client : clients) {
+            client.disconnect();
+        }
+        server.stop();
+    }
+
+    private Client login(String username, BlockingQueue<String> messages) throws IOException {
+        Client client = new Client();
+        clients.add(client);
+        client.connect("127.0.0.1", server.getPort());
+        assertTrue(client.login(username, TestServers.PASSWORD));
+        client.setMessageHandler(messages::add);
+        return client;
+    }
+
+    private static String next(BlockingQueue<String> messages, String prefix) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        String message;
+        while ((message = messages.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+            if (message.startsWith(prefix)) {
+                return message;
+            }
+        }
+        fail("No message starting with '" + prefix + "' arrived");
+        return null;
+    }
+
+    /**
+     * Test that messages between two peer-enabled clients go direct, in both directions,
+     * and that the directory lists them.
+     */
+    @Test
+    void testDirectMessages() throws Exception {
+        server = TestServers.start(TestServers.quietConfig(ServerMode.NIO));
+        BlockingQueue<String> aliceInbox = new LinkedBlockingQueue<>();
+        BlockingQueue<String> bobInbox = new LinkedBlockingQueue<>();
+        Client alice = login("alice", aliceInbox);
+        Client bob = login("bob", bobInbox);
+        assertTrue(alice.enablePeerToPeer(0));
+        assertTrue(bob.enablePeerToPeer(0));
+
+        assertTrue(alice.sendDirect("bob", "hi bob"));
+        assertEquals("[DM to bob]: hi bob", next(aliceInbox, "[DM"));
+        assertEquals("[DM from alice]: hi bob", next(bobInbox, "[DM"));
+
+        assertTrue(bob.sendDirect("alice", "hi alice")); // Reuses the connection alice opened
+        assertEquals("[DM from bob]: hi alice", next(aliceInbox, "[DM from"));
+
+        alice.sendMessage("//peers");
+        String peers = next(aliceInbox, "Peers: ");
+        assertTrue(peers.contains("alice") && peers.contains("bob"), peers);
+        assertTrue(aliceInbox.stream().noneMatch(message -> message.startsWith("[PM")), "nothing was relayed");
+    }
+
+    /**
+     * Test that gossip messages reach the rest of a group over direct connections, and that only
+     * a copy received straight from its origin shows that origin as verified.
+     */
+    @Test
+    void testGossipGroup() throws Exception {
+        server = TestServers.start(TestServers.quietConfig(ServerMode.NIO));
+        List<String> members = Arrays.asList("alice", "bob", "carol");
+        List<BlockingQueue<String>> inboxes = new ArrayList<>();
+        List<Client> group = new ArrayList<>();
+        for (String member : members) {
+            BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+            Client client = login(member, inbox);
+            assertTrue(client.enablePeerToPeer(0));
+            client.startGossip(members, 1, 3); // Fanout 1: bob or carol has to forward it
+            inboxes.add(inbox);
+            group.add(client);
+        }
+        group.get(0).gossip("hello group");
+        String bobSaw = next(inboxes.get(1), "[gossip");
+        String carolSaw = next(inboxes.get(2), "[gossip");
+        // One of them got it straight from alice, the other from whoever alice picked
+        if (bobSaw.equals("[gossip from alice]: hello group")) {
+            assertEquals("[gossip from alice (unverified, via bob)]: hello group", carolSaw);
+        } else {
+            assertEquals("[gossip from alice (unverified, via carol)]: hello group", bobSaw);
+            assertEquals("[gossip from alice]: hello group", carolSaw);
+        }
+    }
+
+    /**
+     * Test that a recipient without a published endpoint still gets the message through the server.
+     */
+    @Test
+    void testFallsBackToServerRelay() throws Exception {
+        server = TestServers.start(TestServers.quietConfig(ServerMode.BLOCKING));
+        BlockingQueue<String> aliceInbox = new LinkedBlockingQueue<>();
+        BlockingQueue<String> carolInbox = new LinkedBlockingQueue<>();
+        Client alice = login("alice", aliceInbox);
+        login("carol", carolInbox);
+        assertTrue(alice.enablePeerToPeer(0));
+
+        assertFalse(alice.sendDirect("carol", "via the server"));
+        assertEquals("[PM from alice]: via the server", next(carolInbox, "[PM"));
+        assertEquals("[PM to carol]: via the server", next(aliceInbox, "[PM"));
+    }
+
+    /**
+     * Test that a direct connection without a ticket from the server is refused.
+     */
+    @Test
+    void testForgedTicketIsRefused() throws Exception {
+        server = TestServers.start(TestServers.quietConfig(ServerMode.BLOCKING));
+        Client bob = login("bob", new LinkedBlockingQueue<>());
+        assertTrue(bob.enablePeerToPeer(0));
+        try (Socket socket = new Socket("127.0.0.1", bob.getPeerPort())) {
+            socket.setSoTimeout(5000);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println("P2P_HELLO mallory " + System.currentTimeMillis() + ".forged");
+            assertEquals("P2P_DENIED", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    /**
+     * Test that the server refuses to publish endpoints when peer-to-peer is disabled.
+     */
+    @Test
+    void testDisabledOnServer() throws Exception {
+        ServerConfig config = TestServers.quietConfig(ServerMode.BLOCKING);
+        config.setPeerToPeerEnabled(false);
+        server = TestServers.start(config);
+        Client alice = login("alice", new LinkedBlockingQueue<>());
+        assertFalse(alice.enablePeerToPeer(0));
+        assertEquals(0, alice.getPeerPort());
+    }
+}
@@ -0,0 +1,50 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for direct private messages (//msg).
+ */
+class PrivateMessageTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test that a private message reaches only its recipient and offline users are reported.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testPrivateMessage(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD);
+             TestLineClient bob = new TestLineClient(server.getPort()).login("bob", TestServers.PASSWORD);
+             TestLineClient carol = new TestLineClient(server.getPort()).login("carol", TestServers.PASSWORD)) {
+            alice.readLineStartingWith("carol has joined the chat!");
+            bob.readLineStartingWith("carol has joined the chat!");
+
+            alice.send("//msg bob are you there?");
+            assertEquals("[PM to bob]: are you there?", alice.readLine());
+            assertEquals("[PM from alice]: are you there?", bob.readLine());
+
+            alice.send("//msg dave hello");
+            assertEquals("ERROR:User 'dave' is not online.", alice.readLine());
+            alice.send("//msg bob");
+            assertTrue(alice.readLine().startsWith("ERROR:Invalid //msg command format."));
+
+            // carol saw none of it: her next line is this public message
+            bob.send("public again");
+            assertEquals("[bob]: public again", carol.readLine());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for per-connection and per-user rate limiting.
+ */
+class RateLimitTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    private static ServerConfig limitedConfig(ServerMode mode) {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setRateLimitEnabled(true);
+        config.setChatRatePerSecond(1);
+        config.setChatBurst(5);
+        config.setCommandRatePerSecond(1);
+        config.setCommandBurst(10);
+        config.setUserChatRatePerSecond(1);
+        config.setUserChatBurst(8);
+        return config;
+    }
+
+    /**
+     * Test that a chat flood is cut off after the burst with one notice, while commands keep working.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testChatFloodIsThrottled(ServerMode mode) throws Exception {
+        server = TestServers.start(limitedConfig(mode));
+        try (TestLineClient receiver = new TestLineClient(server.getPort()).login("receiver", TestServers.PASSWORD);
+             TestLineClient flooder = new TestLineClient(server.getPort()).login("flooder", TestServers.PASSWORD)) {
+            receiver.readLineStartingWith("flooder has joined the chat!");
+
+            StringBuilder flood = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                flood.append("spam ").append(i).append('\n');
+            }
+            flooder.sendRaw(flood.toString().getBytes(StandardCharsets.UTF_8));
+            assertTrue(flooder.readLine().startsWith("THROTTLED:You are sending messages too fast."));
+
+            flooder.send("//rooms"); // Separate budget
+            assertTrue(flooder.readLine().startsWith("Rooms: "));
+
+            for (int i = 0; i < 5; i++) {
+                assertEquals("[flooder]: spam " + i, receiver.readLine());
+            }
+            receiver.send("//rooms"); // Nothing else arrived before this reply
+            assertTrue(receiver.readLine().startsWith("Rooms: "));
+            assertEquals(3, server.getThrottledLineCount());
+        }
+    }
+
+    /**
+     * Test that several sessions of one user share the per-user budget.
+     */
+    @Test
+    void testUserBudgetSpansSessions() throws Exception {
+        server = TestServers.start(limitedConfig(ServerMode.NIO));
+        try (TestLineClient first = new TestLineClient(server.getPort()).login("multi", TestServers.PASSWORD);
+             TestLineClient second = new TestLineClient(server.getPort()).login("multi", TestServers.PASSWORD)) {
+            for (int i = 0; i < 5; i++) {
+                first.send("first " + i); // Whole connection burst, 5 of the user's 8
+            }
+            first.send("//rooms"); // Lines are handled in order: once this replies, all five were admitted
+            first.readLineStartingWith("Rooms: ");
+            for (int i = 0; i < 4; i++) {
+                second.send("second " + i); // Only 3 left for the user
+            }
+            assertTrue(second.readLineStartingWith("THROTTLED:").startsWith("THROTTLED:You are sending messages"));
+            assertEquals(1, server.getThrottledLineCount());
+        }
+    }
+
+    /**
+     * Test that a client that keeps flooding is disconnected.
+     */
+    @Test
+    void testPersistentFloodDisconnects() throws Exception {
+        ServerConfig config = limitedConfig(ServerMode.BLOCKING);
+        config.setThrottleDisconnectThreshold(10);
+        server = TestServers.start(config);
+        try (TestLineClient flooder = new TestLineClient(server.getPort()).login("flooder", TestServers.PASSWORD)) {
+            StringBuilder flood = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                flood.append("spam\n");
+            }
+            flooder.sendRaw(flood.toString().getBytes(StandardCharsets.UTF_8));
+            assertEquals("THROTTLED:Disconnected for sending too many messages.",
+                    flooder.readLineStartingWith("THROTTLED:Disconnected"));
+            assertTrue(flooder.isClosedByServer());
+        }
+    }
+}
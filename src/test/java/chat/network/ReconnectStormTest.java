@@ -0,0 +1,105 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconnect storm: every client connects and logs in at the same moment, as after a server
+ * restart, and the time until all of them are logged in is measured. Clients turned away with
+ * BUSY (or reset while the backlog overflows) back off and retry. Run it with
+ * {@code mvn test -Pperf}; the client count can be changed with {@code -Dchat.storm.clients=N}
+ * and needs an open-files limit above 2x that count.
+ */
+@Tag("scale")
+class ReconnectStormTest {
+
+    private static final int CLIENTS = Integer.getInteger("chat.storm.clients", 1000);
+    private static final long MAX_BACKOFF_MILLIS = 200;
+    // A login can wait behind the whole storm; giving up early would only add retries to it
+    private static final int LOGIN_TIMEOUT_MILLIS = 60_000;
+
+    private Server server;
+    private final List<TestLineClient> clients = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        for (TestLineClient client : clients) {
+            client.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Test that every client of the storm ends up logged in, with and without an admission cap.
+     */
+    @ParameterizedTest(name = "{0}, maxUnauthenticated={1}")
+    @CsvSource({"BLOCKING, 0", "BLOCKING, 64", "NIO, 0", "NIO, 64"})
+    void testAllClientsAuthenticate(ServerMode mode, int maxUnauthenticated) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setMaxUnauthenticatedConnections(maxUnauthenticated);
+        server = TestServers.start(config);
+
+        ExecutorService pool = Executors.newFixedThreadPool(CLIENTS);
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger attempts = new AtomicInteger();
+        List<Future<TestLineClient>> logins = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            String username = "storm" + i;
+            logins.add(pool.submit(() -> {
+                go.await();
+                return loginWithRetry(username, attempts);
+            }));
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        for (Future<TestLineClient> login : logins) {
+            clients.add(login.get(2, TimeUnit.MINUTES));
+        }
+        long allAuthenticatedMillis = (System.nanoTime() - start) / 1_000_000;
+        pool.shutdown();
+
+        System.out.println("ReconnectStormTest: " + mode + " maxUnauthenticated=" + maxUnauthenticated + ", "
+                + CLIENTS + " clients authenticated in " + allAuthenticatedMillis + " ms, attempts="
+                + attempts.get() + ", rejected=" + server.getRejectedConnectionCount());
+        // Attempts that gave up may still be closing on the server side
+        TestServers.await(() -> server.getUnauthenticatedConnectionCount() == 0, "all admission slots are released");
+    }
+
+    private TestLineClient loginWithRetry(String username, AtomicInteger attempts) throws Exception {
+        long backoffMillis = 5;
+        while (true) {
+            attempts.incrementAndGet();
+            TestLineClient client = null;
+            try {
+                client = new TestLineClient(server.getPort());
+                client.getSocket().setSoTimeout(LOGIN_TIMEOUT_MILLIS);
+                client.send("LOGIN " + username + " " + TestServers.PASSWORD);
+                String reply = client.readLine();
+                if (reply != null && reply.startsWith("AUTH_SUCCESS:")) {
+                    return client;
+                }
+            } catch (IOException e) {
+                // Reset or refused while the backlog overflowed; retry like a rejected client
+            }
+            if (client != null) {
+                client.close();
+            }
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis, 2 * backoffMillis));
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package chat.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the ReplayBuffer class.
+ */
+class ReplayBufferTest {
+
+    private static String texts(List<OutboundMessage> messages) {
+        StringBuilder texts = new StringBuilder();
+        for (OutboundMessage message : messages) {
+            texts.append(message.getText());
+        }
+        return texts.toString();
+    }
+
+    /**
+     * Test that only the messages after the given sequence number are replayed, oldest first.
+     */
+    @Test
+    void testReplaysMessagesAfterSequence() {
+        ReplayBuffer buffer = new ReplayBuffer(4);
+        buffer.add(3, OutboundMessage.of("a"));
+        buffer.add(7, OutboundMessage.of("b"));
+        buffer.add(8, OutboundMessage.of("c"));
+
+        assertEquals("abc", texts(buffer.after(0)));
+        assertEquals("bc", texts(buffer.after(3)));
+        assertEquals("c", texts(buffer.after(7)));
+        assertTrue(buffer.after(8).isEmpty());
+        assertTrue(buffer.covers(0));
+    }
+
+    /**
+     * Test that a full buffer overwrites its oldest message and reports gaps it can no longer fill.
+     */
+    @Test
+    void testOverwritesOldest() {
+        ReplayBuffer buffer = new ReplayBuffer(2);
+        buffer.add(1, OutboundMessage.of("a"));
+        buffer.add(2, OutboundMessage.of("b"));
+        buffer.add(5, OutboundMessage.of("c"));
+
+        assertEquals(2, buffer.size());
+        assertEquals("bc", texts(buffer.after(0)));
+        assertFalse(buffer.covers(0));
+        assertTrue(buffer.covers(1));
+        assertEquals("c", texts(buffer.after(2)));
+    }
+}
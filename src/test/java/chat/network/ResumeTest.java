@@ -0,0 +1,89 @@
+package chat.network;
+
+import chat.auth.AccountManager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Test class for resuming a session after reconnecting.
+ */
+class ResumeTest {
+
+    /**
+     * Test that a resumed session gets exactly the room messages it missed, without a password check.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testResumeReplaysOnlyTheGap(ServerMode mode) throws Exception {
+        AccountManager accountManager = TestServers.acceptingAccountManager();
+        Server server = TestServers.start(TestServers.quietConfig(mode), accountManager);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        Client client = new Client();
+        client.setMessageHandler(received::add);
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD)) {
+            client.connect("localhost", server.getPort());
+            assertTrue(client.login("bot", TestServers.PASSWORD));
+            client.request("//rooms").get(5, TimeUnit.SECONDS); // The session is in the room once this is answered
+            assertTrue(client.canResume());
+
+            alice.send("one");
+            assertEquals("[alice]: one", received.poll(5, TimeUnit.SECONDS));
+            client.disconnect();
+            alice.readLineStartingWith("bot has left the chat.");
+            alice.send("two");
+            alice.send("three");
+
+            client.connect("localhost", server.getPort());
+            assertTrue(client.resume());
+            alice.send("four");
+            assertEquals("[alice]: two", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("[alice]: three", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("[alice]: four", received.poll(5, TimeUnit.SECONDS));
+
+            verify(accountManager, times(2)).validateCredentials(anyString(), anyString()); // alice and bot's LOGIN
+            assertEquals(1, server.getResumedSessionCount());
+            assertTrue(client.canResume()); // A fresh token for the next reconnect
+        } finally {
+            client.disconnect();
+            server.stop();
+        }
+    }
+
+    /**
+     * Test that a token only works once and that an unknown token falls back to logging in.
+     */
+    @Test
+    void testTokenIsSingleUse() throws Exception {
+        Server server = TestServers.start(TestServers.quietConfig(ServerMode.NIO));
+        try (TestLineClient first = new TestLineClient(server.getPort())) {
+            first.send("RESUMABLE");
+            assertEquals("RESUMABLE_OK", first.readLine());
+            first.send("LOGIN carol " + TestServers.PASSWORD);
+            String token = first.readLineStartingWith("SESSION:").substring("SESSION:".length());
+            first.readLineStartingWith("AUTH_SUCCESS:");
+            first.send("//exit");
+            assertTrue(first.isClosedByServer());
+
+            TestServers.await(() -> server.getClient("carol") == null, "carol's session is closed");
+            try (TestLineClient second = new TestLineClient(server.getPort());
+                 TestLineClient third = new TestLineClient(server.getPort())) {
+                second.send("RESUME " + token + " general:0");
+                assertEquals("RESUMED:Welcome back, carol!", second.readLineStartingWith("RESUMED:"));
+                third.send("RESUME " + token);
+                assertTrue(third.readLine().startsWith("RESUME_FAILED:"));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for chat rooms: //join, //leave, //rooms and per-room //online.
+ */
+class RoomTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test that room traffic only reaches the room's members.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testRoomMessagesStayInTheRoom(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD);
+             TestLineClient bob = new TestLineClient(server.getPort()).login("bob", TestServers.PASSWORD);
+             TestLineClient carol = new TestLineClient(server.getPort()).login("carol", TestServers.PASSWORD)) {
+            alice.readLineStartingWith("carol has joined the chat!");
+            bob.readLineStartingWith("carol has joined the chat!");
+
+            alice.send("//join dev");
+            assertEquals("Joined room 'dev'. Messages now go to #dev.", alice.readLine());
+            bob.send("//join dev");
+            bob.readLineStartingWith("Joined room 'dev'");
+            assertEquals("bob has joined #dev", alice.readLine());
+
+            alice.send("ship it");
+            assertEquals("#dev [alice]: ship it", bob.readLine());
+
+            carol.send("//online dev");
+            assertEquals("Online users in dev: alice, bob", carol.readLine());
+            carol.send("//rooms");
+            String rooms = carol.readLine();
+            assertTrue(rooms.contains("general (3) [active]"), rooms);
+            assertTrue(rooms.contains("dev (2)"), rooms);
+
+            bob.send("//leave dev");
+            assertEquals("Left room 'dev'. Messages now go to #general.", bob.readLine());
+            assertEquals("bob has left #dev", alice.readLine());
+            assertFalse(server.getRoom("dev").getOnlineUserNames().contains("bob"));
+            // carol never saw the #dev traffic: the next line she receives is bob's message in general
+            bob.send("back in general");
+            assertEquals("[bob]: back in general", carol.readLine());
+
+            alice.send("//leave dev");
+            alice.readLineStartingWith("Left room 'dev'.");
+            TestServers.await(() -> server.getRoom("dev") == null, "the empty room is dropped");
+
+            alice.send("//leave nowhere");
+            assertEquals("ERROR:You are not in room 'nowhere'.", alice.readLineStartingWith("ERROR:"));
+            alice.send("//join bad room!");
+            assertTrue(alice.readLineStartingWith("ERROR:").startsWith("ERROR:Invalid room name"));
+        }
+    }
+
+    /**
+     * Test that //history streams the active room's recent messages, oldest first.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testHistory(ServerMode mode) throws Exception {
+        server = TestServers.start(TestServers.quietConfig(mode));
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD)) {
+            for (int i = 1; i <= 3; i++) {
+                alice.send("line " + i);
+            }
+            alice.send("//history 2");
+            assertEquals("[alice]: line 2", alice.readLine());
+            assertEquals("[alice]: line 3", alice.readLine());
+            assertEquals("HISTORY_END:2 messages from #general", alice.readLine());
+
+            try (TestLineClient bob = new TestLineClient(server.getPort()).login("bob", TestServers.PASSWORD)) {
+                bob.send("//history");
+                assertEquals("[alice]: line 1", bob.readLine());
+                bob.readLineStartingWith("HISTORY_END:3 messages");
+                bob.send("//history zero");
+                assertTrue(bob.readLine().startsWith("ERROR:Invalid //history"));
+            }
+        }
+    }
+
+    /**
+     * Test that history is restored from the journal after a restart.
+     */
+    @Test
+    void testHistorySurvivesRestart(@TempDir Path journalDirectory) throws Exception {
+        ServerConfig config = TestServers.quietConfig(ServerMode.NIO);
+        config.getJournal().setDirectory(journalDirectory.toString());
+        server = TestServers.start(config);
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD)) {
+            alice.send("//join dev");
+            alice.readLineStartingWith("Joined room 'dev'");
+            alice.send("before the restart");
+            alice.send("//history 1");
+            assertEquals("#dev [alice]: before the restart", alice.readLine());
+        }
+        server.stop();
+
+        server = TestServers.start(config);
+        try (TestLineClient bob = new TestLineClient(server.getPort()).login("bob", TestServers.PASSWORD)) {
+            bob.send("//join dev");
+            bob.readLineStartingWith("Joined room 'dev'");
+            bob.send("//history");
+            List<String> history = new ArrayList<>();
+            for (String line = bob.readLine(); !line.startsWith("HISTORY_END:"); line = bob.readLine()) {
+                history.add(line);
+            }
+            assertTrue(history.contains("#dev [alice]: before the restart"), history.toString());
+        }
+        assertTrue(server.getJournal().getLastSequence() > 0);
+    }
+
+    /**
+     * Test that //search finds journalled messages across rooms and within one room.
+     */
+    @Test
+    void testSearch(@TempDir Path journalDirectory) throws Exception {
+        ServerConfig config = TestServers.quietConfig(ServerMode.NIO);
+        config.getJournal().setDirectory(journalDirectory.toString());
+        server = TestServers.start(config);
+        try (TestLineClient alice = new TestLineClient(server.getPort()).login("alice", TestServers.PASSWORD)) {
+            alice.send("the deploy is done");
+            alice.send("//join dev");
+            alice.readLineStartingWith("Joined room 'dev'");
+            alice.send("deploy broke the build");
+            alice.send("lunch?");
+
+            alice.send("//search DEPLOY");
+            assertEquals("#dev [alice]: deploy broke the build", alice.readLine());
+            assertEquals("#general [alice]: the deploy is done", alice.readLine());
+            assertEquals("SEARCH_END:2 matches for 'DEPLOY'", alice.readLine());
+            alice.send("//search deploy #general");
+            assertEquals("#general [alice]: the deploy is done", alice.readLine());
+            assertEquals("SEARCH_END:1 matches for 'deploy' in #general", alice.readLine());
+            alice.send("//search");
+            assertTrue(alice.readLine().startsWith("ERROR:Invalid //search"));
+        }
+    }
+}
+
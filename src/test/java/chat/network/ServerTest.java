@@ -89,8 +89,8 @@ class ServerTest {
         server.broadcastMessage("Test Message", mockClientHandler1);
 
         // Verify that the message was sent to client 2 but not client 1 (the sender)
-        verify(mockClientHandler2, times(1)).sendMessage("Test Message");
-        verify(mockClientHandler1, never()).sendMessage("Test Message");
+        verify(mockClientHandler2, times(1)).send(argThat(message -> message.getText().equals("Test Message")));
+        verify(mockClientHandler1, never()).send(any(OutboundMessage.class));
     }
 
     /**
@@ -114,6 +114,35 @@ class ServerTest {
         assertFalse(resultClients.contains(mockClientHandler1));
     }
 
+    /**
+     * Test constant-time lookup by username and the online list, including a user with two sessions.
+     */
+    @Test
+    void testLookupByUsername() {
+        ClientHandler secondSession = mock(ClientHandler.class);
+        when(mockClientHandler1.getClientName()).thenReturn("alice");
+        when(mockClientHandler2.getClientName()).thenReturn("bob");
+        when(secondSession.getClientName()).thenReturn("alice");
+
+        assertEquals("No users online", server.getOnlineUserNames());
+        server.addClient(mockClientHandler1);
+        server.addClient(mockClientHandler2);
+        server.addClient(secondSession);
+
+        assertSame(secondSession, server.getClient("alice"));
+        assertSame(mockClientHandler2, server.getClient("bob"));
+        assertNull(server.getClient("carol"));
+        assertEquals(2, server.getOnlineUserNames().split(", ").length);
+
+        // alice stays online while her first session is still connected
+        server.removeClient(secondSession);
+        assertSame(mockClientHandler1, server.getClient("alice"));
+        server.removeClient(mockClientHandler1);
+        assertNull(server.getClient("alice"));
+        assertEquals("bob", server.getOnlineUserNames());
+        assertEquals(1, server.getClients().size());
+    }
+
     /**
      * Test the getPort method.
      */
@@ -0,0 +1,74 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test that a client which stops reading cannot stall broadcasts to the others.
+ */
+class SlowConsumerTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test the DISCONNECT policy on both engines.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testSlowConsumerIsDisconnectedWhileOthersKeepReceiving(ServerMode mode) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setOutboundQueueCapacity(8);
+        config.setSlowConsumerPolicy(SlowConsumerPolicy.DISCONNECT);
+        server = TestServers.start(config);
+
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 32 * 1024; i++) {
+            payload.append('x');
+        }
+        int messages = 400; // ~13 MB, far more than the socket buffers of the stalled client hold
+
+        try (TestLineClient stalled = new TestLineClient(server.getPort()).login("stalled", TestServers.PASSWORD);
+             TestLineClient reader = new TestLineClient(server.getPort()).login("reader", TestServers.PASSWORD);
+             TestLineClient sender = new TestLineClient(server.getPort()).login("sender", TestServers.PASSWORD)) {
+            reader.readLineStartingWith("sender has joined");
+
+            AtomicInteger received = new AtomicInteger();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread readerThread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        reader.readLineStartingWith("[sender]: " + i + " ");
+                        received.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            readerThread.start();
+            for (int i = 0; i < messages; i++) {
+                sender.send(i + " " + payload);
+            }
+            readerThread.join(30_000);
+            assertFalse(readerThread.isAlive(), "fast reader must receive every message");
+            if (failure.get() != null) {
+                fail("fast reader failed after " + received.get() + " messages", failure.get());
+            }
+            assertEquals(messages, received.get());
+            assertEquals(1, server.getSlowConsumerDisconnectCount());
+            assertTrue(server.getDroppedMessageCount() >= 1);
+            TestServers.await(() -> !server.getOnlineUserNames().contains("stalled"), "the stalled client is removed");
+        }
+    }
+}
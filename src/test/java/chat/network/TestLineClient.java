@@ -0,0 +1,178 @@
+package chat.network;
+
+import chat.protocol.DeflateCodec;
+import chat.protocol.FrameCodec;
+import chat.protocol.FrameType;
+import chat.protocol.MessageInflater;
+import chat.protocol.WireReader;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal raw line-protocol client used by the network tests.
+ * Unlike {@link Client} it has no listener thread, sounds or sleeps, so tests can read
+ * server replies synchronously. After {@link #switchToBinary()} the same methods send and
+ * receive binary frames instead of lines.
+ */
+class TestLineClient implements Closeable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private WireReader frames; // Non-null once binary framing was negotiated
+    private MessageInflater inflater; // Non-null once compression was negotiated
+    private boolean lastLineCompressed;
+
+    TestLineClient(int port) throws IOException {
+        this(connect(port));
+    }
+
+    /**
+     * Wraps an already connected socket, e.g. a TLS one from {@link TestTls#connect}.
+     */
+    TestLineClient(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setSoTimeout(5000);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    private static Socket connect(int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("localhost", port), 5000);
+        return socket;
+    }
+
+    void send(String line) throws IOException {
+        if (frames != null) {
+            sendRaw(FrameCodec.encodeMessage(line));
+        } else {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Writes bytes to the socket as they are, e.g. a hand-crafted frame.
+     */
+    void sendRaw(byte[] bytes) throws IOException {
+        socket.getOutputStream().write(bytes);
+        socket.getOutputStream().flush();
+    }
+
+    String readLine() throws IOException {
+        if (frames == null) {
+            return in.readLine();
+        }
+        String[] text = new String[1];
+        while (frames.readFrame((type, flags, payload) -> {
+            lastLineCompressed = (flags & FrameCodec.FLAG_COMPRESSED) != 0;
+            if (type != FrameType.MESSAGE) {
+                text[0] = null;
+            } else {
+                text[0] = FrameCodec.text(lastLineCompressed ? inflater.inflate(payload) : payload);
+            }
+        })) {
+            if (text[0] != null) {
+                return text[0];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Negotiates binary framing and fails unless the server accepts it.
+     */
+    TestLineClient switchToBinary() throws IOException {
+        send(FrameCodec.NEGOTIATION_REQUEST);
+        String reply = in.readLine();
+        if (!FrameCodec.NEGOTIATION_ACCEPTED.equals(reply)) {
+            throw new IOException("Server refused binary framing: " + reply);
+        }
+        frames = new WireReader(socket.getInputStream(), 1 << 20);
+        return this;
+    }
+
+    /**
+     * Reads lines until one starts with the given prefix, skipping broadcasts in between.
+     */
+    String readLineStartingWith(String prefix) throws IOException {
+        String line;
+        while ((line = readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        throw new EOFException("Connection closed before a line starting with '" + prefix + "' arrived");
+    }
+
+    /**
+     * Logs in and waits until the server has registered the session. AUTH_SUCCESS is queued
+     * before the session joins the client list, so a round trip with a command confirms that
+     * broadcasts from other clients will now reach it.
+     */
+    TestLineClient login(String username, String password) throws IOException {
+        send("LOGIN " + username + " " + password);
+        readLineStartingWith("AUTH_SUCCESS:");
+        send("//rooms");
+        readLineStartingWith("Rooms: ");
+        return this;
+    }
+
+    /**
+     * Checks whether the server closed the connection within the read timeout.
+     */
+    boolean isClosedByServer() throws IOException {
+        try {
+            return readLine() == null;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Negotiates DEFLATE compression on a binary connection and fails unless the server accepts it.
+     */
+    TestLineClient enableCompression() throws IOException {
+        send("COMPRESS " + DeflateCodec.NAME);
+        String reply = readLine();
+        if (!("COMPRESS_OK:" + DeflateCodec.NAME).equals(reply)) {
+            throw new IOException("Server refused compression: " + reply);
+        }
+        inflater = new MessageInflater(1 << 20);
+        return this;
+    }
+
+    /**
+     * Sends a line as a compressed frame, regardless of its size.
+     */
+    void sendCompressed(String line) throws IOException {
+        byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = DeflateCodec.compress(payload, 0, payload.length);
+        sendRaw(FrameCodec.encode(FrameType.MESSAGE, FrameCodec.FLAG_COMPRESSED, compressed, 0, compressed.length));
+    }
+
+    /**
+     * Checks whether the line last returned by {@link #readLine()} arrived compressed.
+     */
+    boolean wasLastLineCompressed() {
+        return lastLineCompressed;
+    }
+
+    /**
+     * Gets the underlying socket, e.g. to read raw bytes after logging in.
+     */
+    Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        if (inflater != null) {
+            inflater.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package chat.network;
+
+import chat.auth.AccountManager;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Starts real servers on ephemeral loopback ports for the network tests.
+ * Accounts are backed by a mock: every user exists and the password is always {@link #PASSWORD}.
+ */
+final class TestServers {
+    static final String PASSWORD = "secret";
+
+    private TestServers() {
+    }
+
+    static ServerConfig quietConfig(ServerMode mode) {
+        ServerConfig config = new ServerConfig();
+        config.setMode(mode);
+        config.setSoundEnabled(false);
+        config.setRateLimitEnabled(false); // Tests and benchmarks send bursts; RateLimitTest turns it back on
+        config.setOfflineDeliveryEnabled(false); // Needs the database; OfflineDeliveryTest supplies a store
+        return config;
+    }
+
+    static AccountManager acceptingAccountManager() {
+        AccountManager accountManager = mock(AccountManager.class);
+        when(accountManager.validateCredentials(anyString(), anyString()))
+                .thenAnswer(invocation -> PASSWORD.equals(invocation.getArgument(1)));
+        when(accountManager.accountExists(anyString())).thenReturn(false);
+        when(accountManager.addAccount(anyString(), anyString())).thenReturn(true);
+        return accountManager;
+    }
+
+    /**
+     * Starts the server on a background thread and waits until it listens.
+     */
+    static Server start(ServerConfig config) throws InterruptedException {
+        return start(config, acceptingAccountManager());
+    }
+
+    /**
+     * Starts the server with the given account manager on a background thread and waits until it listens.
+     */
+    static Server start(ServerConfig config, AccountManager accountManager) throws InterruptedException {
+        return start(new Server(config, accountManager));
+    }
+
+    /**
+     * Starts a server set up by the test on a background thread and waits until it listens.
+     */
+    static Server start(Server server) throws InterruptedException {
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start(0);
+            } catch (IOException e) {
+                System.err.println("Test server failed: " + e.getMessage());
+            }
+        }, "test-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        assertTrue(server.awaitStartup(5, TimeUnit.SECONDS), "server did not start");
+        return server;
+    }
+
+    /**
+     * Polls the condition until it holds, failing the test after five seconds.
+     */
+    static void await(BooleanSupplier condition, String description) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting until " + description);
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package chat.network;
+
+import chat.util.TlsContexts;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Self-signed TLS material for the network tests. The key store is generated with the JDK's
+ * keytool once per test run, for {@code localhost} and {@code 127.0.0.1}.
+ */
+final class TestTls {
+    static final String PASSWORD = "changeit";
+    private static final String ALIAS = "chat-server";
+    private static Path keyStore;
+
+    private TestTls() {
+    }
+
+    /**
+     * Gets the key store file, generating it on first use.
+     */
+    static synchronized Path keyStore() throws IOException, InterruptedException {
+        if (keyStore == null) {
+            Path directory = Files.createTempDirectory("chat-tls");
+            Path file = directory.resolve("server.p12");
+            String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", ALIAS, "-keyalg", "RSA",
+                    "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost",
+                    "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                    "-keystore", file.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+                    .redirectErrorStream(true).start();
+            if (!process.waitFor(60, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                throw new IOException("keytool failed to generate " + file);
+            }
+            file.toFile().deleteOnExit();
+            directory.toFile().deleteOnExit();
+            keyStore = file;
+        }
+        return keyStore;
+    }
+
+    /**
+     * Turns on TLS in a test configuration.
+     */
+    static ServerConfig tlsConfig(ServerMode mode) throws IOException, InterruptedException {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setTlsEnabled(true);
+        config.setTlsKeyStore(keyStore().toString());
+        config.setTlsKeyStorePassword(PASSWORD);
+        return config;
+    }
+
+    /**
+     * Creates a client context that trusts the test certificate. Each context has its own
+     * session cache, so only connections made with the same context can resume a session.
+     */
+    static SSLContext clientContext() throws IOException, InterruptedException, GeneralSecurityException {
+        KeyStore serverKeys = TlsContexts.loadKeyStore(keyStore().toString(), PASSWORD.toCharArray(), "PKCS12");
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry(ALIAS, serverKeys.getCertificate(ALIAS));
+        return TlsContexts.clientContext(trusted);
+    }
+
+    /**
+     * Connects to a test server and completes the handshake.
+     */
+    static SSLSocket connect(SSLContext context, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(5000);
+        socket.startHandshake();
+        return socket;
+    }
+}
@@ -0,0 +1,80 @@
+package chat.network;
+
+import chat.util.BenchmarkSupport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Harness comparing full TLS handshakes against resumed ones, for both engines: a client
+ * reconnects in a loop for {@value #DURATION_MILLIS} ms, either with a fresh context every time
+ * (full handshake) or with one shared context (session resumption). Each connection completes
+ * the handshake, sends EXIT_AUTH and waits for the server to close it. Reports connections per second.
+ */
+@Tag("benchmark")
+class TlsHandshakeBenchmark {
+
+    private static final long DURATION_MILLIS = 3_000;
+    private static final int WARM_UP_CONNECTIONS = 30;
+
+    @Test
+    void compareFullAndResumedHandshakes() throws Exception {
+        for (ServerMode mode : ServerMode.values()) {
+            Server server = TestServers.start(TestTls.tlsConfig(mode));
+            try {
+                run(server, false);
+                run(server, true);
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    private static void run(Server server, boolean resume) throws Exception {
+        SSLContext shared = TestTls.clientContext();
+        for (int i = 0; i < WARM_UP_CONNECTIONS; i++) {
+            connectOnce(resume ? shared : TestTls.clientContext(), server.getPort());
+        }
+        long handshakesBefore = server.getTlsHandshakeCount();
+        long resumedBefore = server.getResumedTlsHandshakeCount();
+        int connections = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS)) {
+            connectOnce(resume ? shared : TestTls.clientContext(), server.getPort());
+            connections++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long handshakes = server.getTlsHandshakeCount() - handshakesBefore;
+        long resumed = server.getResumedTlsHandshakeCount() - resumedBefore;
+        BenchmarkSupport.report("TLS handshake " + server.getConfig().getMode(), resume ? "resumed session" : "full handshake",
+                String.format("%,6d connections %,8.1f handshakes/s %,6d resumed", connections, connections / seconds, resumed));
+        assertEquals(connections, handshakes);
+        if (resume) {
+            assertTrue(resumed >= connections * 0.9, "reconnects with the same context must resume");
+        } else {
+            assertEquals(0, resumed);
+        }
+    }
+
+    // A complete round trip: the server has finished its side of the handshake once it hangs up
+    private static void connectOnce(SSLContext context, int port) throws IOException {
+        try (SSLSocket socket = TestTls.connect(context, port)) {
+            socket.getOutputStream().write("EXIT_AUTH\n".getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[256];
+            while (in.read(buffer) >= 0) {
+                // Goodbye message, then end of stream
+            }
+        }
+    }
+}
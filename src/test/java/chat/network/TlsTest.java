@@ -0,0 +1,137 @@
+package chat.network;
+
+import chat.protocol.WireFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for TLS connections to both engines.
+ */
+class TlsTest {
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test that clients can log in and chat over TLS.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testChatOverTls(ServerMode mode) throws Exception {
+        server = TestServers.start(TestTls.tlsConfig(mode));
+        SSLContext context = TestTls.clientContext();
+        try (TestLineClient alice = new TestLineClient(TestTls.connect(context, server.getPort())).login("alice", TestServers.PASSWORD);
+             TestLineClient bob = new TestLineClient(TestTls.connect(context, server.getPort())).login("bob", TestServers.PASSWORD)) {
+            alice.readLineStartingWith("bob has joined the chat!");
+            bob.send("hello over TLS");
+            assertEquals("[bob]: hello over TLS", alice.readLineStartingWith("[bob]"));
+            assertEquals(2, server.getTlsHandshakeCount());
+        }
+    }
+
+    /**
+     * Test that messages spanning several TLS records, and bursts of them, arrive intact.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testLargeMessagesOverTls(ServerMode mode) throws Exception {
+        server = TestServers.start(TestTls.tlsConfig(mode));
+        SSLContext context = TestTls.clientContext();
+        try (TestLineClient alice = new TestLineClient(TestTls.connect(context, server.getPort())).login("alice", TestServers.PASSWORD);
+             TestLineClient bob = new TestLineClient(TestTls.connect(context, server.getPort())).login("bob", TestServers.PASSWORD)) {
+            alice.readLineStartingWith("bob has joined the chat!");
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 40_000) {
+                text.append("0123456789");
+            }
+            for (int i = 0; i < 20; i++) {
+                bob.send(i + text.toString());
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("[bob]: " + i + text, alice.readLine());
+            }
+        }
+    }
+
+    /**
+     * Test that a client reconnecting with the same context resumes its session, while a new
+     * context has to do a full handshake.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testReconnectResumesSession(ServerMode mode) throws Exception {
+        server = TestServers.start(TestTls.tlsConfig(mode));
+        SSLContext context = TestTls.clientContext();
+        // Logging in also reads the session ticket the server sends after the handshake
+        new TestLineClient(TestTls.connect(context, server.getPort())).login("alice", TestServers.PASSWORD).close();
+        new TestLineClient(TestTls.connect(context, server.getPort())).login("alice", TestServers.PASSWORD).close();
+        new TestLineClient(TestTls.connect(TestTls.clientContext(), server.getPort())).login("bob", TestServers.PASSWORD).close();
+
+        TestServers.await(() -> server.getTlsHandshakeCount() == 3, "all handshakes are counted");
+        assertEquals(1, server.getResumedTlsHandshakeCount());
+    }
+
+    /**
+     * Test that a plaintext client gets nothing readable from a TLS server.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testPlaintextClientIsRefused(ServerMode mode) throws Exception {
+        server = TestServers.start(TestTls.tlsConfig(mode));
+        try (TestLineClient plain = new TestLineClient(server.getPort())) {
+            plain.send("LOGIN alice " + TestServers.PASSWORD);
+            String reply;
+            try {
+                reply = plain.readLine();
+                while (reply != null && !reply.startsWith("AUTH_SUCCESS:")) {
+                    reply = plain.readLine();
+                }
+            } catch (IOException e) {
+                reply = null; // Reset by the server
+            }
+            assertNull(reply);
+        }
+        assertEquals(0, server.getTlsHandshakeCount());
+    }
+
+    /**
+     * Test that {@link Client} logs in over TLS and still negotiates binary frames.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testClientOverTls(ServerMode mode) throws Exception {
+        server = TestServers.start(TestTls.tlsConfig(mode));
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        Client client = new Client();
+        client.setTlsContext(TestTls.clientContext());
+        client.setMessageHandler(received::add);
+        try (TestLineClient bob = new TestLineClient(TestTls.connect(TestTls.clientContext(), server.getPort()))
+                .login("bob", TestServers.PASSWORD)) {
+            client.connect("localhost", server.getPort(), WireFormat.BINARY_DEFLATE);
+            assertEquals(WireFormat.BINARY_DEFLATE, client.getWireFormat());
+            assertTrue(client.login("alice", TestServers.PASSWORD));
+            bob.readLineStartingWith("alice has joined the chat!");
+            bob.send("hi alice");
+            String line;
+            do {
+                line = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(line, "no message from bob");
+            } while (!line.equals("[bob]: hi alice"));
+        } finally {
+            client.disconnect();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package chat.network;
+
+import chat.util.BenchmarkSupport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Harness comparing one socket write per message against write coalescing, for both engines,
+ * with one sender chatting into a room of {@value #RECEIVERS} receivers at 100 and 10k messages
+ * per second. Reports socket writes (roughly send syscalls) per delivered message and the
+ * delivery throughput.
+ */
+@Tag("benchmark")
+class WriteCoalescingBenchmark {
+
+    private static final int RECEIVERS = 10;
+    private static final long DURATION_MILLIS = 2_000;
+    private static final int[] RATES = {100, 10_000};
+
+    @Test
+    void compareCoalescing() throws Exception {
+        for (ServerMode mode : ServerMode.values()) {
+            for (int rate : RATES) {
+                double perMessageOff = run(mode, false, rate);
+                double perMessageOn = run(mode, true, rate);
+                assertTrue(perMessageOn <= perMessageOff * 1.1, "coalescing must not add writes");
+            }
+        }
+    }
+
+    // Returns socket writes per delivered message
+    private static double run(ServerMode mode, boolean coalescing, int rate) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setWriteCoalescing(coalescing);
+        Server server = TestServers.start(config);
+        List<Socket> receivers = new ArrayList<>();
+        AtomicLong delivered = new AtomicLong();
+        try (TestLineClient sender = new TestLineClient(server.getPort()).login("sender", TestServers.PASSWORD)) {
+            for (int i = 0; i < RECEIVERS; i++) {
+                TestLineClient receiver = new TestLineClient(server.getPort()).login("receiver" + i, TestServers.PASSWORD);
+                receivers.add(startCounting(receiver, delivered));
+            }
+            TestServers.await(() -> server.getRoom(config.getDefaultRoom()).size() == RECEIVERS + 1, "all receivers joined");
+            Thread.sleep(200); // Let join announcements drain before measuring
+            delivered.set(0);
+            long writesBefore = server.getSocketWriteCount();
+
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long start = System.nanoTime();
+            long next = start;
+            int sent = 0;
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS)) {
+                sender.send("message " + sent++);
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            long expected = (long) sent * RECEIVERS;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (delivered.get() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            long elapsed = System.nanoTime() - start;
+            long writes = server.getSocketWriteCount() - writesBefore;
+            double writesPerMessage = writes / (double) Math.max(1, delivered.get());
+            BenchmarkSupport.report(mode + " @" + rate + "/s", coalescing ? "coalescing" : "write per message",
+                    String.format("%,7d sent %,9d delivered %,9d writes %6.3f writes/msg %,10.0f delivered/s",
+                            sent, delivered.get(), writes, writesPerMessage, delivered.get() * 1e9 / elapsed));
+            return writesPerMessage;
+        } finally {
+            for (Socket receiver : receivers) {
+                receiver.close();
+            }
+            server.stop();
+        }
+    }
+
+    // Counts received lines on a background thread without decoding them
+    private static Socket startCounting(TestLineClient receiver, AtomicLong delivered) throws IOException {
+        Socket socket = receiver.getSocket();
+        socket.setSoTimeout(0);
+        InputStream in = socket.getInputStream();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[16 * 1024];
+            try {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    long lines = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            lines++;
+                        }
+                    }
+                    delivered.addAndGet(lines);
+                }
+            } catch (IOException e) {
+                // Socket closed at the end of the run
+            }
+        }, "benchmark-receiver");
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+    }
+}
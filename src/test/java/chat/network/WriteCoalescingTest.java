@@ -0,0 +1,75 @@
+package chat.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for batching outbound messages into few socket writes.
+ */
+class WriteCoalescingTest {
+
+    private static final int BURST = 200;
+
+    private Server server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.stop();
+    }
+
+    /**
+     * Test that a burst of room messages reaches the receiver complete and in order,
+     * in far fewer socket writes than messages.
+     */
+    @ParameterizedTest
+    @EnumSource(ServerMode.class)
+    void testBurstIsCoalesced(ServerMode mode) throws Exception {
+        ServerConfig config = TestServers.quietConfig(mode);
+        config.setEventLoopThreads(1); // The whole burst is handled in one loop iteration
+        config.setCoalesceMaxDelayMicros(100_000); // Lets the blocking writer collect the burst
+        server = TestServers.start(config);
+
+        long writes = sendBurst();
+
+        assertTrue(writes < BURST / 10, "expected the burst to be coalesced, but it took " + writes + " writes");
+    }
+
+    /**
+     * Test that disabling coalescing goes back to one write per message.
+     */
+    @Test
+    void testCoalescingDisabled() throws Exception {
+        ServerConfig config = TestServers.quietConfig(ServerMode.NIO);
+        config.setWriteCoalescing(false);
+        server = TestServers.start(config);
+
+        assertTrue(sendBurst() >= BURST);
+    }
+
+    // Returns the number of socket writes it took to deliver the burst
+    private long sendBurst() throws Exception {
+        try (TestLineClient receiver = new TestLineClient(server.getPort()).login("receiver", TestServers.PASSWORD);
+             TestLineClient sender = new TestLineClient(server.getPort()).login("sender", TestServers.PASSWORD)) {
+            receiver.readLineStartingWith("sender has joined the chat!");
+            long writesBefore = server.getSocketWriteCount();
+
+            StringBuilder burst = new StringBuilder();
+            for (int i = 0; i < BURST; i++) {
+                burst.append("message ").append(i).append('\n');
+            }
+            sender.sendRaw(burst.toString().getBytes(StandardCharsets.UTF_8));
+
+            for (int i = 0; i < BURST; i++) {
+                assertEquals("[sender]: message " + i, receiver.readLine());
+            }
+            return server.getSocketWriteCount() - writesBefore;
+        }
+    }
+}
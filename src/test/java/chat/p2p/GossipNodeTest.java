@@ -0,0 +1,90 @@
+package chat.p2p;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for {@link GossipNode}.
+ */
+class GossipNodeTest {
+
+    private final List<String> sentTo = new ArrayList<>();
+    private final List<GossipMessage> delivered = new ArrayList<>();
+
+    private GossipNode node(int fanout, int ttl) {
+        GossipNode node = new GossipNode("me", fanout, ttl, 64, new Random(1),
+                (peer, message) -> sentTo.add(peer), delivered::add);
+        node.setPeers(Arrays.asList("me", "a", "b", "c", "d", "e", "f", "g", "h"));
+        return node;
+    }
+
+    /**
+     * Test that publishing sends to fanout distinct peers, never to this node itself.
+     */
+    @Test
+    void testPublishSendsToFanoutPeers() {
+        GossipMessage message = node(3, 4).publish("hello");
+        assertEquals("me", message.getOrigin());
+        assertEquals(3, sentTo.size());
+        assertEquals(3, new HashSet<>(sentTo).size());
+        assertFalse(sentTo.contains("me"));
+        assertEquals(1, delivered.size());
+    }
+
+    /**
+     * Test that a message is delivered and forwarded once, and later copies only count as duplicates.
+     */
+    @Test
+    void testSuppressesDuplicates() {
+        GossipNode node = node(2, 4);
+        GossipMessage message = new GossipMessage("a:1", 3, "hi");
+        assertTrue(node.receive(message, "a"));
+        assertFalse(node.receive(message, "b"));
+        assertEquals(1, delivered.size());
+        assertEquals(2, sentTo.size());
+        assertFalse(sentTo.contains("a"), "never forwarded back to the sender or origin");
+        assertEquals(1, node.getDuplicateCount());
+    }
+
+    /**
+     * Test that a message on its last hop is delivered but not forwarded.
+     */
+    @Test
+    void testStopsAtTtl() {
+        GossipNode node = node(2, 4);
+        assertTrue(node.receive(new GossipMessage("a:1", 1, "last hop"), "b"));
+        assertEquals(1, delivered.size());
+        assertTrue(sentTo.isEmpty());
+    }
+
+    /**
+     * Test that messages survive the line encoding used on direct connections.
+     */
+    @Test
+    void testLineEncoding() {
+        GossipMessage decoded = GossipMessage.decode(new GossipMessage("al:ice:7", 5, "text with spaces").encode());
+        assertEquals("al:ice:7", decoded.getId());
+        assertEquals("al:ice", decoded.getOrigin());
+        assertEquals(5, decoded.getTtl());
+        assertEquals("text with spaces", decoded.getText());
+        assertThrows(IllegalArgumentException.class, () -> GossipMessage.decode("no-id 1 x"));
+    }
+
+    /**
+     * Test that gossip reaches nearly all of 200 simulated peers with few copies per delivery.
+     */
+    @Test
+    void testSimulatedGroupCoverage() {
+        GossipSimulation.Result result = new GossipSimulation(200, GossipNode.DEFAULT_FANOUT, 6, 40, 7).run(20);
+        assertTrue(result.coverage > 0.97, "coverage " + result.coverage);
+        assertTrue(result.copiesPerDelivery < GossipNode.DEFAULT_FANOUT, "copies per delivery " + result.copiesPerDelivery);
+        assertTrue(result.p50 <= result.p99);
+    }
+}
@@ -0,0 +1,140 @@
+package chat.p2p;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discrete-event simulation of a gossip group in one JVM. Peers are real {@link GossipNode}s;
+ * the transport puts each copy on an event queue with a random link latency, so hundreds of
+ * peers run deterministically in milliseconds of wall time.
+ */
+final class GossipSimulation {
+    private static final long MIN_LATENCY_MICROS = 1_000;
+    private static final long MAX_LATENCY_MICROS = 20_000;
+
+    /**
+     * Outcome of a run. Latencies are in microseconds of simulated time from publishing
+     * to delivery, over every delivery to a peer other than the origin.
+     */
+    static final class Result {
+        double coverage;
+        long p50;
+        long p90;
+        long p99;
+        long max;
+        double copiesPerDelivery;
+        double duplicatesPerDelivery;
+    }
+
+    private static final class Event {
+        final long time;
+        final long order;
+        final int target;
+        final String from;
+        final GossipMessage message;
+
+        Event(long time, long order, int target, String from, GossipMessage message) {
+            this.time = time;
+            this.order = order;
+            this.target = target;
+            this.from = from;
+            this.message = message;
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>(
+            (a, b) -> a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.order, b.order));
+    private final Random latency;
+    private final GossipNode[] nodes;
+    private long now;
+    private long order;
+    private long publishedAt;
+    private int deliveries;
+    private final List<Long> latencies = new ArrayList<>();
+
+    /**
+     * @param peers Number of peers
+     * @param fanout Forwarding fanout of every peer
+     * @param ttl Hops a message may travel
+     * @param viewSize Random peers each peer knows about; peers - 1 gives everyone full membership
+     * @param seed Makes the run repeatable
+     */
+    GossipSimulation(int peers, int fanout, int ttl, int viewSize, long seed) {
+        latency = new Random(seed);
+        nodes = new GossipNode[peers];
+        for (int i = 0; i < peers; i++) {
+            String name = "p" + i;
+            nodes[i] = new GossipNode(name, fanout, ttl, GossipNode.DEFAULT_SEEN_CAPACITY, new Random(seed + i),
+                    (peer, message) -> schedule(peer, name, message), message -> delivered(message, name));
+        }
+        Random views = new Random(seed - 1);
+        for (GossipNode node : nodes) {
+            List<String> view = new ArrayList<>();
+            while (view.size() < Math.min(viewSize, peers - 1)) {
+                String peer = "p" + views.nextInt(peers);
+                if (!peer.equals(node.getNodeId()) && !view.contains(peer)) {
+                    view.add(peer);
+                }
+            }
+            node.setPeers(view);
+        }
+    }
+
+    private void schedule(String peer, String from, GossipMessage message) {
+        long delay = MIN_LATENCY_MICROS + (long) (latency.nextDouble() * (MAX_LATENCY_MICROS - MIN_LATENCY_MICROS));
+        events.add(new Event(now + delay, order++, Integer.parseInt(peer.substring(1)), from, message));
+    }
+
+    private void delivered(GossipMessage message, String peer) {
+        if (!message.getOrigin().equals(peer)) {
+            deliveries++;
+            latencies.add(now - publishedAt);
+        }
+    }
+
+    /**
+     * Publishes messages from random peers one after another, each running until it died out.
+     *
+     * @param messages Number of messages to publish
+     * @return Coverage, latency percentiles and overhead over all messages
+     */
+    Result run(int messages) {
+        Random origins = new Random(messages);
+        for (int i = 0; i < messages; i++) {
+            publishedAt = now;
+            nodes[origins.nextInt(nodes.length)].publish("message " + i);
+            Event event;
+            while ((event = events.poll()) != null) {
+                now = event.time;
+                nodes[event.target].receive(event.message, event.from);
+            }
+        }
+        long sent = 0;
+        long duplicates = 0;
+        for (GossipNode node : nodes) {
+            sent += node.getSentCount();
+            duplicates += node.getDuplicateCount();
+        }
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        Result result = new Result();
+        result.coverage = deliveries / (double) ((long) messages * (nodes.length - 1));
+        result.p50 = percentile(sorted, 0.50);
+        result.p90 = percentile(sorted, 0.90);
+        result.p99 = percentile(sorted, 0.99);
+        result.max = sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        result.copiesPerDelivery = deliveries == 0 ? 0 : sent / (double) deliveries;
+        result.duplicatesPerDelivery = deliveries == 0 ? 0 : duplicates / (double) deliveries;
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
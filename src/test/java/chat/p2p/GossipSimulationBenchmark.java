@@ -0,0 +1,40 @@
+package chat.p2p;
+
+import chat.util.BenchmarkSupport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Harness reporting how gossip spreads through groups of 100 to 1000 simulated peers:
+ * coverage, delivery latency percentiles (link latency 1-20 ms) and overhead as copies sent
+ * and duplicates received per useful delivery, for several fanouts. Pointwise sending from
+ * the origin would need one copy per delivery but all of them from a single peer.
+ */
+@Tag("benchmark")
+class GossipSimulationBenchmark {
+
+    private static final int MESSAGES = 100;
+    private static final int VIEW_SIZE = 40;
+
+    @Test
+    void compareFanouts() {
+        for (int peers : new int[]{100, 300, 1000}) {
+            for (int fanout : new int[]{2, 3, 4, 6, 8}) {
+                int ttl = (int) Math.ceil(Math.log(peers) / Math.log(fanout)) + 2;
+                long start = System.nanoTime();
+                GossipSimulation.Result result = new GossipSimulation(peers, fanout, ttl, VIEW_SIZE, 42).run(MESSAGES);
+                long elapsed = System.nanoTime() - start;
+                BenchmarkSupport.report("gossip " + peers + " peers", "fanout " + fanout + " ttl " + ttl, String.format(
+                        "coverage %6.2f%%  p50 %5.1f ms  p90 %5.1f ms  p99 %5.1f ms  max %5.1f ms"
+                                + "  %4.2f copies/delivery  %4.2f duplicates/delivery  (%d ms wall)",
+                        result.coverage * 100, result.p50 / 1000.0, result.p90 / 1000.0, result.p99 / 1000.0,
+                        result.max / 1000.0, result.copiesPerDelivery, result.duplicatesPerDelivery, elapsed / 1_000_000));
+                if (fanout >= 8) {
+                    assertTrue(result.coverage > 0.99, "fanout " + fanout + " should reach nearly every peer");
+                }
+            }
+        }
+    }
+}
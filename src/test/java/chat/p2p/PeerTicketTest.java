@@ -0,0 +1,39 @@
+package chat.p2p;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for {@link PeerTicket}.
+ */
+class PeerTicketTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    /**
+     * Test that a ticket is accepted for the caller it was issued to and nobody else.
+     */
+    @Test
+    void testVerifiesIssuedTicket() {
+        String secret = PeerTicket.newSecret();
+        String ticket = PeerTicket.issue(secret, "alice", NOW);
+        assertTrue(PeerTicket.verify(secret, "alice", ticket, NOW + 1000));
+        assertFalse(PeerTicket.verify(secret, "mallory", ticket, NOW + 1000));
+        assertFalse(PeerTicket.verify(PeerTicket.newSecret(), "alice", ticket, NOW + 1000));
+    }
+
+    /**
+     * Test that expired, tampered and malformed tickets are rejected.
+     */
+    @Test
+    void testRejectsBadTickets() {
+        String secret = PeerTicket.newSecret();
+        String ticket = PeerTicket.issue(secret, "alice", NOW);
+        assertFalse(PeerTicket.verify(secret, "alice", ticket, NOW + PeerTicket.MAX_AGE_MILLIS + 1));
+        String otherTime = (NOW + 1) + ticket.substring(ticket.indexOf('.'));
+        assertFalse(PeerTicket.verify(secret, "alice", otherTime, NOW));
+        assertFalse(PeerTicket.verify(secret, "alice", "garbage", NOW));
+        assertFalse(PeerTicket.verify(secret, "alice", "x.y", NOW));
+    }
+}
@@ -0,0 +1,75 @@
+package chat.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for per-message DEFLATE compression.
+ */
+class DeflateCodecTest {
+
+    static final String STACK_TRACE = stackTrace();
+
+    /**
+     * Test that a stack trace compresses well and inflates back to the original text.
+     */
+    @Test
+    void testRoundTrip() throws ProtocolException {
+        byte[] original = STACK_TRACE.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = DeflateCodec.compress(original, 0, original.length);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < original.length / 3, "stack traces should compress at least 3:1");
+
+        try (MessageInflater inflater = new MessageInflater(1 << 20)) {
+            assertEquals(STACK_TRACE, FrameCodec.text(inflater.inflate(ByteBuffer.wrap(compressed))));
+            // The inflater is reused for the next message
+            byte[] second = "another message, another message, another message".getBytes(StandardCharsets.UTF_8);
+            assertEquals("another message, another message, another message",
+                    FrameCodec.text(inflater.inflate(ByteBuffer.wrap(DeflateCodec.compress(second, 0, second.length)))));
+        }
+    }
+
+    /**
+     * Test that short and incompressible payloads are sent as plain frames.
+     */
+    @Test
+    void testPlainFrameWhenCompressionDoesNotPay() {
+        byte[] small = "hi".getBytes(StandardCharsets.UTF_8);
+        assertEquals(0, DeflateCodec.encodeMessage(small, 0, small.length, DeflateCodec.DEFAULT_MIN_BYTES)[1]);
+
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        assertNull(DeflateCodec.compress(random, 0, random.length));
+        assertEquals(0, DeflateCodec.encodeMessage(random, 0, random.length, 0)[1]);
+
+        byte[] trace = STACK_TRACE.getBytes(StandardCharsets.UTF_8);
+        assertEquals(FrameCodec.FLAG_COMPRESSED, DeflateCodec.encodeMessage(trace, 0, trace.length, 0)[1]);
+    }
+
+    /**
+     * Test that a payload inflating beyond the limit is rejected instead of exhausting memory.
+     */
+    @Test
+    void testRejectDecompressionBomb() {
+        byte[] zeros = new byte[1 << 20];
+        byte[] compressed = DeflateCodec.compress(zeros, 0, zeros.length);
+        try (MessageInflater inflater = new MessageInflater(64 * 1024)) {
+            assertThrows(ProtocolException.class, () -> inflater.inflate(ByteBuffer.wrap(compressed)));
+        }
+    }
+
+    private static String stackTrace() {
+        StringBuilder trace = new StringBuilder("java.lang.IllegalStateException: Connection pool exhausted");
+        for (int i = 0; i < 40; i++) {
+            trace.append("\n\tat com.example.chat.service.MessageService.handle").append(i % 7)
+                    .append("(MessageService.java:").append(100 + i).append(')');
+        }
+        return trace.append("\nCaused by: java.io.IOException: Broken pipe").toString();
+    }
+}
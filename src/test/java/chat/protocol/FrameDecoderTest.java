@@ -0,0 +1,134 @@
+package chat.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the binary frame codec, decoder and blocking reader.
+ */
+class FrameDecoderTest {
+
+    private final List<String> decoded = new ArrayList<>();
+    private final FrameListener collect = (type, flags, payload) -> decoded.add(FrameCodec.text(payload));
+
+    /**
+     * Test that frames survive being delivered one byte at a time.
+     */
+    @Test
+    void testDecodeByteByByte() throws IOException {
+        byte[] stream = concat(FrameCodec.encodeMessage("hello"), FrameCodec.encodeMessage("multi\nline"),
+                FrameCodec.encodeMessage(""));
+        FrameDecoder decoder = new FrameDecoder(1024);
+        for (byte b : stream) {
+            decoder.decode(ByteBuffer.wrap(new byte[]{b}), collect);
+        }
+        assertEquals(3, decoded.size());
+        assertEquals("hello", decoded.get(0));
+        assertEquals("multi\nline", decoded.get(1));
+        assertEquals("", decoded.get(2));
+        assertFalse(decoder.isMidFrame());
+    }
+
+    /**
+     * Test that decodeOne stops right after a frame and leaves the rest in the buffer.
+     */
+    @Test
+    void testDecodeOneLeavesRemainder() throws IOException {
+        byte[] first = FrameCodec.encodeMessage("one");
+        ByteBuffer buffer = ByteBuffer.wrap(concat(first, FrameCodec.encodeMessage("two")));
+        FrameDecoder decoder = new FrameDecoder(1024);
+
+        assertTrue(decoder.decodeOne(buffer, collect));
+        assertEquals(first.length, buffer.position());
+        assertTrue(decoder.decodeOne(buffer, collect));
+        assertFalse(decoder.decodeOne(buffer, collect));
+        assertEquals(2, decoded.size());
+    }
+
+    /**
+     * Test varint lengths around the one-, two- and three-byte boundaries.
+     */
+    @Test
+    void testVarintBoundaries() throws IOException {
+        for (int length : new int[]{0, 1, 127, 128, 16383, 16384, 100000}) {
+            byte[] payload = new byte[length];
+            byte[] frame = FrameCodec.encode(FrameType.MESSAGE, 0x01, payload, 0, length);
+            assertEquals(2 + Varint.size(length) + length, frame.length);
+
+            int[] seen = new int[2];
+            new FrameDecoder(100000).decode(ByteBuffer.wrap(frame), (type, flags, body) -> {
+                seen[0] = flags;
+                seen[1] = body.remaining();
+            });
+            assertEquals(0x01, seen[0]);
+            assertEquals(length, seen[1]);
+        }
+        assertEquals(1, Varint.size(127));
+        assertEquals(2, Varint.size(128));
+        assertEquals(5, Varint.size(Integer.MAX_VALUE));
+    }
+
+    /**
+     * Test that an oversized frame is rejected from its header, before the payload arrives.
+     */
+    @Test
+    void testRejectOversizedFrame() {
+        byte[] header = new byte[]{(byte) FrameType.MESSAGE.getCode(), 0, (byte) 0x81, 0x08}; // 1025 bytes
+        FrameDecoder decoder = new FrameDecoder(1024);
+        assertThrows(ProtocolException.class, () -> decoder.decode(ByteBuffer.wrap(header), collect));
+    }
+
+    /**
+     * Test that unknown frame types are rejected.
+     */
+    @Test
+    void testRejectUnknownType() {
+        FrameDecoder decoder = new FrameDecoder(1024);
+        assertThrows(ProtocolException.class, () -> decoder.decode(ByteBuffer.wrap(new byte[]{0x7F, 0, 0}), collect));
+    }
+
+    /**
+     * Test that a reader switches from lines to frames without losing buffered bytes.
+     */
+    @Test
+    void testWireReaderSwitchesFormat() throws IOException {
+        byte[] stream = concat("PROTOCOL_OK:BINARY/1\r\n".getBytes(StandardCharsets.UTF_8),
+                FrameCodec.encodeMessage("framed"));
+        WireReader reader = new WireReader(new ByteArrayInputStream(stream), 1024);
+
+        assertEquals("PROTOCOL_OK:BINARY/1", reader.readLine());
+        assertTrue(reader.readFrame(collect));
+        assertEquals("framed", decoded.get(0));
+        assertFalse(reader.readFrame(collect));
+    }
+
+    /**
+     * Test that a stream ending inside a frame is reported instead of treated as a clean close.
+     */
+    @Test
+    void testWireReaderTruncatedFrame() {
+        byte[] frame = FrameCodec.encodeMessage("truncated");
+        byte[] truncated = new byte[frame.length - 2];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        WireReader reader = new WireReader(new ByteArrayInputStream(truncated), 1024);
+        assertThrows(IOException.class, () -> reader.readFrame(collect));
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,100 @@
+package chat.protocol;
+
+import chat.util.BenchmarkSupport;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Harness comparing inbound parsing cost: the text path that reads a line with
+ * {@link BufferedReader#readLine()} and splits it into command and arguments, against
+ * {@link FrameDecoder} handing out payload views. Reports time and bytes allocated per message.
+ */
+@Tag("benchmark")
+class FrameParsingBenchmark {
+
+    private static final int MESSAGES = 10_000;
+    private static final int ROUNDS = 50;
+    private static final String[] SAMPLES = {
+            "LOGIN alice secret",
+            "//msg bob did you see the deploy?",
+            "The deploy finished, all nodes are healthy again — ünïcödé included.",
+            "//join ops",
+    };
+
+    @Test
+    void compareParsing() {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            String message = SAMPLES[i % SAMPLES.length];
+            byte[] line = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            lines.write(line, 0, line.length);
+            byte[] frame = FrameCodec.encodeMessage(message);
+            frames.write(frame, 0, frame.length);
+        }
+        byte[] lineBytes = lines.toByteArray();
+        ByteBuffer frameBytes = ByteBuffer.wrap(frames.toByteArray());
+        FrameDecoder decoder = new FrameDecoder(1 << 16);
+        long[] sink = new long[1];
+
+        Runnable readLineSplit = () -> {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new ByteArrayInputStream(lineBytes), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    sink[0] += line.split(" ", 3).length;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        FrameListener viewOnly = (type, flags, payload) -> sink[0] += payload.remaining();
+        Runnable frameViews = () -> decodeAll(decoder, frameBytes, viewOnly);
+        FrameListener toText = (type, flags, payload) -> sink[0] += FrameCodec.text(payload).length();
+        Runnable frameText = () -> decodeAll(decoder, frameBytes, toText);
+
+        double legacy = measure("readLine + split", readLineSplit);
+        double views = measure("frame payload views", frameViews);
+        measure("frame + UTF-8 decode", frameText);
+        assertTrue(sink[0] > 0);
+        assertTrue(views < legacy, "frame parsing must allocate less than readLine/split");
+    }
+
+    private static void decodeAll(FrameDecoder decoder, ByteBuffer frames, FrameListener listener) {
+        try {
+            frames.clear();
+            decoder.decode(frames, listener);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns bytes allocated per message
+    private static double measure(String variant, Runnable parseAll) {
+        BenchmarkSupport.warmUp(parseAll, ROUNDS);
+        long allocatedBefore = BenchmarkSupport.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            parseAll.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long messages = (long) MESSAGES * ROUNDS;
+        double bytesPerMessage = (BenchmarkSupport.allocatedBytes() - allocatedBefore) / (double) messages;
+        BenchmarkSupport.report("parse x" + MESSAGES, variant, String.format(
+                "%,8.0f ns/message %,12.0f messages/s %,8.1f B allocated/message",
+                elapsed / (double) messages, messages * 1e9 / elapsed, bytesPerMessage));
+        return bytesPerMessage;
+    }
+}
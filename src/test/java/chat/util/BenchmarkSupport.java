@@ -0,0 +1,41 @@
+package chat.util;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Helpers shared by the {@code @Tag("benchmark")} harnesses.
+ * Benchmarks run with {@code mvn test -Pperf} and print their results to stdout.
+ */
+public final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Gets the number of bytes the current thread has allocated so far, or -1 if the JVM
+     * cannot tell (HotSpot-based JVMs can).
+     */
+    public static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Runs the task repeatedly without measuring, so the JIT has compiled it before the timed run.
+     */
+    public static void warmUp(Runnable task, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+    }
+
+    /**
+     * Prints one result line in a fixed format so runs are easy to compare.
+     */
+    public static void report(String benchmark, String variant, String result) {
+        System.out.printf("%-28s %-24s %s%n", benchmark, variant, result);
+    }
+}
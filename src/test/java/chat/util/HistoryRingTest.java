@@ -0,0 +1,89 @@
+package chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for {@link HistoryRing}.
+ */
+class HistoryRingTest {
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that the newest messages come back oldest first, however many are asked for.
+     */
+    @Test
+    void testReturnsNewestMessagesInOrder() {
+        HistoryRing ring = new HistoryRing(1024);
+        for (String message : new String[]{"one", "two", "три", ""}) {
+            assertTrue(ring.append(utf8(message)));
+        }
+        assertEquals(Arrays.asList("три", ""), ring.latest(2));
+        assertEquals(Arrays.asList("one", "two", "три", ""), ring.latest(10));
+        assertTrue(ring.latest(0).isEmpty());
+    }
+
+    /**
+     * Test that the ring stays within its byte budget by overwriting the oldest messages.
+     */
+    @Test
+    void testOverwritesOldestWithinBudget() {
+        HistoryRing ring = new HistoryRing(64); // 8 slots: each 12-byte message takes 3
+        for (int i = 0; i < 10; i++) {
+            ring.append(utf8(String.format("message-%04d", i)));
+        }
+        assertEquals(64, ring.getBudgetBytes());
+        assertEquals(Arrays.asList("message-0008", "message-0009"), ring.latest(10));
+        assertFalse(ring.append(ByteBuffer.allocate(64)), "a message larger than the budget is not kept");
+        assertEquals(2, ring.latest(10).size());
+    }
+
+    /**
+     * Test that readers racing a writer only ever see whole, correctly ordered messages.
+     */
+    @Test
+    void testConcurrentReadersSeeConsistentMessages() throws Exception {
+        HistoryRing ring = new HistoryRing(512);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (writing.get() && failure.get() == null) {
+                    List<String> latest = ring.latest(16);
+                    long previous = -1;
+                    for (String message : latest) {
+                        String[] parts = message.split(":");
+                        // Every message repeats its number, so a torn copy shows up as a mismatch
+                        if (parts.length != 2 || !parts[1].equals(parts[0] + parts[0])
+                                || Long.parseLong(parts[0]) <= previous) {
+                            failure.compareAndSet(null, "Inconsistent history " + latest);
+                        }
+                        previous = Long.parseLong(parts[0]);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < 200_000; i++) {
+            ring.append(utf8(i + ":" + i + i));
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals("199999:199999199999", ring.latest(1).get(0));
+    }
+}
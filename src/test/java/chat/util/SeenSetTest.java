@@ -0,0 +1,39 @@
+package chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for {@link SeenSet}.
+ */
+class SeenSetTest {
+
+    /**
+     * Test that an ID is accepted once and reported as a duplicate afterwards.
+     */
+    @Test
+    void testRejectsDuplicates() {
+        SeenSet seen = new SeenSet(16);
+        assertTrue(seen.add("a:1"));
+        assertFalse(seen.add("a:1"));
+        assertTrue(seen.add("b:1"));
+        assertEquals(2, seen.size());
+    }
+
+    /**
+     * Test that the set stays within its capacity by forgetting the oldest IDs first.
+     */
+    @Test
+    void testForgetsOldestBeyondCapacity() {
+        SeenSet seen = new SeenSet(3);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(seen.add("a:" + i));
+        }
+        assertEquals(3, seen.size());
+        assertFalse(seen.contains("a:1"));
+        assertFalse(seen.contains("a:2"));
+        assertTrue(seen.contains("a:5"));
+        assertFalse(seen.add("a:4"));
+    }
+}
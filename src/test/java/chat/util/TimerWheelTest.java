@@ -0,0 +1,68 @@
+package chat.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for {@link TimerWheel}.
+ */
+class TimerWheelTest {
+
+    private final TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 8, "test-wheel");
+
+    @AfterEach
+    void tearDown() {
+        wheel.close();
+    }
+
+    /**
+     * Test that a task runs once its delay has passed and not before.
+     */
+    @Test
+    void testRunsAfterDelay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        long[] firedAfter = new long[1];
+        wheel.schedule(() -> {
+            firedAfter[0] = System.nanoTime() - start;
+            fired.countDown();
+        }, 30, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(firedAfter[0] >= TimeUnit.MILLISECONDS.toNanos(30), "fired early: " + firedAfter[0]);
+    }
+
+    /**
+     * Test that delays longer than one turn of the wheel wait the right number of rounds,
+     * and that tasks fire in deadline order.
+     */
+    @Test
+    void testDelaysBeyondOneTurn() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        // One turn is 8 x 5 ms = 40 ms, so these land in the same or nearby buckets on different rounds
+        wheel.schedule(() -> { order.add(3); done.countDown(); }, 130, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { order.add(1); done.countDown(); }, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { order.add(2); done.countDown(); }, 50, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(java.util.Arrays.asList(1, 2, 3), order);
+    }
+
+    /**
+     * Test that a cancelled task never runs.
+     */
+    @Test
+    void testCancel() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(fired::countDown, 20, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        assertFalse(fired.await(100, TimeUnit.MILLISECONDS));
+    }
+}
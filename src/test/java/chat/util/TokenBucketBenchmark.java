@@ -0,0 +1,51 @@
+package chat.util;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Harness measuring what a rate limit check costs per line, uncontended and with several
+ * threads hammering one bucket (a user's shared budget). Reports time and bytes allocated per check.
+ */
+@Tag("benchmark")
+class TokenBucketBenchmark {
+
+    private static final int CHECKS = 5_000_000;
+    private static final int THREADS = 4;
+
+    @Test
+    void measureChecks() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1_000_000, 1_000);
+        BenchmarkSupport.warmUp(bucket::tryAcquire, CHECKS);
+
+        long allocatedBefore = BenchmarkSupport.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < CHECKS; i++) {
+            bucket.tryAcquire();
+        }
+        long elapsed = System.nanoTime() - start;
+        double bytesPerCheck = (BenchmarkSupport.allocatedBytes() - allocatedBefore) / (double) CHECKS;
+        BenchmarkSupport.report("token bucket", "1 thread", String.format(
+                "%6.1f ns/check %8.3f B allocated/check", elapsed / (double) CHECKS, bytesPerCheck));
+        assertTrue(bytesPerCheck < 1, "checks must not allocate");
+
+        CountDownLatch done = new CountDownLatch(THREADS);
+        start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < CHECKS / THREADS; i++) {
+                    bucket.tryAcquire();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        elapsed = System.nanoTime() - start;
+        BenchmarkSupport.report("token bucket", THREADS + " threads, shared", String.format(
+                "%6.1f ns/check", elapsed / (double) CHECKS));
+    }
+}
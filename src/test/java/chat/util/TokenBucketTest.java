@@ -0,0 +1,71 @@
+package chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the lock-free token bucket.
+ */
+class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Test that a full bucket grants exactly its burst, then refills at the configured rate.
+     */
+    @Test
+    void testBurstAndRefill() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(now), "permit " + i + " of the burst");
+        }
+        assertFalse(bucket.tryAcquire(now));
+
+        assertTrue(bucket.tryAcquire(now + SECOND / 10)); // One interval later, one permit
+        assertFalse(bucket.tryAcquire(now + SECOND / 10));
+
+        long later = now + 10 * SECOND; // Idle time refills up to the burst, not beyond
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(later));
+        }
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    /**
+     * Test that concurrent callers never get more than the burst between them.
+     */
+    @Test
+    void testConcurrentCallersShareTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, 1_000);
+        long now = System.nanoTime();
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 1_000; i++) {
+                    if (bucket.tryAcquire(now)) {
+                        granted.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1_000, granted.get());
+    }
+
+    /**
+     * Test that nonsensical limits are rejected.
+     */
+    @Test
+    void testInvalidLimits() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1, 0));
+    }
+}